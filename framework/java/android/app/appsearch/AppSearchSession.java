@@ -19,7 +19,9 @@ package android.app.appsearch;
 import static android.app.appsearch.SearchSessionUtil.safeExecute;
 
 import android.annotation.CallbackExecutor;
+import android.annotation.ElapsedRealtimeLong;
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.appsearch.aidl.AppSearchBatchResultParcel;
 import android.app.appsearch.aidl.AppSearchResultParcel;
 import android.app.appsearch.aidl.DocumentsParcel;
@@ -29,6 +31,7 @@ import android.app.appsearch.aidl.IAppSearchResultCallback;
 import android.app.appsearch.util.SchemaMigrationUtil;
 import android.content.AttributionSource;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.UserHandle;
@@ -421,6 +424,37 @@ public final class AppSearchSession implements Closeable {
                 searchSpec, mUserHandle);
     }
 
+    /**
+     * Same as {@link #search(String, SearchSpec)}, but the first page of results can be given up
+     * on while it is still being fetched.
+     *
+     * <p>If the signal is cancelled, or the deadline passes, before the first page is returned,
+     * the search is dropped if it hasn't started running yet, or stops converting its results if
+     * it has. The callback of {@link SearchResults#getNextPage} then receives an error. Use this
+     * when a newer query makes the results obsolete, for example as the user types.
+     *
+     * @param queryExpression query string to search.
+     * @param searchSpec spec for setting document filters, adding projection, setting term match
+     *     type, etc.
+     * @param cancellationSignal signal to cancel the first page with, or {@code null}.
+     * @param deadlineMillis the {@link SystemClock#elapsedRealtime} after which the first page is
+     *     given up on, or 0 for no deadline.
+     * @return a {@link SearchResults} object for retrieved matched documents.
+     * @hide
+     */
+    @NonNull
+    public SearchResults search(
+            @NonNull String queryExpression,
+            @NonNull SearchSpec searchSpec,
+            @Nullable CancellationSignal cancellationSignal,
+            @ElapsedRealtimeLong long deadlineMillis) {
+        Objects.requireNonNull(queryExpression);
+        Objects.requireNonNull(searchSpec);
+        Preconditions.checkState(!mIsClosed, "AppSearchSession has already been closed");
+        return new SearchResults(mService, mCallerAttributionSource, mDatabaseName, queryExpression,
+                searchSpec, mUserHandle, cancellationSignal, deadlineMillis);
+    }
+
     /**
      * Reports usage of a particular document by namespace and ID.
      *
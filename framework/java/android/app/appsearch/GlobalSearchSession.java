@@ -19,11 +19,14 @@ package android.app.appsearch;
 import static android.app.appsearch.SearchSessionUtil.safeExecute;
 
 import android.annotation.CallbackExecutor;
+import android.annotation.ElapsedRealtimeLong;
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.appsearch.aidl.AppSearchResultParcel;
 import android.app.appsearch.aidl.IAppSearchManager;
 import android.app.appsearch.aidl.IAppSearchObserverProxy;
 import android.app.appsearch.aidl.IAppSearchResultCallback;
+import android.app.appsearch.aidl.ObserverChangesParcel;
 import android.app.appsearch.exceptions.AppSearchException;
 import android.app.appsearch.observer.AppSearchObserverCallback;
 import android.app.appsearch.observer.DocumentChangeInfo;
@@ -34,6 +37,7 @@ import android.app.search.SearchSession;
 import android.compat.annotation.UnsupportedAppUsage;
 import android.content.AttributionSource;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.UserHandle;
@@ -206,6 +210,37 @@ public class GlobalSearchSession implements Closeable {
                 queryExpression, searchSpec, mUserHandle);
     }
 
+    /**
+     * Same as {@link #search(String, SearchSpec)}, but the first page of results can be given up
+     * on while it is still being fetched.
+     *
+     * <p>If the signal is cancelled, or the deadline passes, before the first page is returned,
+     * the search is dropped if it hasn't started running yet, or stops converting its results if
+     * it has. The callback of {@link SearchResults#getNextPage} then receives an error. Use this
+     * when a newer query makes the results obsolete, for example as the user types.
+     *
+     * @param queryExpression query string to search.
+     * @param searchSpec spec for setting document filters, adding projection, setting term match
+     *     type, etc.
+     * @param cancellationSignal signal to cancel the first page with, or {@code null}.
+     * @param deadlineMillis the {@link SystemClock#elapsedRealtime} after which the first page is
+     *     given up on, or 0 for no deadline.
+     * @return a {@link SearchResults} object for retrieved matched documents.
+     * @hide
+     */
+    @NonNull
+    public SearchResults search(
+            @NonNull String queryExpression,
+            @NonNull SearchSpec searchSpec,
+            @Nullable CancellationSignal cancellationSignal,
+            @ElapsedRealtimeLong long deadlineMillis) {
+        Objects.requireNonNull(queryExpression);
+        Objects.requireNonNull(searchSpec);
+        Preconditions.checkState(!mIsClosed, "GlobalSearchSession has already been closed");
+        return new SearchResults(mService, mCallerAttributionSource, /*databaseName=*/null,
+                queryExpression, searchSpec, mUserHandle, cancellationSignal, deadlineMillis);
+    }
+
     /**
      * Reports that a particular document has been used from a system surface.
      *
@@ -383,6 +418,25 @@ public class GlobalSearchSession implements Closeable {
                         });
                     }
 
+                    @Override
+                    public void onChanged(@NonNull ObserverChangesParcel changes) {
+                        // Fan the changes back out to the callback, one change per call, each run
+                        // on its own like the calls of onSchemaChanged and onDocumentChanged, so
+                        // one that throws doesn't drop the others.
+                        List<SchemaChangeInfo> schemaChanges = changes.getSchemaChanges();
+                        for (int i = 0; i < schemaChanges.size(); i++) {
+                            SchemaChangeInfo change = schemaChanges.get(i);
+                            safeExecute(executor, this::suppressingErrorCallback,
+                                    () -> observer.onSchemaChanged(change));
+                        }
+                        List<DocumentChangeInfo> documentChanges = changes.getDocumentChanges();
+                        for (int i = 0; i < documentChanges.size(); i++) {
+                            DocumentChangeInfo change = documentChanges.get(i);
+                            safeExecute(executor, this::suppressingErrorCallback,
+                                    () -> observer.onDocumentChanged(change));
+                        }
+                    }
+
                     /**
                      * Error-handling callback that simply drops errors.
                      *
@@ -19,13 +19,17 @@ package android.app.appsearch;
 import static android.app.appsearch.SearchSessionUtil.safeExecute;
 
 import android.annotation.CallbackExecutor;
+import android.annotation.ElapsedRealtimeLong;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.app.appsearch.aidl.AppSearchResultParcel;
+import android.app.appsearch.aidl.CompactSearchResultPage;
 import android.app.appsearch.aidl.IAppSearchManager;
 import android.app.appsearch.aidl.IAppSearchResultCallback;
 import android.content.AttributionSource;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.UserHandle;
@@ -37,7 +41,9 @@ import java.io.Closeable;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Encapsulates results of a search operation.
@@ -71,6 +77,16 @@ public class SearchResults implements Closeable {
 
     private final UserHandle mUserHandle;
 
+    // Cancels the first page while it is queued or converted. Later pages are cheap to fetch, so
+    // they aren't cancellable.
+    @Nullable
+    private final CancellationSignal mCancellationSignal;
+
+    // The SystemClock#elapsedRealtime after which the first page is abandoned, or 0 if there is
+    // no deadline.
+    @ElapsedRealtimeLong
+    private final long mDeadlineMillis;
+
     private long mNextPageToken;
 
     private boolean mIsFirstLoad = true;
@@ -84,12 +100,27 @@ public class SearchResults implements Closeable {
             @NonNull String queryExpression,
             @NonNull SearchSpec searchSpec,
             @NonNull UserHandle userHandle) {
+        this(service, attributionSource, databaseName, queryExpression, searchSpec, userHandle,
+                /*cancellationSignal=*/ null, /*deadlineMillis=*/ 0);
+    }
+
+    SearchResults(
+            @NonNull IAppSearchManager service,
+            @NonNull AttributionSource attributionSource,
+            @Nullable String databaseName,
+            @NonNull String queryExpression,
+            @NonNull SearchSpec searchSpec,
+            @NonNull UserHandle userHandle,
+            @Nullable CancellationSignal cancellationSignal,
+            @ElapsedRealtimeLong long deadlineMillis) {
         mService = Objects.requireNonNull(service);
         mAttributionSource = Objects.requireNonNull(attributionSource);
         mDatabaseName = databaseName;
         mQueryExpression = Objects.requireNonNull(queryExpression);
         mSearchSpec = Objects.requireNonNull(searchSpec);
         mUserHandle = Objects.requireNonNull(userHandle);
+        mCancellationSignal = cancellationSignal;
+        mDeadlineMillis = deadlineMillis;
     }
 
     /**
@@ -108,35 +139,101 @@ public class SearchResults implements Closeable {
             @NonNull Consumer<AppSearchResult<List<SearchResult>>> callback) {
         Objects.requireNonNull(executor);
         Objects.requireNonNull(callback);
+        Preconditions.checkState(
+                mSearchSpec.getResultMode() == SearchSpec.RESULT_MODE_DOCUMENTS,
+                "Results not queried as documents must be read with getNextPageSummaries");
+        requestNextPage(wrapCallback(executor, callback,
+                CompactSearchResultPage::getResults));
+    }
+
+    /**
+     * Retrieves the next page of results queried in {@link SearchSpec#RESULT_MODE_IDS} or {@link
+     * SearchSpec#RESULT_MODE_SNIPPETS}.
+     *
+     * <p>Continue calling this method to access results until it returns empty summaries,
+     * signifying there are no more results.
+     *
+     * @param executor Executor on which to invoke the callback.
+     * @param callback Callback to receive the pending result of performing this operation.
+     * @hide
+     */
+    public void getNextPageSummaries(
+            @NonNull @CallbackExecutor Executor executor,
+            @NonNull Consumer<AppSearchResult<SearchResultSummaries>> callback) {
+        Objects.requireNonNull(executor);
+        Objects.requireNonNull(callback);
+        Preconditions.checkState(
+                mSearchSpec.getResultMode() != SearchSpec.RESULT_MODE_DOCUMENTS,
+                "Results queried as documents must be read with getNextPage");
+        requestNextPage(wrapCallback(executor, callback, bundle -> {
+            SearchResultSummaries summaries = new SearchResultPage(bundle).getSummaries();
+            // Empty pages are sent without summaries.
+            return summaries != null
+                    ? summaries
+                    : new SearchResultSummaries.Builder(/*hasMatches=*/ false).build();
+        }));
+    }
+
+    private void requestNextPage(@NonNull IAppSearchResultCallback callback) {
         Preconditions.checkState(!mIsClosed, "SearchResults has already been closed");
         try {
             if (mIsFirstLoad) {
                 mIsFirstLoad = false;
+                if (mCancellationSignal != null && mCancellationSignal.isCanceled()) {
+                    // Don't bother queuing a query nobody waits for anymore.
+                    callback.onResult(new AppSearchResultParcel<>(
+                            AppSearchResult.throwableToFailedResult(
+                                    new OperationCanceledException())));
+                    return;
+                }
+                long queryId = mCancellationSignal == null ? 0 : createQueryId();
                 long binderCallStartTimeMillis = SystemClock.elapsedRealtime();
                 if (mDatabaseName == null) {
                     // Global query, there's no one package-database combination to check.
                     mService.globalQuery(mAttributionSource, mQueryExpression,
                             mSearchSpec.getBundle(), mUserHandle, binderCallStartTimeMillis,
-                            wrapCallback(executor, callback));
+                            queryId, mDeadlineMillis, callback);
                 } else {
                     // Normal local query, pass in specified database.
                     mService.query(mAttributionSource, mDatabaseName, mQueryExpression,
                             mSearchSpec.getBundle(), mUserHandle,
-                            binderCallStartTimeMillis,
-                            wrapCallback(executor, callback));
+                            binderCallStartTimeMillis, queryId, mDeadlineMillis,
+                            callback);
+                }
+                if (mCancellationSignal != null) {
+                    // Called right away if the signal was cancelled during the call above.
+                    mCancellationSignal.setOnCancelListener(() -> {
+                        try {
+                            mService.cancelQuery(mAttributionSource, queryId, mUserHandle);
+                        } catch (RemoteException e) {
+                            Log.e(TAG, "Unable to cancel the query", e);
+                        }
+                    });
                 }
             } else {
-                mService.getNextPage(mAttributionSource, mNextPageToken, mUserHandle,
-                        wrapCallback(executor, callback));
+                // The server pages the results in the mode the query was executed with.
+                mService.getNextPage(mAttributionSource, mNextPageToken, mUserHandle, callback);
             }
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
     }
 
+    /** Returns a random non-zero ID for the server to know the query by, until it completes. */
+    private static long createQueryId() {
+        long queryId;
+        do {
+            queryId = ThreadLocalRandom.current().nextLong();
+        } while (queryId == 0);
+        return queryId;
+    }
+
     @Override
     public void close() {
         if (!mIsClosed) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.setOnCancelListener(null);
+            }
             try {
                 mService.invalidateNextPageToken(mAttributionSource, mNextPageToken, mUserHandle);
                 mIsClosed = true;
@@ -146,30 +243,32 @@ public class SearchResults implements Closeable {
         }
     }
 
-    private IAppSearchResultCallback wrapCallback(
+    private <T> IAppSearchResultCallback wrapCallback(
             @NonNull @CallbackExecutor Executor executor,
-            @NonNull Consumer<AppSearchResult<List<SearchResult>>> callback) {
+            @NonNull Consumer<AppSearchResult<T>> callback,
+            @NonNull Function<Bundle, T> pageReader) {
         return new IAppSearchResultCallback.Stub() {
             @Override
             public void onResult(AppSearchResultParcel resultParcel) {
                 safeExecute(
                         executor,
                         callback,
-                        () -> invokeCallback(resultParcel.getResult(), callback));
+                        () -> invokeCallback(resultParcel.getResult(), callback, pageReader));
             }
         };
     }
 
-    private void invokeCallback(
+    private <T> void invokeCallback(
             @NonNull AppSearchResult<Bundle> searchResultPageResult,
-            @NonNull Consumer<AppSearchResult<List<SearchResult>>> callback) {
+            @NonNull Consumer<AppSearchResult<T>> callback,
+            @NonNull Function<Bundle, T> pageReader) {
         if (searchResultPageResult.isSuccess()) {
             try {
-                SearchResultPage searchResultPage =
-                        new SearchResultPage(searchResultPageResult.getResultValue());
-                mNextPageToken = searchResultPage.getNextPageToken();
+                // The results are only decoded as the caller reads them.
+                Bundle searchResultPageBundle = searchResultPageResult.getResultValue();
+                mNextPageToken = CompactSearchResultPage.getNextPageToken(searchResultPageBundle);
                 callback.accept(AppSearchResult.newSuccessfulResult(
-                        searchResultPage.getResults()));
+                        pageReader.apply(searchResultPageBundle)));
             } catch (Throwable t) {
                 callback.accept(AppSearchResult.throwableToFailedResult(t));
             }
@@ -0,0 +1,706 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch.aidl;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Bundle;
+import android.os.Parcelable;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Encodes {@link Bundle}s holding {@link android.app.appsearch.GenericDocument}s into a
+ * {@link ByteBuffer} and decodes them back, without going through a {@link android.os.Parcel}.
+ *
+ * <p>Only the value types document and search result bundles are made of are supported: {@code
+ * String}, {@code int}, {@code long}, {@code double}, nested {@link Bundle}s, {@code String[]},
+ * {@code long[]}, {@code double[]}, {@code boolean[]}, {@code byte[]}, lists of {@link Bundle}s
+ * and arrays of {@link Bundle}s.
+ *
+ * <p>Each bundle is encoded as its entry count followed by its entries. Each entry is its key, a
+ * one-byte type tag and the value. Strings are encoded as their byte length followed by their
+ * bytes in generalized UTF-8: like UTF-8, except that an unpaired surrogate is encoded as a
+ * three-byte sequence of its own instead of being replaced, so every string round-trips exactly as
+ * it would through a {@link android.os.Parcel}. Arrays are encoded as their length followed by
+ * their elements.
+ *
+ * <p>A list of bundles is encoded as its size and the offset of each bundle, followed by the
+ * bundles, so that each bundle can be decoded on its own with {@link #decode(ByteBuffer, int)}.
+ *
+ * <p>The buffer may come from an untrusted process, so every count and length read from it is
+ * checked against the bytes left in the buffer before anything is allocated, bundles may be nested
+ * at most {@link #MAX_NESTING_DEPTH} deep, and a malformed buffer is rejected with an {@link
+ * IllegalArgumentException}.
+ *
+ * <p>This class is not thread safe.
+ *
+ * @hide
+ */
+final class CompactBundleCodec {
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_BUNDLE = 4;
+    private static final byte TYPE_STRING_ARRAY = 5;
+    private static final byte TYPE_LONG_ARRAY = 6;
+    private static final byte TYPE_DOUBLE_ARRAY = 7;
+    private static final byte TYPE_BOOLEAN_ARRAY = 8;
+    private static final byte TYPE_BYTE_ARRAY = 9;
+    private static final byte TYPE_BUNDLE_LIST = 10;
+    private static final byte TYPE_BUNDLE_ARRAY = 11;
+    private static final byte TYPE_DOUBLE = 12;
+
+    // The smallest bundle entry: the length of an empty key and a type tag.
+    private static final int MIN_ENTRY_BYTES = Integer.BYTES + 1;
+
+    // The initial size of the array encodeToArray() grows as needed.
+    private static final int INITIAL_ARRAY_SIZE = 16 * 1024;
+
+    /**
+     * How deeply bundles may be nested, counting the top-level bundle.
+     *
+     * <p>Each level of nested {@link android.app.appsearch.GenericDocument} takes two: the
+     * document's bundle and its properties bundle. Decoding and validating recurse once per level,
+     * so this bounds the stack an untrusted buffer can make them use.
+     */
+    static final int MAX_NESTING_DEPTH = 64;
+
+    // Reused to decode strings, grown to the longest string decoded so far.
+    private byte[] mStringBytes = new byte[64];
+    private char[] mStringChars = new char[64];
+
+    /**
+     * Returns the number of bytes {@link #encode(List, ByteBuffer)} writes for the given bundles.
+     *
+     * @throws IllegalArgumentException if a bundle holds a value of an unsupported type, or is
+     *     nested more than {@link #MAX_NESTING_DEPTH} deep.
+     */
+    static long getEncodedSize(@NonNull List<Bundle> bundles) {
+        long size = Integer.BYTES + (long) bundles.size() * Integer.BYTES;
+        for (int i = 0; i < bundles.size(); i++) {
+            size += getEncodedSize(bundles.get(i), /*depth=*/ 1);
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a list of bundles from the start of the buffer.
+     *
+     * @throws IllegalArgumentException if a bundle holds a value of an unsupported type, or is
+     *     nested more than {@link #MAX_NESTING_DEPTH} deep.
+     * @throws BufferOverflowException if the buffer is smaller than {@link
+     *     #getEncodedSize(List)}.
+     */
+    void encode(@NonNull List<Bundle> bundles, @NonNull ByteBuffer buffer) {
+        buffer.position(0);
+        buffer.putInt(bundles.size());
+        buffer.position(Integer.BYTES + bundles.size() * Integer.BYTES);
+        for (int i = 0; i < bundles.size(); i++) {
+            buffer.putInt(Integer.BYTES + i * Integer.BYTES, buffer.position());
+            encode(bundles.get(i), buffer, /*depth=*/ 1);
+        }
+    }
+
+    /**
+     * Encodes the bundles like {@link #encode(List, ByteBuffer)}, into an array grown as needed.
+     *
+     * <p>This saves walking the bundles once first to size the buffer with {@link
+     * #getEncodedSize(List)}, at the cost of copying the bytes each time the array is grown.
+     *
+     * @throws IllegalArgumentException if a bundle holds a value of an unsupported type or is
+     *     nested more than {@link #MAX_NESTING_DEPTH} deep, or the bundles don't fit in an array.
+     */
+    @NonNull
+    byte[] encodeToArray(@NonNull List<Bundle> bundles) {
+        long headerSize = Integer.BYTES + (long) bundles.size() * Integer.BYTES;
+        if (headerSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many bundles: " + bundles.size());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(headerSize, INITIAL_ARRAY_SIZE));
+        buffer.putInt(bundles.size());
+        buffer.position((int) headerSize);
+        for (int i = 0; i < bundles.size(); i++) {
+            int offset = buffer.position();
+            while (true) {
+                try {
+                    encode(bundles.get(i), buffer, /*depth=*/ 1);
+                    break;
+                } catch (BufferOverflowException e) {
+                    // Grow the array and encode the bundle again.
+                    buffer = grow(buffer, offset);
+                }
+            }
+            buffer.putInt(Integer.BYTES + i * Integer.BYTES, offset);
+        }
+        if (buffer.position() == buffer.capacity()) {
+            return buffer.array();
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Returns a buffer twice as large holding the first {@code length} bytes of the given one,
+     * positioned right after them.
+     */
+    @NonNull
+    private static ByteBuffer grow(@NonNull ByteBuffer buffer, int length) {
+        if (buffer.capacity() > Integer.MAX_VALUE / 2) {
+            throw new IllegalArgumentException("Bundles too large to encode in an array");
+        }
+        ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+        grown.put(buffer.array(), 0, length);
+        return grown;
+    }
+
+    /**
+     * Returns the number of bundles in a buffer written by {@link #encode(List, ByteBuffer)}.
+     *
+     * @throws IllegalArgumentException if the buffer is too small to hold that many bundles.
+     */
+    static int getBundleCount(@NonNull ByteBuffer buffer) {
+        if (buffer.limit() < Integer.BYTES) {
+            throw new IllegalArgumentException("Malformed bundles: no bundle count");
+        }
+        int count = buffer.getInt(0);
+        // Every bundle takes at least its offset and its entry count.
+        if (count < 0 || count > (buffer.limit() - Integer.BYTES) / (2 * Integer.BYTES)) {
+            throw new IllegalArgumentException(
+                    "Malformed bundles: " + count + " bundles in " + buffer.limit() + " bytes");
+        }
+        return count;
+    }
+
+    /**
+     * Checks that a buffer holds a well-formed list of bundles written by {@link
+     * #encode(List, ByteBuffer)}, without decoding them.
+     *
+     * <p>This lets a receiver reject a malformed buffer before acting on any of its bundles.
+     *
+     * @throws IllegalArgumentException if the buffer is malformed.
+     */
+    static void validate(@NonNull ByteBuffer buffer) {
+        int count = getBundleCount(buffer);
+        ByteBuffer bundleBuffer = buffer.duplicate();
+        try {
+            for (int i = 0; i < count; i++) {
+                bundleBuffer.position(getBundleOffset(buffer, count, i));
+                skipBundle(bundleBuffer, /*depth=*/ 1);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed bundles: truncated", e);
+        }
+    }
+
+    /**
+     * Decodes a bundle of a buffer written by {@link #encode(List, ByteBuffer)}, without changing
+     * the position of the buffer.
+     *
+     * @throws IndexOutOfBoundsException if there is no bundle at that index.
+     * @throws IllegalArgumentException if the buffer is malformed.
+     */
+    @NonNull
+    Bundle decode(@NonNull ByteBuffer buffer, int index) {
+        int count = getBundleCount(buffer);
+        Objects.checkIndex(index, count);
+        ByteBuffer bundleBuffer = buffer.duplicate();
+        bundleBuffer.position(getBundleOffset(buffer, count, index));
+        try {
+            return decode(bundleBuffer, /*depth=*/ 1);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed bundles: truncated", e);
+        }
+    }
+
+    private static int getBundleOffset(@NonNull ByteBuffer buffer, int count, int index) {
+        int offset = buffer.getInt(Integer.BYTES + index * Integer.BYTES);
+        if (offset < Integer.BYTES + count * Integer.BYTES || offset > buffer.limit()) {
+            throw new IllegalArgumentException(
+                    "Malformed bundles: bundle " + index + " at offset " + offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the number of bytes {@link #encode(Bundle, ByteBuffer)} writes for the given bundle.
+     *
+     * @throws IllegalArgumentException if the bundle holds a value of an unsupported type, or is
+     *     nested more than {@link #MAX_NESTING_DEPTH} deep.
+     */
+    static long getEncodedSize(@NonNull Bundle bundle) {
+        return getEncodedSize(bundle, /*depth=*/ 1);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getEncodedSize(@NonNull Bundle bundle, int depth) {
+        checkDepth(depth);
+        long size = Integer.BYTES;
+        for (String key : bundle.keySet()) {
+            size += getEncodedSize(key) + 1 + getValueEncodedSize(key, bundle.get(key), depth);
+        }
+        return size;
+    }
+
+    /**
+     * Encodes the bundle at the current position of the buffer.
+     *
+     * @throws IllegalArgumentException if the bundle holds a value of an unsupported type, or is
+     *     nested more than {@link #MAX_NESTING_DEPTH} deep.
+     * @throws BufferOverflowException if the buffer has fewer than {@link
+     *     #getEncodedSize(Bundle)} bytes remaining.
+     */
+    void encode(@NonNull Bundle bundle, @NonNull ByteBuffer buffer) {
+        encode(bundle, buffer, /*depth=*/ 1);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void encode(@NonNull Bundle bundle, @NonNull ByteBuffer buffer, int depth) {
+        checkDepth(depth);
+        buffer.putInt(bundle.size());
+        for (String key : bundle.keySet()) {
+            putString(key, buffer);
+            putValue(key, bundle.get(key), buffer, depth);
+        }
+    }
+
+    /**
+     * Decodes a bundle written by {@link #encode(Bundle, ByteBuffer)} at the current position of
+     * the buffer.
+     *
+     * @throws IllegalArgumentException if a count or length in the buffer is out of bounds, a
+     *     value has an unknown type, a string is malformed, or bundles are nested more than {@link
+     *     #MAX_NESTING_DEPTH} deep.
+     * @throws BufferUnderflowException if the buffer ends in the middle of the bundle.
+     */
+    @NonNull
+    Bundle decode(@NonNull ByteBuffer buffer) {
+        return decode(buffer, /*depth=*/ 1);
+    }
+
+    @NonNull
+    private Bundle decode(@NonNull ByteBuffer buffer, int depth) {
+        checkDepth(depth);
+        int entryCount = getLength(buffer, MIN_ENTRY_BYTES);
+        Bundle bundle = new Bundle();
+        for (int i = 0; i < entryCount; i++) {
+            String key = getString(buffer);
+            byte type = buffer.get();
+            switch (type) {
+                case TYPE_NULL:
+                    bundle.putString(key, null);
+                    break;
+                case TYPE_STRING:
+                    bundle.putString(key, getString(buffer));
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, buffer.getInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, buffer.getLong());
+                    break;
+                case TYPE_DOUBLE:
+                    bundle.putDouble(key, buffer.getDouble());
+                    break;
+                case TYPE_BUNDLE:
+                    bundle.putBundle(key, decode(buffer, depth + 1));
+                    break;
+                case TYPE_STRING_ARRAY: {
+                    String[] values = new String[getLength(buffer, Integer.BYTES)];
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = getString(buffer);
+                    }
+                    bundle.putStringArray(key, values);
+                    break;
+                }
+                case TYPE_LONG_ARRAY: {
+                    long[] values = new long[getLength(buffer, Long.BYTES)];
+                    buffer.asLongBuffer().get(values);
+                    buffer.position(buffer.position() + values.length * Long.BYTES);
+                    bundle.putLongArray(key, values);
+                    break;
+                }
+                case TYPE_DOUBLE_ARRAY: {
+                    double[] values = new double[getLength(buffer, Double.BYTES)];
+                    buffer.asDoubleBuffer().get(values);
+                    buffer.position(buffer.position() + values.length * Double.BYTES);
+                    bundle.putDoubleArray(key, values);
+                    break;
+                }
+                case TYPE_BOOLEAN_ARRAY: {
+                    boolean[] values = new boolean[getLength(buffer, 1)];
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = buffer.get() != 0;
+                    }
+                    bundle.putBooleanArray(key, values);
+                    break;
+                }
+                case TYPE_BYTE_ARRAY: {
+                    byte[] values = new byte[getLength(buffer, 1)];
+                    buffer.get(values);
+                    bundle.putByteArray(key, values);
+                    break;
+                }
+                case TYPE_BUNDLE_LIST: {
+                    int size = getLength(buffer, Integer.BYTES);
+                    ArrayList<Bundle> values = new ArrayList<>(size);
+                    for (int j = 0; j < size; j++) {
+                        values.add(decode(buffer, depth + 1));
+                    }
+                    bundle.putParcelableArrayList(key, values);
+                    break;
+                }
+                case TYPE_BUNDLE_ARRAY: {
+                    Parcelable[] values = new Parcelable[getLength(buffer, Integer.BYTES)];
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = decode(buffer, depth + 1);
+                    }
+                    bundle.putParcelableArray(key, values);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException(
+                            "Unknown type " + type + " for key \"" + key + "\"");
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * Skips a bundle written by {@link #encode(Bundle, ByteBuffer)} at the current position of the
+     * buffer, checking it like {@link #decode(ByteBuffer)} does.
+     */
+    private static void skipBundle(@NonNull ByteBuffer buffer, int depth) {
+        checkDepth(depth);
+        int entryCount = getLength(buffer, MIN_ENTRY_BYTES);
+        for (int i = 0; i < entryCount; i++) {
+            skip(buffer, getLength(buffer, 1));
+            byte type = buffer.get();
+            switch (type) {
+                case TYPE_NULL:
+                    break;
+                case TYPE_STRING:
+                    skip(buffer, getLength(buffer, 1));
+                    break;
+                case TYPE_INT:
+                    skip(buffer, Integer.BYTES);
+                    break;
+                case TYPE_LONG:
+                case TYPE_DOUBLE:
+                    skip(buffer, Long.BYTES);
+                    break;
+                case TYPE_BUNDLE:
+                    skipBundle(buffer, depth + 1);
+                    break;
+                case TYPE_STRING_ARRAY: {
+                    int length = getLength(buffer, Integer.BYTES);
+                    for (int j = 0; j < length; j++) {
+                        skip(buffer, getLength(buffer, 1));
+                    }
+                    break;
+                }
+                case TYPE_LONG_ARRAY:
+                    skip(buffer, getLength(buffer, Long.BYTES) * Long.BYTES);
+                    break;
+                case TYPE_DOUBLE_ARRAY:
+                    skip(buffer, getLength(buffer, Double.BYTES) * Double.BYTES);
+                    break;
+                case TYPE_BOOLEAN_ARRAY:
+                case TYPE_BYTE_ARRAY:
+                    skip(buffer, getLength(buffer, 1));
+                    break;
+                case TYPE_BUNDLE_LIST:
+                case TYPE_BUNDLE_ARRAY: {
+                    int length = getLength(buffer, Integer.BYTES);
+                    for (int j = 0; j < length; j++) {
+                        skipBundle(buffer, depth + 1);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Malformed bundles: unknown type " + type);
+            }
+        }
+    }
+
+    /**
+     * Reads a count or length at the current position of the buffer, and checks that the buffer
+     * has enough bytes left for that many elements of at least the given size.
+     *
+     * @throws IllegalArgumentException if the length is negative or too large.
+     */
+    private static int getLength(@NonNull ByteBuffer buffer, int minElementBytes) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / minElementBytes) {
+            throw new IllegalArgumentException(
+                    "Malformed bundles: length " + length + " with "
+                            + buffer.remaining() + " bytes left");
+        }
+        return length;
+    }
+
+    private static void checkDepth(int depth) {
+        if (depth > MAX_NESTING_DEPTH) {
+            throw new IllegalArgumentException(
+                    "Bundles nested more than " + MAX_NESTING_DEPTH + " deep");
+        }
+    }
+
+    private static void skip(@NonNull ByteBuffer buffer, int byteCount) {
+        if (byteCount > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + byteCount);
+    }
+
+    private static long getValueEncodedSize(
+            @NonNull String key, @Nullable Object value, int depth) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return getEncodedSize((String) value);
+        } else if (value instanceof Integer) {
+            return Integer.BYTES;
+        } else if (value instanceof Long) {
+            return Long.BYTES;
+        } else if (value instanceof Double) {
+            return Double.BYTES;
+        } else if (value instanceof Bundle) {
+            return getEncodedSize((Bundle) value, depth + 1);
+        } else if (value instanceof String[]) {
+            long size = Integer.BYTES;
+            for (String element : (String[]) value) {
+                size += getEncodedSize(element);
+            }
+            return size;
+        } else if (value instanceof long[]) {
+            return Integer.BYTES + (long) ((long[]) value).length * Long.BYTES;
+        } else if (value instanceof double[]) {
+            return Integer.BYTES + (long) ((double[]) value).length * Double.BYTES;
+        } else if (value instanceof boolean[]) {
+            return Integer.BYTES + ((boolean[]) value).length;
+        } else if (value instanceof byte[]) {
+            return Integer.BYTES + ((byte[]) value).length;
+        } else if (value instanceof List) {
+            long size = Integer.BYTES;
+            for (Object element : (List<?>) value) {
+                size += getEncodedSize(checkBundle(key, element), depth + 1);
+            }
+            return size;
+        } else if (value instanceof Parcelable[]) {
+            long size = Integer.BYTES;
+            for (Parcelable element : (Parcelable[]) value) {
+                size += getEncodedSize(checkBundle(key, element), depth + 1);
+            }
+            return size;
+        }
+        throw new IllegalArgumentException(
+                "Unsupported type " + value.getClass().getName() + " for key \"" + key + "\"");
+    }
+
+    private void putValue(
+            @NonNull String key, @Nullable Object value, @NonNull ByteBuffer buffer, int depth) {
+        if (value == null) {
+            buffer.put(TYPE_NULL);
+        } else if (value instanceof String) {
+            buffer.put(TYPE_STRING);
+            putString((String) value, buffer);
+        } else if (value instanceof Integer) {
+            buffer.put(TYPE_INT);
+            buffer.putInt((Integer) value);
+        } else if (value instanceof Long) {
+            buffer.put(TYPE_LONG);
+            buffer.putLong((Long) value);
+        } else if (value instanceof Double) {
+            buffer.put(TYPE_DOUBLE);
+            buffer.putDouble((Double) value);
+        } else if (value instanceof Bundle) {
+            buffer.put(TYPE_BUNDLE);
+            encode((Bundle) value, buffer, depth + 1);
+        } else if (value instanceof String[]) {
+            String[] values = (String[]) value;
+            buffer.put(TYPE_STRING_ARRAY);
+            buffer.putInt(values.length);
+            for (int i = 0; i < values.length; i++) {
+                putString(values[i], buffer);
+            }
+        } else if (value instanceof long[]) {
+            long[] values = (long[]) value;
+            buffer.put(TYPE_LONG_ARRAY);
+            buffer.putInt(values.length);
+            buffer.asLongBuffer().put(values);
+            buffer.position(buffer.position() + values.length * Long.BYTES);
+        } else if (value instanceof double[]) {
+            double[] values = (double[]) value;
+            buffer.put(TYPE_DOUBLE_ARRAY);
+            buffer.putInt(values.length);
+            buffer.asDoubleBuffer().put(values);
+            buffer.position(buffer.position() + values.length * Double.BYTES);
+        } else if (value instanceof boolean[]) {
+            boolean[] values = (boolean[]) value;
+            buffer.put(TYPE_BOOLEAN_ARRAY);
+            buffer.putInt(values.length);
+            for (int i = 0; i < values.length; i++) {
+                buffer.put(values[i] ? (byte) 1 : (byte) 0);
+            }
+        } else if (value instanceof byte[]) {
+            byte[] values = (byte[]) value;
+            buffer.put(TYPE_BYTE_ARRAY);
+            buffer.putInt(values.length);
+            buffer.put(values);
+        } else if (value instanceof List) {
+            List<?> values = (List<?>) value;
+            buffer.put(TYPE_BUNDLE_LIST);
+            buffer.putInt(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                encode(checkBundle(key, values.get(i)), buffer, depth + 1);
+            }
+        } else if (value instanceof Parcelable[]) {
+            Parcelable[] values = (Parcelable[]) value;
+            buffer.put(TYPE_BUNDLE_ARRAY);
+            buffer.putInt(values.length);
+            for (int i = 0; i < values.length; i++) {
+                encode(checkBundle(key, values[i]), buffer, depth + 1);
+            }
+        } else {
+            throw new IllegalArgumentException(
+                    "Unsupported type " + value.getClass().getName() + " for key \"" + key + "\"");
+        }
+    }
+
+    @NonNull
+    private static Bundle checkBundle(@NonNull String key, @Nullable Object element) {
+        if (!(element instanceof Bundle)) {
+            throw new IllegalArgumentException(
+                    "Unsupported element " + element + " for key \"" + key + "\"");
+        }
+        return (Bundle) element;
+    }
+
+    /** Returns the number of bytes {@link #putString} writes, without encoding the string. */
+    private static long getEncodedSize(@NonNull String value) {
+        long size = Integer.BYTES;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else {
+                // Includes unpaired surrogates, which are encoded on their own.
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    private static void putString(@NonNull String value, @NonNull ByteBuffer buffer) {
+        // Write the bytes straight into the buffer, then fill in their length.
+        int lengthPosition = buffer.position();
+        buffer.position(lengthPosition + Integer.BYTES);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - Integer.BYTES);
+    }
+
+    @NonNull
+    private String getString(@NonNull ByteBuffer buffer) {
+        int length = getLength(buffer, 1);
+        if (length > mStringBytes.length) {
+            mStringBytes = new byte[Math.max(length, mStringBytes.length * 2)];
+            // A string never has more chars than bytes.
+            mStringChars = new char[mStringBytes.length];
+        }
+        byte[] bytes = mStringBytes;
+        char[] chars = mStringChars;
+        buffer.get(bytes, 0, length);
+        int charCount = 0;
+        int i = 0;
+        while (i < length) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                chars[charCount++] = (char) b;
+                i += 1;
+            } else if ((b & 0xE0) == 0xC0) {
+                chars[charCount++] =
+                        (char) (((b & 0x1F) << 6) | getContinuationBits(bytes, length, i + 1));
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0) {
+                chars[charCount++] =
+                        (char) (((b & 0x0F) << 12)
+                                | (getContinuationBits(bytes, length, i + 1) << 6)
+                                | getContinuationBits(bytes, length, i + 2));
+                i += 3;
+            } else if ((b & 0xF8) == 0xF0) {
+                int codePoint =
+                        ((b & 0x07) << 18)
+                                | (getContinuationBits(bytes, length, i + 1) << 12)
+                                | (getContinuationBits(bytes, length, i + 2) << 6)
+                                | getContinuationBits(bytes, length, i + 3);
+                if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT
+                        || codePoint > Character.MAX_CODE_POINT) {
+                    throw new IllegalArgumentException(
+                            "Malformed bundles: code point " + codePoint);
+                }
+                chars[charCount++] = Character.highSurrogate(codePoint);
+                chars[charCount++] = Character.lowSurrogate(codePoint);
+                i += 4;
+            } else {
+                throw new IllegalArgumentException("Malformed bundles: string byte " + b);
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    /** Returns the low six bits of the continuation byte at the given index. */
+    private static int getContinuationBits(@NonNull byte[] bytes, int length, int index) {
+        if (index >= length || (bytes[index] & 0xC0) != 0x80) {
+            throw new IllegalArgumentException("Malformed bundles: truncated string");
+        }
+        return bytes[index] & 0x3F;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch.aidl;
+
+import android.annotation.NonNull;
+import android.app.appsearch.SearchResult;
+import android.app.appsearch.SearchResultPage;
+import android.app.appsearch.SearchResultSummaries;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Packs a {@link SearchResultPage} into a compact {@link Bundle} to send it to the client.
+ *
+ * <p>A {@link SearchResultPage} holds one {@link Bundle} per {@link SearchResult}, each holding
+ * the {@link Bundle} of its document and of its matches, and all of them would be marshalled and
+ * unmarshalled entry by entry. Instead, the results are encoded with {@link CompactBundleCodec}
+ * into a single {@code byte[]}, and the client only decodes a {@link SearchResult} when the caller
+ * reads it from the list returned by {@link #getResults}.
+ *
+ * @hide
+ */
+public final class CompactSearchResultPage {
+    private static final String TAG = "AppSearchCompactResults";
+    private static final String COMPACT_RESULTS_FIELD = "compactResults";
+
+    private CompactSearchResultPage() {}
+
+    /**
+     * Returns a {@link Bundle} holding the next page token and the encoded results of a page.
+     *
+     * <p>If the results hold a value {@link CompactBundleCodec} can't encode, the {@link Bundle}
+     * of the page itself is returned instead. So is it if the page holds {@link
+     * SearchResultSummaries}, which are already made of a handful of arrays.
+     */
+    @NonNull
+    @SuppressWarnings("deprecation")
+    public static Bundle toBundle(@NonNull SearchResultPage searchResultPage) {
+        Objects.requireNonNull(searchResultPage);
+        if (searchResultPage.getBundle().containsKey(SearchResultPage.SUMMARIES_FIELD)) {
+            return searchResultPage.getBundle();
+        }
+        List<Bundle> resultBundles =
+                searchResultPage.getBundle().getParcelableArrayList(SearchResultPage.RESULTS_FIELD);
+        if (resultBundles == null) {
+            resultBundles = new ArrayList<>();
+        }
+        byte[] encodedResults;
+        try {
+            // Encoded in a single pass over the results, which the page already holds as bundles.
+            encodedResults = new CompactBundleCodec().encodeToArray(resultBundles);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Failed to encode search results, sending them as bundles", e);
+            return searchResultPage.getBundle();
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putLong(SearchResultPage.NEXT_PAGE_TOKEN_FIELD, searchResultPage.getNextPageToken());
+        bundle.putByteArray(COMPACT_RESULTS_FIELD, encodedResults);
+        return bundle;
+    }
+
+    /** Returns the token to get the next page of a bundle created by {@link #toBundle}. */
+    public static long getNextPageToken(@NonNull Bundle bundle) {
+        return bundle.getLong(SearchResultPage.NEXT_PAGE_TOKEN_FIELD);
+    }
+
+    /**
+     * Returns the results of a bundle created by {@link #toBundle}.
+     *
+     * <p>Each {@link SearchResult} is decoded the first time it is read from the list. Bundles of
+     * a {@link SearchResultPage} itself are also accepted, and are read eagerly.
+     */
+    @NonNull
+    public static List<SearchResult> getResults(@NonNull Bundle bundle) {
+        byte[] encodedResults = bundle.getByteArray(COMPACT_RESULTS_FIELD);
+        if (encodedResults == null) {
+            return new SearchResultPage(bundle).getResults();
+        }
+        return new LazySearchResultList(ByteBuffer.wrap(encodedResults));
+    }
+
+    /**
+     * A list decoding and caching each {@link SearchResult} on first access.
+     *
+     * <p>The list used to be an {@link ArrayList}, so it stays mutable: {@link #set} replaces the
+     * cached result, and the first change of its size decodes every result into an {@link
+     * ArrayList} the list delegates to from then on.
+     */
+    private static final class LazySearchResultList extends AbstractList<SearchResult>
+            implements RandomAccess {
+        private final CompactBundleCodec mCodec = new CompactBundleCodec();
+        private final ByteBuffer mEncodedResults;
+        private final SearchResult[] mResults;
+        // Every result, once the size of the list has changed.
+        private ArrayList<SearchResult> mResizedResults;
+
+        LazySearchResultList(@NonNull ByteBuffer encodedResults) {
+            mEncodedResults = encodedResults;
+            mResults = new SearchResult[CompactBundleCodec.getBundleCount(encodedResults)];
+        }
+
+        @Override
+        public synchronized SearchResult get(int index) {
+            if (mResizedResults != null) {
+                return mResizedResults.get(index);
+            }
+            SearchResult result = mResults[index];
+            if (result == null) {
+                result = new SearchResult(mCodec.decode(mEncodedResults, index));
+                mResults[index] = result;
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized SearchResult set(int index, SearchResult result) {
+            if (mResizedResults != null) {
+                return mResizedResults.set(index, result);
+            }
+            SearchResult previous = get(index);
+            mResults[index] = result;
+            return previous;
+        }
+
+        @Override
+        public synchronized void add(int index, SearchResult result) {
+            getResizedResults().add(index, result);
+            modCount++;
+        }
+
+        @Override
+        public synchronized SearchResult remove(int index) {
+            SearchResult previous = getResizedResults().remove(index);
+            modCount++;
+            return previous;
+        }
+
+        @Override
+        public synchronized int size() {
+            return mResizedResults != null ? mResizedResults.size() : mResults.length;
+        }
+
+        private ArrayList<SearchResult> getResizedResults() {
+            if (mResizedResults == null) {
+                ArrayList<SearchResult> results = new ArrayList<>(mResults.length);
+                for (int i = 0; i < mResults.length; i++) {
+                    results.add(get(i));
+                }
+                mResizedResults = results;
+            }
+            return mResizedResults;
+        }
+    }
+}
@@ -17,10 +17,19 @@
 package android.app.appsearch.aidl;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.appsearch.GenericDocument;
+import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
 
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -31,21 +40,71 @@ import java.util.Objects;
  * <P>This class will batch a list of {@link GenericDocument}. If the number of documents is too
  * large for a transact, they will be put to Android Shared Memory.
  *
+ * <p>Small batches are marshalled into a blob, see {@link Parcel#writeBlob(byte[])}. Larger
+ * batches are encoded with {@link CompactBundleCodec} directly into a {@link SharedMemory} region,
+ * without building a marshalled copy of the batch on the heap. The receiving side maps the region
+ * and decodes each document only when {@link #getDocuments} is read, so the documents of a large
+ * batch don't all have to be on its heap at once. The region is checked to be well-formed when
+ * the parcel is read, so a malformed batch is rejected before any of its documents is used. The
+ * receiving side must {@link #close} the parcel once it is done with the documents.
+ *
  * @see Parcel#writeBlob(byte[])
  * @hide
  */
-public final class DocumentsParcel implements Parcelable {
+public final class DocumentsParcel implements Parcelable, Closeable {
+    private static final String TAG = "AppSearchDocuments";
+
+    /**
+     * Batches whose encoded size is above this are sent through {@link SharedMemory}.
+     *
+     * <p>Blobs smaller than this are written in place by {@link Parcel#writeBlob(byte[])} anyway,
+     * so a region of shared memory would only add a file descriptor and a mapping.
+     */
+    private static final int SHARED_MEMORY_THRESHOLD_BYTES = 16 * 1024;
+
+    private static final int MODE_BLOB = 0;
+    private static final int MODE_SHARED_MEMORY = 1;
+
     private final List<GenericDocument> mDocuments;
 
+    // The documents received through shared memory, or null if they were sent as a blob.
+    @Nullable private final MappedDocumentList mMappedDocuments;
+
     public DocumentsParcel(@NonNull List<GenericDocument> documents) {
         mDocuments = Objects.requireNonNull(documents);
+        mMappedDocuments = null;
     }
 
     private DocumentsParcel(@NonNull Parcel in) {
-        this(in.readBlob());
+        if (in.readInt() == MODE_SHARED_MEMORY) {
+            SharedMemory sharedMemory = SharedMemory.CREATOR.createFromParcel(in);
+            ByteBuffer buffer = null;
+            try {
+                buffer = sharedMemory.mapReadOnly();
+                // The sender is untrusted, so check the whole region before handing out any of
+                // its documents.
+                CompactBundleCodec.validate(buffer);
+                // The mapping outlives the file descriptor, which can be released right away.
+                mMappedDocuments = new MappedDocumentList(buffer);
+            } catch (ErrnoException e) {
+                throw new IllegalStateException("Failed to map the documents", e);
+            } catch (RuntimeException e) {
+                if (buffer != null) {
+                    SharedMemory.unmap(buffer);
+                }
+                throw e;
+            } finally {
+                sharedMemory.close();
+            }
+            mDocuments = mMappedDocuments;
+        } else {
+            mDocuments = readDocumentsFromBlob(in.readBlob());
+            mMappedDocuments = null;
+        }
     }
 
-    private DocumentsParcel(@NonNull byte[] dataBlob) {
+    @NonNull
+    private static List<GenericDocument> readDocumentsFromBlob(@NonNull byte[] dataBlob) {
         // Create a parcel object to un-serialize the byte array we are reading from
         // Parcel.readBlob(). Parcel.WriteBlob() could take care of whether to pass data via
         // binder directly or Android shared memory if the data is large.
@@ -55,11 +114,12 @@ public final class DocumentsParcel implements Parcelable {
             unmarshallParcel.setDataPosition(0);
             // read the number of document that stored in here.
             int size = unmarshallParcel.readInt();
-            mDocuments = new ArrayList<>(size);
+            List<GenericDocument> documents = new ArrayList<>(size);
             for (int i = 0; i < size; i++) {
                 // Read document's bundle and convert them.
-                mDocuments.add(new GenericDocument(unmarshallParcel.readBundle()));
+                documents.add(new GenericDocument(unmarshallParcel.readBundle()));
             }
+            return documents;
         } finally {
             unmarshallParcel.recycle();
         }
@@ -79,14 +139,64 @@ public final class DocumentsParcel implements Parcelable {
 
     @Override
     public int describeContents() {
-        return 0;
+        return CONTENTS_FILE_DESCRIPTOR;
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        List<Bundle> documentBundles = new ArrayList<>(mDocuments.size());
+        for (int i = 0; i < mDocuments.size(); i++) {
+            documentBundles.add(mDocuments.get(i).getBundle());
+        }
+        long encodedSize;
+        try {
+            encodedSize = CompactBundleCodec.getEncodedSize(documentBundles);
+        } catch (IllegalArgumentException e) {
+            // Nested too deeply for the codec; a Parcel has no such limit.
+            Log.w(TAG, "Failed to size documents for shared memory, using a blob instead", e);
+            encodedSize = -1;
+        }
+        if (encodedSize > SHARED_MEMORY_THRESHOLD_BYTES && encodedSize <= Integer.MAX_VALUE) {
+            SharedMemory sharedMemory = null;
+            try {
+                sharedMemory = writeToSharedMemory(documentBundles, (int) encodedSize);
+                dest.writeInt(MODE_SHARED_MEMORY);
+                // The file descriptor is duplicated into the parcel.
+                sharedMemory.writeToParcel(dest, flags);
+                return;
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Failed to write documents to shared memory, using a blob instead", e);
+            } finally {
+                if (sharedMemory != null) {
+                    sharedMemory.close();
+                }
+            }
+        }
+        dest.writeInt(MODE_BLOB);
         dest.writeBlob(serializeToByteArray());
     }
 
+    @NonNull
+    private static SharedMemory writeToSharedMemory(
+            @NonNull List<Bundle> documentBundles, int encodedSize) throws ErrnoException {
+        SharedMemory sharedMemory = SharedMemory.create("AppSearchDocuments", encodedSize);
+        ByteBuffer buffer = null;
+        try {
+            buffer = sharedMemory.mapReadWrite();
+            new CompactBundleCodec().encode(documentBundles, buffer);
+            // The receiving side only ever reads the region.
+            sharedMemory.setProtect(OsConstants.PROT_READ);
+            return sharedMemory;
+        } catch (ErrnoException | RuntimeException e) {
+            sharedMemory.close();
+            throw e;
+        } finally {
+            if (buffer != null) {
+                SharedMemory.unmap(buffer);
+            }
+        }
+    }
+
     /**
      * Serializes the whole object, So that we can use Parcel.writeBlob() to send data. WriteBlob()
      * could take care of whether to pass data via binder directly or Android shared memory if the
@@ -110,9 +220,61 @@ public final class DocumentsParcel implements Parcelable {
         return bytes;
     }
 
-    /**  Returns the List of {@link GenericDocument} of this object. */
+    /**
+     * Returns the List of {@link GenericDocument} of this object.
+     *
+     * <p>If the documents were sent through shared memory, each call to {@link List#get} decodes
+     * the document again, so callers should read each document once. Since the sender may still
+     * write to the region after it was checked, {@link List#get} may throw {@link
+     * IllegalArgumentException} if it was changed since.
+     */
     @NonNull
     public List<GenericDocument> getDocuments() {
         return mDocuments;
     }
+
+    /**
+     * Releases the shared memory the documents were received in, if any.
+     *
+     * <p>The documents returned by {@link #getDocuments} can't be read anymore afterwards, except
+     * for the ones already decoded.
+     */
+    @Override
+    public void close() {
+        if (mMappedDocuments != null) {
+            mMappedDocuments.close();
+        }
+    }
+
+    /** A read-only list decoding the documents written by {@link #writeToSharedMemory}. */
+    private static final class MappedDocumentList extends AbstractList<GenericDocument> {
+        private final CompactBundleCodec mCodec = new CompactBundleCodec();
+        private final int mSize;
+        @Nullable private ByteBuffer mBuffer;
+
+        MappedDocumentList(@NonNull ByteBuffer buffer) {
+            mBuffer = buffer;
+            mSize = CompactBundleCodec.getBundleCount(buffer);
+        }
+
+        @Override
+        public GenericDocument get(int index) {
+            if (mBuffer == null) {
+                throw new IllegalStateException("DocumentsParcel has already been closed");
+            }
+            return new GenericDocument(mCodec.decode(mBuffer, index));
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        void close() {
+            if (mBuffer != null) {
+                SharedMemory.unmap(mBuffer);
+                mBuffer = null;
+            }
+        }
+    }
 }
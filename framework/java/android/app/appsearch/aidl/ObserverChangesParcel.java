@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch.aidl;
+
+import android.annotation.NonNull;
+import android.app.appsearch.observer.DocumentChangeInfo;
+import android.app.appsearch.observer.SchemaChangeInfo;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The Parcelable object holding the {@link SchemaChangeInfo}s and {@link DocumentChangeInfo}s
+ * dispatched to an observer at once.
+ *
+ * <p>Use {@link #split} to build them, so that no single parcel gets close to the binder
+ * transaction limit.
+ *
+ * @hide
+ */
+public final class ObserverChangesParcel implements Parcelable {
+    /**
+     * The estimated size above which changes are split across several parcels.
+     *
+     * <p>Oneway transactions share an async buffer of about 512 KiB per process, so this leaves
+     * room for a couple of parcels in flight.
+     */
+    public static final int DEFAULT_MAX_SIZE_BYTES = 128 * 1024;
+
+    // The estimated size of the fixed fields of a change, on top of its strings.
+    private static final int CHANGE_OVERHEAD_BYTES = 16;
+
+    private final List<SchemaChangeInfo> mSchemaChanges;
+    private final List<DocumentChangeInfo> mDocumentChanges;
+
+    public ObserverChangesParcel(
+            @NonNull List<SchemaChangeInfo> schemaChanges,
+            @NonNull List<DocumentChangeInfo> documentChanges) {
+        mSchemaChanges = Objects.requireNonNull(schemaChanges);
+        mDocumentChanges = Objects.requireNonNull(documentChanges);
+    }
+
+    private ObserverChangesParcel(@NonNull Parcel in) {
+        int schemaChangeCount = in.readInt();
+        mSchemaChanges = new ArrayList<>(schemaChangeCount);
+        for (int i = 0; i < schemaChangeCount; i++) {
+            String packageName = in.readString();
+            String databaseName = in.readString();
+            mSchemaChanges.add(new SchemaChangeInfo(
+                    packageName, databaseName, new HashSet<>(in.createStringArrayList())));
+        }
+        int documentChangeCount = in.readInt();
+        mDocumentChanges = new ArrayList<>(documentChangeCount);
+        for (int i = 0; i < documentChangeCount; i++) {
+            String packageName = in.readString();
+            String databaseName = in.readString();
+            String namespace = in.readString();
+            String schemaName = in.readString();
+            mDocumentChanges.add(new DocumentChangeInfo(
+                    packageName,
+                    databaseName,
+                    namespace,
+                    schemaName,
+                    new HashSet<>(in.createStringArrayList())));
+        }
+    }
+
+    /**
+     * Splits changes into parcels whose estimated size is at most {@code maxSizeBytes}.
+     *
+     * <p>The changes keep their order. A {@link DocumentChangeInfo} whose IDs don't fit in what is
+     * left of a parcel is split into several {@link DocumentChangeInfo}s of the same package,
+     * database, namespace and schema, each holding some of the IDs.
+     */
+    @NonNull
+    public static List<ObserverChangesParcel> split(
+            @NonNull List<SchemaChangeInfo> schemaChanges,
+            @NonNull List<DocumentChangeInfo> documentChanges,
+            int maxSizeBytes) {
+        Objects.requireNonNull(schemaChanges);
+        Objects.requireNonNull(documentChanges);
+        List<ObserverChangesParcel> parcels = new ArrayList<>();
+        List<SchemaChangeInfo> parcelSchemaChanges = new ArrayList<>();
+        List<DocumentChangeInfo> parcelDocumentChanges = new ArrayList<>();
+        int parcelSize = 0;
+
+        // Schema changes only hold a handful of names, so they aren't split themselves.
+        for (int i = 0; i < schemaChanges.size(); i++) {
+            SchemaChangeInfo change = schemaChanges.get(i);
+            int changeSize = CHANGE_OVERHEAD_BYTES
+                    + estimateSize(change.getPackageName())
+                    + estimateSize(change.getDatabaseName());
+            for (String schemaName : change.getChangedSchemaNames()) {
+                changeSize += estimateSize(schemaName);
+            }
+            if (parcelSize > 0 && parcelSize + changeSize > maxSizeBytes) {
+                parcels.add(new ObserverChangesParcel(parcelSchemaChanges, parcelDocumentChanges));
+                parcelSchemaChanges = new ArrayList<>();
+                parcelDocumentChanges = new ArrayList<>();
+                parcelSize = 0;
+            }
+            parcelSchemaChanges.add(change);
+            parcelSize += changeSize;
+        }
+
+        for (int i = 0; i < documentChanges.size(); i++) {
+            DocumentChangeInfo change = documentChanges.get(i);
+            int keySize = CHANGE_OVERHEAD_BYTES
+                    + estimateSize(change.getPackageName())
+                    + estimateSize(change.getDatabaseName())
+                    + estimateSize(change.getNamespace())
+                    + estimateSize(change.getSchemaName());
+            // Not an ArraySet, whose sorted inserts would make this quadratic in the number of IDs.
+            Set<String> ids = new HashSet<>();
+            int idsSize = 0;
+            for (String id : change.getChangedDocumentIds()) {
+                int idSize = estimateSize(id);
+                if (parcelSize + keySize + idsSize + idSize > maxSizeBytes
+                        && (parcelSize > 0 || !ids.isEmpty())) {
+                    // Flush what fits of this change, and continue it in the next parcel.
+                    if (!ids.isEmpty()) {
+                        parcelDocumentChanges.add(copyWithIds(change, ids));
+                        ids = new HashSet<>();
+                        idsSize = 0;
+                    }
+                    parcels.add(
+                            new ObserverChangesParcel(parcelSchemaChanges, parcelDocumentChanges));
+                    parcelSchemaChanges = new ArrayList<>();
+                    parcelDocumentChanges = new ArrayList<>();
+                    parcelSize = 0;
+                }
+                ids.add(id);
+                idsSize += idSize;
+            }
+            if (ids.size() == change.getChangedDocumentIds().size()) {
+                // The change wasn't split, so reuse it as is.
+                parcelDocumentChanges.add(change);
+            } else if (!ids.isEmpty()) {
+                parcelDocumentChanges.add(copyWithIds(change, ids));
+            }
+            parcelSize += keySize + idsSize;
+        }
+
+        if (!parcelSchemaChanges.isEmpty() || !parcelDocumentChanges.isEmpty()) {
+            parcels.add(new ObserverChangesParcel(parcelSchemaChanges, parcelDocumentChanges));
+        }
+        return parcels;
+    }
+
+    @NonNull
+    private static DocumentChangeInfo copyWithIds(
+            @NonNull DocumentChangeInfo change, @NonNull Set<String> ids) {
+        return new DocumentChangeInfo(
+                change.getPackageName(),
+                change.getDatabaseName(),
+                change.getNamespace(),
+                change.getSchemaName(),
+                ids);
+    }
+
+    /** Returns the size a string takes in a {@link Parcel}, which writes it as UTF-16. */
+    private static int estimateSize(@NonNull String value) {
+        return 8 + 2 * value.length();
+    }
+
+    /** Returns the schema changes, in the order they were dispatched. */
+    @NonNull
+    public List<SchemaChangeInfo> getSchemaChanges() {
+        return Collections.unmodifiableList(mSchemaChanges);
+    }
+
+    /** Returns the document changes, in the order they were dispatched. */
+    @NonNull
+    public List<DocumentChangeInfo> getDocumentChanges() {
+        return Collections.unmodifiableList(mDocumentChanges);
+    }
+
+    public static final Creator<ObserverChangesParcel> CREATOR =
+            new Creator<ObserverChangesParcel>() {
+                @Override
+                public ObserverChangesParcel createFromParcel(Parcel in) {
+                    return new ObserverChangesParcel(in);
+                }
+
+                @Override
+                public ObserverChangesParcel[] newArray(int size) {
+                    return new ObserverChangesParcel[size];
+                }
+            };
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(@NonNull Parcel dest, int flags) {
+        dest.writeInt(mSchemaChanges.size());
+        for (int i = 0; i < mSchemaChanges.size(); i++) {
+            SchemaChangeInfo change = mSchemaChanges.get(i);
+            dest.writeString(change.getPackageName());
+            dest.writeString(change.getDatabaseName());
+            dest.writeStringList(new ArrayList<>(change.getChangedSchemaNames()));
+        }
+        dest.writeInt(mDocumentChanges.size());
+        for (int i = 0; i < mDocumentChanges.size(); i++) {
+            DocumentChangeInfo change = mDocumentChanges.get(i);
+            dest.writeString(change.getPackageName());
+            dest.writeString(change.getDatabaseName());
+            dest.writeString(change.getNamespace());
+            dest.writeString(change.getSchemaName());
+            dest.writeStringList(new ArrayList<>(change.getChangedDocumentIds()));
+        }
+    }
+}
@@ -51,10 +51,23 @@ public final class AppSearchSchema {
 
     private final Bundle mBundle;
 
+    /**
+     * The hash code of this schema, or {@code null} if it hasn't been computed yet.
+     *
+     * <p>Schemas created by {@link Builder#build} have it computed up front from the cached hash
+     * codes of their properties.
+     */
+    @Nullable private Integer mHashCode;
+
     /** @hide */
     public AppSearchSchema(@NonNull Bundle bundle) {
+        this(bundle, /*hashCode=*/ null);
+    }
+
+    private AppSearchSchema(@NonNull Bundle bundle, @Nullable Integer hashCode) {
         Objects.requireNonNull(bundle);
         mBundle = bundle;
+        mHashCode = hashCode;
     }
 
     /**
@@ -144,6 +157,11 @@ public final class AppSearchSchema {
             return false;
         }
         AppSearchSchema otherSchema = (AppSearchSchema) other;
+        // The hash codes are cached, so most unequal schemas are told apart without
+        // materializing and comparing their properties.
+        if (hashCode() != otherSchema.hashCode()) {
+            return false;
+        }
         if (!getSchemaType().equals(otherSchema.getSchemaType())) {
             return false;
         }
@@ -152,7 +170,10 @@ public final class AppSearchSchema {
 
     @Override
     public int hashCode() {
-        return Objects.hash(getSchemaType(), getProperties());
+        if (mHashCode == null) {
+            mHashCode = Objects.hash(getSchemaType(), getProperties());
+        }
+        return mHashCode;
     }
 
     /** Builder for {@link AppSearchSchema objects}. */
@@ -160,6 +181,8 @@ public final class AppSearchSchema {
         private final String mSchemaType;
         private ArrayList<Bundle> mPropertyBundles = new ArrayList<>();
         private final Set<String> mPropertyNames = new ArraySet<>();
+        // The List#hashCode of the properties added so far.
+        private int mPropertiesHashCode = 1;
         private boolean mBuilt = false;
 
         /** Creates a new {@link AppSearchSchema.Builder}. */
@@ -178,6 +201,7 @@ public final class AppSearchSchema {
                 throw new IllegalSchemaException("Property defined more than once: " + name);
             }
             mPropertyBundles.add(propertyConfig.mBundle);
+            mPropertiesHashCode = 31 * mPropertiesHashCode + propertyConfig.hashCode();
             return this;
         }
 
@@ -188,7 +212,9 @@ public final class AppSearchSchema {
             bundle.putString(AppSearchSchema.SCHEMA_TYPE_FIELD, mSchemaType);
             bundle.putParcelableArrayList(AppSearchSchema.PROPERTIES_FIELD, mPropertyBundles);
             mBuilt = true;
-            return new AppSearchSchema(bundle);
+            // Same as Objects.hash(getSchemaType(), getProperties()).
+            int hashCode = 31 * (31 + mSchemaType.hashCode()) + mPropertiesHashCode;
+            return new AppSearchSchema(bundle, hashCode);
         }
 
         private void resetIfBuilt() {
@@ -25,6 +25,7 @@ import android.app.appsearch.util.BundleUtil;
 import android.app.appsearch.util.IndentingStringBuilder;
 import android.os.Bundle;
 import android.os.Parcelable;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import java.lang.reflect.Array;
@@ -92,6 +93,14 @@ public class GenericDocument {
     @NonNull private final String mId;
     @NonNull private final String mSchemaType;
     private final long mCreationTimestampMillis;
+
+    /**
+     * The content hash of this document, or {@code null} if it hasn't been computed yet.
+     *
+     * <p>Documents created by {@link Builder#build} have it computed up front from the hash codes
+     * the builder accumulated while its properties were set. Documents rebuilt from a {@link
+     * Bundle} compute it on first use.
+     */
     @Nullable private Integer mHashCode;
 
     /**
@@ -101,10 +110,15 @@ public class GenericDocument {
      *     #getBundle}.
      * @hide
      */
-    @SuppressWarnings("deprecation")
     public GenericDocument(@NonNull Bundle bundle) {
+        this(bundle, /*hashCode=*/ null);
+    }
+
+    @SuppressWarnings("deprecation")
+    private GenericDocument(@NonNull Bundle bundle, @Nullable Integer hashCode) {
         Objects.requireNonNull(bundle);
         mBundle = bundle;
+        mHashCode = hashCode;
         mProperties = Objects.requireNonNull(bundle.getParcelable(PROPERTIES_FIELD));
         mId = Objects.requireNonNull(mBundle.getString(ID_FIELD));
         mSchemaType = Objects.requireNonNull(mBundle.getString(SCHEMA_TYPE_FIELD));
@@ -118,7 +132,7 @@ public class GenericDocument {
      * <p>This method should be only used by constructor of a subclass.
      */
     protected GenericDocument(@NonNull GenericDocument document) {
-        this(document.mBundle);
+        this(document.mBundle, document.mHashCode);
     }
 
     /**
@@ -259,8 +273,32 @@ public class GenericDocument {
     public Object getProperty(@NonNull String path) {
         Objects.requireNonNull(path);
         Object rawValue = getRawPropertyFromRawDocument(path, mBundle);
+        return unpackRawValue(rawValue, path);
+    }
+
+    /**
+     * Retrieves the property value with the given compiled path as {@link Object}.
+     *
+     * <p>Returns the same value as {@link #getProperty(String)} called with the path the {@link
+     * PropertyPath} was compiled from, without parsing the path again.
+     *
+     * @hide
+     */
+    @Nullable
+    public Object getProperty(@NonNull PropertyPath path) {
+        Objects.requireNonNull(path);
+        Object rawValue = getRawPropertyFromRawDocument(path, /*segment=*/ 0, mBundle);
+        return unpackRawValue(rawValue, path.toString());
+    }
 
-        // Unpack the raw value into the types the user expects, if required.
+    /**
+     * Unpacks a raw value returned by {@code getRawPropertyFromRawDocument} into the types the
+     * user expects.
+     *
+     * @param path Path the value was looked up with. Used for logging.
+     */
+    @Nullable
+    private static Object unpackRawValue(@Nullable Object rawValue, @NonNull String path) {
         if (rawValue instanceof Bundle) {
             // getRawPropertyFromRawDocument may return a document as a bare Bundle as a performance
             // optimization for lookups.
@@ -392,44 +430,7 @@ public class GenericDocument {
             }
 
             // Extract the right array element
-            Object extractedValue = null;
-            if (firstElementValue instanceof String[]) {
-                String[] stringValues = (String[]) firstElementValue;
-                if (index < stringValues.length) {
-                    extractedValue = Arrays.copyOfRange(stringValues, index, index + 1);
-                }
-            } else if (firstElementValue instanceof long[]) {
-                long[] longValues = (long[]) firstElementValue;
-                if (index < longValues.length) {
-                    extractedValue = Arrays.copyOfRange(longValues, index, index + 1);
-                }
-            } else if (firstElementValue instanceof double[]) {
-                double[] doubleValues = (double[]) firstElementValue;
-                if (index < doubleValues.length) {
-                    extractedValue = Arrays.copyOfRange(doubleValues, index, index + 1);
-                }
-            } else if (firstElementValue instanceof boolean[]) {
-                boolean[] booleanValues = (boolean[]) firstElementValue;
-                if (index < booleanValues.length) {
-                    extractedValue = Arrays.copyOfRange(booleanValues, index, index + 1);
-                }
-            } else if (firstElementValue instanceof List) {
-                @SuppressWarnings("unchecked")
-                List<Bundle> bundles = (List<Bundle>) firstElementValue;
-                if (index < bundles.size()) {
-                    extractedValue = bundles.subList(index, index + 1);
-                }
-            } else if (firstElementValue instanceof Parcelable[]) {
-                // Special optimization: to avoid creating new singleton arrays for traversing paths
-                // we return the bare document Bundle in this particular case.
-                Parcelable[] bundles = (Parcelable[]) firstElementValue;
-                if (index < bundles.length) {
-                    extractedValue = (Bundle) bundles[index];
-                }
-            } else {
-                throw new IllegalStateException("Unsupported value type: " + firstElementValue);
-            }
-            firstElementValue = extractedValue;
+            firstElementValue = getIndexedRawValue(firstElementValue, index);
         }
 
         // If we are at the end of the path or there are no deeper elements in this document, we
@@ -485,6 +486,101 @@ public class GenericDocument {
         }
     }
 
+    /**
+     * Returns the element at {@code index} of a raw repeated value, or {@code null} if there is no
+     * such element.
+     *
+     * <p>Primitive and {@code String} elements are returned as single-element arrays, byte arrays
+     * as a single-element list and documents as their bare {@link Bundle}.
+     */
+    @Nullable
+    private static Object getIndexedRawValue(@NonNull Object value, int index) {
+        if (value instanceof String[]) {
+            String[] stringValues = (String[]) value;
+            if (index < stringValues.length) {
+                return Arrays.copyOfRange(stringValues, index, index + 1);
+            }
+        } else if (value instanceof long[]) {
+            long[] longValues = (long[]) value;
+            if (index < longValues.length) {
+                return Arrays.copyOfRange(longValues, index, index + 1);
+            }
+        } else if (value instanceof double[]) {
+            double[] doubleValues = (double[]) value;
+            if (index < doubleValues.length) {
+                return Arrays.copyOfRange(doubleValues, index, index + 1);
+            }
+        } else if (value instanceof boolean[]) {
+            boolean[] booleanValues = (boolean[]) value;
+            if (index < booleanValues.length) {
+                return Arrays.copyOfRange(booleanValues, index, index + 1);
+            }
+        } else if (value instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<Bundle> bundles = (List<Bundle>) value;
+            if (index < bundles.size()) {
+                return bundles.subList(index, index + 1);
+            }
+        } else if (value instanceof Parcelable[]) {
+            // Special optimization: to avoid creating new singleton arrays for traversing paths
+            // we return the bare document Bundle in this particular case.
+            Parcelable[] bundles = (Parcelable[]) value;
+            if (index < bundles.length) {
+                return (Bundle) bundles[index];
+            }
+        } else {
+            throw new IllegalStateException("Unsupported value type: " + value);
+        }
+        return null;
+    }
+
+    /**
+     * Looks up a compiled property path, starting at the given segment, within the given document
+     * bundle.
+     *
+     * <p>Follows the same rules and returns the same types as {@link
+     * #getRawPropertyFromRawDocument(String, Bundle)}.
+     */
+    @Nullable
+    @SuppressWarnings("deprecation")
+    private static Object getRawPropertyFromRawDocument(
+            @NonNull PropertyPath path, int segment, @NonNull Bundle documentBundle) {
+        Bundle properties = Objects.requireNonNull(documentBundle.getBundle(PROPERTIES_FIELD));
+        Object value = properties.get(path.getPropertyName(segment));
+        int index = path.getIndex(segment);
+        if (value != null && index != PropertyPath.NO_INDEX) {
+            value = getIndexedRawValue(value, index);
+        }
+
+        // If we are at the end of the path or there are no deeper elements in this document, we
+        // have nothing to recurse into.
+        if (value == null || segment == path.getSegmentCount() - 1) {
+            return value;
+        }
+
+        if (value instanceof Bundle) {
+            return getRawPropertyFromRawDocument(path, segment + 1, (Bundle) value);
+        } else if (value instanceof Parcelable[]) {
+            Parcelable[] parcelables = (Parcelable[]) value;
+            if (parcelables.length == 1) {
+                return getRawPropertyFromRawDocument(path, segment + 1, (Bundle) parcelables[0]);
+            }
+            // Collect the values across the repeated nested documents, see the String version.
+            List<Object> accumulator = new ArrayList<>(parcelables.length);
+            for (int i = 0; i < parcelables.length; i++) {
+                Object nestedValue =
+                        getRawPropertyFromRawDocument(path, segment + 1, (Bundle) parcelables[i]);
+                if (nestedValue != null) {
+                    accumulator.add(nestedValue);
+                }
+            }
+            return flattenAccumulator(accumulator);
+        } else {
+            Log.e(TAG, "Failed to apply path to document; no nested value found: " + path);
+            return null;
+        }
+    }
+
     /**
      * Combines accumulated repeated properties from multiple documents into a single array.
      *
@@ -703,6 +799,118 @@ public class GenericDocument {
         return propertyArray[0];
     }
 
+    /**
+     * Retrieves a {@link String} value by compiled path, without copying the array it is stored in.
+     *
+     * <p>To read one element of a repeated property, pass its position as {@code valueIndex}
+     * rather than indexing into it in the path, which makes a copy of the element.
+     *
+     * @param path The compiled path to look for.
+     * @param valueIndex The position of the value among the values the path refers to.
+     * @return The {@link String} at {@code valueIndex} or {@code null} if there is no such value or
+     *     the value is of a different type.
+     * @hide
+     */
+    @Nullable
+    public String getPropertyString(@NonNull PropertyPath path, int valueIndex) {
+        Objects.requireNonNull(path);
+        Object rawValue = getRawPropertyFromRawDocument(path, /*segment=*/ 0, mBundle);
+        if (!(rawValue instanceof String[])) {
+            return null;
+        }
+        String[] values = (String[]) rawValue;
+        return valueIndex >= 0 && valueIndex < values.length ? values[valueIndex] : null;
+    }
+
+    /**
+     * Retrieves a {@code long} value by compiled path, without copying the array it is stored in.
+     *
+     * @param path The compiled path to look for.
+     * @param valueIndex The position of the value among the values the path refers to.
+     * @return The {@code long} at {@code valueIndex} or default value {@code 0} if there is no such
+     *     value or the value is of a different type.
+     * @see #getPropertyString(PropertyPath, int)
+     * @hide
+     */
+    public long getPropertyLong(@NonNull PropertyPath path, int valueIndex) {
+        Objects.requireNonNull(path);
+        Object rawValue = getRawPropertyFromRawDocument(path, /*segment=*/ 0, mBundle);
+        if (!(rawValue instanceof long[])) {
+            return 0;
+        }
+        long[] values = (long[]) rawValue;
+        return valueIndex >= 0 && valueIndex < values.length ? values[valueIndex] : 0;
+    }
+
+    /**
+     * Retrieves a {@code double} value by compiled path, without copying the array it is stored
+     * in.
+     *
+     * @param path The compiled path to look for.
+     * @param valueIndex The position of the value among the values the path refers to.
+     * @return The {@code double} at {@code valueIndex} or default value {@code 0.0} if there is no
+     *     such value or the value is of a different type.
+     * @see #getPropertyString(PropertyPath, int)
+     * @hide
+     */
+    public double getPropertyDouble(@NonNull PropertyPath path, int valueIndex) {
+        Objects.requireNonNull(path);
+        Object rawValue = getRawPropertyFromRawDocument(path, /*segment=*/ 0, mBundle);
+        if (!(rawValue instanceof double[])) {
+            return 0.0;
+        }
+        double[] values = (double[]) rawValue;
+        return valueIndex >= 0 && valueIndex < values.length ? values[valueIndex] : 0.0;
+    }
+
+    /**
+     * Retrieves a {@code boolean} value by compiled path, without copying the array it is stored
+     * in.
+     *
+     * @param path The compiled path to look for.
+     * @param valueIndex The position of the value among the values the path refers to.
+     * @return The {@code boolean} at {@code valueIndex} or default value {@code false} if there is
+     *     no such value or the value is of a different type.
+     * @see #getPropertyString(PropertyPath, int)
+     * @hide
+     */
+    public boolean getPropertyBoolean(@NonNull PropertyPath path, int valueIndex) {
+        Objects.requireNonNull(path);
+        Object rawValue = getRawPropertyFromRawDocument(path, /*segment=*/ 0, mBundle);
+        if (!(rawValue instanceof boolean[])) {
+            return false;
+        }
+        boolean[] values = (boolean[]) rawValue;
+        return valueIndex >= 0 && valueIndex < values.length && values[valueIndex];
+    }
+
+    /**
+     * Retrieves a {@code byte[]} value by compiled path, without copying the values it is stored
+     * in.
+     *
+     * @param path The compiled path to look for.
+     * @param valueIndex The position of the value among the values the path refers to.
+     * @return The {@code byte[]} at {@code valueIndex} or {@code null} if there is no such value or
+     *     the value is of a different type.
+     * @see #getPropertyString(PropertyPath, int)
+     * @hide
+     */
+    @Nullable
+    public byte[] getPropertyBytes(@NonNull PropertyPath path, int valueIndex) {
+        Objects.requireNonNull(path);
+        Object rawValue = getRawPropertyFromRawDocument(path, /*segment=*/ 0, mBundle);
+        if (!(rawValue instanceof List)) {
+            return null;
+        }
+        // byte[][] fields are packed into List<Bundle>, see unpackRawValue.
+        List<?> bundles = (List<?>) rawValue;
+        if (valueIndex < 0 || valueIndex >= bundles.size()) {
+            return null;
+        }
+        Object bundle = bundles.get(valueIndex);
+        return bundle instanceof Bundle ? ((Bundle) bundle).getByteArray(BYTE_ARRAY_FIELD) : null;
+    }
+
     /** Prints a warning to logcat if the given propertyLength is greater than 1. */
     private static void warnIfSinglePropertyTooLong(
             @NonNull String propertyType, @NonNull String path, int propertyLength) {
@@ -906,17 +1114,103 @@ public class GenericDocument {
             return false;
         }
         GenericDocument otherDocument = (GenericDocument) other;
+        // The hash codes are cached, so most unequal documents are told apart without walking
+        // their bundles.
+        if (getContentHashCode() != otherDocument.getContentHashCode()) {
+            return false;
+        }
         return BundleUtil.deepEquals(this.mBundle, otherDocument.mBundle);
     }
 
     @Override
     public int hashCode() {
+        return getContentHashCode();
+    }
+
+    private int getContentHashCode() {
         if (mHashCode == null) {
-            mHashCode = BundleUtil.deepHashCode(mBundle);
+            mHashCode = computeHashCode(mBundle);
         }
         return mHashCode;
     }
 
+    /**
+     * Computes the hash code of the document packaged in the given bundle.
+     *
+     * <p>Properties are combined by summing their {@link #computePropertyHashCode}, like {@link
+     * java.util.Map#hashCode}, so the result doesn't depend on the iteration order of the bundle
+     * and {@link Builder} can maintain it as properties are set.
+     */
+    private static int computeHashCode(@NonNull Bundle bundle) {
+        Bundle properties = bundle.getBundle(PROPERTIES_FIELD);
+        int propertiesHashCode = 0;
+        if (properties != null) {
+            for (String name : properties.keySet()) {
+                propertiesHashCode +=
+                        computePropertyHashCode(name, getRawProperty(properties, name));
+            }
+        }
+        return combineHashCode(bundle, propertiesHashCode);
+    }
+
+    /** Combines the hash code of the document's metadata with the hash code of its properties. */
+    private static int combineHashCode(@NonNull Bundle bundle, int propertiesHashCode) {
+        int hashCode = Objects.hashCode(bundle.getString(NAMESPACE_FIELD));
+        hashCode = 31 * hashCode + Objects.hashCode(bundle.getString(ID_FIELD));
+        hashCode = 31 * hashCode + Objects.hashCode(bundle.getString(SCHEMA_TYPE_FIELD));
+        hashCode = 31 * hashCode + bundle.getInt(SCORE_FIELD);
+        hashCode = 31 * hashCode + Long.hashCode(bundle.getLong(CREATION_TIMESTAMP_MILLIS_FIELD));
+        hashCode = 31 * hashCode + Long.hashCode(bundle.getLong(TTL_MILLIS_FIELD));
+        return 31 * hashCode + propertiesHashCode;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Nullable
+    private static Object getRawProperty(@NonNull Bundle properties, @NonNull String name) {
+        return properties.get(name);
+    }
+
+    /**
+     * Computes the hash code of a property, as stored in the properties bundle.
+     *
+     * <p>Nested documents contribute their own {@link #computeHashCode}, so a {@link Builder}
+     * given {@link GenericDocument} values can reuse their cached hash codes instead.
+     */
+    private static int computePropertyHashCode(@NonNull String name, @Nullable Object rawValue) {
+        int valueHashCode = 0;
+        if (rawValue instanceof String[]) {
+            valueHashCode = Arrays.hashCode((String[]) rawValue);
+        } else if (rawValue instanceof long[]) {
+            valueHashCode = Arrays.hashCode((long[]) rawValue);
+        } else if (rawValue instanceof double[]) {
+            valueHashCode = Arrays.hashCode((double[]) rawValue);
+        } else if (rawValue instanceof boolean[]) {
+            valueHashCode = Arrays.hashCode((boolean[]) rawValue);
+        } else if (rawValue instanceof List) {
+            // byte[][] fields are packed into List<Bundle>, see Builder#putInPropertyBundle.
+            List<?> bundles = (List<?>) rawValue;
+            valueHashCode = 1;
+            for (int i = 0; i < bundles.size(); i++) {
+                Object bundle = bundles.get(i);
+                byte[] bytes =
+                        bundle instanceof Bundle
+                                ? ((Bundle) bundle).getByteArray(BYTE_ARRAY_FIELD)
+                                : null;
+                valueHashCode = 31 * valueHashCode + Arrays.hashCode(bytes);
+            }
+        } else if (rawValue instanceof Parcelable[]) {
+            Parcelable[] bundles = (Parcelable[]) rawValue;
+            valueHashCode = 1;
+            for (int i = 0; i < bundles.length; i++) {
+                int documentHashCode =
+                        bundles[i] instanceof Bundle ? computeHashCode((Bundle) bundles[i]) : 0;
+                valueHashCode = 31 * valueHashCode + documentHashCode;
+            }
+        }
+        // Values of any other type are left out of the hash code; equals() still compares them.
+        return name.hashCode() ^ valueHashCode;
+    }
+
     @Override
     @NonNull
     public String toString() {
@@ -1031,6 +1325,12 @@ public class GenericDocument {
         private final BuilderType mBuilderTypeInstance;
         private boolean mBuilt = false;
 
+        /**
+         * The {@link #computePropertyHashCode} of every property set so far, or {@code null} if
+         * this builder was created from a bundle whose properties haven't been hashed.
+         */
+        @Nullable private ArrayMap<String, Integer> mPropertyHashCodes;
+
         /**
          * Creates a new {@link GenericDocument.Builder}.
          *
@@ -1063,6 +1363,7 @@ public class GenericDocument {
 
             mProperties = new Bundle();
             mBundle.putBundle(PROPERTIES_FIELD, mProperties);
+            mPropertyHashCodes = new ArrayMap<>();
         }
 
         /**
@@ -1309,6 +1610,9 @@ public class GenericDocument {
             Objects.requireNonNull(name);
             resetIfBuilt();
             mProperties.remove(name);
+            if (mPropertyHashCodes != null) {
+                mPropertyHashCodes.remove(name);
+            }
             return mBuilderTypeInstance;
         }
 
@@ -1320,18 +1624,22 @@ public class GenericDocument {
                 }
             }
             mProperties.putStringArray(name, values);
+            putPropertyHashCode(name, Arrays.hashCode(values));
         }
 
         private void putInPropertyBundle(@NonNull String name, @NonNull boolean[] values) {
             mProperties.putBooleanArray(name, values);
+            putPropertyHashCode(name, Arrays.hashCode(values));
         }
 
         private void putInPropertyBundle(@NonNull String name, @NonNull double[] values) {
             mProperties.putDoubleArray(name, values);
+            putPropertyHashCode(name, Arrays.hashCode(values));
         }
 
         private void putInPropertyBundle(@NonNull String name, @NonNull long[] values) {
             mProperties.putLongArray(name, values);
+            putPropertyHashCode(name, Arrays.hashCode(values));
         }
 
         /**
@@ -1342,6 +1650,7 @@ public class GenericDocument {
          */
         private void putInPropertyBundle(@NonNull String name, @NonNull byte[][] values) {
             ArrayList<Bundle> bundles = new ArrayList<>(values.length);
+            int valueHashCode = 1;
             for (int i = 0; i < values.length; i++) {
                 if (values[i] == null) {
                     throw new IllegalArgumentException("The byte[] at " + i + " is null.");
@@ -1349,19 +1658,32 @@ public class GenericDocument {
                 Bundle bundle = new Bundle();
                 bundle.putByteArray(BYTE_ARRAY_FIELD, values[i]);
                 bundles.add(bundle);
+                valueHashCode = 31 * valueHashCode + Arrays.hashCode(values[i]);
             }
             mProperties.putParcelableArrayList(name, bundles);
+            putPropertyHashCode(name, valueHashCode);
         }
 
         private void putInPropertyBundle(@NonNull String name, @NonNull GenericDocument[] values) {
             Parcelable[] documentBundles = new Parcelable[values.length];
+            int valueHashCode = 1;
             for (int i = 0; i < values.length; i++) {
                 if (values[i] == null) {
                     throw new IllegalArgumentException("The document at " + i + " is null.");
                 }
                 documentBundles[i] = values[i].mBundle;
+                // Nested documents are shared rather than copied, and so is their hash code.
+                valueHashCode = 31 * valueHashCode + values[i].getContentHashCode();
             }
             mProperties.putParcelableArray(name, documentBundles);
+            putPropertyHashCode(name, valueHashCode);
+        }
+
+        /** Records the hash code of a property's values, which must match {@link #mProperties}. */
+        private void putPropertyHashCode(@NonNull String name, int valueHashCode) {
+            if (mPropertyHashCodes != null) {
+                mPropertyHashCodes.put(name, name.hashCode() ^ valueHashCode);
+            }
         }
 
         /** Builds the {@link GenericDocument} object. */
@@ -1374,7 +1696,17 @@ public class GenericDocument {
                         GenericDocument.CREATION_TIMESTAMP_MILLIS_FIELD,
                         System.currentTimeMillis());
             }
-            return new GenericDocument(mBundle);
+            int hashCode;
+            if (mPropertyHashCodes == null) {
+                hashCode = computeHashCode(mBundle);
+            } else {
+                int propertiesHashCode = 0;
+                for (int i = 0; i < mPropertyHashCodes.size(); i++) {
+                    propertiesHashCode += mPropertyHashCodes.valueAt(i);
+                }
+                hashCode = combineHashCode(mBundle, propertiesHashCode);
+            }
+            return new GenericDocument(mBundle, hashCode);
         }
 
         private void resetIfBuilt() {
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A property path, such as {@code "to[1].email"}, parsed once so it can be evaluated against many
+ * {@link GenericDocument}s.
+ *
+ * <p>{@link GenericDocument#getProperty(String)} parses its path on every call. Code that
+ * evaluates the same path repeatedly should compile it with {@link #compile} and use the {@link
+ * GenericDocument} methods taking a {@link PropertyPath} instead, which also read single values
+ * without copying the arrays they are stored in.
+ *
+ * <p>This class is immutable and thread safe.
+ *
+ * @see GenericDocument#getProperty(String) for the path syntax.
+ * @hide
+ */
+public final class PropertyPath {
+    /** The index of a segment that isn't indexed into, such as {@code "to"} in {@code "to.email"}. */
+    public static final int NO_INDEX = -1;
+
+    private final String mPath;
+    private final String[] mNames;
+    private final int[] mIndices;
+
+    private PropertyPath(@NonNull String path, @NonNull String[] names, @NonNull int[] indices) {
+        mPath = path;
+        mNames = names;
+        mIndices = indices;
+    }
+
+    /**
+     * Parses a property path.
+     *
+     * @throws IllegalArgumentException if the path is malformed.
+     */
+    @NonNull
+    public static PropertyPath compile(@NonNull String path) {
+        Objects.requireNonNull(path);
+        List<String> names = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        int start = 0;
+        while (true) {
+            int controlIdx = -1;
+            for (int i = start; i < path.length(); i++) {
+                char c = path.charAt(i);
+                if (c == '[' || c == '.') {
+                    controlIdx = i;
+                    break;
+                }
+            }
+            if (controlIdx == -1) {
+                names.add(path.substring(start));
+                indices.add(NO_INDEX);
+                break;
+            }
+            names.add(path.substring(start, controlIdx));
+            if (path.charAt(controlIdx) == '.') {
+                indices.add(NO_INDEX);
+                start = controlIdx + 1;
+                continue;
+            }
+
+            int endBracketIdx = path.indexOf(']', controlIdx);
+            if (endBracketIdx == -1) {
+                throw new IllegalArgumentException("Malformed path (no ending ']'): " + path);
+            }
+            if (endBracketIdx + 1 < path.length() && path.charAt(endBracketIdx + 1) != '.') {
+                throw new IllegalArgumentException(
+                        "Malformed path (']' not followed by '.'): " + path);
+            }
+            int index = Integer.parseInt(path.substring(controlIdx + 1, endBracketIdx));
+            if (index < 0) {
+                throw new IllegalArgumentException("Path index less than 0: " + path);
+            }
+            indices.add(index);
+            if (endBracketIdx + 1 == path.length()) {
+                break;
+            }
+            // Skip the '.' following the ']'.
+            start = endBracketIdx + 2;
+        }
+
+        int[] indexArray = new int[indices.size()];
+        for (int i = 0; i < indexArray.length; i++) {
+            indexArray[i] = indices.get(i);
+        }
+        return new PropertyPath(path, names.toArray(new String[0]), indexArray);
+    }
+
+    /** Returns the number of segments of the path, one per property name. */
+    public int getSegmentCount() {
+        return mNames.length;
+    }
+
+    /** Returns the property name of the given segment. */
+    @NonNull
+    public String getPropertyName(int segment) {
+        return mNames[segment];
+    }
+
+    /** Returns the index of the given segment, or {@link #NO_INDEX} if it isn't indexed. */
+    public int getIndex(int segment) {
+        return mIndices[segment];
+    }
+
+    @Override
+    public boolean equals(@Nullable Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof PropertyPath)) {
+            return false;
+        }
+        return mPath.equals(((PropertyPath) other).mPath);
+    }
+
+    @Override
+    public int hashCode() {
+        return mPath.hashCode();
+    }
+
+    /** Returns the path as it was compiled. */
+    @Override
+    @NonNull
+    public String toString() {
+        return mPath;
+    }
+}
@@ -33,6 +33,7 @@ import java.util.Objects;
 public class SearchResultPage {
     public static final String RESULTS_FIELD = "results";
     public static final String NEXT_PAGE_TOKEN_FIELD = "nextPageToken";
+    public static final String SUMMARIES_FIELD = "summaries";
     private final long mNextPageToken;
 
     @Nullable private List<SearchResult> mResults;
@@ -72,4 +73,14 @@ public class SearchResultPage {
         }
         return mResults;
     }
+
+    /**
+     * Returns the results of this page if it was returned in {@link SearchSpec#RESULT_MODE_IDS} or
+     * {@link SearchSpec#RESULT_MODE_SNIPPETS}, or {@code null} otherwise.
+     */
+    @Nullable
+    public SearchResultSummaries getSummaries() {
+        Bundle summariesBundle = mBundle.getBundle(SUMMARIES_FIELD);
+        return summariesBundle == null ? null : new SearchResultSummaries(summariesBundle);
+    }
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch;
+
+import android.annotation.NonNull;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The results of a page returned in {@link SearchSpec#RESULT_MODE_IDS} or {@link
+ * SearchSpec#RESULT_MODE_SNIPPETS}.
+ *
+ * <p>Rather than one {@link SearchResult} per document, the results are held in parallel arrays
+ * indexed by the position of the result in the page, and no {@link GenericDocument} is ever built.
+ * The matches of all results are held in arrays of their own, in the order of their results.
+ *
+ * @hide
+ */
+public final class SearchResultSummaries {
+    static final String PACKAGE_NAMES_FIELD = "packageNames";
+    static final String DATABASE_NAMES_FIELD = "databaseNames";
+    static final String NAMESPACES_FIELD = "namespaces";
+    static final String IDS_FIELD = "ids";
+    static final String RANKING_SIGNALS_FIELD = "rankingSignals";
+    static final String MATCH_OFFSETS_FIELD = "matchOffsets";
+    static final String MATCH_PROPERTY_PATHS_FIELD = "matchPropertyPaths";
+    static final String EXACT_MATCH_RANGES_FIELD = "exactMatchRanges";
+    static final String SUBMATCH_RANGES_FIELD = "submatchRanges";
+    static final String SNIPPET_RANGES_FIELD = "snippetRanges";
+
+    private static final String[] EMPTY_STRINGS = new String[0];
+    private static final double[] EMPTY_DOUBLES = new double[0];
+    private static final int[] EMPTY_INTS = new int[0];
+
+    @NonNull private final Bundle mBundle;
+    @NonNull private final String[] mPackageNames;
+    @NonNull private final String[] mDatabaseNames;
+    @NonNull private final String[] mNamespaces;
+    @NonNull private final String[] mIds;
+    @NonNull private final double[] mRankingSignals;
+    // The matches of result i are at [mMatchOffsets[i], mMatchOffsets[i + 1]).
+    @NonNull private final int[] mMatchOffsets;
+    @NonNull private final String[] mMatchPropertyPaths;
+    // Ranges are stored as (start, end) pairs.
+    @NonNull private final int[] mExactMatchRanges;
+    @NonNull private final int[] mSubmatchRanges;
+    @NonNull private final int[] mSnippetRanges;
+
+    /** @hide */
+    public SearchResultSummaries(@NonNull Bundle bundle) {
+        mBundle = Objects.requireNonNull(bundle);
+        mPackageNames = getStrings(bundle, PACKAGE_NAMES_FIELD);
+        mDatabaseNames = getStrings(bundle, DATABASE_NAMES_FIELD);
+        mNamespaces = getStrings(bundle, NAMESPACES_FIELD);
+        mIds = getStrings(bundle, IDS_FIELD);
+        double[] rankingSignals = bundle.getDoubleArray(RANKING_SIGNALS_FIELD);
+        mRankingSignals = rankingSignals == null ? EMPTY_DOUBLES : rankingSignals;
+        mMatchOffsets = getInts(bundle, MATCH_OFFSETS_FIELD);
+        mMatchPropertyPaths = getStrings(bundle, MATCH_PROPERTY_PATHS_FIELD);
+        mExactMatchRanges = getInts(bundle, EXACT_MATCH_RANGES_FIELD);
+        mSubmatchRanges = getInts(bundle, SUBMATCH_RANGES_FIELD);
+        mSnippetRanges = getInts(bundle, SNIPPET_RANGES_FIELD);
+    }
+
+    @NonNull
+    private static String[] getStrings(@NonNull Bundle bundle, @NonNull String key) {
+        String[] values = bundle.getStringArray(key);
+        return values == null ? EMPTY_STRINGS : values;
+    }
+
+    @NonNull
+    private static int[] getInts(@NonNull Bundle bundle, @NonNull String key) {
+        int[] values = bundle.getIntArray(key);
+        return values == null ? EMPTY_INTS : values;
+    }
+
+    /**
+     * Returns the {@link Bundle} of this object.
+     *
+     * @hide
+     */
+    @NonNull
+    public Bundle getBundle() {
+        return mBundle;
+    }
+
+    /** Returns the number of results. */
+    public int size() {
+        return mIds.length;
+    }
+
+    /** Returns the IDs of all results, in order. */
+    @NonNull
+    public List<String> getIds() {
+        return Arrays.asList(mIds.clone());
+    }
+
+    /** Returns the package name of the result at the given position. */
+    @NonNull
+    public String getPackageName(int resultIndex) {
+        return mPackageNames[resultIndex];
+    }
+
+    /** Returns the database name of the result at the given position. */
+    @NonNull
+    public String getDatabaseName(int resultIndex) {
+        return mDatabaseNames[resultIndex];
+    }
+
+    /** Returns the namespace of the document of the result at the given position. */
+    @NonNull
+    public String getNamespace(int resultIndex) {
+        return mNamespaces[resultIndex];
+    }
+
+    /** Returns the ID of the document of the result at the given position. */
+    @NonNull
+    public String getId(int resultIndex) {
+        return mIds[resultIndex];
+    }
+
+    /**
+     * Returns the ranking signal of the result at the given position.
+     *
+     * @see SearchResult#getRankingSignal()
+     */
+    public double getRankingSignal(int resultIndex) {
+        return mRankingSignals[resultIndex];
+    }
+
+    /**
+     * Returns the number of matches of the result at the given position.
+     *
+     * <p>This is always 0 in {@link SearchSpec#RESULT_MODE_IDS}.
+     */
+    public int getMatchCount(int resultIndex) {
+        Objects.checkIndex(resultIndex, size());
+        if (mMatchOffsets.length == 0) {
+            return 0;
+        }
+        return mMatchOffsets[resultIndex + 1] - mMatchOffsets[resultIndex];
+    }
+
+    /**
+     * Returns the property path of a match of the result at the given position.
+     *
+     * @see SearchResult.MatchInfo#getPropertyPath()
+     */
+    @NonNull
+    public String getMatchPropertyPath(int resultIndex, int matchIndex) {
+        return mMatchPropertyPaths[getMatchPosition(resultIndex, matchIndex)];
+    }
+
+    /**
+     * Returns the exact match range of a match of the result at the given position.
+     *
+     * @see SearchResult.MatchInfo#getExactMatchRange()
+     */
+    @NonNull
+    public SearchResult.MatchRange getExactMatchRange(int resultIndex, int matchIndex) {
+        return getRange(mExactMatchRanges, getMatchPosition(resultIndex, matchIndex));
+    }
+
+    /**
+     * Returns the submatch range of a match of the result at the given position.
+     *
+     * @see SearchResult.MatchInfo#getSubmatchRange()
+     */
+    @NonNull
+    public SearchResult.MatchRange getSubmatchRange(int resultIndex, int matchIndex) {
+        return getRange(mSubmatchRanges, getMatchPosition(resultIndex, matchIndex));
+    }
+
+    /**
+     * Returns the snippet range of a match of the result at the given position.
+     *
+     * @see SearchResult.MatchInfo#getSnippetRange()
+     */
+    @NonNull
+    public SearchResult.MatchRange getSnippetRange(int resultIndex, int matchIndex) {
+        return getRange(mSnippetRanges, getMatchPosition(resultIndex, matchIndex));
+    }
+
+    private int getMatchPosition(int resultIndex, int matchIndex) {
+        Objects.checkIndex(matchIndex, getMatchCount(resultIndex));
+        return mMatchOffsets[resultIndex] + matchIndex;
+    }
+
+    @NonNull
+    private static SearchResult.MatchRange getRange(@NonNull int[] ranges, int matchPosition) {
+        return new SearchResult.MatchRange(
+                ranges[2 * matchPosition], ranges[2 * matchPosition + 1]);
+    }
+
+    /**
+     * Builder for {@link SearchResultSummaries} objects.
+     *
+     * @hide
+     */
+    public static final class Builder {
+        private final boolean mHasMatches;
+        private final ArrayList<String> mPackageNames = new ArrayList<>();
+        private final ArrayList<String> mDatabaseNames = new ArrayList<>();
+        private final ArrayList<String> mNamespaces = new ArrayList<>();
+        private final ArrayList<String> mIds = new ArrayList<>();
+        private double[] mRankingSignals = EMPTY_DOUBLES;
+        private int[] mMatchOffsets;
+        private final ArrayList<String> mMatchPropertyPaths = new ArrayList<>();
+        private int[] mExactMatchRanges = EMPTY_INTS;
+        private int[] mSubmatchRanges = EMPTY_INTS;
+        private int[] mSnippetRanges = EMPTY_INTS;
+
+        /**
+         * Creates a new {@link Builder}.
+         *
+         * @param hasMatches whether the results hold matches, i.e. whether they were returned in
+         *     {@link SearchSpec#RESULT_MODE_SNIPPETS}.
+         */
+        public Builder(boolean hasMatches) {
+            mHasMatches = hasMatches;
+            mMatchOffsets = hasMatches ? new int[] {0} : EMPTY_INTS;
+        }
+
+        /** Adds a result. Its matches, if any, are added by the following {@link #addMatch}. */
+        @NonNull
+        public Builder addResult(
+                @NonNull String packageName,
+                @NonNull String databaseName,
+                @NonNull String namespace,
+                @NonNull String id,
+                double rankingSignal) {
+            int resultIndex = mIds.size();
+            mPackageNames.add(Objects.requireNonNull(packageName));
+            mDatabaseNames.add(Objects.requireNonNull(databaseName));
+            mNamespaces.add(Objects.requireNonNull(namespace));
+            mIds.add(Objects.requireNonNull(id));
+            if (resultIndex == mRankingSignals.length) {
+                mRankingSignals = Arrays.copyOf(mRankingSignals, Math.max(8, resultIndex * 2));
+            }
+            mRankingSignals[resultIndex] = rankingSignal;
+            if (mHasMatches) {
+                if (resultIndex + 1 == mMatchOffsets.length) {
+                    mMatchOffsets = Arrays.copyOf(mMatchOffsets, Math.max(8, resultIndex * 2 + 2));
+                }
+                mMatchOffsets[resultIndex + 1] = mMatchOffsets[resultIndex];
+            }
+            return this;
+        }
+
+        /** Adds a match to the last result added. */
+        @NonNull
+        public Builder addMatch(
+                @NonNull String propertyPath,
+                @NonNull SearchResult.MatchRange exactMatchRange,
+                @NonNull SearchResult.MatchRange submatchRange,
+                @NonNull SearchResult.MatchRange snippetRange) {
+            if (!mHasMatches) {
+                throw new IllegalStateException("This builder doesn't hold matches");
+            }
+            if (mIds.isEmpty()) {
+                throw new IllegalStateException("No result to add the match to");
+            }
+            int matchPosition = mMatchPropertyPaths.size();
+            mMatchPropertyPaths.add(Objects.requireNonNull(propertyPath));
+            if (2 * matchPosition == mExactMatchRanges.length) {
+                int newLength = Math.max(16, matchPosition * 4);
+                mExactMatchRanges = Arrays.copyOf(mExactMatchRanges, newLength);
+                mSubmatchRanges = Arrays.copyOf(mSubmatchRanges, newLength);
+                mSnippetRanges = Arrays.copyOf(mSnippetRanges, newLength);
+            }
+            putRange(mExactMatchRanges, matchPosition, exactMatchRange);
+            putRange(mSubmatchRanges, matchPosition, submatchRange);
+            putRange(mSnippetRanges, matchPosition, snippetRange);
+            mMatchOffsets[mIds.size()]++;
+            return this;
+        }
+
+        private static void putRange(
+                @NonNull int[] ranges, int matchPosition, @NonNull SearchResult.MatchRange range) {
+            ranges[2 * matchPosition] = range.getStart();
+            ranges[2 * matchPosition + 1] = range.getEnd();
+        }
+
+        /** Constructs a new {@link SearchResultSummaries} from the contents of this builder. */
+        @NonNull
+        public SearchResultSummaries build() {
+            int resultCount = mIds.size();
+            int matchCount = mMatchPropertyPaths.size();
+            Bundle bundle = new Bundle();
+            bundle.putStringArray(PACKAGE_NAMES_FIELD, mPackageNames.toArray(EMPTY_STRINGS));
+            bundle.putStringArray(DATABASE_NAMES_FIELD, mDatabaseNames.toArray(EMPTY_STRINGS));
+            bundle.putStringArray(NAMESPACES_FIELD, mNamespaces.toArray(EMPTY_STRINGS));
+            bundle.putStringArray(IDS_FIELD, mIds.toArray(EMPTY_STRINGS));
+            bundle.putDoubleArray(
+                    RANKING_SIGNALS_FIELD, Arrays.copyOf(mRankingSignals, resultCount));
+            if (mHasMatches) {
+                bundle.putIntArray(
+                        MATCH_OFFSETS_FIELD, Arrays.copyOf(mMatchOffsets, resultCount + 1));
+                bundle.putStringArray(
+                        MATCH_PROPERTY_PATHS_FIELD, mMatchPropertyPaths.toArray(EMPTY_STRINGS));
+                bundle.putIntArray(
+                        EXACT_MATCH_RANGES_FIELD, Arrays.copyOf(mExactMatchRanges, 2 * matchCount));
+                bundle.putIntArray(
+                        SUBMATCH_RANGES_FIELD, Arrays.copyOf(mSubmatchRanges, 2 * matchCount));
+                bundle.putIntArray(
+                        SNIPPET_RANGES_FIELD, Arrays.copyOf(mSnippetRanges, 2 * matchCount));
+            }
+            return new SearchResultSummaries(bundle);
+        }
+    }
+}
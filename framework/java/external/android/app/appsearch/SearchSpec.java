@@ -62,6 +62,7 @@ public final class SearchSpec {
     static final String PROJECTION_TYPE_PROPERTY_PATHS_FIELD = "projectionTypeFieldMasks";
     static final String RESULT_GROUPING_TYPE_FLAGS = "resultGroupingTypeFlags";
     static final String RESULT_GROUPING_LIMIT = "resultGroupingLimit";
+    static final String RESULT_MODE_FIELD = "resultMode";
 
     /** @hide */
     public static final int DEFAULT_NUM_PER_PAGE = 10;
@@ -173,6 +174,41 @@ public final class SearchSpec {
      */
     public static final int GROUPING_TYPE_PER_NAMESPACE = 0b10;
 
+    /**
+     * What each search result holds.
+     *
+     * @hide
+     */
+    @IntDef(value = {RESULT_MODE_DOCUMENTS, RESULT_MODE_IDS, RESULT_MODE_SNIPPETS})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface ResultMode {}
+
+    /**
+     * Search results are returned as {@link SearchResult}s holding their {@link GenericDocument}.
+     *
+     * @hide
+     */
+    public static final int RESULT_MODE_DOCUMENTS = 0;
+    /**
+     * Search results are returned as {@link SearchResultSummaries} holding the package, database,
+     * namespace, ID and ranking signal of each document, without any {@link GenericDocument}.
+     *
+     * <p>Projections are ignored and no snippets are generated.
+     *
+     * @hide
+     */
+    public static final int RESULT_MODE_IDS = 1;
+    /**
+     * Search results are returned as {@link SearchResultSummaries} holding what {@link
+     * #RESULT_MODE_IDS} does, plus the property path and ranges of each snippet, without any
+     * {@link GenericDocument}.
+     *
+     * <p>Projections are ignored.
+     *
+     * @hide
+     */
+    public static final int RESULT_MODE_SNIPPETS = 2;
+
     private final Bundle mBundle;
 
     /** @hide */
@@ -309,6 +345,15 @@ public final class SearchSpec {
         return mBundle.getInt(RESULT_GROUPING_LIMIT, Integer.MAX_VALUE);
     }
 
+    /**
+     * Returns what each search result holds.
+     *
+     * @hide
+     */
+    public @ResultMode int getResultMode() {
+        return mBundle.getInt(RESULT_MODE_FIELD, RESULT_MODE_DOCUMENTS);
+    }
+
     /** Builder for {@link SearchSpec objects}. */
     public static final class Builder {
         private ArrayList<String> mSchemas = new ArrayList<>();
@@ -325,6 +370,7 @@ public final class SearchSpec {
         private @Order int mOrder = ORDER_DESCENDING;
         private @GroupingType int mGroupingTypeFlags = 0;
         private int mGroupingLimit = 0;
+        private @ResultMode int mResultMode = RESULT_MODE_DOCUMENTS;
         private boolean mBuilt = false;
 
         /**
@@ -642,6 +688,25 @@ public final class SearchSpec {
             return this;
         }
 
+        /**
+         * Sets what each search result holds.
+         *
+         * <p>The default is {@link #RESULT_MODE_DOCUMENTS}. Callers that only need to know which
+         * documents matched can use {@link #RESULT_MODE_IDS} or {@link #RESULT_MODE_SNIPPETS},
+         * which skip building and sending the documents and have their results read with {@link
+         * android.app.appsearch.SearchResults#getNextPageSummaries}.
+         *
+         * @hide
+         */
+        @NonNull
+        public Builder setResultMode(@ResultMode int resultMode) {
+            Preconditions.checkArgumentInRange(
+                    resultMode, RESULT_MODE_DOCUMENTS, RESULT_MODE_SNIPPETS, "Result mode");
+            resetIfBuilt();
+            mResultMode = resultMode;
+            return this;
+        }
+
         /** Constructs a new {@link SearchSpec} from the contents of this builder. */
         @NonNull
         public SearchSpec build() {
@@ -659,6 +724,7 @@ public final class SearchSpec {
             bundle.putInt(ORDER_FIELD, mOrder);
             bundle.putInt(RESULT_GROUPING_TYPE_FLAGS, mGroupingTypeFlags);
             bundle.putInt(RESULT_GROUPING_LIMIT, mGroupingLimit);
+            bundle.putInt(RESULT_MODE_FIELD, mResultMode);
             mBuilt = true;
             return new SearchSpec(bundle);
         }
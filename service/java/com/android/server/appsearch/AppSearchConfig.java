@@ -44,6 +44,13 @@ public interface AppSearchConfig extends AutoCloseable {
     int DEFAULT_BYTES_OPTIMIZE_THRESHOLD = 1 * 1024 * 1024; // 1 MiB
     int DEFAULT_TIME_OPTIMIZE_THRESHOLD_MILLIS = Integer.MAX_VALUE;
     int DEFAULT_DOC_COUNT_OPTIMIZE_THRESHOLD = 10_000;
+    boolean DEFAULT_INIT_SNAPSHOT_ENABLED = false;
+    boolean DEFAULT_USER_INSTANCE_WARM_UP_ENABLED = false;
+    int DEFAULT_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE = 100;
+    long DEFAULT_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS = 60 * 60 * 1000L; // 1 hour
+    long DEFAULT_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES = 0; // Disabled
+    int DEFAULT_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT = 1; // Disabled
+    int DEFAULT_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT = 10_000;
 
     /** Returns cached value for minTimeIntervalBetweenSamplesMillis. */
     long getCachedMinTimeIntervalBetweenSamplesMillis();
@@ -128,6 +135,45 @@ public interface AppSearchConfig extends AutoCloseable {
      */
     int getCachedDocCountOptimizeThreshold();
 
+    /**
+     * Returns whether AppSearch persists a snapshot of its in-memory maps on every full persist,
+     * and restores them from that snapshot on the next initialization instead of reading them from
+     * Icing.
+     */
+    boolean getCachedInitSnapshotEnabled();
+
+    /**
+     * Returns whether AppSearch starts initializing a user's instance in the background as soon as
+     * the user is unlocked, instead of waiting for the first client call.
+     */
+    boolean getCachedUserInstanceWarmUpEnabled();
+
+    /** Returns the maximum number of next-page tokens a single package may hold at once. */
+    int getCachedLimitConfigMaxNextPageTokenCountPerPackage();
+
+    /**
+     * Returns how long, in milliseconds, a next-page token may go unused before it is invalidated.
+     */
+    long getCachedLimitConfigNextPageTokenTtlMillis();
+
+    /**
+     * Returns the maximum number of bytes of search results cached for repeated queries, or 0 if
+     * they aren't cached.
+     */
+    long getCachedLimitConfigQueryResultCacheMaxBytes();
+
+    /**
+     * Returns the number of shards a global query's packages are split into, or 1 if they are
+     * searched at once.
+     */
+    int getCachedLimitConfigGlobalQueryShardCount();
+
+    /**
+     * Returns the maximum number of distinct document IDs per namespace and schema type sent to an
+     * observer along with the other changes of a dispatch, above which they are sent separately.
+     */
+    int getCachedLimitConfigMaxPendingObserverDocumentIdCount();
+
     /**
      * Closes this {@link AppSearchConfig}.
      *
@@ -21,8 +21,10 @@ import static android.os.Process.INVALID_UID;
 import static com.android.server.appsearch.util.ServiceImplHelper.invokeCallbackOnError;
 import static com.android.server.appsearch.util.ServiceImplHelper.invokeCallbackOnResult;
 
+import android.Manifest;
 import android.annotation.ElapsedRealtimeLong;
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.annotation.WorkerThread;
 import android.app.appsearch.AppSearchBatchResult;
 import android.app.appsearch.AppSearchMigrationHelper;
@@ -36,6 +38,7 @@ import android.app.appsearch.SetSchemaResponse;
 import android.app.appsearch.StorageInfo;
 import android.app.appsearch.VisibilityDocument;
 import android.app.appsearch.aidl.AppSearchResultParcel;
+import android.app.appsearch.aidl.CompactSearchResultPage;
 import android.app.appsearch.aidl.IAppSearchBatchResultCallback;
 import android.app.appsearch.aidl.IAppSearchManager;
 import android.app.appsearch.aidl.IAppSearchObserverProxy;
@@ -61,7 +64,9 @@ import android.util.Log;
 
 import com.android.server.LocalManagerRegistry;
 import com.android.server.SystemService;
+import com.android.server.appsearch.external.localstorage.AppSearchImpl;
 import com.android.server.appsearch.external.localstorage.stats.CallStats;
+import com.android.server.appsearch.external.localstorage.stats.LatencyHistogram;
 import com.android.server.appsearch.external.localstorage.stats.OptimizeStats;
 import com.android.server.appsearch.external.localstorage.visibilitystore.VisibilityStore;
 import com.android.server.appsearch.observer.AppSearchObserverProxy;
@@ -77,14 +82,17 @@ import com.google.android.icing.proto.PersistType;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The main service implementation which contains AppSearch's platform functionality.
@@ -103,6 +111,16 @@ public class AppSearchManagerService extends SystemService {
      */
     private static final Executor SHARED_EXECUTOR = ExecutorManager.createDefaultExecutorService();
 
+    /**
+     * A background-priority executor that warms up user instances as soon as their user is
+     * unlocked, before any client asks for them.
+     *
+     * <p>A client call waiting for a warm-up raises the priority of its thread to its own, see
+     * {@link AppSearchUserInstanceManager#getOrCreateUserInstance}.
+     */
+    private static final Executor WARM_UP_EXECUTOR =
+            ExecutorManager.createBackgroundExecutorService();
+
     private final Context mContext;
     private final ExecutorManager mExecutorManager = new ExecutorManager();
 
@@ -234,30 +252,57 @@ public class AppSearchManagerService extends SystemService {
         Objects.requireNonNull(user);
         UserHandle userHandle = user.getUserHandle();
         mServiceImplHelper.setUserIsLocked(userHandle, false);
-        mExecutorManager.getOrCreateUserExecutor(userHandle).execute(() -> {
-            try {
-                // Only clear the package's data if AppSearch exists for this user.
-                if (AppSearchModule.getAppSearchDir(userHandle).exists()) {
-                    Context userContext = mContext.createContextAsUser(userHandle, /*flags=*/ 0);
-                    AppSearchUserInstance instance =
-                            mAppSearchUserInstanceManager.getOrCreateUserInstance(
-                                    userContext,
-                                    userHandle,
-                                    FrameworkAppSearchConfig.getInstance(SHARED_EXECUTOR));
-                    List<PackageInfo> installedPackageInfos = userContext
-                            .getPackageManager()
-                            .getInstalledPackages(/*flags=*/0);
-                    Set<String> packagesToKeep = new ArraySet<>(installedPackageInfos.size());
-                    for (int i = 0; i < installedPackageInfos.size(); i++) {
-                        packagesToKeep.add(installedPackageInfos.get(i).packageName);
-                    }
-                    packagesToKeep.add(VisibilityStore.VISIBILITY_PACKAGE_NAME);
-                    instance.getAppSearchImpl().prunePackageData(packagesToKeep);
+        AppSearchConfig config = FrameworkAppSearchConfig.getInstance(SHARED_EXECUTOR);
+        if (config.getCachedUserInstanceWarmUpEnabled()
+                && AppSearchModule.getAppSearchDir(userHandle).exists()) {
+            // Start initializing Icing right away, off the user executor, so the first client call
+            // attaches to an initialization that's already underway. Pruning is queued after it,
+            // so that calls arriving in the meantime don't wait for it as well.
+            Context userContext = mContext.createContextAsUser(userHandle, /*flags=*/ 0);
+            Executor userExecutor = mExecutorManager.getOrCreateUserExecutor(userHandle);
+            mAppSearchUserInstanceManager
+                    .warmUpUserInstanceAsync(userContext, userHandle, config, WARM_UP_EXECUTOR)
+                    .whenComplete((instance, t) -> {
+                        if (t != null) {
+                            Log.e(TAG, "Unable to warm up AppSearch for " + user, t);
+                            return;
+                        }
+                        try {
+                            userExecutor.execute(() -> pruneUninstalledPackages(user));
+                        } catch (RejectedExecutionException e) {
+                            // The user was stopped before we got to prune.
+                        }
+                    });
+            return;
+        }
+        mExecutorManager.getOrCreateUserExecutor(userHandle).execute(
+                () -> pruneUninstalledPackages(user));
+    }
+
+    private void pruneUninstalledPackages(@NonNull TargetUser user) {
+        UserHandle userHandle = user.getUserHandle();
+        try {
+            // Only clear the package's data if AppSearch exists for this user.
+            if (AppSearchModule.getAppSearchDir(userHandle).exists()) {
+                Context userContext = mContext.createContextAsUser(userHandle, /*flags=*/ 0);
+                AppSearchUserInstance instance =
+                        mAppSearchUserInstanceManager.getOrCreateUserInstance(
+                                userContext,
+                                userHandle,
+                                FrameworkAppSearchConfig.getInstance(SHARED_EXECUTOR));
+                List<PackageInfo> installedPackageInfos = userContext
+                        .getPackageManager()
+                        .getInstalledPackages(/*flags=*/0);
+                Set<String> packagesToKeep = new ArraySet<>(installedPackageInfos.size());
+                for (int i = 0; i < installedPackageInfos.size(); i++) {
+                    packagesToKeep.add(installedPackageInfos.get(i).packageName);
                 }
-            } catch (Throwable t) {
-                Log.e(TAG, "Unable to prune packages for " + user, t);
+                packagesToKeep.add(VisibilityStore.VISIBILITY_PACKAGE_NAME);
+                instance.getAppSearchImpl().prunePackageData(packagesToKeep);
             }
-        });
+        } catch (Throwable t) {
+            Log.e(TAG, "Unable to prune packages for " + user, t);
+        }
     }
 
     @Override
@@ -460,9 +505,11 @@ public class AppSearchManagerService extends SystemService {
             UserHandle targetUser = mServiceImplHelper.verifyIncomingCallWithCallback(
                     callerAttributionSource, userHandle, callback);
             if (targetUser == null) {
+                documentsParcel.close();
                 return;  // Verification failed; verifyIncomingCall triggered callback.
             }
-            mServiceImplHelper.executeLambdaForUserAsync(targetUser, callback, () -> {
+            boolean scheduled = mServiceImplHelper.executeLambdaForUserAsync(
+                    targetUser, callback, () -> {
                 @AppSearchResult.ResultCode int statusCode = AppSearchResult.RESULT_OK;
                 AppSearchUserInstance instance = null;
                 int operationSuccessCount = 0;
@@ -472,35 +519,42 @@ public class AppSearchManagerService extends SystemService {
                             new AppSearchBatchResult.Builder<>();
                     instance = mAppSearchUserInstanceManager.getUserInstance(targetUser);
                     List<GenericDocument> documents = documentsParcel.getDocuments();
-                    for (int i = 0; i < documents.size(); i++) {
-                        GenericDocument document = documents.get(i);
-                        try {
-                            instance.getAppSearchImpl().putDocument(
-                                    callerAttributionSource.getPackageName(),
-                                    databaseName,
-                                    document,
-                                    /*sendChangeNotifications=*/ true,
-                                    instance.getLogger());
-                            resultBuilder.setSuccess(document.getId(), /*value=*/ null);
-                            ++operationSuccessCount;
-                        } catch (Throwable t) {
-                            resultBuilder.setResult(document.getId(), throwableToFailedResult(t));
-                            AppSearchResult<Void> result = throwableToFailedResult(t);
-                            resultBuilder.setResult(document.getId(), result);
-                            // Since we can only include one status code in the atom,
-                            // for failures, we would just save the one for the last failure
-                            statusCode = result.getResultCode();
-                            ++operationFailureCount;
+                    try {
+                        for (int i = 0; i < documents.size(); i++) {
+                            // The documents were checked when the parcel was read, so this only
+                            // fails if the caller changed them since.
+                            GenericDocument document = documents.get(i);
+                            try {
+                                instance.getAppSearchImpl().putDocument(
+                                        callerAttributionSource.getPackageName(),
+                                        databaseName,
+                                        document,
+                                        /*sendChangeNotifications=*/ true,
+                                        instance.getLogger());
+                                resultBuilder.setSuccess(document.getId(), /*value=*/ null);
+                                ++operationSuccessCount;
+                            } catch (Throwable t) {
+                                resultBuilder.setResult(
+                                        document.getId(), throwableToFailedResult(t));
+                                AppSearchResult<Void> result = throwableToFailedResult(t);
+                                resultBuilder.setResult(document.getId(), result);
+                                // Since we can only include one status code in the atom,
+                                // for failures, we would just save the one for the last failure
+                                statusCode = result.getResultCode();
+                                ++operationFailureCount;
+                            }
                         }
+                    } finally {
+                        // Persist and notify about the documents written, even if the rest of the
+                        // batch couldn't be read.
+                        instance.getAppSearchImpl().persistToDisk(PersistType.Code.LITE);
+
+                        // Schedule a task to dispatch change notifications. See requirements for
+                        // where the method is called documented in the method description.
+                        dispatchChangeNotifications(instance);
                     }
-                    // Now that the batch has been written. Persist the newly written data.
-                    instance.getAppSearchImpl().persistToDisk(PersistType.Code.LITE);
                     invokeCallbackOnResult(callback, resultBuilder.build());
 
-                    // Schedule a task to dispatch change notifications. See requirements for where
-                    // the method is called documented in the method description.
-                    dispatchChangeNotifications(instance);
-
                     // The existing documents with same ID will be deleted, so there may be some
                     // resources that could be released after optimize().
                     checkForOptimize(
@@ -510,6 +564,8 @@ public class AppSearchManagerService extends SystemService {
                     statusCode = throwableToFailedResult(t).getResultCode();
                     invokeCallbackOnError(callback, t);
                 } finally {
+                    // Release the shared memory the documents may have been sent in.
+                    documentsParcel.close();
                     if (instance != null) {
                         int estimatedBinderLatencyMillis =
                                 2 * (int) (totalLatencyStartTimeMillis - binderCallStartTimeMillis);
@@ -531,6 +587,10 @@ public class AppSearchManagerService extends SystemService {
                     }
                 }
             });
+            if (!scheduled) {
+                // The lambda will never run, so release the shared memory here instead.
+                documentsParcel.close();
+            }
         }
 
         @Override
@@ -570,37 +630,41 @@ public class AppSearchManagerService extends SystemService {
                     AppSearchBatchResult.Builder<String, Bundle> resultBuilder =
                             new AppSearchBatchResult.Builder<>();
                     instance = mAppSearchUserInstanceManager.getUserInstance(targetUser);
-                    for (int i = 0; i < ids.size(); i++) {
-                        String id = ids.get(i);
-                        try {
-                            GenericDocument document;
-                            if (global) {
-                                boolean callerHasSystemAccess = instance.getVisibilityChecker()
-                                        .doesCallerHaveSystemAccess(callerAttributionSource
-                                                .getPackageName());
-                                document = instance.getAppSearchImpl().globalGetDocument(
-                                        targetPackageName,
-                                        databaseName,
-                                        namespace,
-                                        id,
-                                        typePropertyPaths,
-                                        new FrameworkCallerAccess(callerAttributionSource,
-                                                callerHasSystemAccess));
-                            } else {
-                                document = instance.getAppSearchImpl().getDocument(
-                                        targetPackageName,
-                                        databaseName,
-                                        namespace,
-                                        id,
-                                        typePropertyPaths);
-                            }
+                    // The whole batch is read under one lock, with the projection and the
+                    // visibility of each schema type only resolved once.
+                    AppSearchBatchResult<String, GenericDocument> documents;
+                    if (global) {
+                        boolean callerHasSystemAccess = instance.getVisibilityChecker()
+                                .doesCallerHaveSystemAccess(callerAttributionSource
+                                        .getPackageName());
+                        documents = instance.getAppSearchImpl().globalGetDocuments(
+                                targetPackageName,
+                                databaseName,
+                                namespace,
+                                ids,
+                                typePropertyPaths,
+                                new FrameworkCallerAccess(callerAttributionSource,
+                                        callerHasSystemAccess));
+                    } else {
+                        documents = instance.getAppSearchImpl().getDocuments(
+                                targetPackageName,
+                                databaseName,
+                                namespace,
+                                ids,
+                                typePropertyPaths);
+                    }
+                    for (Map.Entry<String, AppSearchResult<GenericDocument>> entry :
+                            documents.getAll().entrySet()) {
+                        AppSearchResult<GenericDocument> result = entry.getValue();
+                        if (result.isSuccess()) {
                             ++operationSuccessCount;
-                            resultBuilder.setSuccess(id, document.getBundle());
-                        } catch (Throwable t) {
+                            resultBuilder.setSuccess(
+                                    entry.getKey(), result.getResultValue().getBundle());
+                        } else {
                             // Since we can only include one status code in the atom,
                             // for failures, we would just save the one for the last failure
-                            AppSearchResult<Bundle> result = throwableToFailedResult(t);
-                            resultBuilder.setResult(id, result);
+                            resultBuilder.setResult(
+                                    entry.getKey(), AppSearchResult.newFailedResult(result));
                             statusCode = result.getResultCode();
                             ++operationFailureCount;
                         }
@@ -645,6 +709,8 @@ public class AppSearchManagerService extends SystemService {
                 @NonNull Bundle searchSpecBundle,
                 @NonNull UserHandle userHandle,
                 @ElapsedRealtimeLong long binderCallStartTimeMillis,
+                long queryId,
+                @ElapsedRealtimeLong long deadlineMillis,
                 @NonNull IAppSearchResultCallback callback) {
             Objects.requireNonNull(callerAttributionSource);
             Objects.requireNonNull(databaseName);
@@ -659,7 +725,8 @@ public class AppSearchManagerService extends SystemService {
             if (targetUser == null) {
                 return;  // Verification failed; verifyIncomingCall triggered callback.
             }
-            mServiceImplHelper.executeLambdaForUserAsync(targetUser, callback, () -> {
+            mServiceImplHelper.executeLambdaForUserAsync(targetUser, callback, queryId,
+                    deadlineMillis, cancellationSignal -> {
                 @AppSearchResult.ResultCode int statusCode = AppSearchResult.RESULT_OK;
                 AppSearchUserInstance instance = null;
                 int operationSuccessCount = 0;
@@ -671,11 +738,13 @@ public class AppSearchManagerService extends SystemService {
                             databaseName,
                             queryExpression,
                             new SearchSpec(searchSpecBundle),
+                            cancellationSignal,
                             instance.getLogger());
                     ++operationSuccessCount;
                     invokeCallbackOnResult(
                             callback,
-                            AppSearchResult.newSuccessfulResult(searchResultPage.getBundle()));
+                            AppSearchResult.newSuccessfulResult(
+                                    CompactSearchResultPage.toBundle(searchResultPage)));
                 } catch (Throwable t) {
                     ++operationFailureCount;
                     statusCode = throwableToFailedResult(t).getResultCode();
@@ -711,6 +780,8 @@ public class AppSearchManagerService extends SystemService {
                 @NonNull Bundle searchSpecBundle,
                 @NonNull UserHandle userHandle,
                 @ElapsedRealtimeLong long binderCallStartTimeMillis,
+                long queryId,
+                @ElapsedRealtimeLong long deadlineMillis,
                 @NonNull IAppSearchResultCallback callback) {
             Objects.requireNonNull(callerAttributionSource);
             Objects.requireNonNull(queryExpression);
@@ -724,7 +795,8 @@ public class AppSearchManagerService extends SystemService {
             if (targetUser == null) {
                 return;  // Verification failed; verifyIncomingCall triggered callback.
             }
-            mServiceImplHelper.executeLambdaForUserAsync(targetUser, callback, () -> {
+            mServiceImplHelper.executeLambdaForUserAsync(targetUser, callback, queryId,
+                    deadlineMillis, cancellationSignal -> {
                 @AppSearchResult.ResultCode int statusCode = AppSearchResult.RESULT_OK;
                 AppSearchUserInstance instance = null;
                 int operationSuccessCount = 0;
@@ -740,11 +812,13 @@ public class AppSearchManagerService extends SystemService {
                             new SearchSpec(searchSpecBundle),
                             new FrameworkCallerAccess(callerAttributionSource,
                                     callerHasSystemAccess),
+                            cancellationSignal,
                             instance.getLogger());
                     ++operationSuccessCount;
                     invokeCallbackOnResult(
                             callback,
-                            AppSearchResult.newSuccessfulResult(searchResultPage.getBundle()));
+                            AppSearchResult.newSuccessfulResult(
+                                    CompactSearchResultPage.toBundle(searchResultPage)));
                 } catch (Throwable t) {
                     ++operationFailureCount;
                     statusCode = throwableToFailedResult(t).getResultCode();
@@ -798,13 +872,31 @@ public class AppSearchManagerService extends SystemService {
                                     /*statsBuilder=*/ null);
                     invokeCallbackOnResult(
                             callback,
-                            AppSearchResult.newSuccessfulResult(searchResultPage.getBundle()));
+                            AppSearchResult.newSuccessfulResult(
+                                    CompactSearchResultPage.toBundle(searchResultPage)));
                 } catch (Throwable t) {
                     invokeCallbackOnResult(callback, throwableToFailedResult(t));
                 }
             });
         }
 
+        @Override
+        public void cancelQuery(
+                @NonNull AttributionSource callerAttributionSource,
+                long queryId,
+                @NonNull UserHandle userHandle) {
+            Objects.requireNonNull(callerAttributionSource);
+            Objects.requireNonNull(userHandle);
+
+            // Queries are keyed by the calling UID, so a caller can only cancel its own. The call
+            // doesn't go through the user's executor, where it would wait behind the query.
+            try {
+                mServiceImplHelper.cancelCall(queryId);
+            } catch (Throwable t) {
+                Log.e(TAG, "Unable to cancel the query", t);
+            }
+        }
+
         @Override
         public void invalidateNextPageToken(
                 @NonNull AttributionSource callerAttributionSource,
@@ -1032,23 +1124,18 @@ public class AppSearchManagerService extends SystemService {
                 int operationSuccessCount = 0;
                 int operationFailureCount = 0;
                 try {
-                    AppSearchBatchResult.Builder<String, Void> resultBuilder =
-                            new AppSearchBatchResult.Builder<>();
                     instance = mAppSearchUserInstanceManager.getUserInstance(targetUser);
-                    for (int i = 0; i < ids.size(); i++) {
-                        String id = ids.get(i);
-                        try {
-                            instance.getAppSearchImpl().remove(
+                    // The whole batch is removed under one write lock.
+                    AppSearchBatchResult<String, Void> batchResult =
+                            instance.getAppSearchImpl().removeDocuments(
                                     callerAttributionSource.getPackageName(),
                                     databaseName,
                                     namespace,
-                                    id,
-                                    /*removeStatsBuilder=*/ null);
+                                    ids);
+                    for (AppSearchResult<Void> result : batchResult.getAll().values()) {
+                        if (result.isSuccess()) {
                             ++operationSuccessCount;
-                            resultBuilder.setSuccess(id, /*result= */ null);
-                        } catch (Throwable t) {
-                            AppSearchResult<Void> result = throwableToFailedResult(t);
-                            resultBuilder.setResult(id, result);
+                        } else {
                             // Since we can only include one status code in the atom,
                             // for failures, we would just save the one for the last failure
                             statusCode = result.getResultCode();
@@ -1057,7 +1144,7 @@ public class AppSearchManagerService extends SystemService {
                     }
                     // Now that the batch has been written. Persist the newly written data.
                     instance.getAppSearchImpl().persistToDisk(PersistType.Code.LITE);
-                    invokeCallbackOnResult(callback, resultBuilder.build());
+                    invokeCallbackOnResult(callback, batchResult);
 
                     // Schedule a task to dispatch change notifications. See requirements for where
                     // the method is called documented in the method description.
@@ -1389,6 +1476,73 @@ public class AppSearchManagerService extends SystemService {
                 }
             });
         }
+
+        @Override
+        protected void dump(
+                @NonNull FileDescriptor fd, @NonNull PrintWriter pw, @Nullable String[] args) {
+            if (mContext.checkCallingOrSelfPermission(Manifest.permission.DUMP)
+                    != PackageManager.PERMISSION_GRANTED) {
+                pw.println("Permission Denial: can't dump AppSearch from pid="
+                        + Binder.getCallingPid() + ", uid=" + Binder.getCallingUid());
+                return;
+            }
+            boolean reset = args != null && args.length > 0 && "reset".equals(args[0]);
+            if (!reset) {
+                // These users have no instance to dump yet, only their progress.
+                List<UserHandle> initializingUserHandles =
+                        mAppSearchUserInstanceManager.getInitializingUserHandles();
+                for (int i = 0; i < initializingUserHandles.size(); i++) {
+                    UserHandle userHandle = initializingUserHandles.get(i);
+                    pw.println("User " + userHandle.getIdentifier() + ":");
+                    pw.println("  State: " + AppSearchUserInstanceManager.userInstanceStateToString(
+                            mAppSearchUserInstanceManager.getUserInstanceState(userHandle)));
+                }
+            }
+            List<UserHandle> userHandles = mAppSearchUserInstanceManager.getAllUserHandles();
+            for (int i = 0; i < userHandles.size(); i++) {
+                UserHandle userHandle = userHandles.get(i);
+                AppSearchUserInstance instance =
+                        mAppSearchUserInstanceManager.getUserInstanceOrNull(userHandle);
+                if (instance == null) {
+                    continue;
+                }
+                AppSearchImpl impl = instance.getAppSearchImpl();
+                LatencyHistogram queueDelayHistogram =
+                        mExecutorManager.getUserQueueDelayHistogram(userHandle);
+                if (reset) {
+                    instance.getLogger().getLatencyTracker().reset();
+                    impl.getReadLockWaitHistogram().reset();
+                    impl.getWriteLockWaitHistogram().reset();
+                    if (queueDelayHistogram != null) {
+                        queueDelayHistogram.reset();
+                    }
+                    continue;
+                }
+                pw.println("User " + userHandle.getIdentifier() + ":");
+                pw.println("  State: " + AppSearchUserInstanceManager.userInstanceStateToString(
+                        mAppSearchUserInstanceManager.getUserInstanceState(userHandle)));
+                pw.println("  Next-page tokens: " + impl.getNextPageTokenCount()
+                        + " (evicted " + impl.getEvictedNextPageTokenCount() + ")");
+                pw.println("  Queries cancelled while running: "
+                        + impl.getCancelledQueryCount());
+                pw.println("  Executor queue depth: "
+                        + mExecutorManager.getUserQueueDepth(userHandle));
+                if (queueDelayHistogram != null) {
+                    pw.println("  Executor queue delay (ms): " + queueDelayHistogram);
+                }
+                pw.println("  Read lock wait (ms): "
+                        + impl.getReadLockWaitHistogram());
+                pw.println("  Write lock wait (ms): "
+                        + impl.getWriteLockWaitHistogram());
+                instance.getLogger().getLatencyTracker().dump(pw, "  ");
+            }
+            if (reset) {
+                pw.println("AppSearch latency histograms reset.");
+            } else {
+                pw.println("Queries dropped before running: "
+                        + mServiceImplHelper.getDroppedCancelledCallCount());
+            }
+        }
     }
 
     private class AppSearchStorageStatsAugmenter implements StorageStatsAugmenter {
@@ -16,26 +16,38 @@
 
 package com.android.server.appsearch;
 
+import android.annotation.IntDef;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
+import android.app.appsearch.AppSearchResult;
 import android.app.appsearch.exceptions.AppSearchException;
 import android.content.Context;
+import android.os.Process;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.appsearch.external.localstorage.AppSearchImpl;
 import com.android.server.appsearch.external.localstorage.stats.InitializeStats;
 import com.android.server.appsearch.stats.PlatformLogger;
 import com.android.server.appsearch.visibilitystore.VisibilityCheckerImpl;
 
 import java.io.File;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Manages the lifecycle of AppSearch classes that should only be initialized once per device-user
@@ -46,14 +58,73 @@ import java.util.Objects;
 public final class AppSearchUserInstanceManager {
     private static final String TAG = "AppSearchUserInstanceMa";
 
+    /** Initialization states of a user's {@link AppSearchUserInstance}. */
+    @IntDef(
+            value = {
+                    USER_INSTANCE_STATE_NONE,
+                    USER_INSTANCE_STATE_INITIALIZING,
+                    USER_INSTANCE_STATE_READY,
+            })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface UserInstanceState {}
+
+    /** No instance exists for the user, and none is being created. */
+    public static final int USER_INSTANCE_STATE_NONE = 0;
+    /** An instance is being created for the user, e.g. by a background warm-up. */
+    public static final int USER_INSTANCE_STATE_INITIALIZING = 1;
+    /** The user's instance is initialized and ready to serve calls. */
+    public static final int USER_INSTANCE_STATE_READY = 2;
+
+    /**
+     * How long {@link #closeAndRemoveUserInstance} waits for an instance being created to be
+     * closed. Past it, the creating thread still closes the instance once it's done.
+     */
+    private static final long CLOSE_PENDING_INSTANCE_TIMEOUT_MILLIS = 10_000;
+
     private static volatile AppSearchUserInstanceManager sAppSearchUserInstanceManager;
 
+    /** Creates the {@link AppSearchUserInstance} of a user. */
+    @VisibleForTesting
+    interface UserInstanceFactory {
+        @NonNull
+        AppSearchUserInstance create(
+                @NonNull Context userContext,
+                @NonNull UserHandle userHandle,
+                @NonNull AppSearchConfig config)
+                throws AppSearchException;
+    }
+
+    /** An instance that is still being created, and the thread creating it. */
+    private static final class PendingUserInstance {
+        final CompletableFuture<AppSearchUserInstance> mFuture = new CompletableFuture<>();
+        // The tid of the thread creating the instance, or 0 while none is.
+        int mCreatingTid = 0;
+        // The highest priority, i.e. the lowest nice value, of the threads waiting for the
+        // instance, which the creating thread is boosted to.
+        int mWaiterPriority = Integer.MAX_VALUE;
+    }
+
+    private final UserInstanceFactory mUserInstanceFactory;
+
     @GuardedBy("mInstancesLocked")
     private final Map<UserHandle, AppSearchUserInstance> mInstancesLocked = new ArrayMap<>();
+    /**
+     * Instances that are still being created. Callers that need one of these users' instance wait
+     * on its future instead of initializing Icing a second time.
+     */
+    @GuardedBy("mInstancesLocked")
+    private final Map<UserHandle, PendingUserInstance> mPendingInstancesLocked = new ArrayMap<>();
     @GuardedBy("mStorageInfoLocked")
     private final Map<UserHandle, UserStorageInfo> mStorageInfoLocked = new ArrayMap<>();
 
-    private AppSearchUserInstanceManager() {}
+    private AppSearchUserInstanceManager() {
+        mUserInstanceFactory = this::createUserInstance;
+    }
+
+    @VisibleForTesting
+    AppSearchUserInstanceManager(@NonNull UserInstanceFactory userInstanceFactory) {
+        mUserInstanceFactory = Objects.requireNonNull(userInstanceFactory);
+    }
 
     /**
      * Gets an instance of AppSearchUserInstanceManager to be used.
@@ -77,7 +148,9 @@ public final class AppSearchUserInstanceManager {
      * Gets an instance of AppSearchUserInstance for the given user, or creates one if none exists.
      *
      * <p>If no AppSearchUserInstance exists for the unlocked user, Icing will be initialized and
-     * one will be created.
+     * one will be created. If one is already being created, e.g. by
+     * {@link #warmUpUserInstanceAsync}, this waits for it instead, and raises the priority of the
+     * thread creating it to the one of the caller if that's higher.
      *
      * @param userContext Context of the user calling AppSearch
      * @param userHandle The multi-user handle of the device user calling AppSearch
@@ -94,13 +167,114 @@ public final class AppSearchUserInstanceManager {
         Objects.requireNonNull(userHandle);
         Objects.requireNonNull(config);
 
+        PendingUserInstance pendingInstance;
+        boolean createHere = false;
         synchronized (mInstancesLocked) {
             AppSearchUserInstance instance = mInstancesLocked.get(userHandle);
-            if (instance == null) {
-                instance = createUserInstance(userContext, userHandle, config);
-                mInstancesLocked.put(userHandle, instance);
+            if (instance != null) {
+                return instance;
             }
-            return instance;
+            pendingInstance = mPendingInstancesLocked.get(userHandle);
+            if (pendingInstance == null) {
+                pendingInstance = new PendingUserInstance();
+                mPendingInstancesLocked.put(userHandle, pendingInstance);
+                createHere = true;
+            } else {
+                // The instance may be created by a background thread, which must not keep a
+                // caller of higher priority waiting.
+                pendingInstance.mWaiterPriority = Math.min(
+                        pendingInstance.mWaiterPriority,
+                        Process.getThreadPriority(Process.myTid()));
+                if (pendingInstance.mCreatingTid != 0) {
+                    boostThreadPriority(
+                            pendingInstance.mCreatingTid, pendingInstance.mWaiterPriority);
+                }
+            }
+        }
+        if (createHere) {
+            createAndPublishUserInstance(userContext, userHandle, config, pendingInstance);
+        }
+        return waitForUserInstance(pendingInstance.mFuture);
+    }
+
+    /**
+     * Starts creating the {@link AppSearchUserInstance} for the given user on the given executor,
+     * unless it already exists or is being created.
+     *
+     * <p>Callers of {@link #getOrCreateUserInstance} for this user attach to the in-flight
+     * initialization instead of starting their own.
+     *
+     * @param userContext Context of the user to warm up
+     * @param userHandle The multi-user handle of the device user to warm up
+     * @param config Flag manager for AppSearch
+     * @param executor The executor to initialize the instance on
+     * @return A future that completes with the user's instance, or exceptionally if it couldn't
+     *     be created.
+     */
+    @NonNull
+    public CompletableFuture<AppSearchUserInstance> warmUpUserInstanceAsync(
+            @NonNull Context userContext,
+            @NonNull UserHandle userHandle,
+            @NonNull AppSearchConfig config,
+            @NonNull Executor executor) {
+        Objects.requireNonNull(userContext);
+        Objects.requireNonNull(userHandle);
+        Objects.requireNonNull(config);
+        Objects.requireNonNull(executor);
+
+        PendingUserInstance pendingInstance;
+        synchronized (mInstancesLocked) {
+            AppSearchUserInstance instance = mInstancesLocked.get(userHandle);
+            if (instance != null) {
+                return CompletableFuture.completedFuture(instance);
+            }
+            pendingInstance = mPendingInstancesLocked.get(userHandle);
+            if (pendingInstance != null) {
+                return pendingInstance.mFuture;
+            }
+            pendingInstance = new PendingUserInstance();
+            mPendingInstancesLocked.put(userHandle, pendingInstance);
+        }
+        PendingUserInstance newPendingInstance = pendingInstance;
+        try {
+            executor.execute(() -> createAndPublishUserInstance(
+                    userContext, userHandle, config, newPendingInstance));
+        } catch (RejectedExecutionException e) {
+            synchronized (mInstancesLocked) {
+                mPendingInstancesLocked.remove(userHandle, newPendingInstance);
+            }
+            newPendingInstance.mFuture.completeExceptionally(e);
+        }
+        return newPendingInstance.mFuture;
+    }
+
+    /** Returns how far the initialization of the given user's instance has progressed. */
+    @UserInstanceState
+    public int getUserInstanceState(@NonNull UserHandle userHandle) {
+        Objects.requireNonNull(userHandle);
+        synchronized (mInstancesLocked) {
+            if (mInstancesLocked.containsKey(userHandle)) {
+                return USER_INSTANCE_STATE_READY;
+            }
+            if (mPendingInstancesLocked.containsKey(userHandle)) {
+                return USER_INSTANCE_STATE_INITIALIZING;
+            }
+            return USER_INSTANCE_STATE_NONE;
+        }
+    }
+
+    /** Returns a readable name for the given {@link UserInstanceState}, for dumpsys. */
+    @NonNull
+    public static String userInstanceStateToString(@UserInstanceState int state) {
+        switch (state) {
+            case USER_INSTANCE_STATE_NONE:
+                return "none";
+            case USER_INSTANCE_STATE_INITIALIZING:
+                return "initializing";
+            case USER_INSTANCE_STATE_READY:
+                return "ready";
+            default:
+                return "unknown_" + state;
         }
     }
 
@@ -108,16 +282,35 @@ public final class AppSearchUserInstanceManager {
      * Closes and removes an {@link AppSearchUserInstance} for the given user.
      *
      * <p>All mutations applied to the underlying {@link AppSearchImpl} will be persisted to disk.
+     * If the instance is still being created, this waits up to {@link
+     * #CLOSE_PENDING_INSTANCE_TIMEOUT_MILLIS} for it to be created and closed. Past that, it is
+     * closed by the creating thread once created.
      *
      * @param userHandle The multi-user user handle of the user that need to be removed.
      */
     public void closeAndRemoveUserInstance(@NonNull UserHandle userHandle) {
         Objects.requireNonNull(userHandle);
+        PendingUserInstance pendingInstance;
         synchronized (mInstancesLocked) {
             AppSearchUserInstance instance = mInstancesLocked.remove(userHandle);
             if (instance != null) {
                 instance.getAppSearchImpl().close();
             }
+            // Once removed here, the creating thread closes the instance itself when it's done.
+            pendingInstance = mPendingInstancesLocked.remove(userHandle);
+        }
+        if (pendingInstance != null) {
+            try {
+                pendingInstance.mFuture.get(
+                        CLOSE_PENDING_INSTANCE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                // Expected, the instance is closed as soon as it's created.
+            } catch (TimeoutException e) {
+                Log.w(TAG, "AppSearch for " + userHandle + " is still initializing, it will be "
+                        + "closed once initialized");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
         synchronized (mStorageInfoLocked) {
             mStorageInfoLocked.remove(userHandle);
@@ -196,6 +389,119 @@ public final class AppSearchUserInstanceManager {
         }
     }
 
+    /** Returns the {@link UserHandle}s of the users whose instance is still being created. */
+    @NonNull
+    public List<UserHandle> getInitializingUserHandles() {
+        synchronized (mInstancesLocked) {
+            return new ArrayList<>(mPendingInstancesLocked.keySet());
+        }
+    }
+
+    /**
+     * Creates the user's instance and publishes it to {@code pendingInstance}.
+     *
+     * <p>If the user's instance was removed while it was being created, the new instance is closed
+     * instead of published.
+     */
+    private void createAndPublishUserInstance(
+            @NonNull Context userContext,
+            @NonNull UserHandle userHandle,
+            @NonNull AppSearchConfig config,
+            @NonNull PendingUserInstance pendingInstance) {
+        int tid = Process.myTid();
+        int originalPriority = Process.getThreadPriority(tid);
+        synchronized (mInstancesLocked) {
+            pendingInstance.mCreatingTid = tid;
+            // Callers may have started waiting while this was queued.
+            boostThreadPriority(tid, pendingInstance.mWaiterPriority);
+        }
+        AppSearchUserInstance instance;
+        try {
+            instance = mUserInstanceFactory.create(userContext, userHandle, config);
+        } catch (Throwable t) {
+            synchronized (mInstancesLocked) {
+                mPendingInstancesLocked.remove(userHandle, pendingInstance);
+                restoreThreadPriorityLocked(pendingInstance, originalPriority);
+            }
+            pendingInstance.mFuture.completeExceptionally(t);
+            return;
+        }
+
+        boolean published;
+        synchronized (mInstancesLocked) {
+            published = mPendingInstancesLocked.remove(userHandle, pendingInstance);
+            if (published) {
+                mInstancesLocked.put(userHandle, instance);
+            }
+            restoreThreadPriorityLocked(pendingInstance, originalPriority);
+        }
+        if (published) {
+            pendingInstance.mFuture.complete(instance);
+        } else {
+            instance.getAppSearchImpl().close();
+            pendingInstance.mFuture.completeExceptionally(new AppSearchException(
+                    AppSearchResult.RESULT_INTERNAL_ERROR,
+                    "AppSearch for " + userHandle + " was closed while initializing"));
+        }
+    }
+
+    /**
+     * Puts the thread creating {@code pendingInstance} back to its original priority, and stops
+     * waiters from boosting it, since it's done creating the instance.
+     */
+    @GuardedBy("mInstancesLocked")
+    private void restoreThreadPriorityLocked(
+            @NonNull PendingUserInstance pendingInstance, int originalPriority) {
+        int tid = pendingInstance.mCreatingTid;
+        pendingInstance.mCreatingTid = 0;
+        try {
+            if (Process.getThreadPriority(tid) != originalPriority) {
+                Process.setThreadPriority(tid, originalPriority);
+            }
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Failed to restore the priority of thread " + tid, e);
+        }
+    }
+
+    /** Raises the priority of the given thread to {@code priority}, if it's lower. */
+    private static void boostThreadPriority(int tid, int priority) {
+        try {
+            if (priority < Process.getThreadPriority(tid)) {
+                Process.setThreadPriority(tid, priority);
+            }
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Failed to boost the priority of thread " + tid, e);
+        }
+    }
+
+    @NonNull
+    private static AppSearchUserInstance waitForUserInstance(
+            @NonNull CompletableFuture<AppSearchUserInstance> pendingInstance)
+            throws AppSearchException {
+        try {
+            return pendingInstance.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof AppSearchException) {
+                throw (AppSearchException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AppSearchException(
+                    AppSearchResult.RESULT_INTERNAL_ERROR, "Failed to initialize AppSearch", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AppSearchException(
+                    AppSearchResult.RESULT_INTERNAL_ERROR,
+                    "Interrupted while waiting for AppSearch to initialize",
+                    e);
+        }
+    }
+
     @NonNull
     private AppSearchUserInstance createUserInstance(
             @NonNull Context userContext,
@@ -212,12 +518,21 @@ public final class AppSearchUserInstanceManager {
         File icingDir = new File(appSearchDir, "icing");
         Log.i(TAG, "Creating new AppSearch instance at: " + icingDir);
         VisibilityCheckerImpl visibilityCheckerImpl = new VisibilityCheckerImpl(userContext);
+        File initSnapshotFile = new File(appSearchDir, "init_snapshot");
+        if (!config.getCachedInitSnapshotEnabled()
+                && (!initSnapshotFile.exists() || initSnapshotFile.delete())) {
+            // Don't leave a snapshot behind that would go stale while the flag is off. One that
+            // can't be deleted is still handed to AppSearchImpl, which keeps it in sync by
+            // refusing mutations until it is gone.
+            initSnapshotFile = null;
+        }
         AppSearchImpl appSearchImpl = AppSearchImpl.create(
                 icingDir,
                 new FrameworkLimitConfig(config),
                 initStatsBuilder,
                 new FrameworkOptimizeStrategy(config),
-                visibilityCheckerImpl);
+                visibilityCheckerImpl,
+                initSnapshotFile);
 
         // Update storage info file
         UserStorageInfo userStorageInfo = getOrCreateUserStorageInfoInstance(userHandle);
@@ -20,6 +20,7 @@ import android.annotation.NonNull;
 import android.os.Bundle;
 import android.provider.DeviceConfig;
 import android.provider.DeviceConfig.OnPropertiesChangedListener;
+import android.util.Log;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
@@ -42,6 +43,8 @@ import java.util.concurrent.Executor;
  * @hide
  */
 public final class FrameworkAppSearchConfig implements AppSearchConfig {
+    private static final String TAG = "AppSearchConfig";
+
     private static volatile FrameworkAppSearchConfig sConfig;
 
     /*
@@ -69,6 +72,18 @@ public final class FrameworkAppSearchConfig implements AppSearchConfig {
     public static final String KEY_BYTES_OPTIMIZE_THRESHOLD = "bytes_optimize_threshold";
     public static final String KEY_TIME_OPTIMIZE_THRESHOLD_MILLIS = "time_optimize_threshold";
     public static final String KEY_DOC_COUNT_OPTIMIZE_THRESHOLD = "doc_count_optimize_threshold";
+    public static final String KEY_INIT_SNAPSHOT_ENABLED = "init_snapshot_enabled";
+    public static final String KEY_USER_INSTANCE_WARM_UP_ENABLED = "user_instance_warm_up_enabled";
+    public static final String KEY_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE =
+            "limit_config_max_next_page_token_count_per_package";
+    public static final String KEY_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS =
+            "limit_config_next_page_token_ttl_millis";
+    public static final String KEY_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES =
+            "limit_config_query_result_cache_max_bytes";
+    public static final String KEY_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT =
+            "limit_config_global_query_shard_count";
+    public static final String KEY_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT =
+            "limit_config_max_pending_observer_document_id_count";
 
     // Array contains all the corresponding keys for the cached values.
     private static final String[] KEYS_TO_ALL_CACHED_VALUES = {
@@ -84,7 +99,14 @@ public final class FrameworkAppSearchConfig implements AppSearchConfig {
             KEY_LIMIT_CONFIG_MAX_DOCUMENT_COUNT,
             KEY_BYTES_OPTIMIZE_THRESHOLD,
             KEY_TIME_OPTIMIZE_THRESHOLD_MILLIS,
-            KEY_DOC_COUNT_OPTIMIZE_THRESHOLD
+            KEY_DOC_COUNT_OPTIMIZE_THRESHOLD,
+            KEY_INIT_SNAPSHOT_ENABLED,
+            KEY_USER_INSTANCE_WARM_UP_ENABLED,
+            KEY_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE,
+            KEY_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS,
+            KEY_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES,
+            KEY_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT,
+            KEY_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT
     };
 
     // Lock needed for all the operations in this class.
@@ -298,6 +320,69 @@ public final class FrameworkAppSearchConfig implements AppSearchConfig {
         }
     }
 
+    @Override
+    public boolean getCachedInitSnapshotEnabled() {
+        synchronized (mLock) {
+            throwIfClosedLocked();
+            return mBundleLocked.getBoolean(KEY_INIT_SNAPSHOT_ENABLED,
+                    DEFAULT_INIT_SNAPSHOT_ENABLED);
+        }
+    }
+
+    @Override
+    public boolean getCachedUserInstanceWarmUpEnabled() {
+        synchronized (mLock) {
+            throwIfClosedLocked();
+            return mBundleLocked.getBoolean(KEY_USER_INSTANCE_WARM_UP_ENABLED,
+                    DEFAULT_USER_INSTANCE_WARM_UP_ENABLED);
+        }
+    }
+
+    @Override
+    public int getCachedLimitConfigMaxNextPageTokenCountPerPackage() {
+        synchronized (mLock) {
+            throwIfClosedLocked();
+            return mBundleLocked.getInt(KEY_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE,
+                    DEFAULT_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE);
+        }
+    }
+
+    @Override
+    public long getCachedLimitConfigNextPageTokenTtlMillis() {
+        synchronized (mLock) {
+            throwIfClosedLocked();
+            return mBundleLocked.getLong(KEY_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS,
+                    DEFAULT_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS);
+        }
+    }
+
+    @Override
+    public long getCachedLimitConfigQueryResultCacheMaxBytes() {
+        synchronized (mLock) {
+            throwIfClosedLocked();
+            return mBundleLocked.getLong(KEY_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES,
+                    DEFAULT_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES);
+        }
+    }
+
+    @Override
+    public int getCachedLimitConfigGlobalQueryShardCount() {
+        synchronized (mLock) {
+            throwIfClosedLocked();
+            return mBundleLocked.getInt(KEY_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT,
+                    DEFAULT_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT);
+        }
+    }
+
+    @Override
+    public int getCachedLimitConfigMaxPendingObserverDocumentIdCount() {
+        synchronized (mLock) {
+            throwIfClosedLocked();
+            return mBundleLocked.getInt(KEY_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT,
+                    DEFAULT_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT);
+        }
+    }
+
     @GuardedBy("mLock")
     private void throwIfClosedLocked() {
         if (mIsClosedLocked) {
@@ -305,6 +390,42 @@ public final class FrameworkAppSearchConfig implements AppSearchConfig {
         }
     }
 
+    /**
+     * Reads a value that must be positive, falling back to the default for anything else so that
+     * a bad flag push can't stop AppSearch from starting.
+     */
+    private static int getPositiveInt(@NonNull DeviceConfig.Properties properties,
+            @NonNull String key, int defaultValue) {
+        int value = properties.getInt(key, defaultValue);
+        if (value <= 0) {
+            Log.w(TAG, "Ignoring non-positive value " + value + " for " + key);
+            return defaultValue;
+        }
+        return value;
+    }
+
+    /** Like {@link #getPositiveInt}, for long values. */
+    private static long getPositiveLong(@NonNull DeviceConfig.Properties properties,
+            @NonNull String key, long defaultValue) {
+        long value = properties.getLong(key, defaultValue);
+        if (value <= 0) {
+            Log.w(TAG, "Ignoring non-positive value " + value + " for " + key);
+            return defaultValue;
+        }
+        return value;
+    }
+
+    /** Like {@link #getPositiveLong}, but also accepts 0. */
+    private static long getNonNegativeLong(@NonNull DeviceConfig.Properties properties,
+            @NonNull String key, long defaultValue) {
+        long value = properties.getLong(key, defaultValue);
+        if (value < 0) {
+            Log.w(TAG, "Ignoring negative value " + value + " for " + key);
+            return defaultValue;
+        }
+        return value;
+    }
+
     private void updateCachedValues(@NonNull DeviceConfig.Properties properties) {
         for (String key : properties.getKeyset()) {
             updateCachedValue(key, properties);
@@ -376,6 +497,48 @@ public final class FrameworkAppSearchConfig implements AppSearchConfig {
                             DEFAULT_DOC_COUNT_OPTIMIZE_THRESHOLD));
                 }
                 break;
+            case KEY_INIT_SNAPSHOT_ENABLED:
+                synchronized (mLock) {
+                    mBundleLocked.putBoolean(key, properties.getBoolean(key,
+                            DEFAULT_INIT_SNAPSHOT_ENABLED));
+                }
+                break;
+            case KEY_USER_INSTANCE_WARM_UP_ENABLED:
+                synchronized (mLock) {
+                    mBundleLocked.putBoolean(key, properties.getBoolean(key,
+                            DEFAULT_USER_INSTANCE_WARM_UP_ENABLED));
+                }
+                break;
+            case KEY_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE:
+                synchronized (mLock) {
+                    mBundleLocked.putInt(key, getPositiveInt(properties, key,
+                            DEFAULT_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE));
+                }
+                break;
+            case KEY_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS:
+                synchronized (mLock) {
+                    mBundleLocked.putLong(key, getPositiveLong(properties, key,
+                            DEFAULT_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS));
+                }
+                break;
+            case KEY_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES:
+                synchronized (mLock) {
+                    mBundleLocked.putLong(key, getNonNegativeLong(properties, key,
+                            DEFAULT_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES));
+                }
+                break;
+            case KEY_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT:
+                synchronized (mLock) {
+                    mBundleLocked.putInt(key, getPositiveInt(properties, key,
+                            DEFAULT_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT));
+                }
+                break;
+            case KEY_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT:
+                synchronized (mLock) {
+                    mBundleLocked.putInt(key, getPositiveInt(properties, key,
+                            DEFAULT_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT));
+                }
+                break;
             default:
                 break;
         }
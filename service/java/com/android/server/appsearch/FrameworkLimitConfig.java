@@ -38,4 +38,29 @@ class FrameworkLimitConfig implements LimitConfig {
     public int getMaxDocumentCount() {
         return mAppSearchConfig.getCachedLimitConfigMaxDocumentCount();
     }
+
+    @Override
+    public int getMaxNextPageTokenCountPerPackage() {
+        return mAppSearchConfig.getCachedLimitConfigMaxNextPageTokenCountPerPackage();
+    }
+
+    @Override
+    public long getNextPageTokenTtlMillis() {
+        return mAppSearchConfig.getCachedLimitConfigNextPageTokenTtlMillis();
+    }
+
+    @Override
+    public long getQueryResultCacheMaxBytes() {
+        return mAppSearchConfig.getCachedLimitConfigQueryResultCacheMaxBytes();
+    }
+
+    @Override
+    public int getGlobalQueryShardCount() {
+        return mAppSearchConfig.getCachedLimitConfigGlobalQueryShardCount();
+    }
+
+    @Override
+    public int getMaxPendingObserverDocumentIdCount() {
+        return mAppSearchConfig.getCachedLimitConfigMaxPendingObserverDocumentIdCount();
+    }
 }
@@ -28,7 +28,7 @@ import android.app.appsearch.GenericDocument;
 import android.app.appsearch.GetByDocumentIdRequest;
 import android.app.appsearch.PutDocumentsRequest;
 import android.app.appsearch.RemoveByDocumentIdRequest;
-import android.app.appsearch.SearchResult;
+import android.app.appsearch.SearchResultSummaries;
 import android.app.appsearch.SearchResults;
 import android.app.appsearch.SearchSpec;
 import android.app.appsearch.SetSchemaRequest;
@@ -384,8 +384,8 @@ public class AppSearchHelper {
     /**
      * Returns IDs of all contacts indexed in AppSearch
      *
-     * <p>Issues an empty query with an empty projection and pages through all results, collecting
-     * the document IDs to return to the caller.
+     * <p>Issues an empty query returning only IDs and pages through all results, collecting the
+     * document IDs to return to the caller.
      */
     @NonNull
     public CompletableFuture<List<String>> getAllContactIdsAsync() {
@@ -393,7 +393,7 @@ public class AppSearchHelper {
             SearchSpec allDocumentIdsSpec = new SearchSpec.Builder()
                     .addFilterNamespaces(NAMESPACE_NAME)
                     .addFilterSchemas(Person.SCHEMA_TYPE)
-                    .addProjection(Person.SCHEMA_TYPE, /*propertyPaths=*/ Collections.emptyList())
+                    .setResultMode(SearchSpec.RESULT_MODE_IDS)
                     .setResultCountPerPage(GET_CONTACT_IDS_PAGE_SIZE)
                     .build();
             SearchResults results =
@@ -450,18 +450,17 @@ public class AppSearchHelper {
         Objects.requireNonNull(contactIds);
 
         CompletableFuture<Boolean> future = new CompletableFuture<>();
-        results.getNextPage(mExecutor, callback -> {
+        results.getNextPageSummaries(mExecutor, callback -> {
             if (!callback.isSuccess()) {
                 future.completeExceptionally(new AppSearchException(callback.getResultCode(),
                         callback.getErrorMessage()));
                 return;
             }
-            List<SearchResult> resultList = callback.getResultValue();
-            for (int i = 0; i < resultList.size(); i++) {
-                SearchResult result = resultList.get(i);
-                contactIds.add(result.getGenericDocument().getId());
+            SearchResultSummaries summaries = callback.getResultValue();
+            for (int i = 0; i < summaries.size(); i++) {
+                contactIds.add(summaries.getId(i));
             }
-            future.complete(!resultList.isEmpty());
+            future.complete(summaries.size() > 0);
         });
         return future.thenCompose(moreResults -> {
             // Recurse if there might be more results to page through.
@@ -437,7 +437,8 @@ public final class ContactsIndexerImpl {
                                     GenericDocument doc = contactsWithFingerprints.get(i);
                                     byte[] oldFingerprint =
                                             doc != null ? doc.getPropertyBytes(
-                                                    Person.PERSON_PROPERTY_FINGERPRINT) : null;
+                                                    Person.FINGERPRINT_PATH, /*valueIndex=*/ 0)
+                                                    : null;
                                     long docCreationTimestampMillis =
                                             doc != null ? doc.getCreationTimestampMillis()
                                                     : -1;
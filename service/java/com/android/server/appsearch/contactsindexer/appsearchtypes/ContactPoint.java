@@ -19,6 +19,7 @@ package com.android.server.appsearch.contactsindexer.appsearchtypes;
 import android.annotation.NonNull;
 import android.app.appsearch.AppSearchSchema;
 import android.app.appsearch.GenericDocument;
+import android.app.appsearch.PropertyPath;
 
 import com.android.internal.annotations.VisibleForTesting;
 
@@ -41,6 +42,9 @@ public final class ContactPoint extends GenericDocument {
     public static final String CONTACT_POINT_PROPERTY_EMAIL = "email";
     public static final String CONTACT_POINT_PROPERTY_TELEPHONE = "telephone";
 
+    private static final PropertyPath LABEL_PATH =
+            PropertyPath.compile(CONTACT_POINT_PROPERTY_LABEL);
+
     // Schema
     public static final AppSearchSchema SCHEMA = new AppSearchSchema.Builder(
             SCHEMA_TYPE)
@@ -90,7 +94,7 @@ public final class ContactPoint extends GenericDocument {
 
     @NonNull
     public String getLabel() {
-        return getPropertyString(CONTACT_POINT_PROPERTY_LABEL);
+        return getPropertyString(LABEL_PATH, /*valueIndex=*/ 0);
     }
 
     @NonNull
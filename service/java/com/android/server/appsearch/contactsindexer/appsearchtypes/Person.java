@@ -21,6 +21,7 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.app.appsearch.AppSearchSchema;
 import android.app.appsearch.GenericDocument;
+import android.app.appsearch.PropertyPath;
 import android.net.Uri;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -80,6 +81,25 @@ public class Person extends GenericDocument {
     public static final String PERSON_PROPERTY_NOTES = "notes";
     public static final String PERSON_PROPERTY_FINGERPRINT = "fingerprint";
 
+    // Compiled paths of the single-valued properties, which the contacts indexer reads for every
+    // contact it compares or indexes.
+    private static final PropertyPath NAME_PATH = PropertyPath.compile(PERSON_PROPERTY_NAME);
+    private static final PropertyPath GIVEN_NAME_PATH =
+            PropertyPath.compile(PERSON_PROPERTY_GIVEN_NAME);
+    private static final PropertyPath MIDDLE_NAME_PATH =
+            PropertyPath.compile(PERSON_PROPERTY_MIDDLE_NAME);
+    private static final PropertyPath FAMILY_NAME_PATH =
+            PropertyPath.compile(PERSON_PROPERTY_FAMILY_NAME);
+    private static final PropertyPath EXTERNAL_URI_PATH =
+            PropertyPath.compile(PERSON_PROPERTY_EXTERNAL_URI);
+    private static final PropertyPath IMAGE_URI_PATH =
+            PropertyPath.compile(PERSON_PROPERTY_IMAGE_URI);
+    private static final PropertyPath IS_IMPORTANT_PATH =
+            PropertyPath.compile(PERSON_PROPERTY_IS_IMPORTANT);
+    private static final PropertyPath IS_BOT_PATH = PropertyPath.compile(PERSON_PROPERTY_IS_BOT);
+    public static final PropertyPath FINGERPRINT_PATH =
+            PropertyPath.compile(PERSON_PROPERTY_FINGERPRINT);
+
     public static final AppSearchSchema SCHEMA = new AppSearchSchema.Builder(SCHEMA_TYPE)
             // full display name
             .addProperty(new AppSearchSchema.StringPropertyConfig.Builder(PERSON_PROPERTY_NAME)
@@ -181,27 +201,27 @@ public class Person extends GenericDocument {
 
     @NonNull
     public String getName() {
-        return getPropertyString(PERSON_PROPERTY_NAME);
+        return getPropertyString(NAME_PATH, /*valueIndex=*/ 0);
     }
 
     @Nullable
     public String getGivenName() {
-        return getPropertyString(PERSON_PROPERTY_GIVEN_NAME);
+        return getPropertyString(GIVEN_NAME_PATH, /*valueIndex=*/ 0);
     }
 
     @Nullable
     public String getMiddleName() {
-        return getPropertyString(PERSON_PROPERTY_MIDDLE_NAME);
+        return getPropertyString(MIDDLE_NAME_PATH, /*valueIndex=*/ 0);
     }
 
     @Nullable
     public String getFamilyName() {
-        return getPropertyString(PERSON_PROPERTY_FAMILY_NAME);
+        return getPropertyString(FAMILY_NAME_PATH, /*valueIndex=*/ 0);
     }
 
     @Nullable
     public Uri getExternalUri() {
-        String uriStr = getPropertyString(PERSON_PROPERTY_EXTERNAL_URI);
+        String uriStr = getPropertyString(EXTERNAL_URI_PATH, /*valueIndex=*/ 0);
         if (uriStr == null) {
             return null;
         }
@@ -210,7 +230,7 @@ public class Person extends GenericDocument {
 
     @Nullable
     public Uri getImageUri() {
-        String uriStr = getPropertyString(PERSON_PROPERTY_IMAGE_URI);
+        String uriStr = getPropertyString(IMAGE_URI_PATH, /*valueIndex=*/ 0);
         if (uriStr == null) {
             return null;
         }
@@ -218,11 +238,11 @@ public class Person extends GenericDocument {
     }
 
     public boolean isImportant() {
-        return getPropertyBoolean(PERSON_PROPERTY_IS_IMPORTANT);
+        return getPropertyBoolean(IS_IMPORTANT_PATH, /*valueIndex=*/ 0);
     }
 
     public boolean isBot() {
-        return getPropertyBoolean(PERSON_PROPERTY_IS_BOT);
+        return getPropertyBoolean(IS_BOT_PATH, /*valueIndex=*/ 0);
     }
 
     @NonNull
@@ -267,7 +287,7 @@ public class Person extends GenericDocument {
      */
     @NonNull
     public byte[] getFingerprint() {
-        return getPropertyBytes(PERSON_PROPERTY_FINGERPRINT);
+        return getPropertyBytes(FINGERPRINT_PATH, /*valueIndex=*/ 0);
     }
 
     /** Builder for {@link Person}. */
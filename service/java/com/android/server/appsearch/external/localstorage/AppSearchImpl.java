@@ -17,18 +17,18 @@
 package com.android.server.appsearch.external.localstorage;
 
 import static android.app.appsearch.AppSearchResult.RESULT_INTERNAL_ERROR;
+import static android.app.appsearch.AppSearchResult.RESULT_IO_ERROR;
 import static android.app.appsearch.AppSearchResult.RESULT_SECURITY_ERROR;
+import static android.app.appsearch.AppSearchResult.throwableToFailedResult;
 
-import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.addPrefixToDocument;
 import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.createPrefix;
-import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.getDatabaseName;
 import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.getPackageName;
 import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.getPrefix;
-import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.removePrefixesFromDocument;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.WorkerThread;
+import android.app.appsearch.AppSearchBatchResult;
 import android.app.appsearch.AppSearchResult;
 import android.app.appsearch.AppSearchSchema;
 import android.app.appsearch.GenericDocument;
@@ -45,6 +45,8 @@ import android.app.appsearch.observer.ObserverCallback;
 import android.app.appsearch.observer.ObserverSpec;
 import android.app.appsearch.util.LogUtil;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -53,6 +55,7 @@ import android.util.Log;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.appsearch.external.localstorage.converter.GenericDocumentToProtoConverter;
+import com.android.server.appsearch.external.localstorage.converter.PropertyConfigIndex;
 import com.android.server.appsearch.external.localstorage.converter.ResultCodeToProtoConverter;
 import com.android.server.appsearch.external.localstorage.converter.SchemaToProtoConverter;
 import com.android.server.appsearch.external.localstorage.converter.SearchResultToProtoConverter;
@@ -60,6 +63,7 @@ import com.android.server.appsearch.external.localstorage.converter.SearchSpecTo
 import com.android.server.appsearch.external.localstorage.converter.SetSchemaResponseToProtoConverter;
 import com.android.server.appsearch.external.localstorage.converter.TypePropertyPathToProtoConverter;
 import com.android.server.appsearch.external.localstorage.stats.InitializeStats;
+import com.android.server.appsearch.external.localstorage.stats.LatencyHistogram;
 import com.android.server.appsearch.external.localstorage.stats.OptimizeStats;
 import com.android.server.appsearch.external.localstorage.stats.PutDocumentStats;
 import com.android.server.appsearch.external.localstorage.stats.RemoveStats;
@@ -83,12 +87,14 @@ import com.google.android.icing.proto.GetResultSpecProto;
 import com.google.android.icing.proto.GetSchemaResultProto;
 import com.google.android.icing.proto.IcingSearchEngineOptions;
 import com.google.android.icing.proto.InitializeResultProto;
+import com.google.android.icing.proto.InitializeStatsProto;
 import com.google.android.icing.proto.NamespaceStorageInfoProto;
 import com.google.android.icing.proto.OptimizeResultProto;
 import com.google.android.icing.proto.PersistToDiskResultProto;
 import com.google.android.icing.proto.PersistType;
 import com.google.android.icing.proto.PropertyConfigProto;
 import com.google.android.icing.proto.PutResultProto;
+import com.google.android.icing.proto.QueryStatsProto;
 import com.google.android.icing.proto.ReportUsageResultProto;
 import com.google.android.icing.proto.ResetResultProto;
 import com.google.android.icing.proto.ResultSpecProto;
@@ -106,6 +112,7 @@ import com.google.android.icing.proto.UsageReport;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -113,7 +120,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -161,6 +171,19 @@ public final class AppSearchImpl implements Closeable {
 
     @VisibleForTesting static final int CHECK_OPTIMIZE_INTERVAL = 100;
 
+    /** The most query plans cached for repeated {@link SearchSpec}s. */
+    private static final int MAX_CACHED_QUERY_PLANS = 64;
+
+    /**
+     * How long the plan of a global query may be reused. Besides visibility settings, which
+     * invalidate the cache, whether a caller can see a schema type depends on its permissions,
+     * which can change without AppSearch being told.
+     */
+    private static final long GLOBAL_QUERY_PLAN_MAX_AGE_MILLIS = 5_000;
+
+    /** How long the results of a query may be served from {@link #mQueryResultCache}. */
+    private static final long QUERY_RESULT_CACHE_MAX_AGE_MILLIS = 5_000;
+
     /** A GetResultSpec that uses projection to skip all properties. */
     private static final GetResultSpecProto GET_RESULT_SPEC_NO_PROPERTIES =
             GetResultSpecProto.newBuilder()
@@ -180,6 +203,16 @@ public final class AppSearchImpl implements Closeable {
                     .build();
 
     private final ReadWriteLock mReadWriteLock = new ReentrantReadWriteLock();
+
+    /** How long callers waited for the read lock. */
+    private final LatencyHistogram mReadLockWaitHistogram = new LatencyHistogram();
+
+    /** How long callers waited for the write lock. */
+    private final LatencyHistogram mWriteLockWaitHistogram = new LatencyHistogram();
+
+    /** The number of queries abandoned because their caller cancelled them while they ran. */
+    private final AtomicLong mCancelledQueryCount = new AtomicLong();
+
     private final OptimizeStrategy mOptimizeStrategy;
     private final LimitConfig mLimitConfig;
 
@@ -194,6 +227,25 @@ public final class AppSearchImpl implements Closeable {
     private final Map<String, Map<String, SchemaTypeConfigProto>> mSchemaMapLocked =
             new ArrayMap<>();
 
+    // The package and database of every prefix in mSchemaMapLocked. It is kept in sync with
+    // mSchemaMapLocked by addSchemaTypeLocked and prunePackageData. The prefixes of
+    // mNamespaceMapLocked are a subset, since a document can only be put with a schema.
+    @GuardedBy("mReadWriteLock")
+    private final PrefixIndex mPrefixIndexLocked = new PrefixIndex();
+
+    // The properties of every schema type in mSchemaMapLocked, indexed by prefix, unprefixed
+    // schema type and property name for converting documents read back from Icing. It is kept in
+    // sync with mSchemaMapLocked by addSchemaTypeLocked and removeSchemaTypeLocked.
+    @GuardedBy("mReadWriteLock")
+    private final PropertyConfigIndex mPropertyConfigIndexLocked = new PropertyConfigIndex();
+
+    // The device-wide schema Icing holds, as last read from or applied to Icing, or null if it has
+    // to be read again. Icing only accepts the whole schema on setSchema, so this saves reading
+    // every package's types back out of Icing for each setSchema call.
+    @GuardedBy("mReadWriteLock")
+    @Nullable
+    private SchemaProto mSchemaProtoCacheLocked;
+
     // This map contains namespaces for all package-database prefixes. All values in the map are
     // prefixed with the package-database prefix.
     // TODO(b/172360376): Check if this can be replaced with an ArrayMap
@@ -204,22 +256,35 @@ public final class AppSearchImpl implements Closeable {
     @GuardedBy("mReadWriteLock")
     private final Map<String, Integer> mDocumentCountMapLocked = new ArrayMap<>();
 
-    // Maps packages to the set of valid nextPageTokens that the package can manipulate. A token
-    // is unique and constant per query (i.e. the same token '123' is used to iterate through
-    // pages of search results). The tokens themselves are generated and tracked by
-    // IcingSearchEngine. IcingSearchEngine considers a token valid and won't be reused
-    // until we call invalidateNextPageToken on the token.
+    // Tracks the valid nextPageTokens that each package can manipulate. A token is unique and
+    // constant per query (i.e. the same token '123' is used to iterate through pages of search
+    // results). The tokens themselves are generated and tracked by IcingSearchEngine.
+    // IcingSearchEngine considers a token valid and won't be reused until we call
+    // invalidateNextPageToken on the token.
     //
-    // Note that we synchronize on itself because the nextPageToken cache is checked at
-    // query-time, and queries are done in parallel with a read lock. Ideally, this would be
-    // guarded by the normal mReadWriteLock.writeLock, but ReentrantReadWriteLocks can't upgrade
-    // read to write locks. This lock should be acquired at the smallest scope possible.
-    // mReadWriteLock is a higher-level lock, so calls shouldn't be made out
-    // to any functions that grab the lock.
-    @GuardedBy("mNextPageTokensLocked")
-    private final Map<String, Set<Long>> mNextPageTokensLocked = new ArrayMap<>();
+    // The registry has its own lock because the nextPageToken cache is checked at query-time,
+    // and queries are done in parallel with a read lock. Tokens it evicts, for being idle too long
+    // or over the per-package cap, must be invalidated in Icing by the caller.
+    private final NextPageTokenRegistry mNextPageTokenRegistry;
 
-    private final ObserverManager mObserverManager = new ObserverManager();
+    private final ObserverManager mObserverManager;
+
+    // The Icing protos of recently queried SearchSpecs. They depend on mSchemaMapLocked,
+    // mNamespaceMapLocked and the visibility store, so the cache is cleared, under the write lock,
+    // whenever those change. Queries fill it under the read lock.
+    private final QueryPlanCache mQueryPlanCache = new QueryPlanCache(MAX_CACHED_QUERY_PLANS);
+
+    // The results of recent queries, if enabled by the LimitConfig. Queries fill it under the read
+    // lock, and mutations bump the epoch of the prefix they change under the write lock.
+    private final QueryResultCache mQueryResultCache;
+
+    // The number of shards global queries are split into, from the LimitConfig. The shards are
+    // searched one after the other on the caller's thread, since Icing runs one search at a time.
+    private final int mGlobalQueryShardCount;
+
+    // The merged result states of sharded global queries, keyed by the next-page token handed to
+    // the caller in place of the tokens of the shards. Pages are fetched under the read lock.
+    private final Map<Long, ShardedResultState> mShardedResultStates = new ConcurrentHashMap<>();
 
     /**
      * VisibilityStore will be used in {@link #setSchema} and {@link #getSchema} to store and query
@@ -247,6 +312,34 @@ public final class AppSearchImpl implements Closeable {
     @GuardedBy("mReadWriteLock")
     private boolean mClosedLocked = false;
 
+    /**
+     * The file the {@link AppSearchInitSnapshot} is persisted to, or {@code null} if snapshots are
+     * disabled.
+     */
+    @Nullable private final File mInitSnapshotFile;
+
+    /**
+     * Whether {@link #mInitSnapshotFile} holds a snapshot that must be deleted before the next
+     * mutation. Cleared, and the file deleted, by the first mutation after the snapshot was written
+     * or restored; mutations fail for as long as the file can't be deleted.
+     */
+    @GuardedBy("mReadWriteLock")
+    private boolean mInitSnapshotOnDiskLocked = false;
+
+    /**
+     * Whether {@link #mSchemaMapLocked} was restored from a snapshot and hasn't been compared with
+     * Icing's schema yet. The comparison happens lazily, the next time we read Icing's schema.
+     */
+    @GuardedBy("mReadWriteLock")
+    private boolean mInitSnapshotSchemaUnverifiedLocked = false;
+
+    /**
+     * How long it took to build the derived maps from Icing during the last initialization that
+     * couldn't use a snapshot. Carried over between snapshots to estimate the time they save.
+     */
+    @GuardedBy("mReadWriteLock")
+    private int mRebuildDerivedMapsLatencyMillisLocked = 0;
+
     /**
      * Creates and initializes an instance of {@link AppSearchImpl} which writes data to the given
      * folder.
@@ -271,8 +364,40 @@ public final class AppSearchImpl implements Closeable {
             @NonNull OptimizeStrategy optimizeStrategy,
             @Nullable VisibilityChecker visibilityChecker)
             throws AppSearchException {
+        return create(
+                icingDir,
+                limitConfig,
+                initStatsBuilder,
+                optimizeStrategy,
+                visibilityChecker,
+                /*initSnapshotFile=*/ null);
+    }
+
+    /**
+     * Creates and initializes an instance of {@link AppSearchImpl} which writes data to the given
+     * folder, restoring its derived maps from a snapshot when possible.
+     *
+     * @param initSnapshotFile The file a snapshot of the derived maps is written to on every full
+     *     {@link #persistToDisk}. If it still matches Icing on the next initialization, the maps
+     *     are restored from it instead of being read from Icing. Pass null to disable snapshots.
+     * @see #create(File, LimitConfig, InitializeStats.Builder, OptimizeStrategy, VisibilityChecker)
+     */
+    @NonNull
+    public static AppSearchImpl create(
+            @NonNull File icingDir,
+            @NonNull LimitConfig limitConfig,
+            @Nullable InitializeStats.Builder initStatsBuilder,
+            @NonNull OptimizeStrategy optimizeStrategy,
+            @Nullable VisibilityChecker visibilityChecker,
+            @Nullable File initSnapshotFile)
+            throws AppSearchException {
         return new AppSearchImpl(
-                icingDir, limitConfig, initStatsBuilder, optimizeStrategy, visibilityChecker);
+                icingDir,
+                limitConfig,
+                initStatsBuilder,
+                optimizeStrategy,
+                visibilityChecker,
+                initSnapshotFile);
     }
 
     /** @param initStatsBuilder collects stats for initialization if provided. */
@@ -281,15 +406,31 @@ public final class AppSearchImpl implements Closeable {
             @NonNull LimitConfig limitConfig,
             @Nullable InitializeStats.Builder initStatsBuilder,
             @NonNull OptimizeStrategy optimizeStrategy,
-            @Nullable VisibilityChecker visibilityChecker)
+            @Nullable VisibilityChecker visibilityChecker,
+            @Nullable File initSnapshotFile)
             throws AppSearchException {
         Objects.requireNonNull(icingDir);
         mLimitConfig = Objects.requireNonNull(limitConfig);
         mOptimizeStrategy = Objects.requireNonNull(optimizeStrategy);
         mVisibilityCheckerLocked = visibilityChecker;
-
-        mReadWriteLock.writeLock().lock();
+        mNextPageTokenRegistry =
+                new NextPageTokenRegistry(
+                        limitConfig.getMaxNextPageTokenCountPerPackage(),
+                        limitConfig.getNextPageTokenTtlMillis());
+        mInitSnapshotFile = initSnapshotFile;
+        mObserverManager =
+                new ObserverManager(limitConfig.getMaxPendingObserverDocumentIdCount());
+        mQueryResultCache =
+                new QueryResultCache(
+                        limitConfig.getQueryResultCacheMaxBytes(),
+                        QUERY_RESULT_CACHE_MAX_AGE_MILLIS);
+        mGlobalQueryShardCount = Math.max(1, limitConfig.getGlobalQueryShardCount());
+
+        acquireWriteLock();
         try {
+            // Visibility documents restored from the init snapshot, if it could be used.
+            List<VisibilityDocument> cachedVisibilityDocuments = null;
+            long prepareDerivedMapsStartMillis = SystemClock.elapsedRealtime();
             // We synchronize here because we don't want to call IcingSearchEngine.initialize() more
             // than once. It's unnecessary and can be a costly operation.
             IcingSearchEngineOptions options =
@@ -325,56 +466,16 @@ public final class AppSearchImpl implements Closeable {
                 }
                 checkSuccess(initializeResultProto.getStatus());
 
-                // Read all protos we need to construct AppSearchImpl's cache maps
+                // Try to restore AppSearchImpl's cache maps from the snapshot first.
                 long prepareSchemaAndNamespacesLatencyStartMillis = SystemClock.elapsedRealtime();
-                SchemaProto schemaProto = getSchemaProtoLocked();
-
-                LogUtil.piiTrace(TAG, "init:getAllNamespaces, request");
-                GetAllNamespacesResultProto getAllNamespacesResultProto =
-                        mIcingSearchEngineLocked.getAllNamespaces();
-                LogUtil.piiTrace(
-                        TAG,
-                        "init:getAllNamespaces, response",
-                        getAllNamespacesResultProto.getNamespacesCount(),
-                        getAllNamespacesResultProto);
-
-                StorageInfoProto storageInfoProto = getRawStorageInfoProto();
-
-                // Log the time it took to read the data that goes into the cache maps
-                if (initStatsBuilder != null) {
-                    // In case there is some error for getAllNamespaces, we can still
-                    // set the latency for preparation.
-                    // If there is no error, the value will be overridden by the actual one later.
-                    initStatsBuilder
-                            .setStatusCode(
-                                    statusProtoToResultCode(
-                                            getAllNamespacesResultProto.getStatus()))
-                            .setPrepareSchemaAndNamespacesLatencyMillis(
-                                    (int)
-                                            (SystemClock.elapsedRealtime()
-                                                    - prepareSchemaAndNamespacesLatencyStartMillis));
-                }
-                checkSuccess(getAllNamespacesResultProto.getStatus());
-
-                // Populate schema map
-                List<SchemaTypeConfigProto> schemaProtoTypesList = schemaProto.getTypesList();
-                for (int i = 0; i < schemaProtoTypesList.size(); i++) {
-                    SchemaTypeConfigProto schema = schemaProtoTypesList.get(i);
-                    String prefixedSchemaType = schema.getSchemaType();
-                    addToMap(mSchemaMapLocked, getPrefix(prefixedSchemaType), schema);
+                prepareDerivedMapsStartMillis = prepareSchemaAndNamespacesLatencyStartMillis;
+                cachedVisibilityDocuments =
+                        restoreFromInitSnapshotLocked(initializeResultProto, initStatsBuilder);
+                if (cachedVisibilityDocuments == null) {
+                    populateDerivedMapsFromIcingLocked(
+                            initStatsBuilder, prepareSchemaAndNamespacesLatencyStartMillis);
                 }
 
-                // Populate namespace map
-                List<String> prefixedNamespaceList =
-                        getAllNamespacesResultProto.getNamespacesList();
-                for (int i = 0; i < prefixedNamespaceList.size(); i++) {
-                    String prefixedNamespace = prefixedNamespaceList.get(i);
-                    addToMap(mNamespaceMapLocked, getPrefix(prefixedNamespace), prefixedNamespace);
-                }
-
-                // Populate document count map
-                rebuildDocumentCountMapLocked(storageInfoProto);
-
                 // logging prepare_schema_and_namespaces latency
                 if (initStatsBuilder != null) {
                     initStatsBuilder.setPrepareSchemaAndNamespacesLatencyMillis(
@@ -391,11 +492,16 @@ public final class AppSearchImpl implements Closeable {
                 if (initStatsBuilder != null) {
                     initStatsBuilder.setStatusCode(e.getResultCode());
                 }
+                cachedVisibilityDocuments = null;
                 resetLocked(initStatsBuilder);
             }
 
             long prepareVisibilityStoreLatencyStartMillis = SystemClock.elapsedRealtime();
-            mVisibilityStoreLocked = new VisibilityStore(this);
+            if (cachedVisibilityDocuments != null) {
+                mVisibilityStoreLocked = new VisibilityStore(this, cachedVisibilityDocuments);
+            } else {
+                mVisibilityStoreLocked = new VisibilityStore(this);
+            }
             long prepareVisibilityStoreLatencyEndMillis = SystemClock.elapsedRealtime();
             if (initStatsBuilder != null) {
                 initStatsBuilder.setPrepareVisibilityStoreLatencyMillis(
@@ -403,11 +509,330 @@ public final class AppSearchImpl implements Closeable {
                                 (prepareVisibilityStoreLatencyEndMillis
                                         - prepareVisibilityStoreLatencyStartMillis));
             }
+
+            int prepareDerivedMapsLatencyMillis =
+                    (int) (prepareVisibilityStoreLatencyEndMillis - prepareDerivedMapsStartMillis);
+            if (cachedVisibilityDocuments == null) {
+                mRebuildDerivedMapsLatencyMillisLocked = prepareDerivedMapsLatencyMillis;
+            } else if (initStatsBuilder != null) {
+                initStatsBuilder.setInitSnapshotTimeSavedMillis(
+                        Math.max(
+                                0,
+                                mRebuildDerivedMapsLatencyMillisLocked
+                                        - prepareDerivedMapsLatencyMillis));
+            }
         } finally {
             mReadWriteLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Reads the schema, namespaces and storage info from Icing and populates {@link
+     * #mSchemaMapLocked}, {@link #mNamespaceMapLocked} and {@link #mDocumentCountMapLocked}.
+     */
+    @GuardedBy("mReadWriteLock")
+    private void populateDerivedMapsFromIcingLocked(
+            @Nullable InitializeStats.Builder initStatsBuilder,
+            long prepareSchemaAndNamespacesLatencyStartMillis)
+            throws AppSearchException {
+        // Read all protos we need to construct AppSearchImpl's cache maps
+        SchemaProto schemaProto = getSchemaProtoLocked();
+
+        LogUtil.piiTrace(TAG, "init:getAllNamespaces, request");
+        GetAllNamespacesResultProto getAllNamespacesResultProto =
+                mIcingSearchEngineLocked.getAllNamespaces();
+        LogUtil.piiTrace(
+                TAG,
+                "init:getAllNamespaces, response",
+                getAllNamespacesResultProto.getNamespacesCount(),
+                getAllNamespacesResultProto);
+
+        StorageInfoProto storageInfoProto = getRawStorageInfoProto();
+
+        // Log the time it took to read the data that goes into the cache maps
+        if (initStatsBuilder != null) {
+            // In case there is some error for getAllNamespaces, we can still
+            // set the latency for preparation.
+            // If there is no error, the value will be overridden by the actual one later.
+            initStatsBuilder
+                    .setStatusCode(statusProtoToResultCode(getAllNamespacesResultProto.getStatus()))
+                    .setPrepareSchemaAndNamespacesLatencyMillis(
+                            (int)
+                                    (SystemClock.elapsedRealtime()
+                                            - prepareSchemaAndNamespacesLatencyStartMillis));
+        }
+        checkSuccess(getAllNamespacesResultProto.getStatus());
+
+        // Populate schema map
+        List<SchemaTypeConfigProto> schemaProtoTypesList = schemaProto.getTypesList();
+        for (int i = 0; i < schemaProtoTypesList.size(); i++) {
+            SchemaTypeConfigProto schema = schemaProtoTypesList.get(i);
+            String prefixedSchemaType = schema.getSchemaType();
+            addSchemaTypeLocked(getPrefix(prefixedSchemaType), schema);
+        }
+
+        // Populate namespace map
+        List<String> prefixedNamespaceList = getAllNamespacesResultProto.getNamespacesList();
+        for (int i = 0; i < prefixedNamespaceList.size(); i++) {
+            String prefixedNamespace = prefixedNamespaceList.get(i);
+            addToMap(mNamespaceMapLocked, getPrefix(prefixedNamespace), prefixedNamespace);
+        }
+
+        // Populate document count map
+        rebuildDocumentCountMapLocked(storageInfoProto);
+    }
+
+    /**
+     * Restores {@link #mSchemaMapLocked} and the visibility documents from the init snapshot, if
+     * there is one and it is consistent with the state Icing just initialized with. {@link
+     * #mNamespaceMapLocked} and {@link #mDocumentCountMapLocked} are still read from Icing.
+     *
+     * <p>A snapshot that can't be used is deleted, so it won't be retried on the next
+     * initialization.
+     *
+     * @return the visibility documents to build the {@link VisibilityStore} from, or {@code null}
+     *     if the derived maps must be read from Icing instead.
+     */
+    @GuardedBy("mReadWriteLock")
+    @Nullable
+    private List<VisibilityDocument> restoreFromInitSnapshotLocked(
+            @NonNull InitializeResultProto initializeResultProto,
+            @Nullable InitializeStats.Builder initStatsBuilder) {
+        if (mInitSnapshotFile == null) {
+            return null;
+        }
+
+        AppSearchInitSnapshot snapshot;
+        try {
+            snapshot = AppSearchInitSnapshot.read(mInitSnapshotFile);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read init snapshot, reading derived maps from Icing.", e);
+            if (initStatsBuilder != null) {
+                initStatsBuilder.setInitSnapshotStatus(
+                        InitializeStats.INIT_SNAPSHOT_STATUS_MISS_CORRUPTED);
+            }
+            deleteInitSnapshotLocked();
+            return null;
+        }
+        if (snapshot == null) {
+            return null;
+        }
+
+        // The snapshot is deleted by the first mutation after it was written, so it describes
+        // Icing's persisted state unless Icing had to recover from a crash or the code that wrote
+        // it stored visibility documents in another format.
+        InitializeStatsProto nativeInitStats = initializeResultProto.getInitializeStats();
+        List<VisibilityDocument> visibilityDocuments = null;
+        if (nativeInitStats.getDocumentStoreRecoveryCause().getNumber()
+                        == InitializeStats.RECOVERY_CAUSE_NONE
+                && nativeInitStats.getSchemaStoreRecoveryCause().getNumber()
+                        == InitializeStats.RECOVERY_CAUSE_NONE
+                && nativeInitStats.getDocumentStoreDataStatus().getNumber()
+                        == InitializeStats.DOCUMENT_STORE_DATA_STATUS_NO_DATA_LOSS
+                && nativeInitStats.getNumSchemaTypes() == snapshot.getSchema().getTypesCount()
+                && snapshot.getVisibilitySchemaVersion()
+                        == VisibilityDocument.SCHEMA_VERSION_LATEST) {
+            try {
+                visibilityDocuments = populateDerivedMapsFromSnapshotLocked(snapshot);
+            } catch (AppSearchException | RuntimeException e) {
+                Log.w(TAG, "Failed to restore init snapshot, reading derived maps from Icing.", e);
+            }
+        }
+
+        if (visibilityDocuments == null) {
+            mSchemaMapLocked.clear();
+            mPrefixIndexLocked.clear();
+            mPropertyConfigIndexLocked.clear();
+            mNamespaceMapLocked.clear();
+            mQueryPlanCache.clear();
+            mDocumentCountMapLocked.clear();
+            if (initStatsBuilder != null) {
+                initStatsBuilder.setInitSnapshotStatus(
+                        InitializeStats.INIT_SNAPSHOT_STATUS_MISS_INCONSISTENT);
+            }
+            deleteInitSnapshotLocked();
+            return null;
+        }
+
+        if (initStatsBuilder != null) {
+            initStatsBuilder.setInitSnapshotStatus(InitializeStats.INIT_SNAPSHOT_STATUS_HIT);
+        }
+        mInitSnapshotOnDiskLocked = true;
+        mInitSnapshotSchemaUnverifiedLocked = true;
+        mRebuildDerivedMapsLatencyMillisLocked = snapshot.getRebuildLatencyMillis();
+        return visibilityDocuments;
+    }
+
+    /**
+     * Populates the schema maps from the given snapshot, and the namespace and document count maps
+     * from Icing.
+     *
+     * @return the prefixed visibility documents stored in the snapshot.
+     */
+    @GuardedBy("mReadWriteLock")
+    @NonNull
+    private List<VisibilityDocument> populateDerivedMapsFromSnapshotLocked(
+            @NonNull AppSearchInitSnapshot snapshot) throws AppSearchException {
+        SchemaProto schemaProto = snapshot.getSchema();
+        for (int i = 0; i < schemaProto.getTypesCount(); i++) {
+            SchemaTypeConfigProto schema = schemaProto.getTypes(i);
+            addSchemaTypeLocked(getPrefix(schema.getSchemaType()), schema);
+        }
+
+        // Documents expire by TTL without a mutation going through us, so the namespaces and
+        // document counts are always read from Icing rather than kept in the snapshot.
+        LogUtil.piiTrace(TAG, "init:getAllNamespaces, request");
+        GetAllNamespacesResultProto getAllNamespacesResultProto =
+                mIcingSearchEngineLocked.getAllNamespaces();
+        LogUtil.piiTrace(
+                TAG,
+                "init:getAllNamespaces, response",
+                getAllNamespacesResultProto.getNamespacesCount(),
+                getAllNamespacesResultProto);
+        checkSuccess(getAllNamespacesResultProto.getStatus());
+        List<String> prefixedNamespaceList = getAllNamespacesResultProto.getNamespacesList();
+        for (int i = 0; i < prefixedNamespaceList.size(); i++) {
+            String prefixedNamespace = prefixedNamespaceList.get(i);
+            addToMap(mNamespaceMapLocked, getPrefix(prefixedNamespace), prefixedNamespace);
+        }
+
+        rebuildDocumentCountMapLocked(getRawStorageInfoProto());
+
+        String visibilityPrefix =
+                createPrefix(
+                        VisibilityStore.VISIBILITY_PACKAGE_NAME,
+                        VisibilityStore.VISIBILITY_DATABASE_NAME);
+        if (!mSchemaMapLocked.containsKey(visibilityPrefix)) {
+            throw new AppSearchException(
+                    RESULT_INTERNAL_ERROR, "Init snapshot is missing the visibility schema.");
+        }
+        List<DocumentProto> visibilityDocumentProtos = snapshot.getVisibilityDocuments();
+        List<VisibilityDocument> visibilityDocuments =
+                new ArrayList<>(visibilityDocumentProtos.size());
+        for (int i = 0; i < visibilityDocumentProtos.size(); i++) {
+            visibilityDocuments.add(
+                    new VisibilityDocument(
+                            GenericDocumentToProtoConverter.toGenericDocument(
+                                    visibilityDocumentProtos.get(i),
+                                    visibilityPrefix,
+                                    mPropertyConfigIndexLocked)));
+        }
+        return visibilityDocuments;
+    }
+
+    /**
+     * Writes a snapshot of the derived maps to {@link #mInitSnapshotFile}, unless the snapshot on
+     * disk is already up to date.
+     *
+     * <p>Must only be called right after a full persist, so the snapshot matches Icing's persisted
+     * state. Failures are logged but otherwise ignored; the next initialization will just read
+     * everything from Icing.
+     */
+    @GuardedBy("mReadWriteLock")
+    private void writeInitSnapshotLocked() {
+        if (mInitSnapshotFile == null
+                || mInitSnapshotOnDiskLocked
+                || mVisibilityStoreLocked == null) {
+            return;
+        }
+
+        SchemaProto.Builder schemaBuilder = SchemaProto.newBuilder();
+        for (Map<String, SchemaTypeConfigProto> schemaTypeMap : mSchemaMapLocked.values()) {
+            schemaBuilder.addAllTypes(schemaTypeMap.values());
+        }
+        List<VisibilityDocument> visibilityDocuments =
+                mVisibilityStoreLocked.getAllVisibilityDocuments();
+        List<DocumentProto> visibilityDocumentProtos = new ArrayList<>(visibilityDocuments.size());
+        for (int i = 0; i < visibilityDocuments.size(); i++) {
+            visibilityDocumentProtos.add(
+                    GenericDocumentToProtoConverter.toDocumentProto(visibilityDocuments.get(i)));
+        }
+
+        AppSearchInitSnapshot snapshot =
+                new AppSearchInitSnapshot(
+                        schemaBuilder.build(),
+                        VisibilityDocument.SCHEMA_VERSION_LATEST,
+                        visibilityDocumentProtos,
+                        mRebuildDerivedMapsLatencyMillisLocked);
+        try {
+            snapshot.write(mInitSnapshotFile);
+            mInitSnapshotOnDiskLocked = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write init snapshot.", e);
+        }
+    }
+
+    /**
+     * Deletes the init snapshot if it is on disk. Must be called before any mutation, since the
+     * snapshot would no longer match Icing afterwards.
+     *
+     * @throws AppSearchException if the snapshot can't be deleted, in which case the mutation must
+     *     not go ahead: the snapshot would be restored on the next initialization.
+     */
+    @GuardedBy("mReadWriteLock")
+    private void invalidateInitSnapshotLocked() throws AppSearchException {
+        if (mInitSnapshotOnDiskLocked && !deleteInitSnapshotLocked()) {
+            throw new AppSearchException(
+                    RESULT_IO_ERROR, "Failed to delete stale init snapshot " + mInitSnapshotFile);
+        }
+    }
+
+    /**
+     * Deletes the init snapshot file if there is one.
+     *
+     * <p>If it can't be deleted, it stays marked as on disk so the next mutation retries, and
+     * fails, before changing Icing.
+     *
+     * @return whether no snapshot is left on disk.
+     */
+    @GuardedBy("mReadWriteLock")
+    private boolean deleteInitSnapshotLocked() {
+        if (mInitSnapshotFile == null
+                || !mInitSnapshotFile.exists()
+                || mInitSnapshotFile.delete()) {
+            mInitSnapshotOnDiskLocked = false;
+            return true;
+        }
+        Log.e(TAG, "Failed to delete stale init snapshot " + mInitSnapshotFile);
+        mInitSnapshotOnDiskLocked = true;
+        return false;
+    }
+
+    /**
+     * Compares {@link #mSchemaMapLocked}, restored from the init snapshot, with the schema Icing
+     * returned, and rebuilds it from Icing's schema if they disagree.
+     */
+    @GuardedBy("mReadWriteLock")
+    private void verifyInitSnapshotSchemaLocked(@NonNull SchemaProto icingSchema)
+            throws AppSearchException {
+        mInitSnapshotSchemaUnverifiedLocked = false;
+        int cachedTypeCount = 0;
+        for (Map<String, SchemaTypeConfigProto> schemaTypeMap : mSchemaMapLocked.values()) {
+            cachedTypeCount += schemaTypeMap.size();
+        }
+        boolean matches = cachedTypeCount == icingSchema.getTypesCount();
+        for (int i = 0; matches && i < icingSchema.getTypesCount(); i++) {
+            SchemaTypeConfigProto schema = icingSchema.getTypes(i);
+            Map<String, SchemaTypeConfigProto> schemaTypeMap =
+                    mSchemaMapLocked.get(getPrefix(schema.getSchemaType()));
+            matches =
+                    schemaTypeMap != null
+                            && schema.equals(schemaTypeMap.get(schema.getSchemaType()));
+        }
+        if (matches) {
+            return;
+        }
+
+        Log.w(TAG, "Schema restored from init snapshot doesn't match Icing, rebuilding it.");
+        mSchemaMapLocked.clear();
+        mPrefixIndexLocked.clear();
+        mPropertyConfigIndexLocked.clear();
+        for (int i = 0; i < icingSchema.getTypesCount(); i++) {
+            SchemaTypeConfigProto schema = icingSchema.getTypes(i);
+            addSchemaTypeLocked(getPrefix(schema.getSchemaType()), schema);
+        }
+    }
+
     @GuardedBy("mReadWriteLock")
     private void throwIfClosedLocked() {
         if (mClosedLocked) {
@@ -415,6 +840,25 @@ public final class AppSearchImpl implements Closeable {
         }
     }
 
+    /**
+     * Acquires the read lock, recording how long it took.
+     *
+     * <p>This doesn't try {@code tryLock()} first: unlike {@code lock()}, it lets a reader barge
+     * past a queued writer, which a steady stream of queries could then starve.
+     */
+    private void acquireReadLock() {
+        long startMillis = SystemClock.elapsedRealtime();
+        mReadWriteLock.readLock().lock();
+        mReadLockWaitHistogram.record(SystemClock.elapsedRealtime() - startMillis);
+    }
+
+    /** Acquires the write lock, recording how long it took. */
+    private void acquireWriteLock() {
+        long startMillis = SystemClock.elapsedRealtime();
+        mReadWriteLock.writeLock().lock();
+        mWriteLockWaitHistogram.record(SystemClock.elapsedRealtime() - startMillis);
+    }
+
     /**
      * Persists data to disk and closes the instance.
      *
@@ -423,7 +867,7 @@ public final class AppSearchImpl implements Closeable {
      */
     @Override
     public void close() {
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             if (mClosedLocked) {
                 return;
@@ -472,9 +916,10 @@ public final class AppSearchImpl implements Closeable {
             int version,
             @Nullable SetSchemaStats.Builder setSchemaStatsBuilder)
             throws AppSearchException {
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             throwIfClosedLocked();
+            mQueryResultCache.onMutation(createPrefix(packageName, databaseName));
             if (mObserverManager.isPackageObserved(packageName)) {
                 return doSetSchemaWithChangeNotificationLocked(
                         packageName,
@@ -680,7 +1125,9 @@ public final class AppSearchImpl implements Closeable {
             int version,
             @Nullable SetSchemaStats.Builder setSchemaStatsBuilder)
             throws AppSearchException {
-        SchemaProto.Builder existingSchemaBuilder = getSchemaProtoLocked().toBuilder();
+        if (mInitSnapshotSchemaUnverifiedLocked) {
+            verifyInitSnapshotSchemaLocked(getSchemaProtoLocked());
+        }
 
         SchemaProto.Builder newSchemaBuilder = SchemaProto.newBuilder();
         for (int i = 0; i < schemas.size(); i++) {
@@ -689,16 +1136,32 @@ public final class AppSearchImpl implements Closeable {
                     SchemaToProtoConverter.toSchemaTypeConfigProto(schema, version);
             newSchemaBuilder.addTypes(schemaTypeProto);
         }
+        SchemaProto newSchema = newSchemaBuilder.build();
 
         String prefix = createPrefix(packageName, databaseName);
+        // Apps set the same schema on every start. If neither this prefix's types nor their
+        // visibility changed, there is nothing to send to Icing.
+        if (isSchemaUnchangedLocked(prefix, addPrefixToSchemaTypes(prefix, newSchema),
+                visibilityDocuments)) {
+            if (setSchemaStatsBuilder != null) {
+                setSchemaStatsBuilder.setStatusCode(AppSearchResult.RESULT_OK);
+            }
+            return new SetSchemaResponse.Builder().build();
+        }
+        invalidateInitSnapshotLocked();
+
         // Combine the existing schema (which may have types from other prefixes) with this
         // prefix's new schema. Modifies the existingSchemaBuilder.
+        SchemaProto.Builder existingSchemaBuilder = getSchemaProtoLocked().toBuilder();
         RewrittenSchemaResults rewrittenSchemaResults =
-                rewriteSchema(prefix, existingSchemaBuilder, newSchemaBuilder.build());
+                rewriteSchema(prefix, existingSchemaBuilder, newSchema);
 
         // Apply schema
         SchemaProto finalSchema = existingSchemaBuilder.build();
         LogUtil.piiTrace(TAG, "setSchema, request", finalSchema.getTypesCount(), finalSchema);
+        // Icing may have applied part of the schema if the call fails, so don't trust the cache
+        // until it succeeds.
+        mSchemaProtoCacheLocked = null;
         SetSchemaResultProto setSchemaResultProto =
                 mIcingSearchEngineLocked.setSchema(finalSchema, forceOverride);
         LogUtil.piiTrace(
@@ -731,13 +1194,14 @@ public final class AppSearchImpl implements Closeable {
         }
 
         // Update derived data structures.
+        mSchemaProtoCacheLocked = finalSchema;
         for (SchemaTypeConfigProto schemaTypeConfigProto :
                 rewrittenSchemaResults.mRewrittenPrefixedTypes.values()) {
-            addToMap(mSchemaMapLocked, prefix, schemaTypeConfigProto);
+            addSchemaTypeLocked(prefix, schemaTypeConfigProto);
         }
 
         for (String schemaType : rewrittenSchemaResults.mDeletedPrefixedTypes) {
-            removeFromMap(mSchemaMapLocked, prefix, schemaType);
+            removeSchemaTypeLocked(prefix, schemaType);
         }
         // Since the constructor of VisibilityStore will set schema. Avoid call visibility
         // store before we have already created it.
@@ -769,6 +1233,7 @@ public final class AppSearchImpl implements Closeable {
             deprecatedVisibilityDocuments.addAll(rewrittenSchemaResults.mDeletedPrefixedTypes);
             mVisibilityStoreLocked.removeVisibility(deprecatedVisibilityDocuments);
             mVisibilityStoreLocked.setVisibility(prefixedVisibilityDocuments);
+            mQueryPlanCache.clear();
         }
         return SetSchemaResponseToProtoConverter.toSetSchemaResponse(setSchemaResultProto, prefix);
     }
@@ -789,23 +1254,20 @@ public final class AppSearchImpl implements Closeable {
             @NonNull String databaseName,
             @NonNull CallerAccess callerAccess)
             throws AppSearchException {
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
 
-            SchemaProto fullSchema = getSchemaProtoLocked();
             String prefix = createPrefix(packageName, databaseName);
             GetSchemaResponse.Builder responseBuilder = new GetSchemaResponse.Builder();
-            for (int i = 0; i < fullSchema.getTypesCount(); i++) {
-                // Check that this type belongs to the requested app and that the caller has
-                // access to it.
-                SchemaTypeConfigProto typeConfig = fullSchema.getTypes(i);
+            // Only the requested database's slice of the schema needs to be looked at.
+            Map<String, SchemaTypeConfigProto> schemaTypeMap = mSchemaMapLocked.get(prefix);
+            if (schemaTypeMap == null) {
+                return responseBuilder.build();
+            }
+            for (SchemaTypeConfigProto typeConfig : schemaTypeMap.values()) {
+                // Check that the caller has access to this type.
                 String prefixedSchemaType = typeConfig.getSchemaType();
-                String typePrefix = getPrefix(prefixedSchemaType);
-                if (!prefix.equals(typePrefix)) {
-                    // This schema type doesn't belong to the database we're querying for.
-                    continue;
-                }
                 if (!VisibilityUtil.isSchemaSearchableByCaller(
                         callerAccess,
                         packageName,
@@ -830,7 +1292,7 @@ public final class AppSearchImpl implements Closeable {
                 // Populate visibility info. Since the constructor of VisibilityStore will get
                 // schema. Avoid call visibility store before we have already created it.
                 if (mVisibilityStoreLocked != null) {
-                    String typeName = typeConfig.getSchemaType().substring(typePrefix.length());
+                    String typeName = prefixedSchemaType.substring(prefix.length());
                     VisibilityDocument visibilityDocument =
                             mVisibilityStoreLocked.getVisibility(prefixedSchemaType);
                     if (visibilityDocument != null) {
@@ -881,7 +1343,7 @@ public final class AppSearchImpl implements Closeable {
     @NonNull
     public List<String> getNamespaces(@NonNull String packageName, @NonNull String databaseName)
             throws AppSearchException {
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
             LogUtil.piiTrace(TAG, "getAllNamespaces, request");
@@ -935,22 +1397,18 @@ public final class AppSearchImpl implements Closeable {
         }
         long totalStartTimeMillis = SystemClock.elapsedRealtime();
 
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             throwIfClosedLocked();
+            invalidateInitSnapshotLocked();
+            mQueryResultCache.onMutation(createPrefix(packageName, databaseName));
 
-            // Generate Document Proto
+            // Generate Document Proto. Types and namespaces are prefixed during the conversion.
             long generateDocumentProtoStartTimeMillis = SystemClock.elapsedRealtime();
-            DocumentProto.Builder documentBuilder =
-                    GenericDocumentToProtoConverter.toDocumentProto(document).toBuilder();
-            long generateDocumentProtoEndTimeMillis = SystemClock.elapsedRealtime();
-
-            // Rewrite Document Type
-            long rewriteDocumentTypeStartTimeMillis = SystemClock.elapsedRealtime();
             String prefix = createPrefix(packageName, databaseName);
-            addPrefixToDocument(documentBuilder, prefix);
-            long rewriteDocumentTypeEndTimeMillis = SystemClock.elapsedRealtime();
-            DocumentProto finalDocument = documentBuilder.build();
+            DocumentProto finalDocument =
+                    GenericDocumentToProtoConverter.toDocumentProto(document, prefix);
+            long generateDocumentProtoEndTimeMillis = SystemClock.elapsedRealtime();
 
             // Check limits
             int newDocumentCount =
@@ -964,7 +1422,10 @@ public final class AppSearchImpl implements Closeable {
                     TAG, "putDocument, response", putResultProto.getStatus(), putResultProto);
 
             // Update caches
-            addToMap(mNamespaceMapLocked, prefix, finalDocument.getNamespace());
+            if (addToMap(mNamespaceMapLocked, prefix, finalDocument.getNamespace())) {
+                // Cached query plans don't search the new namespace.
+                mQueryPlanCache.clear();
+            }
             mDocumentCountMapLocked.put(packageName, newDocumentCount);
 
             // Logging stats
@@ -975,10 +1436,12 @@ public final class AppSearchImpl implements Closeable {
                                 (int)
                                         (generateDocumentProtoEndTimeMillis
                                                 - generateDocumentProtoStartTimeMillis))
+                        // The rewrite is no longer a separate step, so report the prefixing
+                        // conversion as that phase too, rather than a meaningless 0.
                         .setRewriteDocumentTypesLatencyMillis(
                                 (int)
-                                        (rewriteDocumentTypeEndTimeMillis
-                                                - rewriteDocumentTypeStartTimeMillis));
+                                        (generateDocumentProtoEndTimeMillis
+                                                - generateDocumentProtoStartTimeMillis));
                 AppSearchLoggerHelper.copyNativeStats(
                         putResultProto.getPutDocumentStats(), pStatsBuilder);
             }
@@ -1101,37 +1564,21 @@ public final class AppSearchImpl implements Closeable {
             @NonNull Map<String, List<String>> typePropertyPaths,
             @NonNull CallerAccess callerAccess)
             throws AppSearchException {
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
-            // We retrieve the document before checking for access, as we do not know which
-            // schema the document is under. Schema is required for checking access
-            DocumentProto documentProto;
-            try {
-                documentProto =
-                        getDocumentProtoByIdLocked(
-                                packageName, databaseName, namespace, id, typePropertyPaths);
-
-                if (!VisibilityUtil.isSchemaSearchableByCaller(
-                        callerAccess,
-                        packageName,
-                        documentProto.getSchema(),
-                        mVisibilityStoreLocked,
-                        mVisibilityCheckerLocked)) {
-                    throw new AppSearchException(AppSearchResult.RESULT_NOT_FOUND);
-                }
-            } catch (AppSearchException e) {
-                throw new AppSearchException(
-                        AppSearchResult.RESULT_NOT_FOUND,
-                        "Document (" + namespace + ", " + id + ") not found.");
-            }
-
-            DocumentProto.Builder documentBuilder = documentProto.toBuilder();
-            removePrefixesFromDocument(documentBuilder);
             String prefix = createPrefix(packageName, databaseName);
-            Map<String, SchemaTypeConfigProto> schemaTypeMap = mSchemaMapLocked.get(prefix);
-            return GenericDocumentToProtoConverter.toGenericDocument(
-                    documentBuilder.build(), prefix, schemaTypeMap);
+            DocumentProto documentProto =
+                    globalGetDocumentProtoByIdLocked(
+                            packageName,
+                            prefix,
+                            namespace,
+                            id,
+                            createGetResultSpec(prefix, typePropertyPaths),
+                            callerAccess,
+                            /*schemaVisibilities=*/ new ArrayMap<>());
+            return GenericDocumentToProtoConverter.toUnprefixedGenericDocument(
+                    documentProto, prefix, mPropertyConfigIndexLocked);
         } finally {
             mReadWriteLock.readLock().unlock();
         }
@@ -1159,49 +1606,197 @@ public final class AppSearchImpl implements Closeable {
             @NonNull String id,
             @NonNull Map<String, List<String>> typePropertyPaths)
             throws AppSearchException {
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
+            String prefix = createPrefix(packageName, databaseName);
             DocumentProto documentProto =
                     getDocumentProtoByIdLocked(
-                            packageName, databaseName, namespace, id, typePropertyPaths);
-            DocumentProto.Builder documentBuilder = documentProto.toBuilder();
-            removePrefixesFromDocument(documentBuilder);
-
-            String prefix = createPrefix(packageName, databaseName);
-            // The schema type map cannot be null at this point. It could only be null if no
-            // schema had ever been set for that prefix. Given we have retrieved a document from
-            // the index, we know a schema had to have been set.
-            Map<String, SchemaTypeConfigProto> schemaTypeMap = mSchemaMapLocked.get(prefix);
-            return GenericDocumentToProtoConverter.toGenericDocument(
-                    documentBuilder.build(), prefix, schemaTypeMap);
+                            prefix,
+                            namespace,
+                            id,
+                            createGetResultSpec(prefix, typePropertyPaths));
+            return GenericDocumentToProtoConverter.toUnprefixedGenericDocument(
+                    documentProto, prefix, mPropertyConfigIndexLocked);
         } finally {
             mReadWriteLock.readLock().unlock();
         }
     }
 
     /**
-     * Returns a DocumentProto from Icing.
+     * Retrieves documents from the AppSearch index by namespace and document ID.
      *
-     * @param packageName The package that owns this document.
-     * @param databaseName The databaseName this document resides in.
-     * @param namespace The namespace this document resides in.
-     * @param id The ID of the document to get.
+     * <p>This is equivalent to calling {@link #getDocument} for each ID, except that the lock is
+     * only taken once and the projection is only built once for the whole batch.
+     *
+     * <p>This method belongs to query group.
+     *
+     * @param packageName The package that owns the documents.
+     * @param databaseName The databaseName the documents reside in.
+     * @param namespace The namespace the documents reside in.
+     * @param ids The IDs of the documents to get.
      * @param typePropertyPaths A map of schema type to a list of property paths to return in the
      *     result.
-     * @return the DocumentProto object
-     * @throws AppSearchException on IcingSearchEngine error
+     * @return The documents keyed by ID, and the failure of each ID that couldn't be retrieved.
+     * @throws IllegalStateException if this instance has been closed.
      */
     @NonNull
-    @GuardedBy("mReadWriteLock")
-    private DocumentProto getDocumentProtoByIdLocked(
+    public AppSearchBatchResult<String, GenericDocument> getDocuments(
+            @NonNull String packageName,
+            @NonNull String databaseName,
+            @NonNull String namespace,
+            @NonNull List<String> ids,
+            @NonNull Map<String, List<String>> typePropertyPaths) {
+        return getDocumentsInternal(
+                packageName,
+                databaseName,
+                namespace,
+                ids,
+                typePropertyPaths,
+                /*callerAccess=*/ null);
+    }
+
+    /**
+     * Retrieves documents from the AppSearch index by namespace and document ID from any
+     * application the caller is allowed to view.
+     *
+     * <p>This is equivalent to calling {@link #globalGetDocument} for each ID, except that the lock
+     * is only taken once, the projection is only built once for the whole batch, and visibility is
+     * only checked once per schema type.
+     *
+     * @param packageName The package that owns the documents.
+     * @param databaseName The databaseName the documents reside in.
+     * @param namespace The namespace the documents reside in.
+     * @param ids The IDs of the documents to get.
+     * @param typePropertyPaths A map of schema type to a list of property paths to return in the
+     *     result.
+     * @param callerAccess Visibility access info of the calling app
+     * @return The documents keyed by ID, and the failure of each ID that couldn't be retrieved.
+     * @throws IllegalStateException if this instance has been closed.
+     */
+    @NonNull
+    public AppSearchBatchResult<String, GenericDocument> globalGetDocuments(
             @NonNull String packageName,
             @NonNull String databaseName,
             @NonNull String namespace,
+            @NonNull List<String> ids,
+            @NonNull Map<String, List<String>> typePropertyPaths,
+            @NonNull CallerAccess callerAccess) {
+        Objects.requireNonNull(callerAccess);
+        return getDocumentsInternal(
+                packageName, databaseName, namespace, ids, typePropertyPaths, callerAccess);
+    }
+
+    /**
+     * Retrieves a batch of documents, checking their visibility to the caller if {@code
+     * callerAccess} is not null.
+     */
+    @NonNull
+    private AppSearchBatchResult<String, GenericDocument> getDocumentsInternal(
+            @NonNull String packageName,
+            @NonNull String databaseName,
+            @NonNull String namespace,
+            @NonNull List<String> ids,
+            @NonNull Map<String, List<String>> typePropertyPaths,
+            @Nullable CallerAccess callerAccess) {
+        AppSearchBatchResult.Builder<String, GenericDocument> resultBuilder =
+                new AppSearchBatchResult.Builder<>();
+        String prefix = createPrefix(packageName, databaseName);
+        GetResultSpecProto getResultSpec = createGetResultSpec(prefix, typePropertyPaths);
+        // Whether each prefixed schema type seen in the batch is visible to the caller.
+        Map<String, Boolean> schemaVisibilities = new ArrayMap<>();
+
+        acquireReadLock();
+        try {
+            throwIfClosedLocked();
+            for (int i = 0; i < ids.size(); i++) {
+                String id = ids.get(i);
+                try {
+                    DocumentProto documentProto;
+                    if (callerAccess == null) {
+                        documentProto =
+                                getDocumentProtoByIdLocked(prefix, namespace, id, getResultSpec);
+                    } else {
+                        documentProto =
+                                globalGetDocumentProtoByIdLocked(
+                                        packageName,
+                                        prefix,
+                                        namespace,
+                                        id,
+                                        getResultSpec,
+                                        callerAccess,
+                                        schemaVisibilities);
+                    }
+                    resultBuilder.setSuccess(
+                            id,
+                            GenericDocumentToProtoConverter.toUnprefixedGenericDocument(
+                                    documentProto, prefix, mPropertyConfigIndexLocked));
+                } catch (AppSearchException | RuntimeException e) {
+                    resultBuilder.setResult(id, throwableToFailedResult(e));
+                }
+            }
+        } finally {
+            mReadWriteLock.readLock().unlock();
+        }
+        return resultBuilder.build();
+    }
+
+    /**
+     * Returns a DocumentProto from Icing, or throws RESULT_NOT_FOUND if the caller isn't allowed
+     * to view it.
+     *
+     * @param schemaVisibilities A cache of whether prefixed schema types are visible to the
+     *     caller, shared by the calls for a batch of documents.
+     */
+    @NonNull
+    @GuardedBy("mReadWriteLock")
+    private DocumentProto globalGetDocumentProtoByIdLocked(
+            @NonNull String packageName,
+            @NonNull String prefix,
+            @NonNull String namespace,
             @NonNull String id,
-            @NonNull Map<String, List<String>> typePropertyPaths)
+            @NonNull GetResultSpecProto getResultSpec,
+            @NonNull CallerAccess callerAccess,
+            @NonNull Map<String, Boolean> schemaVisibilities)
             throws AppSearchException {
-        String prefix = createPrefix(packageName, databaseName);
+        // We retrieve the document before checking for access, as we do not know which
+        // schema the document is under. Schema is required for checking access
+        try {
+            DocumentProto documentProto =
+                    getDocumentProtoByIdLocked(prefix, namespace, id, getResultSpec);
+            String prefixedSchema = documentProto.getSchema();
+            Boolean isVisible = schemaVisibilities.get(prefixedSchema);
+            if (isVisible == null) {
+                isVisible =
+                        VisibilityUtil.isSchemaSearchableByCaller(
+                                callerAccess,
+                                packageName,
+                                prefixedSchema,
+                                mVisibilityStoreLocked,
+                                mVisibilityCheckerLocked);
+                schemaVisibilities.put(prefixedSchema, isVisible);
+            }
+            if (!isVisible) {
+                throw new AppSearchException(AppSearchResult.RESULT_NOT_FOUND);
+            }
+            return documentProto;
+        } catch (AppSearchException e) {
+            throw new AppSearchException(
+                    AppSearchResult.RESULT_NOT_FOUND,
+                    "Document (" + namespace + ", " + id + ") not found.");
+        }
+    }
+
+    /**
+     * Returns the {@link GetResultSpecProto} projecting documents of the given prefix.
+     *
+     * @param prefix The prefix of the package and database the documents reside in.
+     * @param typePropertyPaths A map of schema type to a list of property paths to return in the
+     *     result.
+     */
+    @NonNull
+    private static GetResultSpecProto createGetResultSpec(
+            @NonNull String prefix, @NonNull Map<String, List<String>> typePropertyPaths) {
         List<TypePropertyMask.Builder> nonPrefixedPropertyMaskBuilders =
                 TypePropertyPathToProtoConverter.toTypePropertyMaskBuilderList(typePropertyPaths);
         List<TypePropertyMask> prefixedPropertyMasks =
@@ -1215,12 +1810,30 @@ public final class AppSearchImpl implements Closeable {
             prefixedPropertyMasks.add(
                     nonPrefixedPropertyMaskBuilders.get(i).setSchemaType(prefixedType).build());
         }
-        GetResultSpecProto getResultSpec =
-                GetResultSpecProto.newBuilder()
-                        .addAllTypePropertyMasks(prefixedPropertyMasks)
-                        .build();
+        return GetResultSpecProto.newBuilder()
+                .addAllTypePropertyMasks(prefixedPropertyMasks)
+                .build();
+    }
 
-        String finalNamespace = createPrefix(packageName, databaseName) + namespace;
+    /**
+     * Returns a DocumentProto from Icing.
+     *
+     * @param prefix The prefix of the package and database this document resides in.
+     * @param namespace The namespace this document resides in.
+     * @param id The ID of the document to get.
+     * @param getResultSpec The projection to apply, created by {@link #createGetResultSpec}.
+     * @return the DocumentProto object
+     * @throws AppSearchException on IcingSearchEngine error
+     */
+    @NonNull
+    @GuardedBy("mReadWriteLock")
+    private DocumentProto getDocumentProtoByIdLocked(
+            @NonNull String prefix,
+            @NonNull String namespace,
+            @NonNull String id,
+            @NonNull GetResultSpecProto getResultSpec)
+            throws AppSearchException {
+        String finalNamespace = prefix + namespace;
         if (LogUtil.isPiiTraceEnabled()) {
             LogUtil.piiTrace(
                     TAG, "getDocument, request", finalNamespace + ", " + id + "," + getResultSpec);
@@ -1255,6 +1868,36 @@ public final class AppSearchImpl implements Closeable {
             @NonNull SearchSpec searchSpec,
             @Nullable AppSearchLogger logger)
             throws AppSearchException {
+        return query(
+                packageName,
+                databaseName,
+                queryExpression,
+                searchSpec,
+                /*cancellationSignal=*/ null,
+                logger);
+    }
+
+    /**
+     * Executes a query against the AppSearch index and returns results, unless it is cancelled
+     * first.
+     *
+     * <p>This method belongs to query group.
+     *
+     * @param cancellationSignal Signal checked before the query is sent to Icing and while its
+     *     results are converted. Once it is cancelled, the query is abandoned and any result state
+     *     it holds in Icing is released.
+     * @throws OperationCanceledException if the query was cancelled.
+     * @see #query(String, String, String, SearchSpec, AppSearchLogger)
+     */
+    @NonNull
+    public SearchResultPage query(
+            @NonNull String packageName,
+            @NonNull String databaseName,
+            @NonNull String queryExpression,
+            @NonNull SearchSpec searchSpec,
+            @Nullable CancellationSignal cancellationSignal,
+            @Nullable AppSearchLogger logger)
+            throws AppSearchException {
         long totalLatencyStartMillis = SystemClock.elapsedRealtime();
         SearchStats.Builder sStatsBuilder = null;
         if (logger != null) {
@@ -1263,7 +1906,7 @@ public final class AppSearchImpl implements Closeable {
                             .setDatabase(databaseName);
         }
 
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
 
@@ -1278,21 +1921,56 @@ public final class AppSearchImpl implements Closeable {
             }
 
             String prefix = createPrefix(packageName, databaseName);
-            SearchSpecToProtoConverter searchSpecToProtoConverter =
-                    new SearchSpecToProtoConverter(
+            QueryResultCache.Key resultCacheKey = null;
+            if (mQueryResultCache.isEnabled()) {
+                resultCacheKey =
+                        mQueryResultCache.createKey(prefix, prefix, queryExpression, searchSpec);
+                SearchResultPage cachedPage =
+                        getCachedSearchResultPageLocked(resultCacheKey, sStatsBuilder);
+                if (cachedPage != null) {
+                    return cachedPage;
+                }
+            }
+
+            long rewriteSearchSpecLatencyStartMillis = SystemClock.elapsedRealtime();
+            QueryPlanCache.QueryPlan queryPlan =
+                    mQueryPlanCache.get(
+                            prefix,
                             searchSpec,
-                            Collections.singleton(prefix),
-                            mNamespaceMapLocked,
-                            mSchemaMapLocked);
-            if (searchSpecToProtoConverter.isNothingToSearch()) {
+                            /*maxAgeMillis=*/ Long.MAX_VALUE,
+                            rewriteSearchSpecLatencyStartMillis);
+            if (queryPlan == null) {
+                SearchSpecToProtoConverter searchSpecToProtoConverter =
+                        new SearchSpecToProtoConverter(
+                                searchSpec,
+                                Collections.singleton(prefix),
+                                mNamespaceMapLocked,
+                                mSchemaMapLocked);
+                queryPlan =
+                        QueryPlanCache.QueryPlan.create(
+                                searchSpecToProtoConverter,
+                                mNamespaceMapLocked,
+                                rewriteSearchSpecLatencyStartMillis);
+                mQueryPlanCache.put(prefix, searchSpec, queryPlan);
+            }
+            if (queryPlan.isNothingToSearch()) {
                 // there is nothing to search over given their search filters, so we can return an
                 // empty SearchResult and skip sending request to Icing.
                 return new SearchResultPage(Bundle.EMPTY);
             }
 
             SearchResultPage searchResultPage =
-                    doQueryLocked(queryExpression, searchSpecToProtoConverter, sStatsBuilder);
-            addNextPageToken(packageName, searchResultPage.getNextPageToken());
+                    doQueryLocked(
+                            queryExpression,
+                            queryPlan,
+                            searchSpec.getResultMode(),
+                            rewriteSearchSpecLatencyStartMillis,
+                            resultCacheKey,
+                            /*sharded=*/ false,
+                            cancellationSignal,
+                            sStatsBuilder);
+            addNextPageToken(
+                    packageName, searchResultPage.getNextPageToken(), searchSpec.getResultMode());
             return searchResultPage;
         } finally {
             mReadWriteLock.readLock().unlock();
@@ -1325,6 +2003,30 @@ public final class AppSearchImpl implements Closeable {
             @NonNull CallerAccess callerAccess,
             @Nullable AppSearchLogger logger)
             throws AppSearchException {
+        return globalQuery(
+                queryExpression, searchSpec, callerAccess, /*cancellationSignal=*/ null, logger);
+    }
+
+    /**
+     * Executes a global query, i.e. over all permitted prefixes, against the AppSearch index and
+     * returns results, unless it is cancelled first.
+     *
+     * <p>This method belongs to query group.
+     *
+     * @param cancellationSignal Signal checked before the query is sent to Icing and while its
+     *     results are converted. Once it is cancelled, the query is abandoned and any result state
+     *     it holds in Icing is released.
+     * @throws OperationCanceledException if the query was cancelled.
+     * @see #globalQuery(String, SearchSpec, CallerAccess, AppSearchLogger)
+     */
+    @NonNull
+    public SearchResultPage globalQuery(
+            @NonNull String queryExpression,
+            @NonNull SearchSpec searchSpec,
+            @NonNull CallerAccess callerAccess,
+            @Nullable CancellationSignal cancellationSignal,
+            @Nullable AppSearchLogger logger)
+            throws AppSearchException {
         long totalLatencyStartMillis = SystemClock.elapsedRealtime();
         SearchStats.Builder sStatsBuilder = null;
         if (logger != null) {
@@ -1334,42 +2036,54 @@ public final class AppSearchImpl implements Closeable {
                             callerAccess.getCallingPackageName());
         }
 
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
 
-            // Convert package filters to prefix filters
-            Set<String> packageFilters = new ArraySet<>(searchSpec.getFilterPackageNames());
-            Set<String> prefixFilters = new ArraySet<>();
-            if (packageFilters.isEmpty()) {
-                // Client didn't restrict their search over packages. Try to query over all
-                // packages/prefixes
-                prefixFilters = mNamespaceMapLocked.keySet();
-            } else {
-                // Client did restrict their search over packages. Only include the prefixes that
-                // belong to the specified packages.
-                for (String prefix : mNamespaceMapLocked.keySet()) {
-                    String packageName = getPackageName(prefix);
-                    if (packageFilters.contains(packageName)) {
-                        prefixFilters.add(prefix);
-                    }
+            QueryResultCache.Key resultCacheKey = null;
+            if (mQueryResultCache.isEnabled()) {
+                resultCacheKey =
+                        mQueryResultCache.createKey(
+                                callerAccess, /*prefix=*/ null, queryExpression, searchSpec);
+                SearchResultPage cachedPage =
+                        getCachedSearchResultPageLocked(resultCacheKey, sStatsBuilder);
+                if (cachedPage != null) {
+                    return cachedPage;
                 }
             }
-            SearchSpecToProtoConverter searchSpecToProtoConverter =
-                    new SearchSpecToProtoConverter(
-                            searchSpec, prefixFilters, mNamespaceMapLocked, mSchemaMapLocked);
-            // Remove those inaccessible schemas.
-            searchSpecToProtoConverter.removeInaccessibleSchemaFilter(
-                    callerAccess, mVisibilityStoreLocked, mVisibilityCheckerLocked);
-            if (searchSpecToProtoConverter.isNothingToSearch()) {
+
+            long rewriteSearchSpecLatencyStartMillis = SystemClock.elapsedRealtime();
+            QueryPlanCache.QueryPlan queryPlan =
+                    mQueryPlanCache.get(
+                            callerAccess,
+                            searchSpec,
+                            GLOBAL_QUERY_PLAN_MAX_AGE_MILLIS,
+                            rewriteSearchSpecLatencyStartMillis);
+            if (queryPlan == null) {
+                queryPlan =
+                        createGlobalQueryPlanLocked(
+                                searchSpec, callerAccess, rewriteSearchSpecLatencyStartMillis);
+                mQueryPlanCache.put(callerAccess, searchSpec, queryPlan);
+            }
+            if (queryPlan.isNothingToSearch()) {
                 // there is nothing to search over given their search filters, so we can return an
                 // empty SearchResult and skip sending request to Icing.
                 return new SearchResultPage(Bundle.EMPTY);
             }
             SearchResultPage searchResultPage =
-                    doQueryLocked(queryExpression, searchSpecToProtoConverter, sStatsBuilder);
+                    doQueryLocked(
+                            queryExpression,
+                            queryPlan,
+                            searchSpec.getResultMode(),
+                            rewriteSearchSpecLatencyStartMillis,
+                            resultCacheKey,
+                            /*sharded=*/ mGlobalQueryShardCount > 1,
+                            cancellationSignal,
+                            sStatsBuilder);
             addNextPageToken(
-                    callerAccess.getCallingPackageName(), searchResultPage.getNextPageToken());
+                    callerAccess.getCallingPackageName(),
+                    searchResultPage.getNextPageToken(),
+                    searchSpec.getResultMode());
             return searchResultPage;
         } finally {
             mReadWriteLock.readLock().unlock();
@@ -1382,91 +2096,447 @@ public final class AppSearchImpl implements Closeable {
         }
     }
 
+    /**
+     * Converts the spec of a global query into a {@link QueryPlanCache.QueryPlan} over all the
+     * prefixes of the packages it filters on, minus the schema types the caller can't see.
+     */
+    @GuardedBy("mReadWriteLock")
+    @NonNull
+    private QueryPlanCache.QueryPlan createGlobalQueryPlanLocked(
+            @NonNull SearchSpec searchSpec, @NonNull CallerAccess callerAccess, long nowMillis) {
+        // Convert package filters to prefix filters
+        Set<String> packageFilters = new ArraySet<>(searchSpec.getFilterPackageNames());
+        Set<String> prefixFilters = new ArraySet<>();
+        if (packageFilters.isEmpty()) {
+            // Client didn't restrict their search over packages. Try to query over all
+            // packages/prefixes
+            prefixFilters = mNamespaceMapLocked.keySet();
+        } else {
+            // Client did restrict their search over packages. Only include the prefixes that
+            // belong to the specified packages and hold documents.
+            for (String packageName : packageFilters) {
+                for (String prefix : mPrefixIndexLocked.getPrefixes(packageName)) {
+                    if (mNamespaceMapLocked.containsKey(prefix)) {
+                        prefixFilters.add(prefix);
+                    }
+                }
+            }
+        }
+        SearchSpecToProtoConverter searchSpecToProtoConverter =
+                new SearchSpecToProtoConverter(
+                        searchSpec, prefixFilters, mNamespaceMapLocked, mSchemaMapLocked);
+        // Remove those inaccessible schemas.
+        searchSpecToProtoConverter.removeInaccessibleSchemaFilter(
+                callerAccess, mVisibilityStoreLocked, mVisibilityCheckerLocked);
+        return QueryPlanCache.QueryPlan.create(
+                searchSpecToProtoConverter, mNamespaceMapLocked, nowMillis);
+    }
+
+    /**
+     * Returns the page cached for the given query key, or {@code null} if it must be searched.
+     *
+     * <p>The lookup is counted as a hit or a miss in {@code sStatsBuilder}.
+     */
+    @GuardedBy("mReadWriteLock")
+    @Nullable
+    private SearchResultPage getCachedSearchResultPageLocked(
+            @NonNull QueryResultCache.Key resultCacheKey,
+            @Nullable SearchStats.Builder sStatsBuilder) {
+        SearchResultPage cachedPage =
+                mQueryResultCache.get(resultCacheKey, SystemClock.elapsedRealtime());
+        if (sStatsBuilder != null) {
+            if (cachedPage != null) {
+                sStatsBuilder.setResultCacheHitCount(1).setStatusCode(AppSearchResult.RESULT_OK);
+            } else {
+                sStatsBuilder.setResultCacheMissCount(1);
+            }
+        }
+        return cachedPage;
+    }
+
+    /**
+     * Runs a query with the given plan and converts its first page of results.
+     *
+     * @param rewriteSearchSpecLatencyStartMillis When the plan started being looked up or built,
+     *     to count it in the rewriteSearchSpecLatencyMillis stat.
+     * @param resultCacheKey The key to cache the page under if it holds all the results, or {@code
+     *     null} if the query result cache is disabled.
+     * @param sharded Whether to search the packages of the plan in shards.
+     * @param cancellationSignal Signal to abandon the query on, before it is sent to Icing or
+     *     between two of its results.
+     */
+    @GuardedBy("mReadWriteLock")
+    private SearchResultPage doQueryLocked(
+            @NonNull String queryExpression,
+            @NonNull QueryPlanCache.QueryPlan queryPlan,
+            @SearchSpec.ResultMode int resultMode,
+            long rewriteSearchSpecLatencyStartMillis,
+            @Nullable QueryResultCache.Key resultCacheKey,
+            boolean sharded,
+            @Nullable CancellationSignal cancellationSignal,
+            @Nullable SearchStats.Builder sStatsBuilder)
+            throws AppSearchException {
+        // The caller may have given up while the query waited for the read lock.
+        throwIfCanceled(cancellationSignal);
+
+        // Rewrite the given SearchSpec into SearchSpecProto, ResultSpecProto and ScoringSpecProto.
+        // All processes are counted in rewriteSearchSpecLatencyMillis
+        SearchSpecProto finalSearchSpec = queryPlan.toSearchSpecProto(queryExpression);
+        ResultSpecProto finalResultSpec = queryPlan.getResultSpecProto();
+        ScoringSpecProto scoringSpec = queryPlan.getScoringSpecProto();
+        if (sStatsBuilder != null) {
+            sStatsBuilder.setRewriteSearchSpecLatencyMillis(
+                    (int) (SystemClock.elapsedRealtime() - rewriteSearchSpecLatencyStartMillis));
+        }
+
+        // Send request to Icing.
+        SearchResultProto searchResultProto =
+                sharded
+                        ? searchShardsInIcingLocked(
+                                finalSearchSpec, finalResultSpec, scoringSpec, sStatsBuilder)
+                        : searchInIcingLocked(
+                                finalSearchSpec, finalResultSpec, scoringSpec, sStatsBuilder);
+
+        long rewriteSearchResultLatencyStartMillis = SystemClock.elapsedRealtime();
+        // Rewrite search result before we return.
+        SearchResultPage searchResultPage;
+        try {
+            searchResultPage =
+                    SearchResultToProtoConverter.toSearchResultPage(
+                            searchResultProto,
+                            mPropertyConfigIndexLocked,
+                            resultMode,
+                            cancellationSignal);
+        } catch (OperationCanceledException e) {
+            // Nobody will ask for the next page, so release it right away.
+            if (searchResultProto.getNextPageToken() != EMPTY_PAGE_TOKEN) {
+                invalidateIcingNextPageTokenLocked(searchResultProto.getNextPageToken());
+            }
+            mCancelledQueryCount.incrementAndGet();
+            throw e;
+        }
+        if (sStatsBuilder != null) {
+            sStatsBuilder.setRewriteSearchResultLatencyMillis(
+                    (int) (SystemClock.elapsedRealtime() - rewriteSearchResultLatencyStartMillis));
+        }
+        if (resultCacheKey != null) {
+            // The proto holds the same documents and snippets as the page, so its size is a cheap
+            // estimate of the page's.
+            mQueryResultCache.put(
+                    resultCacheKey,
+                    searchResultPage,
+                    searchResultProto.getSerializedSize(),
+                    SystemClock.elapsedRealtime());
+        }
+        return searchResultPage;
+    }
+
+    /**
+     * Abandons a query if its caller cancelled it, counting it in {@link #getCancelledQueryCount}.
+     *
+     * @throws OperationCanceledException if the signal was cancelled.
+     */
+    private void throwIfCanceled(@Nullable CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+            mCancelledQueryCount.incrementAndGet();
+            throw new OperationCanceledException();
+        }
+    }
+
+    @GuardedBy("mReadWriteLock")
+    private SearchResultProto searchInIcingLocked(
+            @NonNull SearchSpecProto searchSpec,
+            @NonNull ResultSpecProto resultSpec,
+            @NonNull ScoringSpecProto scoringSpec,
+            @Nullable SearchStats.Builder sStatsBuilder)
+            throws AppSearchException {
+        if (LogUtil.isPiiTraceEnabled()) {
+            LogUtil.piiTrace(
+                    TAG,
+                    "search, request",
+                    searchSpec.getQuery(),
+                    searchSpec + ", " + scoringSpec + ", " + resultSpec);
+        }
+        SearchResultProto searchResultProto =
+                mIcingSearchEngineLocked.search(searchSpec, scoringSpec, resultSpec);
+        LogUtil.piiTrace(
+                TAG, "search, response", searchResultProto.getResultsCount(), searchResultProto);
+        if (sStatsBuilder != null) {
+            sStatsBuilder.setStatusCode(statusProtoToResultCode(searchResultProto.getStatus()));
+            AppSearchLoggerHelper.copyNativeStats(searchResultProto.getQueryStats(), sStatsBuilder);
+        }
+        checkSuccess(searchResultProto.getStatus());
+        return searchResultProto;
+    }
+
+    /**
+     * Searches the packages of the given spec in up to {@link #mGlobalQueryShardCount} shards, and
+     * merges the first page of each shard into the first page of results.
+     *
+     * <p>The shards are searched one after the other: Icing's search holds the engine's exclusive
+     * lock, so searches sent from several threads would not overlap anyway. The native stats of
+     * the shards are summed into {@code sStatsBuilder}.
+     *
+     * <p>If there are more results, the returned page holds a next-page token for the merged
+     * {@link ShardedResultState}. Queries that can't be split across shards, or that only search
+     * one package, are sent to Icing at once.
+     */
+    @GuardedBy("mReadWriteLock")
+    private SearchResultProto searchShardsInIcingLocked(
+            @NonNull SearchSpecProto searchSpec,
+            @NonNull ResultSpecProto resultSpec,
+            @NonNull ScoringSpecProto scoringSpec,
+            @Nullable SearchStats.Builder sStatsBuilder)
+            throws AppSearchException {
+        // Result groupings limit the results of a package or namespace across the whole query,
+        // which shards can't enforce on their own.
+        if (resultSpec.getResultGroupingsCount() > 0) {
+            return searchInIcingLocked(searchSpec, resultSpec, scoringSpec, sStatsBuilder);
+        }
+        List<SearchSpecProto> shardSearchSpecs = partitionSearchSpecLocked(searchSpec);
+        if (shardSearchSpecs.size() < 2) {
+            return searchInIcingLocked(searchSpec, resultSpec, scoringSpec, sStatsBuilder);
+        }
+
+        List<SearchResultProto> firstPages = new ArrayList<>(shardSearchSpecs.size());
+        QueryStatsProto.Builder queryStats = QueryStatsProto.newBuilder();
+        AppSearchException failure = null;
+        for (int i = 0; i < shardSearchSpecs.size(); i++) {
+            SearchResultProto firstPage;
+            try {
+                firstPage =
+                        searchInIcingLocked(
+                                shardSearchSpecs.get(i),
+                                resultSpec,
+                                scoringSpec,
+                                /*sStatsBuilder=*/ null);
+            } catch (AppSearchException e) {
+                failure = e;
+                break;
+            }
+            firstPages.add(firstPage);
+            addQueryStats(firstPage.getQueryStats(), queryStats);
+        }
+        if (sStatsBuilder != null) {
+            AppSearchLoggerHelper.copyNativeStats(queryStats.build(), sStatsBuilder);
+        }
+
+        ShardedResultState shardedResultState =
+                new ShardedResultState(firstPages, scoringSpec, resultSpec);
+        if (failure != null) {
+            invalidateShardTokensLocked(shardedResultState);
+            if (sStatsBuilder != null) {
+                sStatsBuilder.setStatusCode(failure.getResultCode());
+            }
+            throw failure;
+        }
+        SearchResultProto searchResultProto;
+        try {
+            searchResultProto = shardedResultState.nextPage(this::getNextPageFromIcingLocked);
+        } catch (AppSearchException e) {
+            invalidateShardTokensLocked(shardedResultState);
+            throw e;
+        }
+        if (!shardedResultState.isExhausted()) {
+            searchResultProto =
+                    searchResultProto.toBuilder()
+                            .setNextPageToken(addShardedResultState(shardedResultState))
+                            .build();
+        }
+        if (sStatsBuilder != null) {
+            sStatsBuilder
+                    .setStatusCode(AppSearchResult.RESULT_OK)
+                    .setCurrentPageReturnedResultCount(searchResultProto.getResultsCount());
+        }
+        return searchResultProto;
+    }
+
+    /**
+     * Adds the native stats of one shard's search to the stats of the whole sharded search.
+     *
+     * <p>Latencies and counts are summed, while the fields describing the query itself are the
+     * same for every shard and are copied as is.
+     */
+    private static void addQueryStats(
+            @NonNull QueryStatsProto shardStats, @NonNull QueryStatsProto.Builder queryStats) {
+        queryStats
+                .setNumTerms(shardStats.getNumTerms())
+                .setQueryLength(shardStats.getQueryLength())
+                .setRequestedPageSize(shardStats.getRequestedPageSize())
+                .setIsFirstPage(shardStats.getIsFirstPage())
+                .setRankingStrategy(shardStats.getRankingStrategy())
+                .setLatencyMs(queryStats.getLatencyMs() + shardStats.getLatencyMs())
+                .setNumNamespacesFiltered(
+                        queryStats.getNumNamespacesFiltered()
+                                + shardStats.getNumNamespacesFiltered())
+                .setNumSchemaTypesFiltered(
+                        queryStats.getNumSchemaTypesFiltered()
+                                + shardStats.getNumSchemaTypesFiltered())
+                .setNumResultsReturnedCurrentPage(
+                        queryStats.getNumResultsReturnedCurrentPage()
+                                + shardStats.getNumResultsReturnedCurrentPage())
+                .setParseQueryLatencyMs(
+                        queryStats.getParseQueryLatencyMs() + shardStats.getParseQueryLatencyMs())
+                .setNumDocumentsScored(
+                        queryStats.getNumDocumentsScored() + shardStats.getNumDocumentsScored())
+                .setScoringLatencyMs(
+                        queryStats.getScoringLatencyMs() + shardStats.getScoringLatencyMs())
+                .setRankingLatencyMs(
+                        queryStats.getRankingLatencyMs() + shardStats.getRankingLatencyMs())
+                .setNumResultsWithSnippets(
+                        queryStats.getNumResultsWithSnippets()
+                                + shardStats.getNumResultsWithSnippets())
+                .setDocumentRetrievalLatencyMs(
+                        queryStats.getDocumentRetrievalLatencyMs()
+                                + shardStats.getDocumentRetrievalLatencyMs());
+    }
+
+    /**
+     * Splits the packages the given spec searches into up to {@link #mGlobalQueryShardCount}
+     * shards of about the same number of documents, and returns the spec of each shard.
+     *
+     * <p>Packages are taken from the largest, each going to the shard with the fewest documents
+     * so far, so a package that dwarfs the others ends up searched on its own. Every shard is
+     * restricted to the namespaces and schema types of its packages, and shards that would be
+     * left with no namespace or no schema type are dropped, since Icing would read empty filters
+     * as matching everything.
+     */
+    @GuardedBy("mReadWriteLock")
+    @NonNull
+    private List<SearchSpecProto> partitionSearchSpecLocked(@NonNull SearchSpecProto searchSpec)
+            throws AppSearchException {
+        // Group the searched namespaces by package.
+        Map<String, List<String>> packageToNamespaces = new ArrayMap<>();
+        for (int i = 0; i < searchSpec.getNamespaceFiltersCount(); i++) {
+            String prefixedNamespace = searchSpec.getNamespaceFilters(i);
+            String packageName = mPrefixIndexLocked.getPackageName(getPrefix(prefixedNamespace));
+            if (packageName == null) {
+                // Not a known prefix, so it can't hold documents to search.
+                continue;
+            }
+            List<String> namespaces = packageToNamespaces.get(packageName);
+            if (namespaces == null) {
+                namespaces = new ArrayList<>();
+                packageToNamespaces.put(packageName, namespaces);
+            }
+            namespaces.add(prefixedNamespace);
+        }
+        int shardCount = Math.min(mGlobalQueryShardCount, packageToNamespaces.size());
+        if (shardCount < 2) {
+            return Collections.singletonList(searchSpec);
+        }
+
+        List<String> packageNames = new ArrayList<>(packageToNamespaces.keySet());
+        Collections.sort(
+                packageNames,
+                (a, b) -> Integer.compare(getDocumentCountLocked(b), getDocumentCountLocked(a)));
+        long[] shardDocumentCounts = new long[shardCount];
+        List<SearchSpecProto.Builder> shardBuilders = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shardBuilders.add(
+                    searchSpec.toBuilder().clearNamespaceFilters().clearSchemaTypeFilters());
+        }
+        Map<String, Integer> packageToShard = new ArrayMap<>(packageNames.size());
+        for (int i = 0; i < packageNames.size(); i++) {
+            String packageName = packageNames.get(i);
+            int shard = 0;
+            for (int j = 1; j < shardCount; j++) {
+                if (shardDocumentCounts[j] < shardDocumentCounts[shard]) {
+                    shard = j;
+                }
+            }
+            // Empty packages still cost a search, so count them as one document.
+            shardDocumentCounts[shard] += Math.max(1, getDocumentCountLocked(packageName));
+            packageToShard.put(packageName, shard);
+            shardBuilders.get(shard).addAllNamespaceFilters(packageToNamespaces.get(packageName));
+        }
+        for (int i = 0; i < searchSpec.getSchemaTypeFiltersCount(); i++) {
+            String prefixedSchemaType = searchSpec.getSchemaTypeFilters(i);
+            String packageName = mPrefixIndexLocked.getPackageName(getPrefix(prefixedSchemaType));
+            Integer shard = packageToShard.get(packageName);
+            if (shard != null) {
+                shardBuilders.get(shard).addSchemaTypeFilters(prefixedSchemaType);
+            }
+        }
+
+        List<SearchSpecProto> shardSearchSpecs = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            SearchSpecProto.Builder shardBuilder = shardBuilders.get(i);
+            if (shardBuilder.getNamespaceFiltersCount() > 0
+                    && shardBuilder.getSchemaTypeFiltersCount() > 0) {
+                shardSearchSpecs.add(shardBuilder.build());
+            }
+        }
+        return shardSearchSpecs;
+    }
+
+    @GuardedBy("mReadWriteLock")
+    private int getDocumentCountLocked(@NonNull String packageName) {
+        Integer documentCount = mDocumentCountMapLocked.get(packageName);
+        return documentCount == null ? 0 : documentCount;
+    }
+
+    /** Fetches the next page of one shard of a sharded query. */
+    @GuardedBy("mReadWriteLock")
+    @NonNull
+    private SearchResultProto getNextPageFromIcingLocked(long nextPageToken)
+            throws AppSearchException {
+        LogUtil.piiTrace(TAG, "getNextPage (shard), request", nextPageToken);
+        SearchResultProto searchResultProto = mIcingSearchEngineLocked.getNextPage(nextPageToken);
+        LogUtil.piiTrace(
+                TAG,
+                "getNextPage (shard), response",
+                searchResultProto.getResultsCount(),
+                searchResultProto);
+        checkSuccess(searchResultProto.getStatus());
+        return searchResultProto;
+    }
+
+    /** Keeps the given merged result state, returning the next-page token that refers to it. */
+    private long addShardedResultState(@NonNull ShardedResultState shardedResultState) {
+        while (true) {
+            long nextPageToken = ThreadLocalRandom.current().nextLong();
+            if (nextPageToken != EMPTY_PAGE_TOKEN
+                    && mShardedResultStates.putIfAbsent(nextPageToken, shardedResultState)
+                            == null) {
+                return nextPageToken;
+            }
+        }
+    }
+
+    /** Releases the Icing result states of the shards of a merged result state. */
     @GuardedBy("mReadWriteLock")
-    private SearchResultPage doQueryLocked(
-            @NonNull String queryExpression,
-            @NonNull SearchSpecToProtoConverter searchSpecToProtoConverter,
-            @Nullable SearchStats.Builder sStatsBuilder)
-            throws AppSearchException {
-        // Rewrite the given SearchSpec into SearchSpecProto, ResultSpecProto and ScoringSpecProto.
-        // All processes are counted in rewriteSearchSpecLatencyMillis
-        long rewriteSearchSpecLatencyStartMillis = SystemClock.elapsedRealtime();
-        SearchSpecProto finalSearchSpec =
-                searchSpecToProtoConverter.toSearchSpecProto(queryExpression);
-        ResultSpecProto finalResultSpec =
-                searchSpecToProtoConverter.toResultSpecProto(mNamespaceMapLocked);
-        ScoringSpecProto scoringSpec = searchSpecToProtoConverter.toScoringSpecProto();
-        if (sStatsBuilder != null) {
-            sStatsBuilder.setRewriteSearchSpecLatencyMillis(
-                    (int) (SystemClock.elapsedRealtime() - rewriteSearchSpecLatencyStartMillis));
-        }
-
-        // Send request to Icing.
-        SearchResultProto searchResultProto =
-                searchInIcingLocked(finalSearchSpec, finalResultSpec, scoringSpec, sStatsBuilder);
-
-        long rewriteSearchResultLatencyStartMillis = SystemClock.elapsedRealtime();
-        // Rewrite search result before we return.
-        SearchResultPage searchResultPage =
-                SearchResultToProtoConverter.toSearchResultPage(
-                        searchResultProto, mSchemaMapLocked);
-        if (sStatsBuilder != null) {
-            sStatsBuilder.setRewriteSearchResultLatencyMillis(
-                    (int) (SystemClock.elapsedRealtime() - rewriteSearchResultLatencyStartMillis));
+    private void invalidateShardTokensLocked(@NonNull ShardedResultState shardedResultState) {
+        List<Long> shardTokens = shardedResultState.release();
+        for (int i = 0; i < shardTokens.size(); i++) {
+            mIcingSearchEngineLocked.invalidateNextPageToken(shardTokens.get(i));
         }
-        return searchResultPage;
     }
 
+    /**
+     * Invalidates a next-page token in Icing, or the tokens of every shard if it refers to a
+     * merged result state.
+     */
     @GuardedBy("mReadWriteLock")
-    private SearchResultProto searchInIcingLocked(
-            @NonNull SearchSpecProto searchSpec,
-            @NonNull ResultSpecProto resultSpec,
-            @NonNull ScoringSpecProto scoringSpec,
-            @Nullable SearchStats.Builder sStatsBuilder)
-            throws AppSearchException {
-        if (LogUtil.isPiiTraceEnabled()) {
-            LogUtil.piiTrace(
-                    TAG,
-                    "search, request",
-                    searchSpec.getQuery(),
-                    searchSpec + ", " + scoringSpec + ", " + resultSpec);
-        }
-        SearchResultProto searchResultProto =
-                mIcingSearchEngineLocked.search(searchSpec, scoringSpec, resultSpec);
-        LogUtil.piiTrace(
-                TAG, "search, response", searchResultProto.getResultsCount(), searchResultProto);
-        if (sStatsBuilder != null) {
-            sStatsBuilder.setStatusCode(statusProtoToResultCode(searchResultProto.getStatus()));
-            AppSearchLoggerHelper.copyNativeStats(searchResultProto.getQueryStats(), sStatsBuilder);
+    private void invalidateIcingNextPageTokenLocked(long nextPageToken) {
+        ShardedResultState shardedResultState = mShardedResultStates.remove(nextPageToken);
+        if (shardedResultState != null) {
+            invalidateShardTokensLocked(shardedResultState);
+        } else {
+            mIcingSearchEngineLocked.invalidateNextPageToken(nextPageToken);
         }
-        checkSuccess(searchResultProto.getStatus());
-        return searchResultProto;
     }
 
     /**
      * Returns a mapping of package names to all the databases owned by that package.
      *
-     * <p>This method is inefficient to call repeatedly.
+     * <p>The returned map is a copy, so callers may modify it.
      */
     @NonNull
     public Map<String, Set<String>> getPackageToDatabases() {
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
-            Map<String, Set<String>> packageToDatabases = new ArrayMap<>();
-            for (String prefix : mSchemaMapLocked.keySet()) {
-                String packageName = getPackageName(prefix);
-
-                Set<String> databases = packageToDatabases.get(packageName);
-                if (databases == null) {
-                    databases = new ArraySet<>();
-                    packageToDatabases.put(packageName, databases);
-                }
-
-                String databaseName = getDatabaseName(prefix);
-                databases.add(databaseName);
-            }
-
-            return packageToDatabases;
+            return mPrefixIndexLocked.getPackageToDatabases();
         } finally {
             mReadWriteLock.readLock().unlock();
         }
@@ -1476,6 +2546,9 @@ public final class AppSearchImpl implements Closeable {
      * Fetches the next page of results of a previously executed query. Results can be empty if
      * next-page token is invalid or all pages have been returned.
      *
+     * <p>The page is returned in the {@link SearchSpec.ResultMode} of the query the token was
+     * issued for.
+     *
      * <p>This method belongs to query group.
      *
      * @param packageName Package name of the caller.
@@ -1491,14 +2564,25 @@ public final class AppSearchImpl implements Closeable {
             throws AppSearchException {
         long totalLatencyStartMillis = SystemClock.elapsedRealtime();
 
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
 
             LogUtil.piiTrace(TAG, "getNextPage, request", nextPageToken);
-            checkNextPageToken(packageName, nextPageToken);
-            SearchResultProto searchResultProto =
-                    mIcingSearchEngineLocked.getNextPage(nextPageToken);
+            int resultMode = checkNextPageToken(packageName, nextPageToken);
+            ShardedResultState shardedResultState = mShardedResultStates.get(nextPageToken);
+            SearchResultProto searchResultProto;
+            if (shardedResultState != null) {
+                searchResultProto = shardedResultState.nextPage(this::getNextPageFromIcingLocked);
+                if (shardedResultState.isExhausted()) {
+                    mShardedResultStates.remove(nextPageToken);
+                } else {
+                    searchResultProto =
+                            searchResultProto.toBuilder().setNextPageToken(nextPageToken).build();
+                }
+            } else {
+                searchResultProto = mIcingSearchEngineLocked.getNextPage(nextPageToken);
+            }
 
             if (statsBuilder != null) {
                 statsBuilder.setStatusCode(statusProtoToResultCode(searchResultProto.getStatus()));
@@ -1518,15 +2602,13 @@ public final class AppSearchImpl implements Closeable {
                 // otherwise checkNextPageToken would've thrown an exception.
                 // Since the new token is 0, this is the last page. We should remove the old token
                 // from our cache since it no longer refers to this query.
-                synchronized (mNextPageTokensLocked) {
-                    mNextPageTokensLocked.get(packageName).remove(nextPageToken);
-                }
+                mNextPageTokenRegistry.remove(packageName, nextPageToken);
             }
             long rewriteSearchResultLatencyStartMillis = SystemClock.elapsedRealtime();
             // Rewrite search result before we return.
             SearchResultPage searchResultPage =
                     SearchResultToProtoConverter.toSearchResultPage(
-                            searchResultProto, mSchemaMapLocked);
+                            searchResultProto, mPropertyConfigIndexLocked, resultMode);
             if (statsBuilder != null) {
                 statsBuilder.setRewriteSearchResultLatencyMillis(
                         (int)
@@ -1561,32 +2643,57 @@ public final class AppSearchImpl implements Closeable {
             return;
         }
 
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
 
             LogUtil.piiTrace(TAG, "invalidateNextPageToken, request", nextPageToken);
             checkNextPageToken(packageName, nextPageToken);
-            mIcingSearchEngineLocked.invalidateNextPageToken(nextPageToken);
+            invalidateIcingNextPageTokenLocked(nextPageToken);
 
-            synchronized (mNextPageTokensLocked) {
-                Set<Long> tokens = mNextPageTokensLocked.get(packageName);
-                if (tokens != null) {
-                    tokens.remove(nextPageToken);
-                } else {
-                    Log.wtf(
-                            TAG,
-                            "Failed to invalidate token "
-                                    + nextPageToken
-                                    + ": tokens are not "
-                                    + "cached.");
-                }
+            if (!mNextPageTokenRegistry.remove(packageName, nextPageToken)) {
+                Log.wtf(
+                        TAG,
+                        "Failed to invalidate token " + nextPageToken + ": tokens are not cached.");
             }
         } finally {
             mReadWriteLock.readLock().unlock();
         }
     }
 
+    /** Returns the number of next-page tokens currently held across all packages. */
+    public int getNextPageTokenCount() {
+        return mNextPageTokenRegistry.getTokenCount();
+    }
+
+    /**
+     * Returns the number of next-page tokens invalidated because they went unused for too long or
+     * their package held too many.
+     */
+    public long getEvictedNextPageTokenCount() {
+        return mNextPageTokenRegistry.getEvictedTokenCount();
+    }
+
+    /**
+     * Returns the number of queries abandoned because they were cancelled while they ran, before
+     * their first page of results was returned.
+     */
+    public long getCancelledQueryCount() {
+        return mCancelledQueryCount.get();
+    }
+
+    /** Returns how long callers waited for the read lock. */
+    @NonNull
+    public LatencyHistogram getReadLockWaitHistogram() {
+        return mReadLockWaitHistogram;
+    }
+
+    /** Returns how long callers waited for the write lock. */
+    @NonNull
+    public LatencyHistogram getWriteLockWaitHistogram() {
+        return mWriteLockWaitHistogram;
+    }
+
     /** Reports a usage of the given document at the given timestamp. */
     public void reportUsage(
             @NonNull String packageName,
@@ -1596,11 +2703,14 @@ public final class AppSearchImpl implements Closeable {
             long usageTimestampMillis,
             boolean systemUsage)
             throws AppSearchException {
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             throwIfClosedLocked();
 
-            String prefixedNamespace = createPrefix(packageName, databaseName) + namespace;
+            String prefix = createPrefix(packageName, databaseName);
+            // Usage reports change the ranking of queries sorted by usage.
+            mQueryResultCache.onMutation(prefix);
+            String prefixedNamespace = prefix + namespace;
             UsageReport.UsageType usageType =
                     systemUsage
                             ? UsageReport.UsageType.USAGE_TYPE2
@@ -1642,11 +2752,14 @@ public final class AppSearchImpl implements Closeable {
             @Nullable RemoveStats.Builder removeStatsBuilder)
             throws AppSearchException {
         long totalLatencyStartTimeMillis = SystemClock.elapsedRealtime();
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             throwIfClosedLocked();
+            invalidateInitSnapshotLocked();
 
-            String prefixedNamespace = createPrefix(packageName, databaseName) + namespace;
+            String prefix = createPrefix(packageName, databaseName);
+            mQueryResultCache.onMutation(prefix);
+            String prefixedNamespace = prefix + namespace;
             String schemaType = null;
             if (mObserverManager.isPackageObserved(packageName)) {
                 // Someone might be observing the type this document is under, but we have no way to
@@ -1704,6 +2817,124 @@ public final class AppSearchImpl implements Closeable {
         }
     }
 
+    /**
+     * Removes the given documents by id.
+     *
+     * <p>This is equivalent to calling {@link #remove} for each ID, except that the write lock is
+     * only taken once for the whole batch. If the package is observed, the schema types of all the
+     * documents are looked up in a first pass before any of them is deleted.
+     *
+     * <p>This method belongs to mutate group.
+     *
+     * @param packageName The package name that owns the documents.
+     * @param databaseName The databaseName the documents are in.
+     * @param namespace Namespace of the documents to remove.
+     * @param documentIds IDs of the documents to remove.
+     * @return The result of removing each ID.
+     * @throws IllegalStateException if this instance has been closed.
+     */
+    @NonNull
+    public AppSearchBatchResult<String, Void> removeDocuments(
+            @NonNull String packageName,
+            @NonNull String databaseName,
+            @NonNull String namespace,
+            @NonNull List<String> documentIds) {
+        AppSearchBatchResult.Builder<String, Void> resultBuilder =
+                new AppSearchBatchResult.Builder<>();
+        acquireWriteLock();
+        try {
+            throwIfClosedLocked();
+            try {
+                invalidateInitSnapshotLocked();
+            } catch (AppSearchException e) {
+                AppSearchResult<Void> failedResult = throwableToFailedResult(e);
+                for (int i = 0; i < documentIds.size(); i++) {
+                    resultBuilder.setResult(documentIds.get(i), failedResult);
+                }
+                return resultBuilder.build();
+            }
+
+            String prefix = createPrefix(packageName, databaseName);
+            mQueryResultCache.onMutation(prefix);
+            String prefixedNamespace = prefix + namespace;
+            // The unprefixed schema type of each document, if someone might be observing it.
+            String[] schemaTypes = null;
+            if (mObserverManager.isPackageObserved(packageName)) {
+                // We have no way to know the types of the documents without retrieving them.
+                // TODO(b/193494000): If Icing Lib can return information about the deleted
+                //  document's type we can remove this code.
+                schemaTypes = new String[documentIds.size()];
+                for (int i = 0; i < documentIds.size(); i++) {
+                    String documentId = documentIds.get(i);
+                    if (LogUtil.isPiiTraceEnabled()) {
+                        LogUtil.piiTrace(
+                                TAG,
+                                "removeById, getRequest",
+                                prefixedNamespace + ", " + documentId);
+                    }
+                    GetResultProto getResult =
+                            mIcingSearchEngineLocked.get(
+                                    prefixedNamespace, documentId, GET_RESULT_SPEC_NO_PROPERTIES);
+                    LogUtil.piiTrace(
+                            TAG, "removeById, getResponse", getResult.getStatus(), getResult);
+                    try {
+                        checkSuccess(getResult.getStatus());
+                        schemaTypes[i] =
+                                PrefixUtil.removePrefix(getResult.getDocument().getSchema());
+                    } catch (AppSearchException e) {
+                        // Don't delete a document whose type couldn't be read, like remove().
+                        resultBuilder.setResult(documentId, throwableToFailedResult(e));
+                    }
+                }
+            }
+
+            int numDocumentsDeleted = 0;
+            for (int i = 0; i < documentIds.size(); i++) {
+                String documentId = documentIds.get(i);
+                if (schemaTypes != null && schemaTypes[i] == null) {
+                    continue;
+                }
+                if (LogUtil.isPiiTraceEnabled()) {
+                    LogUtil.piiTrace(
+                            TAG, "removeById, request", prefixedNamespace + ", " + documentId);
+                }
+                DeleteResultProto deleteResultProto =
+                        mIcingSearchEngineLocked.delete(prefixedNamespace, documentId);
+                LogUtil.piiTrace(
+                        TAG,
+                        "removeById, response",
+                        deleteResultProto.getStatus(),
+                        deleteResultProto);
+                try {
+                    checkSuccess(deleteResultProto.getStatus());
+                } catch (AppSearchException e) {
+                    resultBuilder.setResult(documentId, throwableToFailedResult(e));
+                    continue;
+                }
+                resultBuilder.setSuccess(documentId, /*value=*/ null);
+                ++numDocumentsDeleted;
+
+                // Prepare notifications
+                if (schemaTypes != null) {
+                    mObserverManager.onDocumentChange(
+                            packageName,
+                            databaseName,
+                            namespace,
+                            schemaTypes[i],
+                            documentId,
+                            mVisibilityStoreLocked,
+                            mVisibilityCheckerLocked);
+                }
+            }
+
+            // Update derived maps
+            updateDocumentCountAfterRemovalLocked(packageName, numDocumentsDeleted);
+        } finally {
+            mReadWriteLock.writeLock().unlock();
+        }
+        return resultBuilder.build();
+    }
+
     /**
      * Removes documents by given query.
      *
@@ -1724,7 +2955,7 @@ public final class AppSearchImpl implements Closeable {
             @Nullable RemoveStats.Builder removeStatsBuilder)
             throws AppSearchException {
         long totalLatencyStartTimeMillis = SystemClock.elapsedRealtime();
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             throwIfClosedLocked();
 
@@ -1758,6 +2989,8 @@ public final class AppSearchImpl implements Closeable {
             SearchSpecProto finalSearchSpec =
                     searchSpecToProtoConverter.toSearchSpecProto(queryExpression);
 
+            invalidateInitSnapshotLocked();
+            mQueryResultCache.onMutation(prefix);
             Set<String> prefixedObservedSchemas = null;
             if (mObserverManager.isPackageObserved(packageName)) {
                 prefixedObservedSchemas = new ArraySet<>();
@@ -1955,22 +3188,20 @@ public final class AppSearchImpl implements Closeable {
     @NonNull
     public StorageInfo getStorageInfoForPackage(@NonNull String packageName)
             throws AppSearchException {
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
 
-            Map<String, Set<String>> packageToDatabases = getPackageToDatabases();
-            Set<String> databases = packageToDatabases.get(packageName);
-            if (databases == null) {
+            Set<String> prefixes = mPrefixIndexLocked.getPrefixes(packageName);
+            if (prefixes.isEmpty()) {
                 // Package doesn't exist, no storage info to report
                 return new StorageInfo.Builder().build();
             }
 
             // Accumulate all the namespaces we're interested in.
             Set<String> wantedPrefixedNamespaces = new ArraySet<>();
-            for (String database : databases) {
-                Set<String> prefixedNamespaces =
-                        mNamespaceMapLocked.get(createPrefix(packageName, database));
+            for (String prefix : prefixes) {
+                Set<String> prefixedNamespaces = mNamespaceMapLocked.get(prefix);
                 if (prefixedNamespaces != null) {
                     wantedPrefixedNamespaces.addAll(prefixedNamespaces);
                 }
@@ -1989,23 +3220,17 @@ public final class AppSearchImpl implements Closeable {
     @NonNull
     public StorageInfo getStorageInfoForDatabase(
             @NonNull String packageName, @NonNull String databaseName) throws AppSearchException {
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
 
-            Map<String, Set<String>> packageToDatabases = getPackageToDatabases();
-            Set<String> databases = packageToDatabases.get(packageName);
-            if (databases == null) {
-                // Package doesn't exist, no storage info to report
-                return new StorageInfo.Builder().build();
-            }
-            if (!databases.contains(databaseName)) {
-                // Database doesn't exist, no storage info to report
+            String prefix = createPrefix(packageName, databaseName);
+            if (!mPrefixIndexLocked.contains(prefix)) {
+                // Package or database doesn't exist, no storage info to report
                 return new StorageInfo.Builder().build();
             }
 
-            Set<String> wantedPrefixedNamespaces =
-                    mNamespaceMapLocked.get(createPrefix(packageName, databaseName));
+            Set<String> wantedPrefixedNamespaces = mNamespaceMapLocked.get(prefix);
             if (wantedPrefixedNamespaces == null || wantedPrefixedNamespaces.isEmpty()) {
                 return new StorageInfo.Builder().build();
             }
@@ -2022,7 +3247,7 @@ public final class AppSearchImpl implements Closeable {
      */
     @NonNull
     public StorageInfoProto getRawStorageInfoProto() throws AppSearchException {
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             throwIfClosedLocked();
             LogUtil.piiTrace(TAG, "getStorageInfo, request");
@@ -2113,7 +3338,7 @@ public final class AppSearchImpl implements Closeable {
      * @throws AppSearchException on any error that AppSearch persist data to disk.
      */
     public void persistToDisk(@NonNull PersistType.Code persistType) throws AppSearchException {
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             throwIfClosedLocked();
 
@@ -2126,6 +3351,9 @@ public final class AppSearchImpl implements Closeable {
                     persistToDiskResultProto.getStatus(),
                     persistToDiskResultProto);
             checkSuccess(persistToDiskResultProto.getStatus());
+            if (persistType == PersistType.Code.FULL) {
+                writeInitSnapshotLocked();
+            }
         } finally {
             mReadWriteLock.writeLock().unlock();
         }
@@ -2138,16 +3366,11 @@ public final class AppSearchImpl implements Closeable {
      * @throws AppSearchException if we cannot remove the data.
      */
     public void clearPackageData(@NonNull String packageName) throws AppSearchException {
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             throwIfClosedLocked();
-            // TODO(b/193494000): We are calling getPackageToDatabases here and in several other
-            //  places within AppSearchImpl. This method is not efficient and does a lot of string
-            //  manipulation. We should find a way to cache the package to database map so it can
-            //  just be obtained from a local variable instead of being parsed out of the prefixed
-            //  map.
-            Set<String> existingPackages = getPackageToDatabases().keySet();
-            if (existingPackages.contains(packageName)) {
+            if (mPrefixIndexLocked.getPackageNames().contains(packageName)) {
+                Set<String> existingPackages = new ArraySet<>(mPrefixIndexLocked.getPackageNames());
                 existingPackages.remove(packageName);
                 prunePackageData(existingPackages);
             }
@@ -2164,14 +3387,14 @@ public final class AppSearchImpl implements Closeable {
      * @throws AppSearchException if we cannot remove the data.
      */
     public void prunePackageData(@NonNull Set<String> installedPackages) throws AppSearchException {
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             throwIfClosedLocked();
-            Map<String, Set<String>> packageToDatabases = getPackageToDatabases();
-            if (installedPackages.containsAll(packageToDatabases.keySet())) {
+            if (installedPackages.containsAll(mPrefixIndexLocked.getPackageNames())) {
                 // No package got removed. We are good.
                 return;
             }
+            invalidateInitSnapshotLocked();
 
             // Prune schema proto
             SchemaProto existingSchema = getSchemaProtoLocked();
@@ -2192,6 +3415,7 @@ public final class AppSearchImpl implements Closeable {
                     "clearPackageData.setSchema, request",
                     finalSchema.getTypesCount(),
                     finalSchema);
+            mSchemaProtoCacheLocked = null;
             SetSchemaResultProto setSchemaResultProto =
                     mIcingSearchEngineLocked.setSchema(
                             finalSchema, /*ignoreErrorsAndDeleteDocuments=*/ true);
@@ -2203,25 +3427,28 @@ public final class AppSearchImpl implements Closeable {
 
             // Determine whether it succeeded.
             checkSuccess(setSchemaResultProto.getStatus());
+            mSchemaProtoCacheLocked = finalSchema;
 
             // Prune cached maps
-            for (Map.Entry<String, Set<String>> entry : packageToDatabases.entrySet()) {
-                String packageName = entry.getKey();
-                Set<String> databaseNames = entry.getValue();
-                if (!installedPackages.contains(packageName) && databaseNames != null) {
-                    mDocumentCountMapLocked.remove(packageName);
-                    synchronized (mNextPageTokensLocked) {
-                        mNextPageTokensLocked.remove(packageName);
-                    }
-                    for (String databaseName : databaseNames) {
-                        String removedPrefix = createPrefix(packageName, databaseName);
-                        Map<String, SchemaTypeConfigProto> removedSchemas =
-                                mSchemaMapLocked.remove(removedPrefix);
-                        mVisibilityStoreLocked.removeVisibility(removedSchemas.keySet());
-                        mNamespaceMapLocked.remove(removedPrefix);
-                    }
+            Set<String> existingPackages = new ArraySet<>(mPrefixIndexLocked.getPackageNames());
+            for (String packageName : existingPackages) {
+                if (installedPackages.contains(packageName)) {
+                    continue;
                 }
+                mDocumentCountMapLocked.remove(packageName);
+                invalidateEvictedNextPageTokensLocked(
+                        mNextPageTokenRegistry.removePackage(packageName));
+                for (String removedPrefix : mPrefixIndexLocked.getPrefixes(packageName)) {
+                    Map<String, SchemaTypeConfigProto> removedSchemas =
+                            mSchemaMapLocked.remove(removedPrefix);
+                    mPropertyConfigIndexLocked.removePrefix(removedPrefix);
+                    mVisibilityStoreLocked.removeVisibility(removedSchemas.keySet());
+                    mNamespaceMapLocked.remove(removedPrefix);
+                }
+                mPrefixIndexLocked.removePackage(packageName);
             }
+            mQueryPlanCache.clear();
+            mQueryResultCache.clear();
         } finally {
             mReadWriteLock.writeLock().unlock();
         }
@@ -2237,6 +3464,11 @@ public final class AppSearchImpl implements Closeable {
     @GuardedBy("mReadWriteLock")
     private void resetLocked(@Nullable InitializeStats.Builder initStatsBuilder)
             throws AppSearchException {
+        if (!deleteInitSnapshotLocked()) {
+            throw new AppSearchException(
+                    RESULT_IO_ERROR, "Failed to delete stale init snapshot " + mInitSnapshotFile);
+        }
+        mInitSnapshotSchemaUnverifiedLocked = false;
         LogUtil.piiTrace(TAG, "icingSearchEngine.reset, request");
         ResetResultProto resetResultProto = mIcingSearchEngineLocked.reset();
         LogUtil.piiTrace(
@@ -2245,12 +3477,17 @@ public final class AppSearchImpl implements Closeable {
                 resetResultProto.getStatus(),
                 resetResultProto);
         mOptimizeIntervalCountLocked = 0;
+        mSchemaProtoCacheLocked = null;
         mSchemaMapLocked.clear();
+        mPrefixIndexLocked.clear();
+        mPropertyConfigIndexLocked.clear();
         mNamespaceMapLocked.clear();
+        mQueryPlanCache.clear();
+        mQueryResultCache.clear();
         mDocumentCountMapLocked.clear();
-        synchronized (mNextPageTokensLocked) {
-            mNextPageTokensLocked.clear();
-        }
+        mNextPageTokenRegistry.clear();
+        // Resetting Icing dropped the result states of every shard.
+        mShardedResultStates.clear();
         if (initStatsBuilder != null) {
             initStatsBuilder
                     .setHasReset(true)
@@ -2307,6 +3544,44 @@ public final class AppSearchImpl implements Closeable {
             @NonNull SchemaProto.Builder existingSchema,
             @NonNull SchemaProto newSchema)
             throws AppSearchException {
+        Map<String, SchemaTypeConfigProto> newTypesToProto =
+                addPrefixToSchemaTypes(prefix, newSchema);
+
+        // newTypesToProto is modified below, so we need a copy first
+        RewrittenSchemaResults rewrittenSchemaResults = new RewrittenSchemaResults();
+        rewrittenSchemaResults.mRewrittenPrefixedTypes.putAll(newTypesToProto);
+
+        // Combine the existing schema (which may have types from other prefixes) with this
+        // prefix's new schema. Modifies the existingSchemaBuilder.
+        // Check if we need to replace any old schema types with the new ones.
+        for (int i = 0; i < existingSchema.getTypesCount(); i++) {
+            String schemaType = existingSchema.getTypes(i).getSchemaType();
+            SchemaTypeConfigProto newProto = newTypesToProto.remove(schemaType);
+            if (newProto != null) {
+                // Replacement
+                existingSchema.setTypes(i, newProto);
+            } else if (prefix.equals(getPrefix(schemaType))) {
+                // All types existing before but not in newSchema should be removed.
+                existingSchema.removeTypes(i);
+                --i;
+                rewrittenSchemaResults.mDeletedPrefixedTypes.add(schemaType);
+            }
+        }
+        // We've been removing existing types from newTypesToProto, so everything that remains is
+        // new.
+        existingSchema.addAllTypes(newTypesToProto.values());
+
+        return rewrittenSchemaResults;
+    }
+
+    /**
+     * Rewrites all types mentioned in the given {@code newSchema} to prepend {@code prefix}.
+     *
+     * @return a map of the prefixed schema types to their rewritten SchemaTypeConfigProtos.
+     */
+    @NonNull
+    private static Map<String, SchemaTypeConfigProto> addPrefixToSchemaTypes(
+            @NonNull String prefix, @NonNull SchemaProto newSchema) {
         HashMap<String, SchemaTypeConfigProto> newTypesToProto = new HashMap<>();
         // Rewrite the schema type to include the typePrefix.
         for (int typeIdx = 0; typeIdx < newSchema.getTypesCount(); typeIdx++) {
@@ -2332,79 +3607,115 @@ public final class AppSearchImpl implements Closeable {
 
             newTypesToProto.put(newSchemaType, typeConfigBuilder.build());
         }
+        return newTypesToProto;
+    }
 
-        // newTypesToProto is modified below, so we need a copy first
-        RewrittenSchemaResults rewrittenSchemaResults = new RewrittenSchemaResults();
-        rewrittenSchemaResults.mRewrittenPrefixedTypes.putAll(newTypesToProto);
-
-        // Combine the existing schema (which may have types from other prefixes) with this
-        // prefix's new schema. Modifies the existingSchemaBuilder.
-        // Check if we need to replace any old schema types with the new ones.
-        for (int i = 0; i < existingSchema.getTypesCount(); i++) {
-            String schemaType = existingSchema.getTypes(i).getSchemaType();
-            SchemaTypeConfigProto newProto = newTypesToProto.remove(schemaType);
-            if (newProto != null) {
-                // Replacement
-                existingSchema.setTypes(i, newProto);
-            } else if (prefix.equals(getPrefix(schemaType))) {
-                // All types existing before but not in newSchema should be removed.
-                existingSchema.removeTypes(i);
-                --i;
-                rewrittenSchemaResults.mDeletedPrefixedTypes.add(schemaType);
+    /**
+     * Returns whether setting the given types and visibility documents for {@code prefix} would
+     * leave both its schema and its visibility settings as they are.
+     *
+     * @param prefixedTypes The new types of the prefix, keyed by prefixed schema type.
+     * @param visibilityDocuments The new unprefixed visibility documents of the prefix.
+     */
+    @GuardedBy("mReadWriteLock")
+    private boolean isSchemaUnchangedLocked(
+            @NonNull String prefix,
+            @NonNull Map<String, SchemaTypeConfigProto> prefixedTypes,
+            @NonNull List<VisibilityDocument> visibilityDocuments) {
+        Map<String, SchemaTypeConfigProto> existingTypes = mSchemaMapLocked.get(prefix);
+        if (existingTypes == null) {
+            existingTypes = Collections.emptyMap();
+        }
+        // Protos compare by value, so this also catches a changed version.
+        if (!existingTypes.equals(prefixedTypes)) {
+            return false;
+        }
+        if (mVisibilityStoreLocked == null) {
+            // Only VisibilityStore sets the schema before it exists, and it has no visibility.
+            return true;
+        }
+        // Types without a visibility document get the default visibility, which isn't stored.
+        int storedVisibilityCount = 0;
+        for (String prefixedType : prefixedTypes.keySet()) {
+            if (mVisibilityStoreLocked.getVisibility(prefixedType) != null) {
+                storedVisibilityCount++;
             }
         }
-        // We've been removing existing types from newTypesToProto, so everything that remains is
-        // new.
-        existingSchema.addAllTypes(newTypesToProto.values());
-
-        return rewrittenSchemaResults;
+        if (storedVisibilityCount != visibilityDocuments.size()) {
+            return false;
+        }
+        for (int i = 0; i < visibilityDocuments.size(); i++) {
+            VisibilityDocument newDocument = visibilityDocuments.get(i);
+            VisibilityDocument storedDocument =
+                    mVisibilityStoreLocked.getVisibility(prefix + newDocument.getId());
+            if (storedDocument == null
+                    || !prefixedTypes.containsKey(prefix + newDocument.getId())
+                    || !VisibilityStore.isSameVisibility(newDocument, storedDocument)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @VisibleForTesting
     @GuardedBy("mReadWriteLock")
     SchemaProto getSchemaProtoLocked() throws AppSearchException {
+        if (mSchemaProtoCacheLocked != null) {
+            return mSchemaProtoCacheLocked;
+        }
         LogUtil.piiTrace(TAG, "getSchema, request");
         GetSchemaResultProto schemaProto = mIcingSearchEngineLocked.getSchema();
         LogUtil.piiTrace(TAG, "getSchema, response", schemaProto.getStatus(), schemaProto);
         // TODO(b/161935693) check GetSchemaResultProto is success or not. Call reset() if it's not.
         // TODO(b/161935693) only allow GetSchemaResultProto NOT_FOUND on first run
         checkCodeOneOf(schemaProto.getStatus(), StatusProto.Code.OK, StatusProto.Code.NOT_FOUND);
-        return schemaProto.getSchema();
+        mSchemaProtoCacheLocked = schemaProto.getSchema();
+        return mSchemaProtoCacheLocked;
     }
 
-    private void addNextPageToken(String packageName, long nextPageToken) {
+    @GuardedBy("mReadWriteLock")
+    private void addNextPageToken(
+            String packageName, long nextPageToken, @SearchSpec.ResultMode int resultMode) {
         if (nextPageToken == EMPTY_PAGE_TOKEN) {
             // There is no more pages. No need to add it.
             return;
         }
-        synchronized (mNextPageTokensLocked) {
-            Set<Long> tokens = mNextPageTokensLocked.get(packageName);
-            if (tokens == null) {
-                tokens = new ArraySet<>();
-                mNextPageTokensLocked.put(packageName, tokens);
-            }
-            tokens.add(nextPageToken);
+        invalidateEvictedNextPageTokensLocked(
+                mNextPageTokenRegistry.add(
+                        packageName, nextPageToken, resultMode, SystemClock.elapsedRealtime()));
+    }
+
+    /** Releases the Icing result state of tokens the registry evicted. */
+    @GuardedBy("mReadWriteLock")
+    private void invalidateEvictedNextPageTokensLocked(@NonNull long[] evictedTokens) {
+        for (int i = 0; i < evictedTokens.length; i++) {
+            LogUtil.piiTrace(TAG, "invalidateNextPageToken (evicted), request", evictedTokens[i]);
+            invalidateIcingNextPageTokenLocked(evictedTokens[i]);
         }
     }
 
-    private void checkNextPageToken(String packageName, long nextPageToken)
+    /**
+     * Checks that the package may use the token.
+     *
+     * @return The {@link SearchSpec.ResultMode} of the query the token was issued for.
+     */
+    @SearchSpec.ResultMode
+    private int checkNextPageToken(String packageName, long nextPageToken)
             throws AppSearchException {
         if (nextPageToken == EMPTY_PAGE_TOKEN) {
             // Swallow the check for empty page token, token = 0 means there is no more page and it
             // won't return anything from Icing.
-            return;
+            return SearchSpec.RESULT_MODE_DOCUMENTS;
         }
-        synchronized (mNextPageTokensLocked) {
-            Set<Long> nextPageTokens = mNextPageTokensLocked.get(packageName);
-            if (nextPageTokens == null || !nextPageTokens.contains(nextPageToken)) {
-                throw new AppSearchException(
-                        RESULT_SECURITY_ERROR,
-                        "Package \""
-                                + packageName
-                                + "\" cannot use nextPageToken: "
-                                + nextPageToken);
-            }
+        int resultMode =
+                mNextPageTokenRegistry.checkAndTouch(
+                        packageName, nextPageToken, SystemClock.elapsedRealtime());
+        if (resultMode == NextPageTokenRegistry.TOKEN_NOT_REGISTERED) {
+            throw new AppSearchException(
+                    RESULT_SECURITY_ERROR,
+                    "Package \"" + packageName + "\" cannot use nextPageToken: " + nextPageToken);
         }
+        return resultMode;
     }
 
     /**
@@ -2476,34 +3787,47 @@ public final class AppSearchImpl implements Closeable {
         mObserverManager.dispatchAndClearPendingNotifications();
     }
 
-    private static void addToMap(
+    /** Adds a value to the set of the given prefix, returning whether it wasn't there yet. */
+    private static boolean addToMap(
             Map<String, Set<String>> map, String prefix, String prefixedValue) {
         Set<String> values = map.get(prefix);
         if (values == null) {
             values = new ArraySet<>();
             map.put(prefix, values);
         }
-        values.add(prefixedValue);
+        return values.add(prefixedValue);
     }
 
-    private static void addToMap(
-            Map<String, Map<String, SchemaTypeConfigProto>> map,
-            String prefix,
-            SchemaTypeConfigProto schemaTypeConfigProto) {
-        Map<String, SchemaTypeConfigProto> schemaTypeMap = map.get(prefix);
+    /**
+     * Adds a schema type to {@link #mSchemaMapLocked}, {@link #mPrefixIndexLocked} and {@link
+     * #mPropertyConfigIndexLocked}.
+     */
+    @GuardedBy("mReadWriteLock")
+    private void addSchemaTypeLocked(
+            @NonNull String prefix, @NonNull SchemaTypeConfigProto schemaTypeConfigProto) {
+        Map<String, SchemaTypeConfigProto> schemaTypeMap = mSchemaMapLocked.get(prefix);
         if (schemaTypeMap == null) {
             schemaTypeMap = new ArrayMap<>();
-            map.put(prefix, schemaTypeMap);
+            mSchemaMapLocked.put(prefix, schemaTypeMap);
+            mPrefixIndexLocked.add(prefix);
         }
         schemaTypeMap.put(schemaTypeConfigProto.getSchemaType(), schemaTypeConfigProto);
+        mPropertyConfigIndexLocked.put(prefix, schemaTypeConfigProto);
+        mQueryPlanCache.clear();
     }
 
-    private static void removeFromMap(
-            Map<String, Map<String, SchemaTypeConfigProto>> map, String prefix, String schemaType) {
-        Map<String, SchemaTypeConfigProto> schemaTypeMap = map.get(prefix);
+    /**
+     * Removes a schema type from {@link #mSchemaMapLocked} and {@link
+     * #mPropertyConfigIndexLocked}.
+     */
+    @GuardedBy("mReadWriteLock")
+    private void removeSchemaTypeLocked(@NonNull String prefix, @NonNull String schemaType) {
+        Map<String, SchemaTypeConfigProto> schemaTypeMap = mSchemaMapLocked.get(prefix);
         if (schemaTypeMap != null) {
             schemaTypeMap.remove(schemaType);
         }
+        mPropertyConfigIndexLocked.remove(prefix, schemaType);
+        mQueryPlanCache.clear();
     }
 
     /**
@@ -2559,7 +3883,7 @@ public final class AppSearchImpl implements Closeable {
      */
     public void checkForOptimize(int mutationSize, @Nullable OptimizeStats.Builder builder)
             throws AppSearchException {
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             mOptimizeIntervalCountLocked += mutationSize;
             if (mOptimizeIntervalCountLocked >= CHECK_OPTIMIZE_INTERVAL) {
@@ -2581,7 +3905,7 @@ public final class AppSearchImpl implements Closeable {
      */
     public void checkForOptimize(@Nullable OptimizeStats.Builder builder)
             throws AppSearchException {
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
             GetOptimizeInfoResultProto optimizeInfo = getOptimizeInfoResultLocked();
             checkSuccess(optimizeInfo.getStatus());
@@ -2599,8 +3923,9 @@ public final class AppSearchImpl implements Closeable {
 
     /** Triggers {@link IcingSearchEngine#optimize()} directly. */
     public void optimize(@Nullable OptimizeStats.Builder builder) throws AppSearchException {
-        mReadWriteLock.writeLock().lock();
+        acquireWriteLock();
         try {
+            invalidateInitSnapshotLocked();
             LogUtil.piiTrace(TAG, "optimize, request");
             OptimizeResultProto optimizeResultProto = mIcingSearchEngineLocked.optimize();
             LogUtil.piiTrace(
@@ -2635,7 +3960,7 @@ public final class AppSearchImpl implements Closeable {
      */
     @NonNull
     public List<String> getAllPrefixedSchemaTypes() {
-        mReadWriteLock.readLock().lock();
+        acquireReadLock();
         try {
             List<String> cachedPrefixedSchemaTypes = new ArrayList<>();
             for (Map<String, SchemaTypeConfigProto> value : mSchemaMapLocked.values()) {
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import com.google.android.icing.proto.DocumentProto;
+import com.google.android.icing.proto.SchemaProto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * A checksummed, on-disk copy of the schema and visibility documents {@link AppSearchImpl}
+ * otherwise reads back from Icing on every initialization.
+ *
+ * <p>The snapshot is only meaningful while it matches Icing's persisted state. {@link
+ * AppSearchImpl} writes it after a full persist and deletes it on the first mutation that follows,
+ * refusing the mutation if it can't, so a snapshot found on disk always describes the last fully
+ * persisted state. Namespaces and document counts aren't kept, since documents expire by TTL
+ * without any mutation.
+ *
+ * <p>This class is not thread safe.
+ *
+ * @hide
+ */
+final class AppSearchInitSnapshot {
+    /** Magic header of the snapshot file, "ASIS". */
+    private static final int MAGIC = 0x41534953;
+
+    /** Version of the file format. Bump this whenever the layout below changes. */
+    private static final int FORMAT_VERSION = 2;
+
+    private final SchemaProto mSchema;
+    private final int mVisibilitySchemaVersion;
+    private final List<DocumentProto> mVisibilityDocuments;
+    private final int mRebuildLatencyMillis;
+
+    AppSearchInitSnapshot(
+            @NonNull SchemaProto schema,
+            int visibilitySchemaVersion,
+            @NonNull List<DocumentProto> visibilityDocuments,
+            int rebuildLatencyMillis) {
+        mSchema = Objects.requireNonNull(schema);
+        mVisibilitySchemaVersion = visibilitySchemaVersion;
+        mVisibilityDocuments = Objects.requireNonNull(visibilityDocuments);
+        mRebuildLatencyMillis = rebuildLatencyMillis;
+    }
+
+    /** Returns every prefixed schema type known to AppSearchImpl when the snapshot was taken. */
+    @NonNull
+    SchemaProto getSchema() {
+        return mSchema;
+    }
+
+    /** Returns the visibility schema version the visibility documents were stored under. */
+    int getVisibilitySchemaVersion() {
+        return mVisibilitySchemaVersion;
+    }
+
+    /** Returns the prefixed visibility documents, without the visibility store's own prefix. */
+    @NonNull
+    List<DocumentProto> getVisibilityDocuments() {
+        return mVisibilityDocuments;
+    }
+
+    /**
+     * Returns how long the last initialization that read everything from Icing took to build these
+     * maps. Used to estimate the time a snapshot hit saves.
+     */
+    int getRebuildLatencyMillis() {
+        return mRebuildLatencyMillis;
+    }
+
+    /**
+     * Reads a snapshot from the given file.
+     *
+     * @return the snapshot, or {@code null} if the file doesn't exist.
+     * @throws IOException if the file can't be read, was written in another format, or fails its
+     *     checksum.
+     */
+    @Nullable
+    static AppSearchInitSnapshot read(@NonNull File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] payload;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an AppSearch init snapshot: " + file);
+            }
+            int formatVersion = in.readInt();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported init snapshot version: " + formatVersion);
+            }
+            int payloadLength = in.readInt();
+            if (payloadLength < 0 || payloadLength > file.length()) {
+                throw new IOException("Malformed init snapshot length: " + payloadLength);
+            }
+            payload = new byte[payloadLength];
+            in.readFully(payload);
+            long expectedChecksum = in.readLong();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (crc.getValue() != expectedChecksum) {
+                throw new IOException("Init snapshot checksum mismatch");
+            }
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            SchemaProto schema = SchemaProto.parseFrom(readBytes(in));
+
+            int visibilitySchemaVersion = in.readInt();
+            int visibilityDocumentCount = in.readInt();
+            List<DocumentProto> visibilityDocuments = new ArrayList<>(visibilityDocumentCount);
+            for (int i = 0; i < visibilityDocumentCount; i++) {
+                visibilityDocuments.add(DocumentProto.parseFrom(readBytes(in)));
+            }
+
+            int rebuildLatencyMillis = in.readInt();
+            return new AppSearchInitSnapshot(
+                    schema,
+                    visibilitySchemaVersion,
+                    Collections.unmodifiableList(visibilityDocuments),
+                    rebuildLatencyMillis);
+        }
+    }
+
+    /**
+     * Writes this snapshot to the given file.
+     *
+     * <p>The snapshot is written to a temporary file first and renamed over {@code file}, so a
+     * crash halfway through never leaves a truncated snapshot behind.
+     */
+    void write(@NonNull File file) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(payloadBytes)) {
+            writeBytes(out, mSchema.toByteArray());
+
+            out.writeInt(mVisibilitySchemaVersion);
+            out.writeInt(mVisibilityDocuments.size());
+            for (int i = 0; i < mVisibilityDocuments.size(); i++) {
+                writeBytes(out, mVisibilityDocuments.get(i).toByteArray());
+            }
+
+            out.writeInt(mRebuildLatencyMillis);
+        }
+        byte[] payload = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tempFile);
+                DataOutputStream out = new DataOutputStream(fileOut)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeLong(crc.getValue());
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to rename init snapshot to " + file);
+        }
+    }
+
+    private static void writeBytes(@NonNull DataOutputStream out, @NonNull byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static byte[] readBytes(@NonNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Malformed init snapshot entry length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
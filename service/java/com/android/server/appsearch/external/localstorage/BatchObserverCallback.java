@@ -0,0 +1,50 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import android.annotation.NonNull;
+import android.app.appsearch.observer.DocumentChangeInfo;
+import android.app.appsearch.observer.ObserverCallback;
+import android.app.appsearch.observer.SchemaChangeInfo;
+
+import java.util.List;
+
+/**
+ * An {@link ObserverCallback} receiving all the changes dispatched to it at once.
+ *
+ * <p>{@link ObserverManager} calls {@link #onChanged} once per dispatch in place of calling {@link
+ * #onSchemaChanged} and {@link #onDocumentChanged} for each change, which lets callbacks that
+ * forward changes to another process do so in a single call.
+ *
+ * @hide
+ */
+public interface BatchObserverCallback extends ObserverCallback {
+    /**
+     * Called with all the changes dispatched at once.
+     *
+     * <p>Document changes with more IDs than the {@link ObserverManager} batches are left out, and
+     * delivered right after this call through {@link #onDocumentChanged} instead, in several
+     * smaller changes.
+     *
+     * @param schemaChanges The schema changes, delivered before the document changes.
+     * @param documentChanges The document changes, grouped by package, database, namespace and
+     *     schema type.
+     */
+    void onChanged(
+            @NonNull List<SchemaChangeInfo> schemaChanges,
+            @NonNull List<DocumentChangeInfo> documentChanges);
+}
@@ -54,4 +54,59 @@ public interface LimitConfig {
      * </ol>
      */
     int getMaxDocumentCount();
+
+    /**
+     * The maximum number of next-page tokens a single app may hold at once.
+     *
+     * <p>Enforced when a query returns a new token. The app's least recently used token is
+     * invalidated to make room.
+     *
+     * <p>Each token pins a cached result state in Icing until the app reaches the last page or
+     * invalidates it. This caps how much of that state an app can leak by abandoning queries.
+     */
+    default int getMaxNextPageTokenCountPerPackage() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * How long, in milliseconds, a next-page token may go unused before it is invalidated.
+     *
+     * <p>{@link Long#MAX_VALUE} means idle tokens are never invalidated.
+     */
+    default long getNextPageTokenTtlMillis() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * The maximum number of bytes of search results kept to answer repeated identical queries
+     * without searching again.
+     *
+     * <p>Only queries whose results all fit in their first page are cached, for a few seconds at
+     * most, and any change to the searched databases invalidates them. 0 disables the cache.
+     */
+    default long getQueryResultCacheMaxBytes() {
+        return 0;
+    }
+
+    /**
+     * The number of shards the searched packages of a global query are split into.
+     *
+     * <p>Each shard is searched for a page of results of its own, one after the other, and the
+     * pages are merged by the query's ranking. 1 searches all packages at once.
+     */
+    default int getGlobalQueryShardCount() {
+        return 1;
+    }
+
+    /**
+     * The maximum number of distinct document IDs of one package, database, namespace and schema
+     * type sent to an observer along with the other changes of a dispatch.
+     *
+     * <p>Above it, the IDs are sent on their own after the other changes, in chunks of at most
+     * this many IDs. Only applies to observers receiving changes in batches, see {@link
+     * BatchObserverCallback}.
+     */
+    default int getMaxPendingObserverDocumentIdCount() {
+        return Integer.MAX_VALUE;
+    }
 }
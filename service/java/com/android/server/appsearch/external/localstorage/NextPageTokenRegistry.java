@@ -0,0 +1,350 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import android.annotation.NonNull;
+import android.app.appsearch.SearchSpec;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Tracks the next-page tokens each package is allowed to use.
+ *
+ * <p>Tokens are stored per package in sorted primitive arrays, together with the time they were
+ * last used and the {@link SearchSpec.ResultMode} of their query, so that later pages are
+ * converted the way the query asked for regardless of what the caller claims. A package holding
+ * more than {@link LimitConfig#getMaxNextPageTokenCountPerPackage} tokens loses its least
+ * recently used one, and tokens unused for longer than {@link
+ * LimitConfig#getNextPageTokenTtlMillis} are evicted by the next sweep.
+ *
+ * <p>Evicted tokens are returned to the caller, which must invalidate them in Icing so the native
+ * result state they hold is released.
+ *
+ * <p>This class is thread safe.
+ *
+ * @hide
+ */
+final class NextPageTokenRegistry {
+    /** Upper bound on how long expired tokens may linger before a sweep evicts them. */
+    private static final long MAX_SWEEP_INTERVAL_MILLIS = 60_000;
+
+    private static final long[] EMPTY_TOKENS = new long[0];
+
+    /** Returned by {@link #checkAndTouch} for a token the package may not use. */
+    static final int TOKEN_NOT_REGISTERED = -1;
+
+    private final int mMaxTokensPerPackage;
+    private final long mTtlMillis;
+    private final long mSweepIntervalMillis;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final Map<String, PackageTokens> mPackageTokensLocked = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private int mTokenCountLocked = 0;
+
+    @GuardedBy("mLock")
+    private long mEvictedTokenCountLocked = 0;
+
+    @GuardedBy("mLock")
+    private long mLastSweepMillisLocked = 0;
+
+    /**
+     * @param maxTokensPerPackage The most tokens a single package may hold at once.
+     * @param ttlMillis How long a token may go unused before it is evicted, or {@link
+     *     Long#MAX_VALUE} to never evict idle tokens.
+     */
+    NextPageTokenRegistry(int maxTokensPerPackage, long ttlMillis) {
+        if (maxTokensPerPackage <= 0) {
+            throw new IllegalArgumentException(
+                    "maxTokensPerPackage must be positive: " + maxTokensPerPackage);
+        }
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("ttlMillis must be positive: " + ttlMillis);
+        }
+        mMaxTokensPerPackage = maxTokensPerPackage;
+        mTtlMillis = ttlMillis;
+        mSweepIntervalMillis = Math.min(ttlMillis, MAX_SWEEP_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Registers a token for the given package.
+     *
+     * @param resultMode The {@link SearchSpec.ResultMode} of the query the token pages through.
+     * @return The tokens evicted to make room for it or because they expired, which the caller
+     *     must invalidate in Icing.
+     */
+    @NonNull
+    long[] add(
+            @NonNull String packageName,
+            long token,
+            @SearchSpec.ResultMode int resultMode,
+            long nowMillis) {
+        Objects.requireNonNull(packageName);
+        synchronized (mLock) {
+            long[] expiredTokens = sweepLocked(nowMillis);
+            PackageTokens packageTokens = mPackageTokensLocked.get(packageName);
+            if (packageTokens == null) {
+                packageTokens = new PackageTokens();
+                mPackageTokensLocked.put(packageName, packageTokens);
+            }
+            long evictedToken = 0;
+            boolean evicted = false;
+            if (packageTokens.indexOf(token) < 0 && packageTokens.mSize >= mMaxTokensPerPackage) {
+                evictedToken = packageTokens.removeLeastRecentlyUsed();
+                evicted = true;
+                mTokenCountLocked--;
+                mEvictedTokenCountLocked++;
+            }
+            if (packageTokens.put(token, resultMode, nowMillis)) {
+                mTokenCountLocked++;
+            }
+            if (!evicted) {
+                return expiredTokens;
+            }
+            long[] evictedTokens = Arrays.copyOf(expiredTokens, expiredTokens.length + 1);
+            evictedTokens[expiredTokens.length] = evictedToken;
+            return evictedTokens;
+        }
+    }
+
+    /**
+     * Checks whether the given package may use the token, and if so marks it as used now so it
+     * won't expire.
+     *
+     * @return The {@link SearchSpec.ResultMode} the token was registered with, or {@link
+     *     #TOKEN_NOT_REGISTERED} if the package may not use it.
+     */
+    int checkAndTouch(@NonNull String packageName, long token, long nowMillis) {
+        Objects.requireNonNull(packageName);
+        synchronized (mLock) {
+            PackageTokens packageTokens = mPackageTokensLocked.get(packageName);
+            if (packageTokens == null) {
+                return TOKEN_NOT_REGISTERED;
+            }
+            int index = packageTokens.indexOf(token);
+            if (index < 0) {
+                return TOKEN_NOT_REGISTERED;
+            }
+            packageTokens.mLastAccessMillis[index] = nowMillis;
+            return packageTokens.mResultModes[index];
+        }
+    }
+
+    /**
+     * Removes the given package's token.
+     *
+     * @return whether the token was registered for the package.
+     */
+    boolean remove(@NonNull String packageName, long token) {
+        Objects.requireNonNull(packageName);
+        synchronized (mLock) {
+            PackageTokens packageTokens = mPackageTokensLocked.get(packageName);
+            if (packageTokens == null || !packageTokens.remove(token)) {
+                return false;
+            }
+            mTokenCountLocked--;
+            if (packageTokens.mSize == 0) {
+                mPackageTokensLocked.remove(packageName);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Removes all tokens of the given package.
+     *
+     * @return The removed tokens, which the caller should invalidate in Icing.
+     */
+    @NonNull
+    long[] removePackage(@NonNull String packageName) {
+        Objects.requireNonNull(packageName);
+        synchronized (mLock) {
+            PackageTokens packageTokens = mPackageTokensLocked.remove(packageName);
+            if (packageTokens == null) {
+                return EMPTY_TOKENS;
+            }
+            mTokenCountLocked -= packageTokens.mSize;
+            return Arrays.copyOf(packageTokens.mTokens, packageTokens.mSize);
+        }
+    }
+
+    /** Forgets every token without evicting them. */
+    void clear() {
+        synchronized (mLock) {
+            mPackageTokensLocked.clear();
+            mTokenCountLocked = 0;
+        }
+    }
+
+    /**
+     * Evicts every token that has been idle for longer than the TTL.
+     *
+     * @return The evicted tokens, which the caller must invalidate in Icing.
+     */
+    @NonNull
+    long[] evictExpired(long nowMillis) {
+        synchronized (mLock) {
+            mLastSweepMillisLocked = nowMillis;
+            return evictExpiredLocked(nowMillis);
+        }
+    }
+
+    /** Returns the number of tokens currently registered across all packages. */
+    int getTokenCount() {
+        synchronized (mLock) {
+            return mTokenCountLocked;
+        }
+    }
+
+    /** Returns the number of tokens evicted for being idle or over the per-package cap. */
+    long getEvictedTokenCount() {
+        synchronized (mLock) {
+            return mEvictedTokenCountLocked;
+        }
+    }
+
+    /** Evicts expired tokens if the last sweep was long enough ago. */
+    @GuardedBy("mLock")
+    @NonNull
+    private long[] sweepLocked(long nowMillis) {
+        if (mTtlMillis == Long.MAX_VALUE
+                || nowMillis - mLastSweepMillisLocked < mSweepIntervalMillis) {
+            return EMPTY_TOKENS;
+        }
+        mLastSweepMillisLocked = nowMillis;
+        return evictExpiredLocked(nowMillis);
+    }
+
+    @GuardedBy("mLock")
+    @NonNull
+    private long[] evictExpiredLocked(long nowMillis) {
+        if (mTtlMillis == Long.MAX_VALUE || mTokenCountLocked == 0) {
+            return EMPTY_TOKENS;
+        }
+        long[] expiredTokens = EMPTY_TOKENS;
+        int expiredCount = 0;
+        Iterator<PackageTokens> iterator = mPackageTokensLocked.values().iterator();
+        while (iterator.hasNext()) {
+            PackageTokens packageTokens = iterator.next();
+            int kept = 0;
+            for (int i = 0; i < packageTokens.mSize; i++) {
+                if (nowMillis - packageTokens.mLastAccessMillis[i] >= mTtlMillis) {
+                    if (expiredCount == expiredTokens.length) {
+                        expiredTokens =
+                                Arrays.copyOf(expiredTokens, Math.max(4, expiredCount * 2));
+                    }
+                    expiredTokens[expiredCount++] = packageTokens.mTokens[i];
+                } else {
+                    // Compact in place; this keeps the tokens sorted.
+                    packageTokens.mTokens[kept] = packageTokens.mTokens[i];
+                    packageTokens.mLastAccessMillis[kept] = packageTokens.mLastAccessMillis[i];
+                    packageTokens.mResultModes[kept] = packageTokens.mResultModes[i];
+                    kept++;
+                }
+            }
+            packageTokens.mSize = kept;
+            if (kept == 0) {
+                iterator.remove();
+            }
+        }
+        mTokenCountLocked -= expiredCount;
+        mEvictedTokenCountLocked += expiredCount;
+        return expiredCount == expiredTokens.length
+                ? expiredTokens
+                : Arrays.copyOf(expiredTokens, expiredCount);
+    }
+
+    /** The tokens of one package, sorted by token, with their last access times and modes. */
+    private static final class PackageTokens {
+        long[] mTokens = new long[4];
+        long[] mLastAccessMillis = new long[4];
+        int[] mResultModes = new int[4];
+        int mSize = 0;
+
+        int indexOf(long token) {
+            return Arrays.binarySearch(mTokens, 0, mSize, token);
+        }
+
+        /**
+         * Adds the token, or refreshes its access time and mode if it's already present.
+         *
+         * @return whether the token was added.
+         */
+        boolean put(long token, int resultMode, long nowMillis) {
+            int index = indexOf(token);
+            if (index >= 0) {
+                mLastAccessMillis[index] = nowMillis;
+                mResultModes[index] = resultMode;
+                return false;
+            }
+            index = -(index + 1);
+            if (mSize == mTokens.length) {
+                mTokens = Arrays.copyOf(mTokens, mSize * 2);
+                mLastAccessMillis = Arrays.copyOf(mLastAccessMillis, mSize * 2);
+                mResultModes = Arrays.copyOf(mResultModes, mSize * 2);
+            }
+            System.arraycopy(mTokens, index, mTokens, index + 1, mSize - index);
+            System.arraycopy(
+                    mLastAccessMillis, index, mLastAccessMillis, index + 1, mSize - index);
+            System.arraycopy(mResultModes, index, mResultModes, index + 1, mSize - index);
+            mTokens[index] = token;
+            mLastAccessMillis[index] = nowMillis;
+            mResultModes[index] = resultMode;
+            mSize++;
+            return true;
+        }
+
+        boolean remove(long token) {
+            int index = indexOf(token);
+            if (index < 0) {
+                return false;
+            }
+            removeAt(index);
+            return true;
+        }
+
+        /** Removes and returns the token that was used the longest time ago. */
+        long removeLeastRecentlyUsed() {
+            int oldest = 0;
+            for (int i = 1; i < mSize; i++) {
+                if (mLastAccessMillis[i] < mLastAccessMillis[oldest]) {
+                    oldest = i;
+                }
+            }
+            long token = mTokens[oldest];
+            removeAt(oldest);
+            return token;
+        }
+
+        private void removeAt(int index) {
+            System.arraycopy(mTokens, index + 1, mTokens, index, mSize - index - 1);
+            System.arraycopy(
+                    mLastAccessMillis, index + 1, mLastAccessMillis, index, mSize - index - 1);
+            System.arraycopy(mResultModes, index + 1, mResultModes, index, mSize - index - 1);
+            mSize--;
+        }
+    }
+}
@@ -35,6 +35,7 @@ import com.android.server.appsearch.external.localstorage.visibilitystore.Visibi
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -86,6 +87,43 @@ public class ObserverManager {
         }
     }
 
+    /**
+     * The IDs of the documents changed in one {@link DocumentChangeGroupKey} since the last
+     * dispatch.
+     *
+     * <p>IDs are appended as they come, so bulk mutations don't pay for keeping a sorted set per
+     * change, and are only deduplicated when the list doubles in size and when they are
+     * dispatched.
+     */
+    private static final class PendingDocumentIds {
+        // The size of mIds above which it is first deduplicated.
+        private static final int MIN_COMPACTION_THRESHOLD = 1024;
+
+        private ArrayList<String> mIds = new ArrayList<>();
+        // The size above which mIds is deduplicated next.
+        private int mCompactionThreshold = MIN_COMPACTION_THRESHOLD;
+
+        void add(@NonNull String documentId) {
+            mIds.add(documentId);
+            if (mIds.size() <= mCompactionThreshold) {
+                return;
+            }
+            mIds = new ArrayList<>(new HashSet<>(mIds));
+            // Leave room for at least as many appends as there are IDs, so each one costs
+            // amortized O(1).
+            mCompactionThreshold = Math.max(2 * mIds.size(), MIN_COMPACTION_THRESHOLD);
+        }
+
+        /** Returns the distinct changed IDs. */
+        @NonNull
+        Set<String> toDocumentIds() {
+            if (mIds.size() == 1) {
+                return Collections.singleton(mIds.get(0));
+            }
+            return new HashSet<>(mIds);
+        }
+    }
+
     private static final class ObserverInfo {
         /** The package which registered the observer. */
         final CallerAccess mListeningPackageAccess;
@@ -93,8 +131,12 @@ public class ObserverManager {
         final ObserverSpec mObserverSpec;
         final Executor mExecutor;
         final ObserverCallback mObserverCallback;
-        // Values is a set of document IDs
-        volatile Map<DocumentChangeGroupKey, Set<String>> mDocumentChanges = new ArrayMap<>();
+        // The number of document IDs of a change group above which it is left out of the batch
+        // given to a BatchObserverCallback. Other callbacks get each change on its own anyway.
+        final int mMaxPendingDocumentIds;
+        // Values are the pending document IDs
+        volatile Map<DocumentChangeGroupKey, PendingDocumentIds> mDocumentChanges =
+                new ArrayMap<>();
         // Keys are database prefixes, values are a set of schema names
         volatile Map<String, Set<String>> mSchemaChanges = new ArrayMap<>();
 
@@ -102,22 +144,118 @@ public class ObserverManager {
                 @NonNull CallerAccess listeningPackageAccess,
                 @NonNull ObserverSpec observerSpec,
                 @NonNull Executor executor,
-                @NonNull ObserverCallback observerCallback) {
+                @NonNull ObserverCallback observerCallback,
+                int maxPendingDocumentIds) {
             mListeningPackageAccess = Objects.requireNonNull(listeningPackageAccess);
             mObserverSpec = Objects.requireNonNull(observerSpec);
             mExecutor = Objects.requireNonNull(executor);
             mObserverCallback = Objects.requireNonNull(observerCallback);
+            mMaxPendingDocumentIds =
+                    observerCallback instanceof BatchObserverCallback
+                            ? maxPendingDocumentIds
+                            : Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The observers watching one target package, indexed by the schema types they filter on.
+     *
+     * <p>This lets a change be routed with one lookup to the observers of its schema type and to
+     * the observers of all schema types, instead of matching it against the spec of every observer
+     * of the package.
+     */
+    private static final class PackageObservers {
+        /** All the observers, in registration order. */
+        final List<ObserverInfo> mAll = new ArrayList<>();
+
+        /** Maps unprefixed schema types to the observers filtering on them. */
+        final Map<String, List<ObserverInfo>> mBySchemaType = new ArrayMap<>();
+
+        /** The observers with no schema filter, which watch every schema type. */
+        final List<ObserverInfo> mAllSchemaTypes = new ArrayList<>();
+
+        void add(@NonNull ObserverInfo observerInfo) {
+            mAll.add(observerInfo);
+            Set<String> schemaFilters = observerInfo.mObserverSpec.getFilterSchemas();
+            if (schemaFilters.isEmpty()) {
+                mAllSchemaTypes.add(observerInfo);
+                return;
+            }
+            for (String schemaType : schemaFilters) {
+                List<ObserverInfo> infos = mBySchemaType.get(schemaType);
+                if (infos == null) {
+                    infos = new ArrayList<>();
+                    mBySchemaType.put(schemaType, infos);
+                }
+                infos.add(observerInfo);
+            }
+        }
+
+        /** Removes the observers whose callback equals the given one. */
+        void remove(@NonNull ObserverCallback observerCallback) {
+            for (int i = 0; i < mAll.size(); i++) {
+                ObserverInfo observerInfo = mAll.get(i);
+                if (!observerInfo.mObserverCallback.equals(observerCallback)) {
+                    continue;
+                }
+                mAll.remove(i);
+                i--;
+                Set<String> schemaFilters = observerInfo.mObserverSpec.getFilterSchemas();
+                if (schemaFilters.isEmpty()) {
+                    mAllSchemaTypes.remove(observerInfo);
+                    continue;
+                }
+                for (String schemaType : schemaFilters) {
+                    List<ObserverInfo> infos = mBySchemaType.get(schemaType);
+                    if (infos != null) {
+                        infos.remove(observerInfo);
+                        if (infos.isEmpty()) {
+                            mBySchemaType.remove(schemaType);
+                        }
+                    }
+                }
+            }
+        }
+
+        /** Returns the observers filtering on exactly the given unprefixed schema type. */
+        @NonNull
+        List<ObserverInfo> getSchemaTypeObservers(@NonNull String schemaType) {
+            List<ObserverInfo> infos = mBySchemaType.get(schemaType);
+            return infos == null ? Collections.emptyList() : infos;
         }
     }
 
     private final Object mLock = new Object();
 
-    /** Maps target packages to ObserverInfos watching something in that package. */
+    /** Maps target packages to the observers watching something in that package. */
     @GuardedBy("mLock")
-    private final Map<String, List<ObserverInfo>> mObserversLocked = new ArrayMap<>();
+    private final Map<String, PackageObservers> mObserversLocked = new ArrayMap<>();
 
     private volatile boolean mHasNotifications = false;
 
+    private final int mMaxPendingDocumentIds;
+
+    /** Creates an {@link ObserverManager} batching document changes of any size. */
+    public ObserverManager() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates an {@link ObserverManager}.
+     *
+     * @param maxPendingDocumentIds The number of distinct document IDs of one package, database,
+     *     namespace and schema type a {@link BatchObserverCallback} gets in the batch of a
+     *     dispatch. Above it, the IDs are delivered after the batch, in changes of at most this
+     *     many IDs, see {@link BatchObserverCallback#onChanged}.
+     */
+    public ObserverManager(int maxPendingDocumentIds) {
+        if (maxPendingDocumentIds <= 0) {
+            throw new IllegalArgumentException(
+                    "maxPendingDocumentIds must be positive: " + maxPendingDocumentIds);
+        }
+        mMaxPendingDocumentIds = maxPendingDocumentIds;
+    }
+
     /**
      * Adds an {@link ObserverCallback} to monitor changes within the databases owned by {@code
      * targetPackageName} if they match the given {@link
@@ -151,12 +289,18 @@ public class ObserverManager {
             @NonNull Executor executor,
             @NonNull ObserverCallback observerCallback) {
         synchronized (mLock) {
-            List<ObserverInfo> infos = mObserversLocked.get(targetPackageName);
-            if (infos == null) {
-                infos = new ArrayList<>();
-                mObserversLocked.put(targetPackageName, infos);
+            PackageObservers packageObservers = mObserversLocked.get(targetPackageName);
+            if (packageObservers == null) {
+                packageObservers = new PackageObservers();
+                mObserversLocked.put(targetPackageName, packageObservers);
             }
-            infos.add(new ObserverInfo(listeningPackageAccess, spec, executor, observerCallback));
+            packageObservers.add(
+                    new ObserverInfo(
+                            listeningPackageAccess,
+                            spec,
+                            executor,
+                            observerCallback,
+                            mMaxPendingDocumentIds));
         }
     }
 
@@ -169,15 +313,13 @@ public class ObserverManager {
     public void unregisterObserverCallback(
             @NonNull String targetPackageName, @NonNull ObserverCallback observer) {
         synchronized (mLock) {
-            List<ObserverInfo> infos = mObserversLocked.get(targetPackageName);
-            if (infos == null) {
+            PackageObservers packageObservers = mObserversLocked.get(targetPackageName);
+            if (packageObservers == null) {
                 return;
             }
-            for (int i = 0; i < infos.size(); i++) {
-                if (infos.get(i).mObserverCallback.equals(observer)) {
-                    infos.remove(i);
-                    i--;
-                }
+            packageObservers.remove(observer);
+            if (packageObservers.mAll.isEmpty()) {
+                mObserversLocked.remove(targetPackageName);
             }
         }
     }
@@ -202,42 +344,69 @@ public class ObserverManager {
             @Nullable VisibilityStore visibilityStore,
             @Nullable VisibilityChecker visibilityChecker) {
         synchronized (mLock) {
-            List<ObserverInfo> allObserverInfosForPackage = mObserversLocked.get(packageName);
-            if (allObserverInfosForPackage == null || allObserverInfosForPackage.isEmpty()) {
+            PackageObservers packageObservers = mObserversLocked.get(packageName);
+            if (packageObservers == null) {
+                return; // No observers for this package
+            }
+            List<ObserverInfo> schemaTypeObservers =
+                    packageObservers.getSchemaTypeObservers(schemaType);
+            if (schemaTypeObservers.isEmpty() && packageObservers.mAllSchemaTypes.isEmpty()) {
                 return; // No observers for this type
             }
             // Enqueue changes for later dispatch once the call returns
             String prefixedSchema = PrefixUtil.createPrefix(packageName, databaseName) + schemaType;
-            DocumentChangeGroupKey key = null;
-            for (int i = 0; i < allObserverInfosForPackage.size(); i++) {
-                ObserverInfo observerInfo = allObserverInfosForPackage.get(i);
-                if (!matchesSpec(schemaType, observerInfo.mObserverSpec)) {
-                    continue; // Observer doesn't want this notification
-                }
-                if (!VisibilityUtil.isSchemaSearchableByCaller(
-                        /*callerAccess=*/ observerInfo.mListeningPackageAccess,
-                        /*targetPackageName=*/ packageName,
-                        /*prefixedSchema=*/ prefixedSchema,
-                        visibilityStore,
-                        visibilityChecker)) {
-                    continue; // Observer can't have this notification.
-                }
-                if (key == null) {
-                    key =
-                            new DocumentChangeGroupKey(
-                                    packageName, databaseName, namespace, schemaType);
-                }
-                Set<String> changedDocumentIds = observerInfo.mDocumentChanges.get(key);
-                if (changedDocumentIds == null) {
-                    changedDocumentIds = new ArraySet<>();
-                    observerInfo.mDocumentChanges.put(key, changedDocumentIds);
-                }
-                changedDocumentIds.add(documentId);
-            }
+            DocumentChangeGroupKey key =
+                    new DocumentChangeGroupKey(packageName, databaseName, namespace, schemaType);
+            enqueueDocumentChangeLocked(
+                    schemaTypeObservers,
+                    key,
+                    prefixedSchema,
+                    documentId,
+                    visibilityStore,
+                    visibilityChecker);
+            enqueueDocumentChangeLocked(
+                    packageObservers.mAllSchemaTypes,
+                    key,
+                    prefixedSchema,
+                    documentId,
+                    visibilityStore,
+                    visibilityChecker);
             mHasNotifications = true;
         }
     }
 
+    /**
+     * Enqueues a document change for each of the given observers that can see its schema type.
+     *
+     * <p>The observers must already be known to match the schema type of the change.
+     */
+    @GuardedBy("mLock")
+    private void enqueueDocumentChangeLocked(
+            @NonNull List<ObserverInfo> observerInfos,
+            @NonNull DocumentChangeGroupKey key,
+            @NonNull String prefixedSchema,
+            @NonNull String documentId,
+            @Nullable VisibilityStore visibilityStore,
+            @Nullable VisibilityChecker visibilityChecker) {
+        for (int i = 0; i < observerInfos.size(); i++) {
+            ObserverInfo observerInfo = observerInfos.get(i);
+            if (!VisibilityUtil.isSchemaSearchableByCaller(
+                    /*callerAccess=*/ observerInfo.mListeningPackageAccess,
+                    /*targetPackageName=*/ key.mPackageName,
+                    /*prefixedSchema=*/ prefixedSchema,
+                    visibilityStore,
+                    visibilityChecker)) {
+                continue; // Observer can't have this notification.
+            }
+            PendingDocumentIds changedDocumentIds = observerInfo.mDocumentChanges.get(key);
+            if (changedDocumentIds == null) {
+                changedDocumentIds = new PendingDocumentIds();
+                observerInfo.mDocumentChanges.put(key, changedDocumentIds);
+            }
+            changedDocumentIds.add(documentId);
+        }
+    }
+
     /**
      * Enqueues a change to a schema type for a single observer.
      *
@@ -261,37 +430,52 @@ public class ObserverManager {
             @NonNull String databaseName,
             @NonNull String schemaName) {
         synchronized (mLock) {
-            List<ObserverInfo> allObserverInfosForPackage = mObserversLocked.get(targetPackageName);
-            if (allObserverInfosForPackage == null || allObserverInfosForPackage.isEmpty()) {
-                return; // No observers for this type
+            PackageObservers packageObservers = mObserversLocked.get(targetPackageName);
+            if (packageObservers == null) {
+                return; // No observers for this package
             }
             // Enqueue changes for later dispatch once the call returns
-            String prefix = null;
-            for (int i = 0; i < allObserverInfosForPackage.size(); i++) {
-                ObserverInfo observerInfo = allObserverInfosForPackage.get(i);
-                if (!observerInfo
-                        .mListeningPackageAccess
-                        .getCallingPackageName()
-                        .equals(listeningPackageName)) {
-                    continue; // Not the observer we've been requested to update right now.
-                }
-                if (!matchesSpec(schemaName, observerInfo.mObserverSpec)) {
-                    continue; // Observer doesn't want this notification
-                }
-                if (prefix == null) {
-                    prefix = PrefixUtil.createPrefix(targetPackageName, databaseName);
-                }
-                Set<String> changedSchemaNames = observerInfo.mSchemaChanges.get(prefix);
-                if (changedSchemaNames == null) {
-                    changedSchemaNames = new ArraySet<>();
-                    observerInfo.mSchemaChanges.put(prefix, changedSchemaNames);
-                }
-                changedSchemaNames.add(schemaName);
-            }
+            String prefix = PrefixUtil.createPrefix(targetPackageName, databaseName);
+            enqueueSchemaChangeLocked(
+                    packageObservers.getSchemaTypeObservers(schemaName),
+                    listeningPackageName,
+                    prefix,
+                    schemaName);
+            enqueueSchemaChangeLocked(
+                    packageObservers.mAllSchemaTypes, listeningPackageName, prefix, schemaName);
             mHasNotifications = true;
         }
     }
 
+    /**
+     * Enqueues a schema change for each of the given observers registered by {@code
+     * listeningPackageName}.
+     *
+     * <p>The observers must already be known to match the changed schema type.
+     */
+    @GuardedBy("mLock")
+    private static void enqueueSchemaChangeLocked(
+            @NonNull List<ObserverInfo> observerInfos,
+            @NonNull String listeningPackageName,
+            @NonNull String prefix,
+            @NonNull String schemaName) {
+        for (int i = 0; i < observerInfos.size(); i++) {
+            ObserverInfo observerInfo = observerInfos.get(i);
+            if (!observerInfo
+                    .mListeningPackageAccess
+                    .getCallingPackageName()
+                    .equals(listeningPackageName)) {
+                continue; // Not the observer we've been requested to update right now.
+            }
+            Set<String> changedSchemaNames = observerInfo.mSchemaChanges.get(prefix);
+            if (changedSchemaNames == null) {
+                changedSchemaNames = new ArraySet<>();
+                observerInfo.mSchemaChanges.put(prefix, changedSchemaNames);
+            }
+            changedSchemaNames.add(schemaName);
+        }
+    }
+
     /** Returns whether there are any observers registered to watch the given package. */
     public boolean isPackageObserved(@NonNull String packageName) {
         synchronized (mLock) {
@@ -305,17 +489,12 @@ public class ObserverManager {
      */
     public boolean isSchemaTypeObserved(@NonNull String packageName, @NonNull String schemaType) {
         synchronized (mLock) {
-            List<ObserverInfo> allObserverInfosForPackage = mObserversLocked.get(packageName);
-            if (allObserverInfosForPackage == null) {
+            PackageObservers packageObservers = mObserversLocked.get(packageName);
+            if (packageObservers == null) {
                 return false;
             }
-            for (int i = 0; i < allObserverInfosForPackage.size(); i++) {
-                ObserverInfo observerInfo = allObserverInfosForPackage.get(i);
-                if (matchesSpec(schemaType, observerInfo.mObserverSpec)) {
-                    return true;
-                }
-            }
-            return false;
+            return !packageObservers.mAllSchemaTypes.isEmpty()
+                    || !packageObservers.getSchemaTypeObservers(schemaType).isEmpty();
         }
     }
 
@@ -332,31 +511,61 @@ public class ObserverManager {
             @Nullable VisibilityStore visibilityStore,
             @Nullable VisibilityChecker visibilityChecker) {
         synchronized (mLock) {
-            List<ObserverInfo> allObserverInfosForPackage = mObserversLocked.get(packageName);
-            if (allObserverInfosForPackage == null) {
+            PackageObservers packageObservers = mObserversLocked.get(packageName);
+            if (packageObservers == null) {
                 return Collections.emptySet();
             }
             Set<String> result = new ArraySet<>();
             String prefixedSchema = PrefixUtil.createPrefix(packageName, databaseName) + schemaType;
-            for (int i = 0; i < allObserverInfosForPackage.size(); i++) {
-                ObserverInfo observerInfo = allObserverInfosForPackage.get(i);
-                if (!matchesSpec(schemaType, observerInfo.mObserverSpec)) {
-                    continue; // Observer doesn't want this notification
-                }
-                if (!VisibilityUtil.isSchemaSearchableByCaller(
-                        /*callerAccess=*/ observerInfo.mListeningPackageAccess,
-                        /*targetPackageName=*/ packageName,
-                        /*prefixedSchema=*/ prefixedSchema,
-                        visibilityStore,
-                        visibilityChecker)) {
-                    continue; // Observer can't have this notification.
-                }
-                result.add(observerInfo.mListeningPackageAccess.getCallingPackageName());
-            }
+            addVisibleListeningPackagesLocked(
+                    packageObservers.getSchemaTypeObservers(schemaType),
+                    packageName,
+                    prefixedSchema,
+                    visibilityStore,
+                    visibilityChecker,
+                    result);
+            addVisibleListeningPackagesLocked(
+                    packageObservers.mAllSchemaTypes,
+                    packageName,
+                    prefixedSchema,
+                    visibilityStore,
+                    visibilityChecker,
+                    result);
             return result;
         }
     }
 
+    /**
+     * Adds the listening package of each of the given observers that can see {@code
+     * prefixedSchema} to {@code result}.
+     */
+    @GuardedBy("mLock")
+    private static void addVisibleListeningPackagesLocked(
+            @NonNull List<ObserverInfo> observerInfos,
+            @NonNull String packageName,
+            @NonNull String prefixedSchema,
+            @Nullable VisibilityStore visibilityStore,
+            @Nullable VisibilityChecker visibilityChecker,
+            @NonNull Set<String> result) {
+        for (int i = 0; i < observerInfos.size(); i++) {
+            ObserverInfo observerInfo = observerInfos.get(i);
+            String listeningPackageName =
+                    observerInfo.mListeningPackageAccess.getCallingPackageName();
+            if (result.contains(listeningPackageName)) {
+                continue; // Already known to be able to see this type.
+            }
+            if (!VisibilityUtil.isSchemaSearchableByCaller(
+                    /*callerAccess=*/ observerInfo.mListeningPackageAccess,
+                    /*targetPackageName=*/ packageName,
+                    /*prefixedSchema=*/ prefixedSchema,
+                    visibilityStore,
+                    visibilityChecker)) {
+                continue; // Observer can't have this notification.
+            }
+            result.add(listeningPackageName);
+        }
+    }
+
     /** Returns whether any notifications have been queued for dispatch. */
     public boolean hasNotifications() {
         return mHasNotifications;
@@ -371,9 +580,9 @@ public class ObserverManager {
             if (mObserversLocked.isEmpty() || !mHasNotifications) {
                 return;
             }
-            for (List<ObserverInfo> observerInfos : mObserversLocked.values()) {
-                for (int i = 0; i < observerInfos.size(); i++) {
-                    dispatchAndClearPendingNotificationsLocked(observerInfos.get(i));
+            for (PackageObservers packageObservers : mObserversLocked.values()) {
+                for (int i = 0; i < packageObservers.mAll.size(); i++) {
+                    dispatchAndClearPendingNotificationsLocked(packageObservers.mAll.get(i));
                 }
             }
             mHasNotifications = false;
@@ -385,7 +594,8 @@ public class ObserverManager {
     private void dispatchAndClearPendingNotificationsLocked(@NonNull ObserverInfo observerInfo) {
         // Get and clear the pending changes
         Map<String, Set<String>> schemaChanges = observerInfo.mSchemaChanges;
-        Map<DocumentChangeGroupKey, Set<String>> documentChanges = observerInfo.mDocumentChanges;
+        Map<DocumentChangeGroupKey, PendingDocumentIds> documentChanges =
+                observerInfo.mDocumentChanges;
         if (schemaChanges.isEmpty() && documentChanges.isEmpty()) {
             return;
         }
@@ -399,58 +609,125 @@ public class ObserverManager {
         // Dispatch the pending changes
         observerInfo.mExecutor.execute(
                 () -> {
+                    List<SchemaChangeInfo> schemaChangeInfos =
+                            new ArrayList<>(schemaChanges.size());
+                    for (Map.Entry<String, Set<String>> entry : schemaChanges.entrySet()) {
+                        schemaChangeInfos.add(
+                                new SchemaChangeInfo(
+                                        /*packageName=*/ PrefixUtil.getPackageName(entry.getKey()),
+                                        /*databaseName=*/ PrefixUtil.getDatabaseName(
+                                                entry.getKey()),
+                                        /*changedSchemaNames=*/ entry.getValue()));
+                    }
+                    List<DocumentChangeInfo> documentChangeInfos =
+                            new ArrayList<>(documentChanges.size());
+                    // Deduplicate the IDs here, on the observer's executor, rather than on every
+                    // mutation.
+                    for (Map.Entry<DocumentChangeGroupKey, PendingDocumentIds> entry :
+                            documentChanges.entrySet()) {
+                        documentChangeInfos.add(
+                                new DocumentChangeInfo(
+                                        entry.getKey().mPackageName,
+                                        entry.getKey().mDatabaseName,
+                                        entry.getKey().mNamespace,
+                                        entry.getKey().mSchemaName,
+                                        entry.getValue().toDocumentIds()));
+                    }
+
+                    if (observerInfo.mObserverCallback instanceof BatchObserverCallback) {
+                        dispatchBatch(
+                                observerInfo.mMaxPendingDocumentIds,
+                                (BatchObserverCallback) observerInfo.mObserverCallback,
+                                schemaChangeInfos,
+                                documentChangeInfos);
+                        return;
+                    }
+
                     // Schema changes
-                    if (!schemaChanges.isEmpty()) {
-                        for (Map.Entry<String, Set<String>> entry : schemaChanges.entrySet()) {
-                            SchemaChangeInfo schemaChangeInfo =
-                                    new SchemaChangeInfo(
-                                            /*packageName=*/ PrefixUtil.getPackageName(
-                                                    entry.getKey()),
-                                            /*databaseName=*/ PrefixUtil.getDatabaseName(
-                                                    entry.getKey()),
-                                            /*changedSchemaNames=*/ entry.getValue());
-
-                            try {
-                                observerInfo.mObserverCallback.onSchemaChanged(schemaChangeInfo);
-                            } catch (Throwable t) {
-                                Log.w(TAG, "ObserverCallback threw exception during dispatch", t);
-                            }
+                    for (int i = 0; i < schemaChangeInfos.size(); i++) {
+                        try {
+                            observerInfo.mObserverCallback.onSchemaChanged(
+                                    schemaChangeInfos.get(i));
+                        } catch (Throwable t) {
+                            Log.w(TAG, "ObserverCallback threw exception during dispatch", t);
                         }
                     }
 
                     // Document changes
-                    if (!documentChanges.isEmpty()) {
-                        for (Map.Entry<DocumentChangeGroupKey, Set<String>> entry :
-                                documentChanges.entrySet()) {
-                            DocumentChangeInfo documentChangeInfo =
-                                    new DocumentChangeInfo(
-                                            entry.getKey().mPackageName,
-                                            entry.getKey().mDatabaseName,
-                                            entry.getKey().mNamespace,
-                                            entry.getKey().mSchemaName,
-                                            entry.getValue());
-
-                            try {
-                                observerInfo.mObserverCallback.onDocumentChanged(
-                                        documentChangeInfo);
-                            } catch (Throwable t) {
-                                Log.w(TAG, "ObserverCallback threw exception during dispatch", t);
-                            }
+                    for (int i = 0; i < documentChangeInfos.size(); i++) {
+                        try {
+                            observerInfo.mObserverCallback.onDocumentChanged(
+                                    documentChangeInfos.get(i));
+                        } catch (Throwable t) {
+                            Log.w(TAG, "ObserverCallback threw exception during dispatch", t);
                         }
                     }
                 });
     }
 
     /**
-     * Checks whether a change in the given {@code databaseName}, {@code namespace} and {@code
-     * schemaType} passes all the filters defined in the given {@code observerSpec}.
+     * Delivers the given changes to a {@link BatchObserverCallback}.
      *
-     * <p>Note that this method does not check packageName; you must only use it to check
-     * observerSpecs which you know are observing the same package as the change.
+     * <p>Everything is delivered at once, e.g. in a single binder call, except for the document
+     * changes with more than {@code maxDocumentIds} IDs. Those are delivered afterwards through
+     * {@link BatchObserverCallback#onDocumentChanged}, split into changes of at most {@code
+     * maxDocumentIds} IDs each, so one large group doesn't hold up or bloat the batch.
      */
-    private static boolean matchesSpec(
-            @NonNull String schemaType, @NonNull ObserverSpec observerSpec) {
-        Set<String> schemaFilters = observerSpec.getFilterSchemas();
-        return schemaFilters.isEmpty() || schemaFilters.contains(schemaType);
+    private static void dispatchBatch(
+            int maxDocumentIds,
+            @NonNull BatchObserverCallback callback,
+            @NonNull List<SchemaChangeInfo> schemaChangeInfos,
+            @NonNull List<DocumentChangeInfo> documentChangeInfos) {
+        List<DocumentChangeInfo> batchedChanges = new ArrayList<>(documentChangeInfos.size());
+        List<DocumentChangeInfo> largeChanges = new ArrayList<>();
+        for (int i = 0; i < documentChangeInfos.size(); i++) {
+            DocumentChangeInfo change = documentChangeInfos.get(i);
+            if (change.getChangedDocumentIds().size() > maxDocumentIds) {
+                largeChanges.add(change);
+            } else {
+                batchedChanges.add(change);
+            }
+        }
+
+        if (!schemaChangeInfos.isEmpty() || !batchedChanges.isEmpty()) {
+            try {
+                callback.onChanged(schemaChangeInfos, batchedChanges);
+            } catch (Throwable t) {
+                Log.w(TAG, "ObserverCallback threw exception during dispatch", t);
+            }
+        }
+
+        for (int i = 0; i < largeChanges.size(); i++) {
+            DocumentChangeInfo change = largeChanges.get(i);
+            Set<String> chunk = new HashSet<>();
+            for (String documentId : change.getChangedDocumentIds()) {
+                chunk.add(documentId);
+                if (chunk.size() == maxDocumentIds) {
+                    dispatchDocumentChange(callback, change, chunk);
+                    chunk = new HashSet<>();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                dispatchDocumentChange(callback, change, chunk);
+            }
+        }
+    }
+
+    /** Delivers {@code documentIds} of {@code change} through {@code onDocumentChanged}. */
+    private static void dispatchDocumentChange(
+            @NonNull ObserverCallback callback,
+            @NonNull DocumentChangeInfo change,
+            @NonNull Set<String> documentIds) {
+        try {
+            callback.onDocumentChanged(
+                    new DocumentChangeInfo(
+                            change.getPackageName(),
+                            change.getDatabaseName(),
+                            change.getNamespace(),
+                            change.getSchemaName(),
+                            documentIds));
+        } catch (Throwable t) {
+            Log.w(TAG, "ObserverCallback threw exception during dispatch", t);
+        }
     }
 }
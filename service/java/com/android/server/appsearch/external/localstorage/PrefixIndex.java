@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.server.appsearch.external.localstorage.util.PrefixUtil;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Indexes package-database prefixes by package name, and the package and database name of each
+ * prefix.
+ *
+ * <p>Each prefix is parsed once, when it is added, so that listing the prefixes or databases of a
+ * package doesn't take a substring of every prefix in AppSearch.
+ *
+ * <p>This class is not thread safe.
+ *
+ * @hide
+ */
+final class PrefixIndex {
+    // Maps each package name to an inner-map, which maps each of its prefixes to the database
+    // name in the prefix.
+    private final Map<String, Map<String, String>> mPackageToPrefixes = new ArrayMap<>();
+
+    // Maps each prefix to its package name.
+    private final Map<String, String> mPrefixToPackage = new ArrayMap<>();
+
+    /** Adds a prefix, returning whether it wasn't indexed yet. */
+    boolean add(@NonNull String prefix) {
+        Objects.requireNonNull(prefix);
+        if (mPrefixToPackage.containsKey(prefix)) {
+            return false;
+        }
+        String packageName = PrefixUtil.getPackageName(prefix);
+        mPrefixToPackage.put(prefix, packageName);
+        Map<String, String> prefixes = mPackageToPrefixes.get(packageName);
+        if (prefixes == null) {
+            prefixes = new ArrayMap<>();
+            mPackageToPrefixes.put(packageName, prefixes);
+        }
+        prefixes.put(prefix, PrefixUtil.getDatabaseName(prefix));
+        return true;
+    }
+
+    /** Removes every prefix of the given package. */
+    void removePackage(@NonNull String packageName) {
+        Map<String, String> prefixes = mPackageToPrefixes.remove(packageName);
+        if (prefixes == null) {
+            return;
+        }
+        for (String prefix : prefixes.keySet()) {
+            mPrefixToPackage.remove(prefix);
+        }
+    }
+
+    /** Removes every prefix. */
+    void clear() {
+        mPackageToPrefixes.clear();
+        mPrefixToPackage.clear();
+    }
+
+    /** Returns whether the given prefix is indexed. */
+    boolean contains(@NonNull String prefix) {
+        return mPrefixToPackage.containsKey(prefix);
+    }
+
+    /** Returns the package name of the given prefix, or {@code null} if it isn't indexed. */
+    @Nullable
+    String getPackageName(@NonNull String prefix) {
+        return mPrefixToPackage.get(prefix);
+    }
+
+    /** Returns a read-only view of the packages with at least one prefix. */
+    @NonNull
+    Set<String> getPackageNames() {
+        return Collections.unmodifiableSet(mPackageToPrefixes.keySet());
+    }
+
+    /** Returns a read-only view of the prefixes of the given package. */
+    @NonNull
+    Set<String> getPrefixes(@NonNull String packageName) {
+        Map<String, String> prefixes = mPackageToPrefixes.get(packageName);
+        if (prefixes == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(prefixes.keySet());
+    }
+
+    /** Returns a new mapping of package names to the names of their databases. */
+    @NonNull
+    Map<String, Set<String>> getPackageToDatabases() {
+        Map<String, Set<String>> packageToDatabases = new ArrayMap<>(mPackageToPrefixes.size());
+        for (Map.Entry<String, Map<String, String>> entry : mPackageToPrefixes.entrySet()) {
+            packageToDatabases.put(entry.getKey(), new ArraySet<>(entry.getValue().values()));
+        }
+        return packageToDatabases;
+    }
+}
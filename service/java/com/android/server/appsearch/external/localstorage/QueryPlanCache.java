@@ -0,0 +1,218 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.appsearch.SearchSpec;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.server.appsearch.external.localstorage.converter.SearchSpecToProtoConverter;
+
+import com.google.android.icing.proto.ResultSpecProto;
+import com.google.android.icing.proto.ScoringSpecProto;
+import com.google.android.icing.proto.SearchSpecProto;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Caches the Icing protos a {@link SearchSpec} is converted to, so that repeated queries with the
+ * same spec skip {@link SearchSpecToProtoConverter}.
+ *
+ * <p>A {@link QueryPlan} depends on the schema types, namespaces and visibility settings stored in
+ * AppSearch when it was built. The owner must {@link #clear} the cache whenever any of them
+ * changes, while no query can be building a plan.
+ *
+ * <p>Plans are keyed by an opaque caller key, such as the database prefix of a local query or the
+ * {@link com.android.server.appsearch.external.localstorage.visibilitystore.CallerAccess} of a
+ * global query, and by every field of the {@link SearchSpec} that the conversion reads.
+ *
+ * <p>This class is thread safe.
+ *
+ * @hide
+ */
+final class QueryPlanCache {
+    private final int mMaxEntries;
+
+    private final Object mLock = new Object();
+
+    // Iterates from the least to the most recently used plan.
+    @GuardedBy("mLock")
+    private final LinkedHashMap<List<Object>, QueryPlan> mPlansLocked =
+            new LinkedHashMap<>(
+                    /*initialCapacity=*/ 16, /*loadFactor=*/ 0.75f, /*accessOrder=*/ true);
+
+    /** @param maxEntries The most plans to keep; the least recently used one is evicted first. */
+    QueryPlanCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached plan for the given caller and spec, or {@code null} if there is none or
+     * it is older than {@code maxAgeMillis}.
+     */
+    @Nullable
+    QueryPlan get(
+            @NonNull Object callerKey,
+            @NonNull SearchSpec searchSpec,
+            long maxAgeMillis,
+            long nowMillis) {
+        List<Object> key = createKey(callerKey, searchSpec);
+        synchronized (mLock) {
+            QueryPlan plan = mPlansLocked.get(key);
+            if (plan == null) {
+                return null;
+            }
+            if (nowMillis - plan.mCreationMillis > maxAgeMillis) {
+                mPlansLocked.remove(key);
+                return null;
+            }
+            return plan;
+        }
+    }
+
+    /** Caches a plan for the given caller and spec. */
+    void put(@NonNull Object callerKey, @NonNull SearchSpec searchSpec, @NonNull QueryPlan plan) {
+        Objects.requireNonNull(plan);
+        List<Object> key = createKey(callerKey, searchSpec);
+        synchronized (mLock) {
+            mPlansLocked.put(key, plan);
+            if (mPlansLocked.size() > mMaxEntries) {
+                Map.Entry<List<Object>, QueryPlan> eldest =
+                        mPlansLocked.entrySet().iterator().next();
+                mPlansLocked.remove(eldest.getKey());
+            }
+        }
+    }
+
+    /** Drops every cached plan. */
+    void clear() {
+        synchronized (mLock) {
+            mPlansLocked.clear();
+        }
+    }
+
+    /** Returns the number of cached plans. */
+    int size() {
+        synchronized (mLock) {
+            return mPlansLocked.size();
+        }
+    }
+
+    /**
+     * Builds the key of a plan from the fields {@link SearchSpecToProtoConverter} reads, since
+     * {@link SearchSpec} doesn't implement {@link Object#equals}.
+     */
+    @NonNull
+    static List<Object> createKey(
+            @NonNull Object callerKey, @NonNull SearchSpec searchSpec) {
+        return Arrays.asList(
+                Objects.requireNonNull(callerKey),
+                searchSpec.getTermMatch(),
+                searchSpec.getFilterSchemas(),
+                searchSpec.getFilterNamespaces(),
+                searchSpec.getFilterPackageNames(),
+                searchSpec.getResultCountPerPage(),
+                searchSpec.getRankingStrategy(),
+                searchSpec.getOrder(),
+                searchSpec.getSnippetCount(),
+                searchSpec.getSnippetCountPerProperty(),
+                searchSpec.getMaxSnippetSize(),
+                searchSpec.getProjections(),
+                searchSpec.getResultGroupingTypeFlags(),
+                searchSpec.getResultGroupingLimit(),
+                searchSpec.getResultMode());
+    }
+
+    /**
+     * The Icing protos of a {@link SearchSpec}, missing only the query expression.
+     *
+     * <p>Instances are immutable.
+     */
+    static final class QueryPlan {
+        // Null if there is nothing to search.
+        @Nullable private final SearchSpecProto mSearchSpecProto;
+        @Nullable private final ResultSpecProto mResultSpecProto;
+        @Nullable private final ScoringSpecProto mScoringSpecProto;
+        final long mCreationMillis;
+
+        private QueryPlan(
+                @Nullable SearchSpecProto searchSpecProto,
+                @Nullable ResultSpecProto resultSpecProto,
+                @Nullable ScoringSpecProto scoringSpecProto,
+                long creationMillis) {
+            mSearchSpecProto = searchSpecProto;
+            mResultSpecProto = resultSpecProto;
+            mScoringSpecProto = scoringSpecProto;
+            mCreationMillis = creationMillis;
+        }
+
+        /**
+         * Builds a plan from a converter whose filters are final.
+         *
+         * @param namespaceMap The cached Map of {@code <Prefix, Set<PrefixedNamespace>>} stores
+         *     all existing prefixed namespace.
+         */
+        @NonNull
+        static QueryPlan create(
+                @NonNull SearchSpecToProtoConverter converter,
+                @NonNull Map<String, Set<String>> namespaceMap,
+                long nowMillis) {
+            if (converter.isNothingToSearch()) {
+                return new QueryPlan(null, null, null, nowMillis);
+            }
+            return new QueryPlan(
+                    converter.toSearchSpecProto(/*queryExpression=*/ ""),
+                    converter.toResultSpecProto(namespaceMap),
+                    converter.toScoringSpecProto(),
+                    nowMillis);
+        }
+
+        /**
+         * Returns whether the search's target filters are empty, in which case no request should
+         * be sent to Icing.
+         */
+        boolean isNothingToSearch() {
+            return mSearchSpecProto == null;
+        }
+
+        /** Returns the {@link SearchSpecProto} searching for the given query expression. */
+        @NonNull
+        SearchSpecProto toSearchSpecProto(@NonNull String queryExpression) {
+            Objects.requireNonNull(queryExpression);
+            return mSearchSpecProto.toBuilder().setQuery(queryExpression).build();
+        }
+
+        @NonNull
+        ResultSpecProto getResultSpecProto() {
+            return mResultSpecProto;
+        }
+
+        @NonNull
+        ScoringSpecProto getScoringSpecProto() {
+            return mScoringSpecProto;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.appsearch.SearchResultPage;
+import android.app.appsearch.SearchSpec;
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Caches the results of recent queries whose results all fit in their first page, so that
+ * identical queries fired in quick succession, e.g. by type-ahead search, skip Icing.
+ *
+ * <p>Pages with a next-page token are never cached: the token is tied to a result state in Icing
+ * that only one caller may advance.
+ *
+ * <p>Every database prefix has a mutation epoch, which the owner bumps with {@link #onMutation}
+ * whenever the documents, schema or usage reports of the prefix change. A local query's page is
+ * only served while the epoch of its prefix is the one it was cached at. A global query's page
+ * may cover any prefix, so it is checked against an epoch bumped by every mutation. Pages are also
+ * dropped once older than the max age, since the visibility of a global query's results depends on
+ * permissions that can change without a mutation.
+ *
+ * <p>The cache holds at most the given number of bytes of results, as estimated by the caller,
+ * evicting the least recently used pages first. A max size of 0 disables it.
+ *
+ * <p>This class is thread safe.
+ *
+ * @hide
+ */
+final class QueryResultCache {
+    private final long mMaxBytes;
+    private final long mMaxAgeMillis;
+
+    private final Object mLock = new Object();
+
+    // Iterates from the least to the most recently used page.
+    @GuardedBy("mLock")
+    private final LinkedHashMap<List<Object>, Entry> mEntriesLocked =
+            new LinkedHashMap<>(
+                    /*initialCapacity=*/ 16, /*loadFactor=*/ 0.75f, /*accessOrder=*/ true);
+
+    @GuardedBy("mLock")
+    private long mSizeBytesLocked = 0;
+
+    // Every epoch is taken from this counter, so a prefix never gets an epoch it had before.
+    @GuardedBy("mLock")
+    private long mLastEpochLocked = 0;
+
+    @GuardedBy("mLock")
+    private long mGlobalEpochLocked = 0;
+
+    // The epoch of the prefixes not mutated since the last clear.
+    @GuardedBy("mLock")
+    private long mClearEpochLocked = 0;
+
+    /** Maps database prefixes mutated since the last clear to their mutation epoch. */
+    @GuardedBy("mLock")
+    private final Map<String, Long> mPrefixEpochsLocked = new ArrayMap<>();
+
+    /**
+     * @param maxBytes The most bytes of results to hold, or 0 to disable the cache.
+     * @param maxAgeMillis How long a page may be served after it was cached.
+     */
+    QueryResultCache(long maxBytes, long maxAgeMillis) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+        }
+        mMaxBytes = maxBytes;
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    /** Returns whether pages are cached at all. */
+    boolean isEnabled() {
+        return mMaxBytes > 0;
+    }
+
+    /**
+     * Creates the key of a query, capturing the current mutation epoch of what it searches.
+     *
+     * @param callerKey The database prefix of a local query, or the caller of a global query.
+     * @param prefix The database prefix of a local query, or {@code null} for a global query.
+     */
+    @NonNull
+    Key createKey(
+            @NonNull Object callerKey,
+            @Nullable String prefix,
+            @NonNull String queryExpression,
+            @NonNull SearchSpec searchSpec) {
+        List<Object> identity =
+                Arrays.asList(
+                        QueryPlanCache.createKey(callerKey, searchSpec),
+                        Objects.requireNonNull(queryExpression));
+        synchronized (mLock) {
+            return new Key(identity, prefix, getEpochLocked(prefix));
+        }
+    }
+
+    /** Returns the cached page of the given query, or {@code null} if it has none. */
+    @Nullable
+    SearchResultPage get(@NonNull Key key, long nowMillis) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (mLock) {
+            Entry entry = mEntriesLocked.get(key.mIdentity);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.mEpoch != getEpochLocked(key.mPrefix)
+                    || nowMillis - entry.mCreationMillis > mMaxAgeMillis) {
+                removeLocked(key.mIdentity);
+                return null;
+            }
+            return entry.mPage;
+        }
+    }
+
+    /**
+     * Caches the first page of the given query, if it holds all the results and fits in the cache.
+     *
+     * @param sizeBytes The estimated size of the page.
+     */
+    void put(@NonNull Key key, @NonNull SearchResultPage page, long sizeBytes, long nowMillis) {
+        Objects.requireNonNull(page);
+        if (!isEnabled() || page.getNextPageToken() != 0 || sizeBytes > mMaxBytes) {
+            return;
+        }
+        synchronized (mLock) {
+            if (key.mEpoch != getEpochLocked(key.mPrefix)) {
+                return; // Mutated since the query ran.
+            }
+            removeLocked(key.mIdentity);
+            mEntriesLocked.put(key.mIdentity, new Entry(page, sizeBytes, key.mEpoch, nowMillis));
+            mSizeBytesLocked += sizeBytes;
+            Iterator<Map.Entry<List<Object>, Entry>> iterator =
+                    mEntriesLocked.entrySet().iterator();
+            while (mSizeBytesLocked > mMaxBytes && iterator.hasNext()) {
+                mSizeBytesLocked -= iterator.next().getValue().mSizeBytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    /** Invalidates the cached pages of queries that may search the given database prefix. */
+    void onMutation(@NonNull String prefix) {
+        Objects.requireNonNull(prefix);
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (mLock) {
+            mPrefixEpochsLocked.put(prefix, ++mLastEpochLocked);
+            mGlobalEpochLocked = mLastEpochLocked;
+        }
+    }
+
+    /** Drops every cached page and invalidates the keys created so far. */
+    void clear() {
+        synchronized (mLock) {
+            mEntriesLocked.clear();
+            mSizeBytesLocked = 0;
+            mPrefixEpochsLocked.clear();
+            // Every prefix moves past the epochs handed out so far.
+            mClearEpochLocked = ++mLastEpochLocked;
+            mGlobalEpochLocked = mClearEpochLocked;
+        }
+    }
+
+    /** Returns the estimated size of the cached pages. */
+    long getSizeBytes() {
+        synchronized (mLock) {
+            return mSizeBytesLocked;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private long getEpochLocked(@Nullable String prefix) {
+        if (prefix == null) {
+            return mGlobalEpochLocked;
+        }
+        Long epoch = mPrefixEpochsLocked.get(prefix);
+        return epoch == null ? mClearEpochLocked : epoch;
+    }
+
+    @GuardedBy("mLock")
+    private void removeLocked(@NonNull List<Object> identity) {
+        Entry removed = mEntriesLocked.remove(identity);
+        if (removed != null) {
+            mSizeBytesLocked -= removed.mSizeBytes;
+        }
+    }
+
+    /** Identifies a query and the mutation epoch it was run at. */
+    static final class Key {
+        final List<Object> mIdentity;
+        @Nullable final String mPrefix;
+        final long mEpoch;
+
+        Key(@NonNull List<Object> identity, @Nullable String prefix, long epoch) {
+            mIdentity = identity;
+            mPrefix = prefix;
+            mEpoch = epoch;
+        }
+    }
+
+    private static final class Entry {
+        final SearchResultPage mPage;
+        final long mSizeBytes;
+        final long mEpoch;
+        final long mCreationMillis;
+
+        Entry(@NonNull SearchResultPage page, long sizeBytes, long epoch, long creationMillis) {
+            mPage = page;
+            mSizeBytes = sizeBytes;
+            mEpoch = epoch;
+            mCreationMillis = creationMillis;
+        }
+    }
+}
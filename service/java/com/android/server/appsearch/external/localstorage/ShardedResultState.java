@@ -0,0 +1,208 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import android.annotation.NonNull;
+import android.app.appsearch.exceptions.AppSearchException;
+
+import com.android.internal.annotations.GuardedBy;
+
+import com.google.android.icing.proto.ResultSpecProto;
+import com.google.android.icing.proto.ScoringSpecProto;
+import com.google.android.icing.proto.SearchResultProto;
+import com.google.android.icing.proto.StatusProto;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges the results of a query run as several sub-queries, one per shard of the searched
+ * packages, into the pages a single query would have returned.
+ *
+ * <p>Each shard has a result state of its own in Icing, advanced with its own next-page token.
+ * The next merged result is the best head among the shards, by the score Icing ranked them with.
+ * So a shard whose buffered page is used up is only advanced to its next page once it has to
+ * compete for a place in the merged page. Results of unranked queries are taken shard by shard.
+ *
+ * <p>Icing snippets the first results of each shard. Only the first {@code numToSnippet} merged
+ * results keep their snippets, which is exactly the results a single query would have snippeted,
+ * since they are among the first results of their own shard too.
+ *
+ * <p>This class is thread safe.
+ *
+ * @hide
+ */
+final class ShardedResultState {
+    /** Fetches the next page of a shard's result state from Icing. */
+    interface PageFetcher {
+        /** Returns the next page of the given token, throwing if Icing failed to fetch it. */
+        @NonNull
+        SearchResultProto getNextPage(long nextPageToken) throws AppSearchException;
+    }
+
+    private static final long EMPTY_PAGE_TOKEN = 0;
+
+    private final boolean mRanked;
+    private final boolean mDescending;
+    private final int mNumPerPage;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final Shard[] mShardsLocked;
+
+    @GuardedBy("mLock")
+    private int mNumToSnippetLeftLocked;
+
+    /**
+     * @param firstPages The first page of results each shard's query returned.
+     * @param scoringSpec The scoring spec every shard was queried with.
+     * @param resultSpec The result spec every shard was queried with.
+     */
+    ShardedResultState(
+            @NonNull List<SearchResultProto> firstPages,
+            @NonNull ScoringSpecProto scoringSpec,
+            @NonNull ResultSpecProto resultSpec) {
+        mRanked = scoringSpec.getRankBy() != ScoringSpecProto.RankingStrategy.Code.NONE;
+        mDescending = scoringSpec.getOrderBy() == ScoringSpecProto.Order.Code.DESC;
+        mNumPerPage = resultSpec.getNumPerPage();
+        mNumToSnippetLeftLocked = resultSpec.getSnippetSpec().getNumToSnippet();
+        mShardsLocked = new Shard[firstPages.size()];
+        for (int i = 0; i < mShardsLocked.length; i++) {
+            mShardsLocked[i] = new Shard(firstPages.get(i));
+        }
+    }
+
+    /**
+     * Returns the next page of merged results, fetching the next page of shards as needed.
+     *
+     * <p>The returned page has no next-page token set; the caller tells whether there are more
+     * pages with {@link #isExhausted}.
+     */
+    @NonNull
+    SearchResultProto nextPage(@NonNull PageFetcher fetcher) throws AppSearchException {
+        synchronized (mLock) {
+            SearchResultProto.Builder pageBuilder =
+                    SearchResultProto.newBuilder()
+                            .setStatus(StatusProto.newBuilder().setCode(StatusProto.Code.OK));
+            while (pageBuilder.getResultsCount() < mNumPerPage) {
+                Shard best = null;
+                for (int i = 0; i < mShardsLocked.length; i++) {
+                    Shard shard = mShardsLocked[i];
+                    if (!shard.fill(fetcher)) {
+                        continue;
+                    }
+                    if (best == null) {
+                        best = shard;
+                        if (!mRanked) {
+                            break;
+                        }
+                    } else if (isRankedBefore(shard.peek(), best.peek())) {
+                        best = shard;
+                    }
+                }
+                if (best == null) {
+                    break;
+                }
+                SearchResultProto.ResultProto result = best.poll();
+                if (mNumToSnippetLeftLocked > 0) {
+                    mNumToSnippetLeftLocked--;
+                } else if (result.hasSnippet()) {
+                    result = result.toBuilder().clearSnippet().build();
+                }
+                pageBuilder.addResults(result);
+            }
+            return pageBuilder.build();
+        }
+    }
+
+    /** Returns whether every result has been returned. */
+    boolean isExhausted() {
+        synchronized (mLock) {
+            for (int i = 0; i < mShardsLocked.length; i++) {
+                if (!mShardsLocked[i].isExhausted()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Drops every buffered result and returns the next-page tokens of shards with more pages,
+     * which the caller must invalidate in Icing.
+     */
+    @NonNull
+    List<Long> release() {
+        synchronized (mLock) {
+            List<Long> tokens = new ArrayList<>();
+            for (int i = 0; i < mShardsLocked.length; i++) {
+                Shard shard = mShardsLocked[i];
+                if (shard.mNextPageToken != EMPTY_PAGE_TOKEN) {
+                    tokens.add(shard.mNextPageToken);
+                    shard.mNextPageToken = EMPTY_PAGE_TOKEN;
+                }
+                shard.mResults.clear();
+            }
+            return tokens;
+        }
+    }
+
+    private boolean isRankedBefore(
+            @NonNull SearchResultProto.ResultProto result,
+            @NonNull SearchResultProto.ResultProto other) {
+        // Ties keep the earlier shard's result first.
+        return mDescending
+                ? result.getScore() > other.getScore()
+                : result.getScore() < other.getScore();
+    }
+
+    private static final class Shard {
+        final ArrayDeque<SearchResultProto.ResultProto> mResults;
+        long mNextPageToken;
+
+        Shard(@NonNull SearchResultProto firstPage) {
+            mResults = new ArrayDeque<>(firstPage.getResultsList());
+            mNextPageToken = firstPage.getNextPageToken();
+        }
+
+        /** Makes sure a result is buffered if the shard has any left, returning whether it has. */
+        boolean fill(@NonNull PageFetcher fetcher) throws AppSearchException {
+            while (mResults.isEmpty() && mNextPageToken != EMPTY_PAGE_TOKEN) {
+                SearchResultProto page = fetcher.getNextPage(mNextPageToken);
+                mResults.addAll(page.getResultsList());
+                mNextPageToken = page.getNextPageToken();
+            }
+            return !mResults.isEmpty();
+        }
+
+        boolean isExhausted() {
+            return mResults.isEmpty() && mNextPageToken == EMPTY_PAGE_TOKEN;
+        }
+
+        @NonNull
+        SearchResultProto.ResultProto peek() {
+            return mResults.peekFirst();
+        }
+
+        @NonNull
+        SearchResultProto.ResultProto poll() {
+            return mResults.pollFirst();
+        }
+    }
+}
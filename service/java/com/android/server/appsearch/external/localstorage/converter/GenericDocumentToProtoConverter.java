@@ -17,18 +17,19 @@
 package com.android.server.appsearch.external.localstorage.converter;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.app.appsearch.AppSearchResult;
 import android.app.appsearch.AppSearchSchema;
 import android.app.appsearch.GenericDocument;
+import android.app.appsearch.exceptions.AppSearchException;
 
 import com.google.android.icing.proto.DocumentProto;
 import com.google.android.icing.proto.DocumentProtoOrBuilder;
+import com.google.android.icing.proto.PropertyConfigProto;
 import com.google.android.icing.proto.PropertyProto;
-import com.google.android.icing.proto.SchemaTypeConfigProto;
 import com.google.protobuf.ByteString;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -48,28 +49,44 @@ public final class GenericDocumentToProtoConverter {
 
     /** Converts a {@link GenericDocument} into a {@link DocumentProto}. */
     @NonNull
-    @SuppressWarnings("unchecked")
     public static DocumentProto toDocumentProto(@NonNull GenericDocument document) {
+        return toDocumentProto(document, /*prefix=*/ "");
+    }
+
+    /**
+     * Converts a {@link GenericDocument} into a {@link DocumentProto}, prepending {@code prefix}
+     * to the schema type and namespace of the document and of all its nested documents.
+     *
+     * <p>This produces the same proto as converting the document and then calling {@link
+     * com.android.server.appsearch.external.localstorage.util.PrefixUtil#addPrefixToDocument}, in a
+     * single pass and without copying the values of the document.
+     *
+     * @param document the document to convert.
+     * @param prefix the package + database prefix, or an empty string to add no prefix.
+     */
+    @NonNull
+    public static DocumentProto toDocumentProto(
+            @NonNull GenericDocument document, @NonNull String prefix) {
         Objects.requireNonNull(document);
+        Objects.requireNonNull(prefix);
         DocumentProto.Builder mProtoBuilder = DocumentProto.newBuilder();
         mProtoBuilder
                 .setUri(document.getId())
-                .setSchema(document.getSchemaType())
-                .setNamespace(document.getNamespace())
+                .setSchema(addPrefix(prefix, document.getSchemaType()))
+                .setNamespace(addPrefix(prefix, document.getNamespace()))
                 .setScore(document.getScore())
                 .setTtlMs(document.getTtlMillis())
                 .setCreationTimestampMs(document.getCreationTimestampMillis());
-        ArrayList<String> keys = new ArrayList<>(document.getPropertyNames());
-        Collections.sort(keys);
-        for (int i = 0; i < keys.size(); i++) {
-            String name = keys.get(i);
+        // Icing expects the properties sorted by name.
+        String[] keys = document.getPropertyNames().toArray(EMPTY_STRING_ARRAY);
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++) {
+            String name = keys[i];
             PropertyProto.Builder propertyProto = PropertyProto.newBuilder().setName(name);
+            // getProperty returns the arrays held by the document without copying them.
             Object property = document.getProperty(name);
             if (property instanceof String[]) {
-                String[] stringValues = (String[]) property;
-                for (int j = 0; j < stringValues.length; j++) {
-                    propertyProto.addStringValues(stringValues[j]);
-                }
+                propertyProto.addAllStringValues(Arrays.asList((String[]) property));
             } else if (property instanceof long[]) {
                 long[] longValues = (long[]) property;
                 for (int j = 0; j < longValues.length; j++) {
@@ -93,7 +110,7 @@ public final class GenericDocumentToProtoConverter {
             } else if (property instanceof GenericDocument[]) {
                 GenericDocument[] documentValues = (GenericDocument[]) property;
                 for (int j = 0; j < documentValues.length; j++) {
-                    DocumentProto proto = toDocumentProto(documentValues[j]);
+                    DocumentProto proto = toDocumentProto(documentValues[j], prefix);
                     propertyProto.addDocumentValues(proto);
                 }
             } else if (property == null) {
@@ -114,40 +131,81 @@ public final class GenericDocumentToProtoConverter {
      * Converts a {@link DocumentProto} into a {@link GenericDocument}.
      *
      * <p>In the case that the {@link DocumentProto} object proto has no values set, the converter
-     * searches for the matching property name in the {@link SchemaTypeConfigProto} object for the
-     * document, and infers the correct default value to set for the empty property based on the
-     * data type of the property defined by the schema type.
+     * looks up the matching property in the {@link PropertyConfigIndex}, and infers the correct
+     * default value to set for the empty property based on the data type of the property defined
+     * by the schema type.
      *
      * @param proto the document to convert to a {@link GenericDocument} instance. The document
      *     proto should have its package + database prefix stripped from its fields.
-     * @param prefix the package + database prefix used searching the {@code schemaTypeMap}.
-     * @param schemaTypeMap map of prefixed schema type to {@link SchemaTypeConfigProto}, used for
-     *     looking up the default empty value to set for a document property that has all empty
-     *     values.
+     * @param prefix the package + database prefix used searching the {@code propertyConfigIndex}.
+     * @param propertyConfigIndex index of the properties of every schema type, used for looking
+     *     up the default empty value to set for a document property that has all empty values.
      */
     @NonNull
     public static GenericDocument toGenericDocument(
             @NonNull DocumentProtoOrBuilder proto,
             @NonNull String prefix,
-            @NonNull Map<String, SchemaTypeConfigProto> schemaTypeMap) {
+            @NonNull PropertyConfigIndex propertyConfigIndex)
+            throws AppSearchException {
+        Objects.requireNonNull(proto);
+        Objects.requireNonNull(prefix);
+        Objects.requireNonNull(propertyConfigIndex);
+        return toGenericDocument(proto, prefix, /*isPrefixed=*/ false, propertyConfigIndex);
+    }
+
+    /**
+     * Converts a {@link DocumentProto} read from Icing into a {@link GenericDocument}, removing
+     * {@code prefix} from the schema type and namespace of the document and of all its nested
+     * documents.
+     *
+     * <p>This produces the same document as calling {@link
+     * com.android.server.appsearch.external.localstorage.util.PrefixUtil#removePrefixesFromDocument}
+     * and then {@link #toGenericDocument}, in a single pass and without copying the proto.
+     *
+     * @param proto the prefixed document to convert.
+     * @param prefix the package + database prefix of the document.
+     * @param propertyConfigIndex index of the properties of every schema type, used for looking
+     *     up the default empty value to set for a document property that has all empty values.
+     * @throws AppSearchException if the schema type or namespace of the document or of one of its
+     *     nested documents doesn't start with {@code prefix}.
+     */
+    @NonNull
+    public static GenericDocument toUnprefixedGenericDocument(
+            @NonNull DocumentProtoOrBuilder proto,
+            @NonNull String prefix,
+            @NonNull PropertyConfigIndex propertyConfigIndex)
+            throws AppSearchException {
         Objects.requireNonNull(proto);
+        Objects.requireNonNull(prefix);
+        Objects.requireNonNull(propertyConfigIndex);
+        return toGenericDocument(proto, prefix, /*isPrefixed=*/ true, propertyConfigIndex);
+    }
+
+    @NonNull
+    private static GenericDocument toGenericDocument(
+            @NonNull DocumentProtoOrBuilder proto,
+            @NonNull String prefix,
+            boolean isPrefixed,
+            @NonNull PropertyConfigIndex propertyConfigIndex)
+            throws AppSearchException {
+        String namespace = proto.getNamespace();
+        String schemaType = proto.getSchema();
+        if (isPrefixed) {
+            namespace = removePrefix(prefix, namespace);
+            schemaType = removePrefix(prefix, schemaType);
+        }
         GenericDocument.Builder<?> documentBuilder =
-                new GenericDocument.Builder<>(
-                                proto.getNamespace(), proto.getUri(), proto.getSchema())
+                new GenericDocument.Builder<>(namespace, proto.getUri(), schemaType)
                         .setScore(proto.getScore())
                         .setTtlMillis(proto.getTtlMs())
                         .setCreationTimestampMillis(proto.getCreationTimestampMs());
-        String prefixedSchemaType = prefix + proto.getSchema();
 
         for (int i = 0; i < proto.getPropertiesCount(); i++) {
             PropertyProto property = proto.getProperties(i);
             String name = property.getName();
             if (property.getStringValuesCount() > 0) {
-                String[] values = new String[property.getStringValuesCount()];
-                for (int j = 0; j < values.length; j++) {
-                    values[j] = property.getStringValues(j);
-                }
-                documentBuilder.setPropertyString(name, values);
+                documentBuilder.setPropertyString(
+                        name, property.getStringValuesList().toArray(EMPTY_STRING_ARRAY));
             } else if (property.getInt64ValuesCount() > 0) {
                 long[] values = new long[property.getInt64ValuesCount()];
                 for (int j = 0; j < values.length; j++) {
@@ -176,28 +234,48 @@ public final class GenericDocumentToProtoConverter {
                 GenericDocument[] values = new GenericDocument[property.getDocumentValuesCount()];
                 for (int j = 0; j < values.length; j++) {
                     values[j] =
-                            toGenericDocument(property.getDocumentValues(j), prefix, schemaTypeMap);
+                            toGenericDocument(
+                                    property.getDocumentValues(j),
+                                    prefix,
+                                    isPrefixed,
+                                    propertyConfigIndex);
                 }
                 documentBuilder.setPropertyDocument(name, values);
             } else {
-                // TODO(b/184966497): Optimize by caching PropertyConfigProto
-                setEmptyProperty(name, documentBuilder, schemaTypeMap.get(prefixedSchemaType));
+                setEmptyProperty(
+                        name,
+                        documentBuilder,
+                        propertyConfigIndex.getPropertyConfig(prefix, schemaType, name));
             }
         }
         return documentBuilder.build();
     }
 
+    @NonNull
+    private static String addPrefix(@NonNull String prefix, @NonNull String value) {
+        return prefix.isEmpty() ? value : prefix + value;
+    }
+
+    @NonNull
+    private static String removePrefix(@NonNull String prefix, @NonNull String prefixedValue)
+            throws AppSearchException {
+        if (!prefixedValue.startsWith(prefix)) {
+            throw new AppSearchException(
+                    AppSearchResult.RESULT_INTERNAL_ERROR,
+                    "Found unexpected multiple prefix names in document: "
+                            + prefix
+                            + ", "
+                            + prefixedValue);
+        }
+        return prefixedValue.substring(prefix.length());
+    }
+
     private static void setEmptyProperty(
             @NonNull String propertyName,
             @NonNull GenericDocument.Builder<?> documentBuilder,
-            @NonNull SchemaTypeConfigProto schema) {
-        @AppSearchSchema.PropertyConfig.DataType int dataType = 0;
-        for (int i = 0; i < schema.getPropertiesCount(); ++i) {
-            if (propertyName.equals(schema.getProperties(i).getPropertyName())) {
-                dataType = schema.getProperties(i).getDataType().getNumber();
-                break;
-            }
-        }
+            @Nullable PropertyConfigProto propertyConfig) {
+        @AppSearchSchema.PropertyConfig.DataType
+        int dataType = propertyConfig == null ? 0 : propertyConfig.getDataType().getNumber();
 
         switch (dataType) {
             case AppSearchSchema.PropertyConfig.DATA_TYPE_STRING:
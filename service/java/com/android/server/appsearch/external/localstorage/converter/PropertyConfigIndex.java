@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage.converter;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+
+import com.google.android.icing.proto.PropertyConfigProto;
+import com.google.android.icing.proto.SchemaTypeConfigProto;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Indexes the {@link PropertyConfigProto}s of every schema type by package-database prefix,
+ * unprefixed schema type and property name.
+ *
+ * <p>Documents read back from Icing have their prefixes stripped before they are converted, so
+ * keying on the prefix and the unprefixed type lets {@link GenericDocumentToProtoConverter} find a
+ * property's data type, cardinality and nested schema type without concatenating the prefixed
+ * type or scanning the properties of the type.
+ *
+ * <p>The {@link PropertyConfigProto}s are stored as held by the prefixed {@link
+ * SchemaTypeConfigProto}, so the nested schema type of a document property is prefixed.
+ *
+ * <p>This class is not thread safe.
+ *
+ * @hide
+ */
+public final class PropertyConfigIndex {
+    // Maps each prefix to an inner-map, which maps each unprefixed schema type to its properties
+    // keyed by name.
+    private final Map<String, Map<String, Map<String, PropertyConfigProto>>> mPropertyConfigs =
+            new ArrayMap<>();
+
+    /**
+     * Adds or replaces the properties of a schema type.
+     *
+     * @param prefix the package-database prefix of the schema type.
+     * @param schemaTypeConfig the prefixed schema type config, as stored in Icing.
+     */
+    public void put(@NonNull String prefix, @NonNull SchemaTypeConfigProto schemaTypeConfig) {
+        Objects.requireNonNull(prefix);
+        Objects.requireNonNull(schemaTypeConfig);
+        Map<String, Map<String, PropertyConfigProto>> schemaTypeMap = mPropertyConfigs.get(prefix);
+        if (schemaTypeMap == null) {
+            schemaTypeMap = new ArrayMap<>();
+            mPropertyConfigs.put(prefix, schemaTypeMap);
+        }
+        Map<String, PropertyConfigProto> propertyMap =
+                new ArrayMap<>(schemaTypeConfig.getPropertiesCount());
+        for (int i = 0; i < schemaTypeConfig.getPropertiesCount(); i++) {
+            PropertyConfigProto property = schemaTypeConfig.getProperties(i);
+            propertyMap.put(property.getPropertyName(), property);
+        }
+        schemaTypeMap.put(removePrefix(prefix, schemaTypeConfig.getSchemaType()), propertyMap);
+    }
+
+    /**
+     * Removes the properties of a schema type.
+     *
+     * @param prefix the package-database prefix of the schema type.
+     * @param prefixedSchemaType the prefixed schema type to remove.
+     */
+    public void remove(@NonNull String prefix, @NonNull String prefixedSchemaType) {
+        Objects.requireNonNull(prefix);
+        Objects.requireNonNull(prefixedSchemaType);
+        Map<String, Map<String, PropertyConfigProto>> schemaTypeMap = mPropertyConfigs.get(prefix);
+        if (schemaTypeMap != null) {
+            schemaTypeMap.remove(removePrefix(prefix, prefixedSchemaType));
+        }
+    }
+
+    /** Removes the properties of every schema type under the given prefix. */
+    public void removePrefix(@NonNull String prefix) {
+        Objects.requireNonNull(prefix);
+        mPropertyConfigs.remove(prefix);
+    }
+
+    /** Removes everything from the index. */
+    public void clear() {
+        mPropertyConfigs.clear();
+    }
+
+    /**
+     * Returns the config of a property, or {@code null} if the schema type or the property is
+     * unknown.
+     *
+     * @param prefix the package-database prefix of the schema type.
+     * @param schemaType the unprefixed schema type.
+     * @param propertyName the name of the property.
+     */
+    @Nullable
+    public PropertyConfigProto getPropertyConfig(
+            @NonNull String prefix, @NonNull String schemaType, @NonNull String propertyName) {
+        Map<String, Map<String, PropertyConfigProto>> schemaTypeMap = mPropertyConfigs.get(prefix);
+        if (schemaTypeMap == null) {
+            return null;
+        }
+        Map<String, PropertyConfigProto> propertyMap = schemaTypeMap.get(schemaType);
+        if (propertyMap == null) {
+            return null;
+        }
+        return propertyMap.get(propertyName);
+    }
+
+    @NonNull
+    private static String removePrefix(@NonNull String prefix, @NonNull String prefixedValue) {
+        if (!prefixedValue.startsWith(prefix)) {
+            throw new IllegalArgumentException(
+                    "Schema type \"" + prefixedValue + "\" doesn't start with \"" + prefix + "\"");
+        }
+        return prefixedValue.substring(prefix.length());
+    }
+}
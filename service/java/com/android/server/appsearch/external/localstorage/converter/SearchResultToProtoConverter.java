@@ -18,23 +18,27 @@ package com.android.server.appsearch.external.localstorage.converter;
 
 import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.getDatabaseName;
 import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.getPackageName;
-import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.removePrefixesFromDocument;
+import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.getPrefix;
+import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.removePrefix;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.appsearch.GenericDocument;
 import android.app.appsearch.SearchResult;
 import android.app.appsearch.SearchResultPage;
+import android.app.appsearch.SearchResultSummaries;
+import android.app.appsearch.SearchSpec;
 import android.app.appsearch.exceptions.AppSearchException;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 
 import com.google.android.icing.proto.DocumentProto;
-import com.google.android.icing.proto.SchemaTypeConfigProto;
 import com.google.android.icing.proto.SearchResultProto;
 import com.google.android.icing.proto.SnippetMatchProto;
 import com.google.android.icing.proto.SnippetProto;
 
 import java.util.ArrayList;
-import java.util.Map;
 
 /**
  * Translates a {@link SearchResultProto} into {@link SearchResult}s.
@@ -48,47 +52,137 @@ public class SearchResultToProtoConverter {
      * Translate a {@link SearchResultProto} into {@link SearchResultPage}.
      *
      * @param proto The {@link SearchResultProto} containing results.
-     * @param schemaMap The cached Map of <Prefix, Map<PrefixedSchemaType, schemaProto>> stores all
-     *     existing prefixed schema type.
+     * @param propertyConfigIndex The index of the properties of all existing prefixed schema
+     *     types.
      * @return {@link SearchResultPage} of results.
      */
     @NonNull
     public static SearchResultPage toSearchResultPage(
             @NonNull SearchResultProto proto,
-            @NonNull Map<String, Map<String, SchemaTypeConfigProto>> schemaMap)
+            @NonNull PropertyConfigIndex propertyConfigIndex)
+            throws AppSearchException {
+        return toSearchResultPage(
+                proto,
+                propertyConfigIndex,
+                SearchSpec.RESULT_MODE_DOCUMENTS,
+                /*cancellationSignal=*/ null);
+    }
+
+    /**
+     * Translate a {@link SearchResultProto} into {@link SearchResultPage} in the given result mode.
+     *
+     * <p>In {@link SearchSpec#RESULT_MODE_IDS} and {@link SearchSpec#RESULT_MODE_SNIPPETS}, the
+     * page holds {@link SearchResultSummaries} read straight from the protos, and no {@link
+     * GenericDocument} is built.
+     *
+     * @param proto The {@link SearchResultProto} containing results.
+     * @param propertyConfigIndex The index of the properties of all existing prefixed schema
+     *     types.
+     * @param resultMode The {@link SearchSpec.ResultMode} the results were queried in.
+     * @return {@link SearchResultPage} of results.
+     */
+    @NonNull
+    public static SearchResultPage toSearchResultPage(
+            @NonNull SearchResultProto proto,
+            @NonNull PropertyConfigIndex propertyConfigIndex,
+            @SearchSpec.ResultMode int resultMode)
+            throws AppSearchException {
+        return toSearchResultPage(
+                proto, propertyConfigIndex, resultMode, /*cancellationSignal=*/ null);
+    }
+
+    /**
+     * Translate a {@link SearchResultProto} into {@link SearchResultPage} in the given result mode,
+     * unless the signal is cancelled before every result is translated.
+     *
+     * @param proto The {@link SearchResultProto} containing results.
+     * @param propertyConfigIndex The index of the properties of all existing prefixed schema
+     *     types.
+     * @param resultMode The {@link SearchSpec.ResultMode} the results were queried in.
+     * @param cancellationSignal Signal checked before each result is translated.
+     * @return {@link SearchResultPage} of results.
+     * @throws OperationCanceledException if the signal was cancelled.
+     */
+    @NonNull
+    public static SearchResultPage toSearchResultPage(
+            @NonNull SearchResultProto proto,
+            @NonNull PropertyConfigIndex propertyConfigIndex,
+            @SearchSpec.ResultMode int resultMode,
+            @Nullable CancellationSignal cancellationSignal)
             throws AppSearchException {
         Bundle bundle = new Bundle();
         bundle.putLong(SearchResultPage.NEXT_PAGE_TOKEN_FIELD, proto.getNextPageToken());
-        ArrayList<Bundle> resultBundles = new ArrayList<>(proto.getResultsCount());
+        if (resultMode == SearchSpec.RESULT_MODE_DOCUMENTS) {
+            ArrayList<Bundle> resultBundles = new ArrayList<>(proto.getResultsCount());
+            for (int i = 0; i < proto.getResultsCount(); i++) {
+                throwIfCanceled(cancellationSignal);
+                SearchResult result =
+                        toUnprefixedSearchResult(proto.getResults(i), propertyConfigIndex);
+                resultBundles.add(result.getBundle());
+            }
+            bundle.putParcelableArrayList(SearchResultPage.RESULTS_FIELD, resultBundles);
+            return new SearchResultPage(bundle);
+        }
+        boolean hasMatches = resultMode == SearchSpec.RESULT_MODE_SNIPPETS;
+        SearchResultSummaries.Builder summariesBuilder =
+                new SearchResultSummaries.Builder(hasMatches);
         for (int i = 0; i < proto.getResultsCount(); i++) {
-            SearchResult result = toUnprefixedSearchResult(proto.getResults(i), schemaMap);
-            resultBundles.add(result.getBundle());
+            throwIfCanceled(cancellationSignal);
+            SearchResultProto.ResultProto result = proto.getResults(i);
+            DocumentProto documentProto = result.getDocument();
+            String prefix = getPrefix(documentProto.getSchema());
+            summariesBuilder.addResult(
+                    getPackageName(prefix),
+                    getDatabaseName(prefix),
+                    removePrefix(documentProto.getNamespace()),
+                    documentProto.getUri(),
+                    result.getScore());
+            if (hasMatches && result.hasSnippet()) {
+                for (int j = 0; j < result.getSnippet().getEntriesCount(); j++) {
+                    SnippetProto.EntryProto entry = result.getSnippet().getEntries(j);
+                    for (int k = 0; k < entry.getSnippetMatchesCount(); k++) {
+                        SearchResult.MatchInfo matchInfo =
+                                toMatchInfo(entry.getSnippetMatches(k), entry.getPropertyName());
+                        summariesBuilder.addMatch(
+                                matchInfo.getPropertyPath(),
+                                matchInfo.getExactMatchRange(),
+                                matchInfo.getSubmatchRange(),
+                                matchInfo.getSnippetRange());
+                    }
+                }
+            }
         }
-        bundle.putParcelableArrayList(SearchResultPage.RESULTS_FIELD, resultBundles);
+        bundle.putBundle(SearchResultPage.SUMMARIES_FIELD, summariesBuilder.build().getBundle());
         return new SearchResultPage(bundle);
     }
 
+    private static void throwIfCanceled(@Nullable CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+            throw new OperationCanceledException();
+        }
+    }
+
     /**
      * Translate a {@link SearchResultProto.ResultProto} into {@link SearchResult}. The package and
      * database prefix will be removed from {@link GenericDocument}.
      *
      * @param proto The proto to be converted.
-     * @param schemaMap The cached Map of <Prefix, Map<PrefixedSchemaType, schemaProto>> stores all
-     *     existing prefixed schema type.
+     * @param propertyConfigIndex The index of the properties of all existing prefixed schema
+     *     types.
      * @return A {@link SearchResult}.
      */
     @NonNull
     private static SearchResult toUnprefixedSearchResult(
             @NonNull SearchResultProto.ResultProto proto,
-            @NonNull Map<String, Map<String, SchemaTypeConfigProto>> schemaMap)
+            @NonNull PropertyConfigIndex propertyConfigIndex)
             throws AppSearchException {
 
-        DocumentProto.Builder documentBuilder = proto.getDocument().toBuilder();
-        String prefix = removePrefixesFromDocument(documentBuilder);
-        Map<String, SchemaTypeConfigProto> schemaTypeMap = schemaMap.get(prefix);
+        // Remove the prefixes while converting rather than rewriting a copy of the proto first.
+        DocumentProto documentProto = proto.getDocument();
+        String prefix = getPrefix(documentProto.getSchema());
         GenericDocument document =
-                GenericDocumentToProtoConverter.toGenericDocument(
-                        documentBuilder, prefix, schemaTypeMap);
+                GenericDocumentToProtoConverter.toUnprefixedGenericDocument(
+                        documentProto, prefix, propertyConfigIndex);
         SearchResult.Builder builder =
                 new SearchResult.Builder(getPackageName(prefix), getDatabaseName(prefix))
                         .setGenericDocument(document)
@@ -218,12 +218,16 @@ public final class SearchSpecToProtoConverter {
      */
     @NonNull
     public ResultSpecProto toResultSpecProto(@NonNull Map<String, Set<String>> namespaceMap) {
+        int resultMode = mSearchSpec.getResultMode();
+        // Results summarized by ID don't hold snippets.
+        int snippetCount =
+                resultMode == SearchSpec.RESULT_MODE_IDS ? 0 : mSearchSpec.getSnippetCount();
         ResultSpecProto.Builder resultSpecBuilder =
                 ResultSpecProto.newBuilder()
                         .setNumPerPage(mSearchSpec.getResultCountPerPage())
                         .setSnippetSpec(
                                 ResultSpecProto.SnippetSpecProto.newBuilder()
-                                        .setNumToSnippet(mSearchSpec.getSnippetCount())
+                                        .setNumToSnippet(snippetCount)
                                         .setNumMatchesPerProperty(
                                                 mSearchSpec.getSnippetCountPerProperty())
                                         .setMaxWindowUtf32Length(mSearchSpec.getMaxSnippetSize()));
@@ -251,11 +255,21 @@ public final class SearchSpecToProtoConverter {
                     resultSpecBuilder);
         }
 
+        resultSpecBuilder.clearTypePropertyMasks();
+        if (resultMode != SearchSpec.RESULT_MODE_DOCUMENTS) {
+            // Only the namespace and ID of the documents are read, so project every property out
+            // rather than copying them into the results. Snippets are computed before projection.
+            resultSpecBuilder.addTypePropertyMasks(
+                    TypePropertyMask.newBuilder()
+                            .setSchemaType(SearchSpec.PROJECTION_SCHEMA_TYPE_WILDCARD)
+                            .build());
+            return resultSpecBuilder.build();
+        }
+
         List<TypePropertyMask.Builder> typePropertyMaskBuilders =
                 TypePropertyPathToProtoConverter.toTypePropertyMaskBuilderList(
                         mSearchSpec.getProjections());
         // Rewrite filters to include a database prefix.
-        resultSpecBuilder.clearTypePropertyMasks();
         for (int i = 0; i < typePropertyMaskBuilders.size(); i++) {
             String unprefixedType = typePropertyMaskBuilders.get(i).getSchemaType();
             boolean isWildcard = unprefixedType.equals(SearchSpec.PROJECTION_SCHEMA_TYPE_WILDCARD);
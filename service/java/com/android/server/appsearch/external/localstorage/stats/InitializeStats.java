@@ -77,6 +77,26 @@ public final class InitializeStats {
     // Ground truth data is completely lost.
     public static final int DOCUMENT_STORE_DATA_STATUS_COMPLETE_LOSS = 2;
 
+    /** Whether the derived maps were restored from the initialization snapshot. */
+    @IntDef(
+            value = {
+                INIT_SNAPSHOT_STATUS_NONE,
+                INIT_SNAPSHOT_STATUS_HIT,
+                INIT_SNAPSHOT_STATUS_MISS_CORRUPTED,
+                INIT_SNAPSHOT_STATUS_MISS_INCONSISTENT,
+            })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface InitSnapshotStatus {}
+
+    // Snapshots are disabled, or no snapshot was found on disk.
+    public static final int INIT_SNAPSHOT_STATUS_NONE = 0;
+    // The derived maps were restored from the snapshot.
+    public static final int INIT_SNAPSHOT_STATUS_HIT = 1;
+    // The snapshot couldn't be read or failed its checksum.
+    public static final int INIT_SNAPSHOT_STATUS_MISS_CORRUPTED = 2;
+    // The snapshot was readable but didn't match the state Icing initialized with.
+    public static final int INIT_SNAPSHOT_STATUS_MISS_INCONSISTENT = 3;
+
     @AppSearchResult.ResultCode private final int mStatusCode;
     private final int mTotalLatencyMillis;
     /** Whether the initialize() detects deSync. */
@@ -110,6 +130,10 @@ public final class InitializeStats {
     private final boolean mHasReset;
     /** If we had to reset, contains the status code of the reset operation. */
     @AppSearchResult.ResultCode private final int mResetStatusCode;
+    /** Whether the derived maps were restored from the initialization snapshot. */
+    @InitSnapshotStatus private final int mInitSnapshotStatus;
+    /** Estimated time saved by restoring the derived maps from the initialization snapshot. */
+    private final int mInitSnapshotTimeSavedMillis;
 
     /** Returns the status of the initialization. */
     @AppSearchResult.ResultCode
@@ -233,6 +257,23 @@ public final class InitializeStats {
         return mResetStatusCode;
     }
 
+    /** Returns whether the derived maps were restored from the initialization snapshot. */
+    @InitSnapshotStatus
+    public int getInitSnapshotStatus() {
+        return mInitSnapshotStatus;
+    }
+
+    /**
+     * Returns the estimated time saved by restoring the derived maps from the initialization
+     * snapshot instead of reading them from Icing.
+     *
+     * <p>This is only non-zero if {@link #getInitSnapshotStatus} is {@link
+     * #INIT_SNAPSHOT_STATUS_HIT}.
+     */
+    public int getInitSnapshotTimeSavedMillis() {
+        return mInitSnapshotTimeSavedMillis;
+    }
+
     InitializeStats(@NonNull Builder builder) {
         Objects.requireNonNull(builder);
         mStatusCode = builder.mStatusCode;
@@ -253,6 +294,8 @@ public final class InitializeStats {
         mNativeNumSchemaTypes = builder.mNativeNumSchemaTypes;
         mHasReset = builder.mHasReset;
         mResetStatusCode = builder.mResetStatusCode;
+        mInitSnapshotStatus = builder.mInitSnapshotStatus;
+        mInitSnapshotTimeSavedMillis = builder.mInitSnapshotTimeSavedMillis;
     }
 
     /** Builder for {@link InitializeStats}. */
@@ -275,6 +318,8 @@ public final class InitializeStats {
         int mNativeNumSchemaTypes;
         boolean mHasReset;
         @AppSearchResult.ResultCode int mResetStatusCode;
+        @InitSnapshotStatus int mInitSnapshotStatus;
+        int mInitSnapshotTimeSavedMillis;
 
         /** Sets the status of the initialization. */
         @NonNull
@@ -430,6 +475,23 @@ public final class InitializeStats {
             return this;
         }
 
+        /** Sets whether the derived maps were restored from the initialization snapshot. */
+        @NonNull
+        public Builder setInitSnapshotStatus(@InitSnapshotStatus int initSnapshotStatus) {
+            mInitSnapshotStatus = initSnapshotStatus;
+            return this;
+        }
+
+        /**
+         * Sets the estimated time saved by restoring the derived maps from the initialization
+         * snapshot.
+         */
+        @NonNull
+        public Builder setInitSnapshotTimeSavedMillis(int initSnapshotTimeSavedMillis) {
+            mInitSnapshotTimeSavedMillis = initSnapshotTimeSavedMillis;
+            return this;
+        }
+
         /**
          * Constructs a new {@link InitializeStats} from the contents of this {@link
          * InitializeStats.Builder}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage.stats;
+
+import android.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, thread-safe histogram of latencies in milliseconds.
+ *
+ * <p>Values are counted in log-linear buckets: every power of two is split into {@link
+ * #SUB_BUCKET_COUNT} equal buckets, so any percentile is reported with a relative error of at
+ * most 25%. Values of {@link #MAX_TRACKABLE_VALUE} and above share the last bucket.
+ *
+ * <p>Recording is lock-free and allocation-free. {@link #reset} isn't atomic with respect to
+ * concurrent recordings, which may be partially kept.
+ *
+ * @hide
+ */
+public final class LatencyHistogram {
+    /** The number of buckets every power of two is split into. */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** The largest power of two tracked by its own buckets, about 17 minutes in milliseconds. */
+    private static final int MAX_EXPONENT = 20;
+
+    /** Values at or above this are counted in the last bucket. */
+    public static final long MAX_TRACKABLE_VALUE = 1L << (MAX_EXPONENT + 1);
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_VALUE - 1) + 2;
+
+    private final AtomicLongArray mBucketCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder mCount = new LongAdder();
+    private final LongAdder mSum = new LongAdder();
+    private final LongAccumulator mMax = new LongAccumulator(Math::max, 0);
+
+    /** Records one value. Negative values are recorded as 0. */
+    public void record(long valueMillis) {
+        long value = Math.max(0, valueMillis);
+        mBucketCounts.incrementAndGet(
+                value >= MAX_TRACKABLE_VALUE ? BUCKET_COUNT - 1 : bucketIndex(value));
+        mCount.increment();
+        mSum.add(value);
+        mMax.accumulate(value);
+    }
+
+    /** Returns the number of recorded values. */
+    public long getCount() {
+        return mCount.sum();
+    }
+
+    /** Returns the largest recorded value, or 0 if nothing was recorded. */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /** Returns the mean of the recorded values, or 0 if nothing was recorded. */
+    public double getMean() {
+        long count = mCount.sum();
+        return count == 0 ? 0 : (double) mSum.sum() / count;
+    }
+
+    /**
+     * Returns an upper bound of the value at the given percentile, or 0 if nothing was recorded.
+     *
+     * @param percentile a percentile between 0 and 100.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile out of range: " + percentile);
+        }
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBucketCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /** Clears all recorded values. */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBucketCounts.set(i, 0);
+        }
+        mCount.reset();
+        mSum.reset();
+        mMax.reset();
+    }
+
+    /** Returns a one-line summary of the count, mean and main percentiles. */
+    @Override
+    @NonNull
+    public String toString() {
+        return "count="
+                + getCount()
+                + " mean="
+                + String.format("%.1f", getMean())
+                + " p50="
+                + getValueAtPercentile(50)
+                + " p90="
+                + getValueAtPercentile(90)
+                + " p99="
+                + getValueAtPercentile(99)
+                + " max="
+                + getMax();
+    }
+
+    /** Returns the bucket a value below {@link #MAX_TRACKABLE_VALUE} is counted in. */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /** Returns the largest value counted in the given bucket. */
+    private static long bucketUpperBound(int index) {
+        if (index >= BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -106,7 +106,12 @@ public final class PutDocumentStats {
         return mGenerateDocumentProtoLatencyMillis;
     }
 
-    /** Returns time spent on rewriting types and namespaces in document, in milliseconds. */
+    /**
+     * Returns time spent on rewriting types and namespaces in document, in milliseconds.
+     *
+     * <p>Types and namespaces are rewritten while the document proto is generated, so this is the
+     * same time as {@link #getGenerateDocumentProtoLatencyMillis}.
+     */
     public int getRewriteDocumentTypesLatencyMillis() {
         return mRewriteDocumentTypesLatencyMillis;
     }
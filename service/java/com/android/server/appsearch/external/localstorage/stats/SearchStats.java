@@ -111,6 +111,10 @@ public final class SearchStats {
     private final int mNativeDocumentRetrievingLatencyMillis;
     /** How many snippets are calculated. */
     private final int mNativeNumResultsWithSnippets;
+    /** How many times the results were served from the query result cache. */
+    private final int mResultCacheHitCount;
+    /** How many times the query result cache was looked up without finding the results. */
+    private final int mResultCacheMissCount;
 
     SearchStats(@NonNull Builder builder) {
         Objects.requireNonNull(builder);
@@ -136,6 +140,8 @@ public final class SearchStats {
         mNativeRankingLatencyMillis = builder.mNativeRankingLatencyMillis;
         mNativeNumResultsWithSnippets = builder.mNativeNumResultsWithSnippets;
         mNativeDocumentRetrievingLatencyMillis = builder.mNativeDocumentRetrievingLatencyMillis;
+        mResultCacheHitCount = builder.mResultCacheHitCount;
+        mResultCacheMissCount = builder.mResultCacheMissCount;
     }
 
     /** Returns the package name of the session. */
@@ -265,6 +271,22 @@ public final class SearchStats {
         return mNativeNumResultsWithSnippets;
     }
 
+    /**
+     * Returns how many times the results were served from the query result cache instead of
+     * Icing.
+     */
+    public int getResultCacheHitCount() {
+        return mResultCacheHitCount;
+    }
+
+    /**
+     * Returns how many times the query result cache was looked up without finding the results. It
+     * is 0 if the cache is disabled.
+     */
+    public int getResultCacheMissCount() {
+        return mResultCacheMissCount;
+    }
+
     /** Builder for {@link SearchStats} */
     public static class Builder {
         @NonNull final String mPackageName;
@@ -289,6 +311,8 @@ public final class SearchStats {
         int mNativeRankingLatencyMillis;
         int mNativeNumResultsWithSnippets;
         int mNativeDocumentRetrievingLatencyMillis;
+        int mResultCacheHitCount;
+        int mResultCacheMissCount;
 
         /**
          * Constructor
@@ -447,6 +471,20 @@ public final class SearchStats {
             return this;
         }
 
+        /** Sets how many times the results were served from the query result cache. */
+        @NonNull
+        public Builder setResultCacheHitCount(int resultCacheHitCount) {
+            mResultCacheHitCount = resultCacheHitCount;
+            return this;
+        }
+
+        /** Sets how many times the query result cache was looked up without finding the results. */
+        @NonNull
+        public Builder setResultCacheMissCount(int resultCacheMissCount) {
+            mResultCacheMissCount = resultCacheMissCount;
+            return this;
+        }
+
         /**
          * Constructs a new {@link SearchStats} from the contents of this {@link
          * SearchStats.Builder}.
@@ -34,6 +34,7 @@ import com.android.server.appsearch.external.localstorage.util.PrefixUtil;
 
 import com.google.android.icing.proto.PersistType;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -138,10 +139,34 @@ public class VisibilityStore {
         }
     }
 
+    /**
+     * Creates a {@link VisibilityStore} from {@link VisibilityDocument}s a previous instance had
+     * already loaded, without reading them back from AppSearchImpl.
+     *
+     * <p>The caller is responsible for ensuring the documents are stored in AppSearchImpl under
+     * {@link VisibilityDocument#SCHEMA_VERSION_LATEST}, so no migration is needed.
+     *
+     * @param cachedVisibilityDocuments prefixed {@link VisibilityDocument}s, as returned by {@link
+     *     #getAllVisibilityDocuments}.
+     */
+    public VisibilityStore(
+            @NonNull AppSearchImpl appSearchImpl,
+            @NonNull List<VisibilityDocument> cachedVisibilityDocuments) {
+        mAppSearchImpl = Objects.requireNonNull(appSearchImpl);
+        Objects.requireNonNull(cachedVisibilityDocuments);
+        for (int i = 0; i < cachedVisibilityDocuments.size(); i++) {
+            VisibilityDocument visibilityDocument = cachedVisibilityDocuments.get(i);
+            mVisibilityDocumentMap.put(visibilityDocument.getId(), visibilityDocument);
+        }
+    }
+
     /**
      * Sets visibility settings for the given {@link VisibilityDocument}s. Any previous {@link
      * VisibilityDocument}s with same prefixed schema type will be overwritten.
      *
+     * <p>Documents granting the same visibility as the stored ones are skipped, and nothing is
+     * persisted if no document changed. Apps set the same visibility on every launch.
+     *
      * @param prefixedVisibilityDocuments List of prefixed {@link VisibilityDocument} which contains
      *     schema type's visibility information.
      * @throws AppSearchException on AppSearchImpl error.
@@ -149,12 +174,19 @@ public class VisibilityStore {
     public void setVisibility(@NonNull List<VisibilityDocument> prefixedVisibilityDocuments)
             throws AppSearchException {
         Objects.requireNonNull(prefixedVisibilityDocuments);
+        boolean changed = false;
         // Save new setting.
         for (int i = 0; i < prefixedVisibilityDocuments.size(); i++) {
+            VisibilityDocument prefixedVisibilityDocument = prefixedVisibilityDocuments.get(i);
+            VisibilityDocument existingVisibilityDocument =
+                    mVisibilityDocumentMap.get(prefixedVisibilityDocument.getId());
+            if (existingVisibilityDocument != null
+                    && isSameVisibility(existingVisibilityDocument, prefixedVisibilityDocument)) {
+                continue;
+            }
             // put VisibilityDocument to AppSearchImpl and mVisibilityDocumentMap. If there is a
             // VisibilityDocument with same prefixed schema exists, it will be replaced by new
             // VisibilityDocument in both AppSearch and memory look up map.
-            VisibilityDocument prefixedVisibilityDocument = prefixedVisibilityDocuments.get(i);
             mAppSearchImpl.putDocument(
                     VISIBILITY_PACKAGE_NAME,
                     VISIBILITY_DATABASE_NAME,
@@ -163,9 +195,12 @@ public class VisibilityStore {
                     /*logger=*/ null);
             mVisibilityDocumentMap.put(
                     prefixedVisibilityDocument.getId(), prefixedVisibilityDocument);
+            changed = true;
+        }
+        if (changed) {
+            // Now that the visibility documents have been written, persist them all at once.
+            mAppSearchImpl.persistToDisk(PersistType.Code.LITE);
         }
-        // Now that the visibility document has been written. Persist the newly written data.
-        mAppSearchImpl.persistToDisk(PersistType.Code.LITE);
     }
 
     /**
@@ -194,7 +229,7 @@ public class VisibilityStore {
                                 "Cannot find visibility document for "
                                         + prefixedSchemaType
                                         + " to remove.");
-                        return;
+                        continue;
                     }
                     throw e;
                 }
@@ -202,12 +237,32 @@ public class VisibilityStore {
         }
     }
 
+    /**
+     * Returns whether two {@link VisibilityDocument}s grant the same visibility.
+     *
+     * <p>The documents themselves can't be compared, since they differ in creation timestamp.
+     */
+    public static boolean isSameVisibility(
+            @NonNull VisibilityDocument first, @NonNull VisibilityDocument second) {
+        return first.isNotDisplayedBySystem() == second.isNotDisplayedBySystem()
+                && Arrays.equals(first.getPackageNames(), second.getPackageNames())
+                && Arrays.deepEquals(first.getSha256Certs(), second.getSha256Certs())
+                && Objects.equals(
+                        first.getVisibleToPermissions(), second.getVisibleToPermissions());
+    }
+
     /** Gets the {@link VisibilityDocument} for the given prefixed schema type. */
     @Nullable
     public VisibilityDocument getVisibility(@NonNull String prefixedSchemaType) {
         return mVisibilityDocumentMap.get(prefixedSchemaType);
     }
 
+    /** Returns all prefixed {@link VisibilityDocument}s held by this store. */
+    @NonNull
+    public List<VisibilityDocument> getAllVisibilityDocuments() {
+        return new ArrayList<>(mVisibilityDocumentMap.values());
+    }
+
     /**
      * Loads all stored latest {@link VisibilityDocument} from Icing, and put them into {@link
      * #mVisibilityDocumentMap}.
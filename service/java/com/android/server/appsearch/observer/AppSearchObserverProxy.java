@@ -18,27 +18,33 @@ package com.android.server.appsearch.observer;
 
 import android.annotation.NonNull;
 import android.app.appsearch.aidl.IAppSearchObserverProxy;
+import android.app.appsearch.aidl.ObserverChangesParcel;
 import android.app.appsearch.observer.DocumentChangeInfo;
-import android.app.appsearch.observer.ObserverCallback;
 import android.app.appsearch.observer.SchemaChangeInfo;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.android.server.appsearch.external.localstorage.BatchObserverCallback;
+
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * A wrapper that adapts {@link android.app.appsearch.aidl.IAppSearchObserverProxy} to the
  * {@link android.app.appsearch.observer.ObserverCallback} interface.
  *
+ * <p>All the changes dispatched at once are sent in a single oneway binder call, split in several
+ * calls only when they are too large for one transaction.
+ *
  * <p>When using this class, you must register for {@link android.os.IBinder#linkToDeath}
  * notifications on the stub you provide to the constructor, to unregister this class from
  * {@link com.android.server.appsearch.external.localstorage.AppSearchImpl} when binder dies.
  *
  * @hide
  */
-public class AppSearchObserverProxy implements ObserverCallback {
+public class AppSearchObserverProxy implements BatchObserverCallback {
     private static final String TAG = "AppSearchObserverProxy";
 
     private final IAppSearchObserverProxy mStub;
@@ -73,6 +79,21 @@ public class AppSearchObserverProxy implements ObserverCallback {
         }
     }
 
+    @Override
+    public void onChanged(
+            @NonNull List<SchemaChangeInfo> schemaChanges,
+            @NonNull List<DocumentChangeInfo> documentChanges) {
+        List<ObserverChangesParcel> parcels = ObserverChangesParcel.split(
+                schemaChanges, documentChanges, ObserverChangesParcel.DEFAULT_MAX_SIZE_BYTES);
+        try {
+            for (int i = 0; i < parcels.size(); i++) {
+                mStub.onChanged(parcels.get(i));
+            }
+        } catch (RemoteException e) {
+            onRemoteException(e);
+        }
+    }
+
     private void onRemoteException(@NonNull RemoteException e) {
         // The originating app has disconnected. The user of this class must watch for binder
         // disconnections and unregister us, so we don't have to take any special action.
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.stats;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import com.android.server.appsearch.external.localstorage.stats.CallStats;
+import com.android.server.appsearch.external.localstorage.stats.InitializeStats;
+import com.android.server.appsearch.external.localstorage.stats.LatencyHistogram;
+import com.android.server.appsearch.external.localstorage.stats.OptimizeStats;
+import com.android.server.appsearch.external.localstorage.stats.PutDocumentStats;
+import com.android.server.appsearch.external.localstorage.stats.SearchStats;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps always-on latency histograms of one user's AppSearch calls, for dumpsys.
+ *
+ * <p>Unlike the atoms written by {@link PlatformLogger}, every call is recorded, not just a sample.
+ * The total latency of each call type is tracked both for the whole user and per calling package,
+ * while the latency of the phases within a call is tracked for the whole user only.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @hide
+ */
+public final class LatencyTracker {
+    /** Histograms for the whole user, keyed by metric name. */
+    private final Map<String, LatencyHistogram> mHistograms = new ConcurrentHashMap<>();
+
+    /** Total latency histograms per package, keyed by package name and then by call type name. */
+    private final Map<String, Map<String, LatencyHistogram>> mPackageHistograms =
+            new ConcurrentHashMap<>();
+
+    /** Records the latency of the given metric for the whole user. */
+    public void record(@NonNull String metric, long latencyMillis) {
+        Objects.requireNonNull(metric);
+        getOrCreateHistogram(mHistograms, metric).record(latencyMillis);
+    }
+
+    /** Records {@link CallStats}. */
+    public void record(@NonNull CallStats stats) {
+        Objects.requireNonNull(stats);
+        recordCall(stats.getPackageName(), stats.getCallType(), stats.getTotalLatencyMillis());
+        record("binder.estimated", stats.getEstimatedBinderLatencyMillis());
+    }
+
+    /** Records {@link PutDocumentStats}. */
+    public void record(@NonNull PutDocumentStats stats) {
+        Objects.requireNonNull(stats);
+        recordCall(
+                stats.getPackageName(),
+                CallStats.CALL_TYPE_PUT_DOCUMENT,
+                stats.getTotalLatencyMillis());
+        record("put_document.generate_document_proto",
+                stats.getGenerateDocumentProtoLatencyMillis());
+        record("put_document.rewrite_document_types",
+                stats.getRewriteDocumentTypesLatencyMillis());
+        record("put_document.native", stats.getNativeLatencyMillis());
+        record("put_document.native_document_store", stats.getNativeDocumentStoreLatencyMillis());
+        record("put_document.native_index", stats.getNativeIndexLatencyMillis());
+        record("put_document.native_index_merge", stats.getNativeIndexMergeLatencyMillis());
+    }
+
+    /**
+     * Records {@link SearchStats}.
+     *
+     * <p>The call itself is already recorded from the {@link CallStats} logged for it, so only the
+     * phases are recorded here, local and global searches under separate prefixes.
+     */
+    public void record(@NonNull SearchStats stats) {
+        Objects.requireNonNull(stats);
+        String prefix = stats.getVisibilityScope() == SearchStats.VISIBILITY_SCOPE_GLOBAL
+                ? "global_search."
+                : "search.";
+        record(prefix + "total", stats.getTotalLatencyMillis());
+        record(prefix + "rewrite_search_spec", stats.getRewriteSearchSpecLatencyMillis());
+        record(prefix + "native", stats.getNativeLatencyMillis());
+        record(prefix + "native_parse_query", stats.getParseQueryLatencyMillis());
+        record(prefix + "native_scoring", stats.getScoringLatencyMillis());
+        record(prefix + "native_ranking", stats.getRankingLatencyMillis());
+        record(prefix + "native_document_retrieving",
+                stats.getDocumentRetrievingLatencyMillis());
+        record(prefix + "rewrite_search_result", stats.getRewriteSearchResultLatencyMillis());
+    }
+
+    /**
+     * Records {@link InitializeStats}.
+     *
+     * <p>The initialize call is already recorded from its {@link CallStats}, so the total here is
+     * kept under its own name.
+     */
+    public void record(@NonNull InitializeStats stats) {
+        Objects.requireNonNull(stats);
+        record("initialize.total", stats.getTotalLatencyMillis());
+        record("initialize.native", stats.getNativeLatencyMillis());
+        record("initialize.prepare_schema_and_namespaces",
+                stats.getPrepareSchemaAndNamespacesLatencyMillis());
+        record("initialize.prepare_visibility_store",
+                stats.getPrepareVisibilityStoreLatencyMillis());
+    }
+
+    /** Records {@link OptimizeStats}. */
+    public void record(@NonNull OptimizeStats stats) {
+        Objects.requireNonNull(stats);
+        recordCall(
+                /*packageName=*/ null, CallStats.CALL_TYPE_OPTIMIZE,
+                stats.getTotalLatencyMillis());
+        record("optimize.native", stats.getNativeLatencyMillis());
+    }
+
+    /** Clears every histogram. */
+    public void reset() {
+        mHistograms.clear();
+        mPackageHistograms.clear();
+    }
+
+    /**
+     * Prints every non-empty histogram, for the whole user and then per package.
+     *
+     * @param prefix printed before every line
+     */
+    public void dump(@NonNull PrintWriter pw, @NonNull String prefix) {
+        Objects.requireNonNull(pw);
+        Objects.requireNonNull(prefix);
+        pw.println(prefix + "Latency (ms):");
+        dumpHistograms(pw, prefix + "  ", mHistograms);
+        List<String> packageNames = new ArrayList<>(mPackageHistograms.keySet());
+        Collections.sort(packageNames);
+        for (int i = 0; i < packageNames.size(); i++) {
+            Map<String, LatencyHistogram> histograms = mPackageHistograms.get(packageNames.get(i));
+            if (histograms == null) {
+                continue;
+            }
+            pw.println(prefix + "Latency of " + packageNames.get(i) + " (ms):");
+            dumpHistograms(pw, prefix + "  ", histograms);
+        }
+    }
+
+    private void recordCall(
+            @Nullable String packageName, @CallStats.CallType int callType, long latencyMillis) {
+        String metric = "call." + callTypeToString(callType);
+        record(metric, latencyMillis);
+        if (packageName != null) {
+            Map<String, LatencyHistogram> histograms = mPackageHistograms.get(packageName);
+            if (histograms == null) {
+                histograms = mPackageHistograms.computeIfAbsent(
+                        packageName, unused -> new ConcurrentHashMap<>());
+            }
+            getOrCreateHistogram(histograms, metric).record(latencyMillis);
+        }
+    }
+
+    @NonNull
+    private static LatencyHistogram getOrCreateHistogram(
+            @NonNull Map<String, LatencyHistogram> histograms, @NonNull String metric) {
+        // Look up first, so recording into an existing histogram never locks.
+        LatencyHistogram histogram = histograms.get(metric);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(metric, unused -> new LatencyHistogram());
+        }
+        return histogram;
+    }
+
+    private static void dumpHistograms(
+            @NonNull PrintWriter pw,
+            @NonNull String prefix,
+            @NonNull Map<String, LatencyHistogram> histograms) {
+        List<String> metrics = new ArrayList<>(histograms.keySet());
+        Collections.sort(metrics);
+        for (int i = 0; i < metrics.size(); i++) {
+            LatencyHistogram histogram = histograms.get(metrics.get(i));
+            if (histogram != null && histogram.getCount() > 0) {
+                pw.println(prefix + metrics.get(i) + ": " + histogram);
+            }
+        }
+    }
+
+    /** Returns a readable name for the given call type. */
+    @NonNull
+    static String callTypeToString(@CallStats.CallType int callType) {
+        switch (callType) {
+            case CallStats.CALL_TYPE_INITIALIZE:
+                return "initialize";
+            case CallStats.CALL_TYPE_SET_SCHEMA:
+                return "set_schema";
+            case CallStats.CALL_TYPE_PUT_DOCUMENTS:
+                return "put_documents";
+            case CallStats.CALL_TYPE_GET_DOCUMENTS:
+                return "get_documents";
+            case CallStats.CALL_TYPE_REMOVE_DOCUMENTS_BY_ID:
+                return "remove_documents_by_id";
+            case CallStats.CALL_TYPE_PUT_DOCUMENT:
+                return "put_document";
+            case CallStats.CALL_TYPE_GET_DOCUMENT:
+                return "get_document";
+            case CallStats.CALL_TYPE_REMOVE_DOCUMENT_BY_ID:
+                return "remove_document_by_id";
+            case CallStats.CALL_TYPE_SEARCH:
+                return "search";
+            case CallStats.CALL_TYPE_OPTIMIZE:
+                return "optimize";
+            case CallStats.CALL_TYPE_FLUSH:
+                return "flush";
+            case CallStats.CALL_TYPE_GLOBAL_SEARCH:
+                return "global_search";
+            case CallStats.CALL_TYPE_REMOVE_DOCUMENTS_BY_SEARCH:
+                return "remove_documents_by_search";
+            case CallStats.CALL_TYPE_REMOVE_DOCUMENT_BY_SEARCH:
+                return "remove_document_by_search";
+            case CallStats.CALL_TYPE_GLOBAL_GET_DOCUMENT_BY_ID:
+                return "global_get_document_by_id";
+            case CallStats.CALL_TYPE_UNKNOWN:
+            default:
+                return "unknown_" + callType;
+        }
+    }
+}
@@ -22,11 +22,8 @@ import android.app.appsearch.exceptions.AppSearchException;
 import android.content.Context;
 import android.os.Process;
 import android.os.SystemClock;
-import android.util.ArrayMap;
 import android.util.Log;
-import android.util.SparseIntArray;
 
-import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.appsearch.AppSearchConfig;
 import com.android.server.appsearch.external.localstorage.AppSearchLogger;
@@ -37,6 +34,7 @@ import com.android.server.appsearch.external.localstorage.stats.PutDocumentStats
 import com.android.server.appsearch.external.localstorage.stats.RemoveStats;
 import com.android.server.appsearch.external.localstorage.stats.SearchStats;
 import com.android.server.appsearch.external.localstorage.stats.SetSchemaStats;
+import com.android.server.appsearch.util.ExecutorManager;
 import com.android.server.appsearch.util.PackageUtil;
 
 import java.io.UnsupportedEncodingException;
@@ -44,11 +42,19 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Logger Implementation for pushed atoms.
  *
+ * <p>Deciding whether to log a stats is lock-free. The stats that are logged are written to statsd
+ * on a background executor, so callers never wait for the UID lookup, database hashing or the
+ * write itself.
+ *
  * <p>This class is thread-safe.
  *
  * @hide
@@ -56,28 +62,36 @@ import java.util.Random;
 public final class PlatformLogger implements AppSearchLogger {
     private static final String TAG = "AppSearchPlatformLogger";
 
+    /**
+     * The number of database hashes cached before the cache is cleared. Databases are few per
+     * package, so this is only reached if a caller keeps inventing database names.
+     */
+    private static final int MAX_DATABASE_HASH_CACHE_SIZE = 1024;
+
+    /** Writes the stats of all users to statsd, off the threads serving AppSearch calls. */
+    private static final Executor SHARED_WRITE_EXECUTOR =
+            ExecutorManager.createBackgroundExecutorService();
+
     // Context of the user we're logging for.
     private final Context mUserContext;
 
     // Manager holding the configuration flags
     private final AppSearchConfig mConfig;
 
-    private final Random mRng = new Random();
-    private final Object mLock = new Object();
+    // Executor the stats are written to statsd on.
+    private final Executor mWriteExecutor;
 
     /**
-     * SparseArray to track how many stats we skipped due to
+     * Map to track how many stats we skipped due to
      * {@link AppSearchConfig#getCachedMinTimeIntervalBetweenSamplesMillis()}.
      *
      * <p> We can have correct extrapolated number by adding those counts back when we log
      * the same type of stats next time. E.g. the true count of an event could be estimated as:
      * SUM(sampling_interval * (num_skipped_sample + 1)) as est_count
      *
-     * <p>The key to the SparseArray is {@link CallStats.CallType}
+     * <p>The key to the map is {@link CallStats.CallType}
      */
-    @GuardedBy("mLock")
-    private final SparseIntArray mSkippedSampleCountLocked =
-            new SparseIntArray();
+    private final Map<Integer, AtomicInteger> mSkippedSampleCounts = new ConcurrentHashMap<>();
 
     /**
      * Map to cache the packageUid for each package.
@@ -86,15 +100,18 @@ public final class PlatformLogger implements AppSearchLogger {
      *
      * <p>The entry will be removed whenever the app gets uninstalled
      */
-    @GuardedBy("mLock")
-    private final Map<String, Integer> mPackageUidCacheLocked =
-            new ArrayMap<>();
+    private final Map<String, Integer> mPackageUidCache = new ConcurrentHashMap<>();
+
+    /** Map to cache the hash code of each database name, as computed by calculateHashCodeMd5. */
+    private final Map<String, Integer> mDatabaseHashCache = new ConcurrentHashMap<>();
 
     /**
      * Elapsed time for last stats logged from boot in millis
      */
-    @GuardedBy("mLock")
-    private long mLastPushTimeMillisLocked = 0;
+    private final AtomicLong mLastPushTimeMillis = new AtomicLong(0);
+
+    // Latency histograms of every call, whether it's sampled or not.
+    private final LatencyTracker mLatencyTracker = new LatencyTracker();
 
     /**
      * Helper class to hold platform specific stats for statsd.
@@ -120,18 +137,31 @@ public final class PlatformLogger implements AppSearchLogger {
     public PlatformLogger(
             @NonNull Context userContext,
             @NonNull AppSearchConfig config) {
+        this(userContext, config, SHARED_WRITE_EXECUTOR);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param writeExecutor the executor the stats are written to statsd on.
+     */
+    @VisibleForTesting
+    PlatformLogger(
+            @NonNull Context userContext,
+            @NonNull AppSearchConfig config,
+            @NonNull Executor writeExecutor) {
         mUserContext = Objects.requireNonNull(userContext);
         mConfig = Objects.requireNonNull(config);
+        mWriteExecutor = Objects.requireNonNull(writeExecutor);
     }
 
     /** Logs {@link CallStats}. */
     @Override
     public void logStats(@NonNull CallStats stats) {
         Objects.requireNonNull(stats);
-        synchronized (mLock) {
-            if (shouldLogForTypeLocked(stats.getCallType())) {
-                logStatsImplLocked(stats);
-            }
+        mLatencyTracker.record(stats);
+        if (shouldLogForType(stats.getCallType())) {
+            mWriteExecutor.execute(() -> logStatsImpl(stats));
         }
     }
 
@@ -139,30 +169,27 @@ public final class PlatformLogger implements AppSearchLogger {
     @Override
     public void logStats(@NonNull PutDocumentStats stats) {
         Objects.requireNonNull(stats);
-        synchronized (mLock) {
-            if (shouldLogForTypeLocked(CallStats.CALL_TYPE_PUT_DOCUMENT)) {
-                logStatsImplLocked(stats);
-            }
+        mLatencyTracker.record(stats);
+        if (shouldLogForType(CallStats.CALL_TYPE_PUT_DOCUMENT)) {
+            mWriteExecutor.execute(() -> logStatsImpl(stats));
         }
     }
 
     @Override
     public void logStats(@NonNull InitializeStats stats) {
         Objects.requireNonNull(stats);
-        synchronized (mLock) {
-            if (shouldLogForTypeLocked(CallStats.CALL_TYPE_INITIALIZE)) {
-                logStatsImplLocked(stats);
-            }
+        mLatencyTracker.record(stats);
+        if (shouldLogForType(CallStats.CALL_TYPE_INITIALIZE)) {
+            mWriteExecutor.execute(() -> logStatsImpl(stats));
         }
     }
 
     @Override
     public void logStats(@NonNull SearchStats stats) {
         Objects.requireNonNull(stats);
-        synchronized (mLock) {
-            if (shouldLogForTypeLocked(CallStats.CALL_TYPE_SEARCH)) {
-                logStatsImplLocked(stats);
-            }
+        mLatencyTracker.record(stats);
+        if (shouldLogForType(CallStats.CALL_TYPE_SEARCH)) {
+            mWriteExecutor.execute(() -> logStatsImpl(stats));
         }
     }
 
@@ -174,10 +201,9 @@ public final class PlatformLogger implements AppSearchLogger {
     @Override
     public void logStats(@NonNull OptimizeStats stats) {
         Objects.requireNonNull(stats);
-        synchronized (mLock) {
-            if (shouldLogForTypeLocked(CallStats.CALL_TYPE_OPTIMIZE)) {
-                logStatsImplLocked(stats);
-            }
+        mLatencyTracker.record(stats);
+        if (shouldLogForType(CallStats.CALL_TYPE_OPTIMIZE)) {
+            mWriteExecutor.execute(() -> logStatsImpl(stats));
         }
     }
 
@@ -186,6 +212,12 @@ public final class PlatformLogger implements AppSearchLogger {
         // TODO(b/173532925): Log stats
     }
 
+    /** Returns the latency histograms of the calls logged by this logger. */
+    @NonNull
+    public LatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
     /**
      * Removes cached UID for package.
      *
@@ -195,16 +227,12 @@ public final class PlatformLogger implements AppSearchLogger {
     public int removeCachedUidForPackage(@NonNull String packageName) {
         // TODO(b/173532925) This needs to be called when we get PACKAGE_REMOVED intent
         Objects.requireNonNull(packageName);
-        synchronized (mLock) {
-            Integer uid = mPackageUidCacheLocked.remove(packageName);
-            return uid != null ? uid : Process.INVALID_UID;
-        }
+        Integer uid = mPackageUidCache.remove(packageName);
+        return uid != null ? uid : Process.INVALID_UID;
     }
 
-    @GuardedBy("mLock")
-    private void logStatsImplLocked(@NonNull CallStats stats) {
-        mLastPushTimeMillisLocked = SystemClock.elapsedRealtime();
-        ExtraStats extraStats = createExtraStatsLocked(stats.getPackageName(), stats.getCallType());
+    private void logStatsImpl(@NonNull CallStats stats) {
+        ExtraStats extraStats = createExtraStats(stats.getPackageName(), stats.getCallType());
         String database = stats.getDatabase();
         try {
             // The num_reported_calls field in AppSearchPutDocumentStatsReported is always set to 1.
@@ -218,7 +246,7 @@ public final class PlatformLogger implements AppSearchLogger {
             // will be 10*12 + 10*3 = 150 for that device's reported value.
             final int numReportedCalls = 1;
 
-            int hashCodeForDatabase = calculateHashCodeMd5(database);
+            int hashCodeForDatabase = getDatabaseHashCode(database);
             AppSearchStatsLog.write(AppSearchStatsLog.APP_SEARCH_CALL_STATS_REPORTED,
                     extraStats.mSamplingInterval,
                     extraStats.mSkippedSampleCount,
@@ -244,14 +272,12 @@ public final class PlatformLogger implements AppSearchLogger {
         }
     }
 
-    @GuardedBy("mLock")
-    private void logStatsImplLocked(@NonNull PutDocumentStats stats) {
-        mLastPushTimeMillisLocked = SystemClock.elapsedRealtime();
-        ExtraStats extraStats = createExtraStatsLocked(
+    private void logStatsImpl(@NonNull PutDocumentStats stats) {
+        ExtraStats extraStats = createExtraStats(
                 stats.getPackageName(), CallStats.CALL_TYPE_PUT_DOCUMENT);
         String database = stats.getDatabase();
         try {
-            int hashCodeForDatabase = calculateHashCodeMd5(database);
+            int hashCodeForDatabase = getDatabaseHashCode(database);
             AppSearchStatsLog.write(AppSearchStatsLog.APP_SEARCH_PUT_DOCUMENT_STATS_REPORTED,
                     extraStats.mSamplingInterval,
                     extraStats.mSkippedSampleCount,
@@ -281,14 +307,12 @@ public final class PlatformLogger implements AppSearchLogger {
         }
     }
 
-    @GuardedBy("mLock")
-    private void logStatsImplLocked(@NonNull SearchStats stats) {
-        mLastPushTimeMillisLocked = SystemClock.elapsedRealtime();
-        ExtraStats extraStats = createExtraStatsLocked(stats.getPackageName(),
+    private void logStatsImpl(@NonNull SearchStats stats) {
+        ExtraStats extraStats = createExtraStats(stats.getPackageName(),
                 CallStats.CALL_TYPE_SEARCH);
         String database = stats.getDatabase();
         try {
-            int hashCodeForDatabase = calculateHashCodeMd5(database);
+            int hashCodeForDatabase = getDatabaseHashCode(database);
             AppSearchStatsLog.write(AppSearchStatsLog.APP_SEARCH_QUERY_STATS_REPORTED,
                     extraStats.mSamplingInterval,
                     extraStats.mSkippedSampleCount,
@@ -327,10 +351,8 @@ public final class PlatformLogger implements AppSearchLogger {
         }
     }
 
-    @GuardedBy("mLock")
-    private void logStatsImplLocked(@NonNull InitializeStats stats) {
-        mLastPushTimeMillisLocked = SystemClock.elapsedRealtime();
-        ExtraStats extraStats = createExtraStatsLocked(/*packageName=*/ null,
+    private void logStatsImpl(@NonNull InitializeStats stats) {
+        ExtraStats extraStats = createExtraStats(/*packageName=*/ null,
                 CallStats.CALL_TYPE_INITIALIZE);
         AppSearchStatsLog.write(AppSearchStatsLog.APP_SEARCH_INITIALIZE_STATS_REPORTED,
                 extraStats.mSamplingInterval,
@@ -355,10 +377,8 @@ public final class PlatformLogger implements AppSearchLogger {
                 stats.getResetStatusCode());
     }
 
-    @GuardedBy("mLock")
-    private void logStatsImplLocked(@NonNull OptimizeStats stats) {
-        mLastPushTimeMillisLocked = SystemClock.elapsedRealtime();
-        ExtraStats extraStats = createExtraStatsLocked(/*packageName=*/ null,
+    private void logStatsImpl(@NonNull OptimizeStats stats) {
+        ExtraStats extraStats = createExtraStats(/*packageName=*/ null,
                 CallStats.CALL_TYPE_OPTIMIZE);
         AppSearchStatsLog.write(AppSearchStatsLog.APP_SEARCH_OPTIMIZE_STATS_REPORTED,
                 extraStats.mSamplingInterval,
@@ -410,34 +430,53 @@ public final class PlatformLogger implements AppSearchLogger {
                 | (digest[15] & 0xFF);
     }
 
+    /**
+     * Returns the hash code of the given database name, computing it with {@link
+     * #calculateHashCodeMd5} the first time it's seen.
+     */
+    @VisibleForTesting
+    int getDatabaseHashCode(@Nullable String database)
+            throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        if (database == null) {
+            return calculateHashCodeMd5(/*str=*/ null);
+        }
+        Integer hashCode = mDatabaseHashCache.get(database);
+        if (hashCode == null) {
+            hashCode = calculateHashCodeMd5(database);
+            if (mDatabaseHashCache.size() >= MAX_DATABASE_HASH_CACHE_SIZE) {
+                mDatabaseHashCache.clear();
+            }
+            mDatabaseHashCache.put(database, hashCode);
+        }
+        return hashCode;
+    }
+
     /**
      * Creates {@link ExtraStats} to hold additional information generated for logging.
      *
-     * <p>This method is called by most of logStatsImplLocked functions to reduce code
+     * <p>This method is called by most of logStatsImpl functions to reduce code
      * duplication.
      */
     // TODO(b/173532925) Once we add CTS test for logging atoms and can inspect the result, we can
     // remove this @VisibleForTesting and directly use PlatformLogger.logStats to test sampling and
     // rate limiting.
     @VisibleForTesting
-    @GuardedBy("mLock")
     @NonNull
-    ExtraStats createExtraStatsLocked(@Nullable String packageName,
+    ExtraStats createExtraStats(@Nullable String packageName,
             @CallStats.CallType int callType) {
         int packageUid = Process.INVALID_UID;
         if (packageName != null) {
-            packageUid = getPackageUidAsUserLocked(packageName);
+            packageUid = getPackageUidAsUser(packageName);
         }
 
         // The sampling ratio here might be different from the one used in
-        // shouldLogForTypeLocked if there is a config change in the middle.
+        // shouldLogForType if there is a config change in the middle.
         // Since it is only one sample, we can just ignore this difference.
         // Or we can retrieve samplingRatio at beginning and pass along
         // as function parameter, but it will make code less cleaner with some duplication.
         int samplingInterval = getSamplingIntervalFromConfig(callType);
-        int skippedSampleCount = mSkippedSampleCountLocked.get(callType,
-                /*valueOfKeyIfNotFound=*/ 0);
-        mSkippedSampleCountLocked.put(callType, 0);
+        AtomicInteger skippedSamples = mSkippedSampleCounts.get(callType);
+        int skippedSampleCount = skippedSamples != null ? skippedSamples.getAndSet(0) : 0;
 
         return new ExtraStats(packageUid, samplingInterval, skippedSampleCount);
     }
@@ -446,14 +485,14 @@ public final class PlatformLogger implements AppSearchLogger {
      * Checks if this stats should be logged.
      *
      * <p>It won't be logged if it is "sampled" out, or it is too close to the previous logged
-     * stats.
+     * stats. A stats that will be logged claims the rate limiting slot right away, so concurrent
+     * callers can't both log within the minimum interval.
      */
-    @GuardedBy("mLock")
     // TODO(b/173532925) Once we add CTS test for logging atoms and can inspect the result, we can
     // remove this @VisibleForTesting and directly use PlatformLogger.logStats to test sampling and
     // rate limiting.
     @VisibleForTesting
-    boolean shouldLogForTypeLocked(@CallStats.CallType int callType) {
+    boolean shouldLogForType(@CallStats.CallType int callType) {
         int samplingInterval = getSamplingIntervalFromConfig(callType);
         // Sampling
         if (!shouldSample(samplingInterval)) {
@@ -463,11 +502,13 @@ public final class PlatformLogger implements AppSearchLogger {
         // Rate limiting
         // Check the timestamp to see if it is too close to last logged sample
         long currentTimeMillis = SystemClock.elapsedRealtime();
-        if (mLastPushTimeMillisLocked
-                > currentTimeMillis - mConfig.getCachedMinTimeIntervalBetweenSamplesMillis()) {
-            int count = mSkippedSampleCountLocked.get(callType, /*valueOfKeyIfNotFound=*/ 0);
-            ++count;
-            mSkippedSampleCountLocked.put(callType, count);
+        long lastPushTimeMillis = mLastPushTimeMillis.get();
+        if (lastPushTimeMillis
+                > currentTimeMillis - mConfig.getCachedMinTimeIntervalBetweenSamplesMillis()
+                || !mLastPushTimeMillis.compareAndSet(lastPushTimeMillis, currentTimeMillis)) {
+            mSkippedSampleCounts
+                    .computeIfAbsent(callType, unused -> new AtomicInteger())
+                    .incrementAndGet();
             return false;
         }
 
@@ -485,20 +526,19 @@ public final class PlatformLogger implements AppSearchLogger {
             return false;
         }
 
-        return mRng.nextInt((int) samplingInterval) == 0;
+        return ThreadLocalRandom.current().nextInt(samplingInterval) == 0;
     }
 
     /**
      * Finds the UID of the {@code packageName}. Returns {@link Process#INVALID_UID} if unable to
      * find the UID.
      */
-    @GuardedBy("mLock")
-    private int getPackageUidAsUserLocked(@NonNull String packageName) {
-        Integer packageUid = mPackageUidCacheLocked.get(packageName);
+    private int getPackageUidAsUser(@NonNull String packageName) {
+        Integer packageUid = mPackageUidCache.get(packageName);
         if (packageUid == null) {
             packageUid = PackageUtil.getPackageUid(mUserContext, packageName);
             if (packageUid != Process.INVALID_UID) {
-                mPackageUidCacheLocked.put(packageName, packageUid);
+                mPackageUidCache.put(packageName, packageUid);
             }
         }
         return packageUid;
@@ -538,8 +578,7 @@ public final class PlatformLogger implements AppSearchLogger {
     // Functions below are used for tests only
     //
     @VisibleForTesting
-    @GuardedBy("mLock")
-    void setLastPushTimeMillisLocked(long lastPushElapsedTimeMillis) {
-        mLastPushTimeMillisLocked = lastPushElapsedTimeMillis;
+    void setLastPushTimeMillis(long lastPushElapsedTimeMillis) {
+        mLastPushTimeMillis.set(lastPushElapsedTimeMillis);
     }
 }
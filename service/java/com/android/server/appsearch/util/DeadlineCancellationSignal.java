@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.util;
+
+import android.annotation.ElapsedRealtimeLong;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+
+/**
+ * A {@link CancellationSignal} that also reads as cancelled once its deadline has passed.
+ *
+ * <p>Work polling {@link #isCanceled} therefore stops at the deadline without a timer having to
+ * cancel the signal. Listeners are only notified of explicit calls to {@link #cancel}.
+ *
+ * <p>This class is thread safe.
+ *
+ * @hide
+ */
+final class DeadlineCancellationSignal extends CancellationSignal {
+    /** A deadline that never passes. */
+    static final long NO_DEADLINE = 0;
+
+    @ElapsedRealtimeLong
+    private final long mDeadlineMillis;
+
+    /**
+     * @param deadlineMillis The {@link SystemClock#elapsedRealtime} after which the signal reads
+     *     as cancelled, or {@link #NO_DEADLINE}.
+     */
+    DeadlineCancellationSignal(@ElapsedRealtimeLong long deadlineMillis) {
+        mDeadlineMillis = deadlineMillis;
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return super.isCanceled()
+                || (mDeadlineMillis != NO_DEADLINE
+                        && SystemClock.elapsedRealtime() >= mDeadlineMillis);
+    }
+}
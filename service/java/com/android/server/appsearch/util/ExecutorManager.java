@@ -17,10 +17,14 @@
 package com.android.server.appsearch.util;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.server.appsearch.external.localstorage.stats.LatencyHistogram;
 
 import java.util.Map;
 import java.util.concurrent.Executor;
@@ -41,7 +45,7 @@ public class ExecutorManager {
      * class's public API.
      */
     @GuardedBy("mPerUserExecutorsLocked")
-    private final Map<UserHandle, ExecutorService> mPerUserExecutorsLocked = new ArrayMap<>();
+    private final Map<UserHandle, UserExecutor> mPerUserExecutorsLocked = new ArrayMap<>();
 
     /**
      * Creates a new {@link ExecutorService} with default settings for use in AppSearch.
@@ -56,6 +60,25 @@ public class ExecutorManager {
                 new LinkedBlockingQueue<>());
     }
 
+    /**
+     * Creates a new single-threaded {@link ExecutorService} that runs its work at background
+     * priority, for work that no caller is waiting on yet.
+     *
+     * <p>The thread is released after it has been idle for a while.
+     */
+    @NonNull
+    public static ExecutorService createBackgroundExecutorService() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(/*corePoolSize=*/1,
+                /*maximumPoolSize=*/1, /*keepAliveTime*/ 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Gets the executor for the given user, creating it if it does not exist.
      *
@@ -65,22 +88,42 @@ public class ExecutorManager {
     @NonNull
     public Executor getOrCreateUserExecutor(@NonNull UserHandle userHandle) {
         synchronized (mPerUserExecutorsLocked) {
-            ExecutorService executor = mPerUserExecutorsLocked.get(userHandle);
+            UserExecutor executor = mPerUserExecutorsLocked.get(userHandle);
             if (executor == null) {
-                executor = ExecutorManager.createDefaultExecutorService();
+                executor = new UserExecutor();
                 mPerUserExecutorsLocked.put(userHandle, executor);
             }
             return executor;
         }
     }
 
+    /**
+     * Returns how long work waited in the given user's executor before it started running, or
+     * {@code null} if the user has no executor.
+     */
+    @Nullable
+    public LatencyHistogram getUserQueueDelayHistogram(@NonNull UserHandle userHandle) {
+        synchronized (mPerUserExecutorsLocked) {
+            UserExecutor executor = mPerUserExecutorsLocked.get(userHandle);
+            return executor == null ? null : executor.mQueueDelayHistogram;
+        }
+    }
+
+    /** Returns the number of tasks waiting in the given user's executor. */
+    public int getUserQueueDepth(@NonNull UserHandle userHandle) {
+        synchronized (mPerUserExecutorsLocked) {
+            UserExecutor executor = mPerUserExecutorsLocked.get(userHandle);
+            return executor == null ? 0 : executor.getQueue().size();
+        }
+    }
+
     /**
      * Gracefully shuts down the executor for the given user if there is one, waiting up to 30
      * seconds for jobs to finish.
      */
     public void shutDownAndRemoveUserExecutor(@NonNull UserHandle userHandle)
             throws InterruptedException {
-        ExecutorService executor;
+        UserExecutor executor;
         synchronized (mPerUserExecutorsLocked) {
             executor = mPerUserExecutorsLocked.remove(userHandle);
         }
@@ -94,4 +137,26 @@ public class ExecutorManager {
             executor.awaitTermination(30, TimeUnit.SECONDS);
         }
     }
+
+    /**
+     * A per-user executor with the default settings, which records how long each task waited in
+     * the queue before it started running.
+     */
+    private static final class UserExecutor extends ThreadPoolExecutor {
+        final LatencyHistogram mQueueDelayHistogram = new LatencyHistogram();
+
+        UserExecutor() {
+            super(/*corePoolSize=*/1, Runtime.getRuntime().availableProcessors(),
+                    /*keepAliveTime*/ 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            long enqueueTimeMillis = SystemClock.elapsedRealtime();
+            super.execute(() -> {
+                mQueueDelayHistogram.record(SystemClock.elapsedRealtime() - enqueueTimeMillis);
+                command.run();
+            });
+        }
+    }
 }
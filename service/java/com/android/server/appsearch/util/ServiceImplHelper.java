@@ -19,6 +19,7 @@ import static android.app.appsearch.AppSearchResult.throwableToFailedResult;
 
 import android.Manifest;
 import android.annotation.BinderThread;
+import android.annotation.ElapsedRealtimeLong;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.app.appsearch.AppSearchBatchResult;
@@ -31,16 +32,23 @@ import android.content.AttributionSource;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Binder;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.Pair;
 
 import com.android.internal.annotations.GuardedBy;
 
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Utilities to help with implementing AppSearch's services.
@@ -59,6 +67,17 @@ public class ServiceImplHelper {
     @GuardedBy("mUnlockedUsersLocked")
     private final Set<UserHandle> mUnlockedUsersLocked = new ArraySet<>();
 
+    /**
+     * The signals of cancellable calls that are queued or running, keyed by the calling UID and
+     * the call ID the caller chose, so that a caller can only cancel its own calls.
+     */
+    @GuardedBy("mCancellationSignalsLocked")
+    private final Map<Pair<Integer, Long>, CancellationSignal> mCancellationSignalsLocked =
+            new ArrayMap<>();
+
+    /** The number of cancellable calls dropped because they expired or were cancelled in queue. */
+    private final AtomicLong mDroppedCancelledCallCount = new AtomicLong();
+
     public ServiceImplHelper(
             @NonNull Context context, @NonNull ExecutorManager executorManager) {
         mContext = Objects.requireNonNull(context);
@@ -308,6 +327,105 @@ public class ServiceImplHelper {
         }
     }
 
+    /**
+     * Helper to execute the implementation of some cancellable AppSearch functionality on the
+     * executor for that user.
+     *
+     * <p>If the call is cancelled through {@link #cancelCall}, or its deadline passes, while it is
+     * queued, it is dropped without running and the error callback is completed with an
+     * {@link OperationCanceledException}. Once it runs, the lambda should poll the signal it is
+     * given to stop early.
+     *
+     * <p>You should first make sure the call is allowed to run using {@link #verifyCaller}.
+     *
+     * @param targetUser     The verified user the call should run as, as determined by
+     *                       {@link #verifyCaller}.
+     * @param errorCallback  Callback to complete with an error if starting the lambda fails or the
+     *                       call is dropped. Otherwise this callback is not triggered.
+     * @param callId         The ID the caller may cancel the call with, or 0 if it can't.
+     * @param deadlineMillis The {@link android.os.SystemClock#elapsedRealtime} after which the call
+     *                       is abandoned, or 0 for no deadline.
+     * @param lambda         The lambda to execute on the user-provided executor, with the signal
+     *                       of the call.
+     */
+    @BinderThread
+    public void executeLambdaForUserAsync(
+            @NonNull UserHandle targetUser,
+            @NonNull IAppSearchResultCallback errorCallback,
+            long callId,
+            @ElapsedRealtimeLong long deadlineMillis,
+            @NonNull Consumer<CancellationSignal> lambda) {
+        Objects.requireNonNull(targetUser);
+        Objects.requireNonNull(errorCallback);
+        Objects.requireNonNull(lambda);
+        CancellationSignal cancellationSignal = new DeadlineCancellationSignal(deadlineMillis);
+        Pair<Integer, Long> callKey =
+                callId == 0 ? null : Pair.create(Binder.getCallingUid(), callId);
+        if (callKey != null) {
+            synchronized (mCancellationSignalsLocked) {
+                mCancellationSignalsLocked.put(callKey, cancellationSignal);
+            }
+        }
+        try {
+            mExecutorManager.getOrCreateUserExecutor(targetUser).execute(() -> {
+                try {
+                    if (cancellationSignal.isCanceled()) {
+                        mDroppedCancelledCallCount.incrementAndGet();
+                        invokeCallbackOnResult(errorCallback, throwableToFailedResult(
+                                new OperationCanceledException(
+                                        "Call expired or was cancelled before it started")));
+                        return;
+                    }
+                    lambda.accept(cancellationSignal);
+                } finally {
+                    removeCancellationSignal(callKey, cancellationSignal);
+                }
+            });
+        } catch (Throwable t) {
+            removeCancellationSignal(callKey, cancellationSignal);
+            invokeCallbackOnResult(errorCallback, throwableToFailedResult(t));
+        }
+    }
+
+    /**
+     * Cancels a call started by the calling UID with
+     * {@link #executeLambdaForUserAsync(UserHandle, IAppSearchResultCallback, long, long,
+     * Consumer)}, if it hasn't completed yet.
+     *
+     * <p>This method must be called on the binder thread.
+     */
+    @BinderThread
+    public void cancelCall(long callId) {
+        CancellationSignal cancellationSignal;
+        synchronized (mCancellationSignalsLocked) {
+            cancellationSignal = mCancellationSignalsLocked.get(
+                    Pair.create(Binder.getCallingUid(), callId));
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.cancel();
+        }
+    }
+
+    /**
+     * Returns the number of cancellable calls dropped without running, because they expired or
+     * were cancelled while queued.
+     */
+    public long getDroppedCancelledCallCount() {
+        return mDroppedCancelledCallCount.get();
+    }
+
+    private void removeCancellationSignal(
+            @Nullable Pair<Integer, Long> callKey,
+            @NonNull CancellationSignal cancellationSignal) {
+        if (callKey == null) {
+            return;
+        }
+        synchronized (mCancellationSignalsLocked) {
+            // A caller reusing an ID may have replaced the signal already.
+            mCancellationSignalsLocked.remove(callKey, cancellationSignal);
+        }
+    }
+
     /**
      * Helper to execute the implementation of some AppSearch functionality on the executor for that
      * user.
@@ -319,9 +437,11 @@ public class ServiceImplHelper {
      * @param errorCallback Callback to complete with an error if starting the lambda fails.
      *                      Otherwise this callback is not triggered.
      * @param lambda        The lambda to execute on the user-provided executor.
+     * @return {@code true} if the lambda was scheduled, or {@code false} if it was rejected and
+     *     {@code errorCallback} was completed instead.
      */
     @BinderThread
-    public void executeLambdaForUserAsync(
+    public boolean executeLambdaForUserAsync(
             @NonNull UserHandle targetUser,
             @NonNull IAppSearchBatchResultCallback errorCallback,
             @NonNull Runnable lambda) {
@@ -330,8 +450,10 @@ public class ServiceImplHelper {
         Objects.requireNonNull(lambda);
         try {
             mExecutorManager.getOrCreateUserExecutor(targetUser).execute(lambda);
+            return true;
         } catch (Throwable t) {
             invokeCallbackOnError(errorCallback, t);
+            return false;
         }
     }
 
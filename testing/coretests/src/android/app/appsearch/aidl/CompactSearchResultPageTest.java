@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch.aidl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.appsearch.GenericDocument;
+import android.app.appsearch.SearchResult;
+import android.app.appsearch.SearchResultPage;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class CompactSearchResultPageTest {
+    @Test
+    public void testRoundTrip() {
+        SearchResultPage searchResultPage = createSearchResultPage(/*resultCount=*/ 3);
+
+        Bundle bundle = marshallAndUnmarshall(CompactSearchResultPage.toBundle(searchResultPage));
+
+        assertThat(CompactSearchResultPage.getNextPageToken(bundle)).isEqualTo(42);
+        List<SearchResult> results = CompactSearchResultPage.getResults(bundle);
+        assertThat(results).hasSize(3);
+        for (int i = 0; i < results.size(); i++) {
+            SearchResult expected = searchResultPage.getResults().get(i);
+            SearchResult actual = results.get(i);
+            assertThat(actual.getPackageName()).isEqualTo(expected.getPackageName());
+            assertThat(actual.getDatabaseName()).isEqualTo(expected.getDatabaseName());
+            assertThat(actual.getRankingSignal()).isEqualTo(expected.getRankingSignal());
+            assertThat(actual.getGenericDocument()).isEqualTo(expected.getGenericDocument());
+            assertThat(actual.getMatchInfos()).hasSize(1);
+            assertThat(actual.getMatchInfos().get(0).getExactMatch()).isEqualTo("Hello");
+            // Results are decoded once and cached.
+            assertThat(results.get(i)).isSameInstanceAs(actual);
+        }
+    }
+
+    @Test
+    public void testRoundTrip_largePage() {
+        // Larger than the array the results are first encoded into.
+        SearchResultPage searchResultPage = createSearchResultPage(/*resultCount=*/ 1000);
+
+        Bundle bundle = marshallAndUnmarshall(CompactSearchResultPage.toBundle(searchResultPage));
+
+        List<SearchResult> results = CompactSearchResultPage.getResults(bundle);
+        assertThat(results).hasSize(1000);
+        for (int i = 0; i < results.size(); i++) {
+            assertThat(results.get(i).getGenericDocument())
+                    .isEqualTo(searchResultPage.getResults().get(i).getGenericDocument());
+        }
+    }
+
+    @Test
+    public void testGetResults_mutable() {
+        SearchResultPage searchResultPage = createSearchResultPage(/*resultCount=*/ 3);
+        List<SearchResult> results = CompactSearchResultPage.getResults(
+                CompactSearchResultPage.toBundle(searchResultPage));
+        SearchResult first = results.get(0);
+        SearchResult second = results.get(1);
+        SearchResult third = results.get(2);
+
+        Collections.sort(results,
+                (a, b) -> Double.compare(b.getRankingSignal(), a.getRankingSignal()));
+        assertThat(results).containsExactly(third, second, first).inOrder();
+
+        assertThat(results.set(0, first)).isSameInstanceAs(third);
+        assertThat(results.remove(1)).isSameInstanceAs(second);
+        results.add(third);
+        assertThat(results).containsExactly(first, first, third).inOrder();
+    }
+
+    @Test
+    public void testEmptyPage() {
+        Bundle bundle = CompactSearchResultPage.toBundle(new SearchResultPage(Bundle.EMPTY));
+
+        assertThat(CompactSearchResultPage.getNextPageToken(bundle)).isEqualTo(0);
+        assertThat(CompactSearchResultPage.getResults(bundle)).isEmpty();
+    }
+
+    @Test
+    public void testGetResults_pageBundle() {
+        SearchResultPage searchResultPage = createSearchResultPage(/*resultCount=*/ 2);
+
+        List<SearchResult> results =
+                CompactSearchResultPage.getResults(searchResultPage.getBundle());
+
+        assertThat(CompactSearchResultPage.getNextPageToken(searchResultPage.getBundle()))
+                .isEqualTo(42);
+        assertThat(results).hasSize(2);
+        assertThat(results.get(1).getGenericDocument())
+                .isEqualTo(searchResultPage.getResults().get(1).getGenericDocument());
+    }
+
+    private static SearchResultPage createSearchResultPage(int resultCount) {
+        ArrayList<Bundle> resultBundles = new ArrayList<>(resultCount);
+        for (int i = 0; i < resultCount; i++) {
+            GenericDocument document =
+                    new GenericDocument.Builder<>("namespace", "id" + i, "Email")
+                            .setCreationTimestampMillis(1000)
+                            .setPropertyString("subject", "Hello world " + i)
+                            .build();
+            SearchResult result =
+                    new SearchResult.Builder("package", "database")
+                            .setGenericDocument(document)
+                            .setRankingSignal(0.5 * i)
+                            .addMatchInfo(
+                                    new SearchResult.MatchInfo.Builder("subject")
+                                            .setExactMatchRange(
+                                                    new SearchResult.MatchRange(0, 5))
+                                            .setSnippetRange(new SearchResult.MatchRange(0, 11))
+                                            .build())
+                            .build();
+            resultBundles.add(result.getBundle());
+        }
+        Bundle bundle = new Bundle();
+        bundle.putLong(SearchResultPage.NEXT_PAGE_TOKEN_FIELD, 42);
+        bundle.putParcelableArrayList(SearchResultPage.RESULTS_FIELD, resultBundles);
+        return new SearchResultPage(bundle);
+    }
+
+    private static Bundle marshallAndUnmarshall(Bundle bundle) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            parcel.setDataPosition(0);
+            return parcel.readBundle();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
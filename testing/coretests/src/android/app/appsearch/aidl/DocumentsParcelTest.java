@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch.aidl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.app.appsearch.GenericDocument;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DocumentsParcelTest {
+    @Test
+    public void testCompactBundleCodec_roundTrip() {
+        Bundle bundle = createDocument(0).getBundle();
+        long encodedSize = CompactBundleCodec.getEncodedSize(bundle);
+        // Leave the buffer unaligned to check multi-byte values don't rely on alignment.
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) encodedSize + 1);
+        buffer.position(1);
+
+        new CompactBundleCodec().encode(bundle, buffer);
+        assertThat(buffer.position()).isEqualTo(encodedSize + 1);
+
+        buffer.position(1);
+        GenericDocument decodedDocument =
+                new GenericDocument(new CompactBundleCodec().decode(buffer));
+        assertThat(decodedDocument).isEqualTo(createDocument(0));
+    }
+
+    @Test
+    public void testCompactBundleCodec_malformed() {
+        List<Bundle> bundles = new ArrayList<>();
+        bundles.add(createDocument(0).getBundle());
+        bundles.add(createDocument(1).getBundle());
+        ByteBuffer buffer =
+                ByteBuffer.allocate((int) CompactBundleCodec.getEncodedSize(bundles));
+        new CompactBundleCodec().encode(bundles, buffer);
+        CompactBundleCodec.validate(buffer);
+        int firstBundleOffset = buffer.getInt(Integer.BYTES);
+
+        // More bundles than the buffer can hold.
+        ByteBuffer corrupted = copyOf(buffer);
+        corrupted.putInt(0, Integer.MAX_VALUE);
+        assertThrows(IllegalArgumentException.class, () -> CompactBundleCodec.validate(corrupted));
+
+        // A bundle claiming more entries than the buffer can hold.
+        ByteBuffer hugeCount = copyOf(buffer);
+        hugeCount.putInt(firstBundleOffset, Integer.MAX_VALUE);
+        assertThrows(IllegalArgumentException.class, () -> CompactBundleCodec.validate(hugeCount));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new CompactBundleCodec().decode(hugeCount, /*index=*/ 0));
+
+        // A key with a negative length.
+        ByteBuffer negativeLength = copyOf(buffer);
+        negativeLength.putInt(firstBundleOffset + Integer.BYTES, -1);
+        assertThrows(
+                IllegalArgumentException.class, () -> CompactBundleCodec.validate(negativeLength));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new CompactBundleCodec().decode(negativeLength, /*index=*/ 0));
+
+        // A bundle cut short.
+        ByteBuffer truncated = copyOf(buffer);
+        truncated.limit(truncated.limit() - 1);
+        assertThrows(IllegalArgumentException.class, () -> CompactBundleCodec.validate(truncated));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new CompactBundleCodec().decode(truncated, /*index=*/ 1));
+    }
+
+    @Test
+    public void testCompactBundleCodec_unpairedSurrogates() {
+        Bundle bundle = new Bundle();
+        bundle.putStringArray("strings", new String[] {"a\uD800b", "\uDC00", "c\uD83D"});
+        ByteBuffer buffer = ByteBuffer.allocate((int) CompactBundleCodec.getEncodedSize(bundle));
+
+        new CompactBundleCodec().encode(bundle, buffer);
+        assertThat(buffer.remaining()).isEqualTo(0);
+
+        buffer.position(0);
+        // Kept as is, like a Parcel does, rather than replaced.
+        assertThat(new CompactBundleCodec().decode(buffer).getStringArray("strings"))
+                .asList()
+                .containsExactly("a\uD800b", "\uDC00", "c\uD83D")
+                .inOrder();
+    }
+
+    @Test
+    public void testCompactBundleCodec_nestingDepth() {
+        Bundle deepest = new Bundle();
+        for (int i = 1; i < CompactBundleCodec.MAX_NESTING_DEPTH; i++) {
+            Bundle parent = new Bundle();
+            parent.putBundle("child", deepest);
+            deepest = parent;
+        }
+        List<Bundle> bundles = new ArrayList<>();
+        bundles.add(deepest);
+        ByteBuffer buffer =
+                ByteBuffer.allocate((int) CompactBundleCodec.getEncodedSize(bundles));
+        new CompactBundleCodec().encode(bundles, buffer);
+        CompactBundleCodec.validate(buffer);
+
+        Bundle tooDeep = new Bundle();
+        tooDeep.putBundle("child", deepest);
+        assertThrows(
+                IllegalArgumentException.class, () -> CompactBundleCodec.getEncodedSize(tooDeep));
+
+        // Hand-encode one bundle too deep: each level is one entry with an empty key.
+        ByteBuffer deepBuffer =
+                ByteBuffer.allocate(
+                        2 * Integer.BYTES
+                                + CompactBundleCodec.MAX_NESTING_DEPTH * (2 * Integer.BYTES + 1)
+                                + Integer.BYTES);
+        deepBuffer.putInt(1);
+        deepBuffer.putInt(2 * Integer.BYTES);
+        for (int i = 0; i < CompactBundleCodec.MAX_NESTING_DEPTH; i++) {
+            deepBuffer.putInt(1);
+            deepBuffer.putInt(0);
+            deepBuffer.put((byte) 4);
+        }
+        deepBuffer.putInt(0);
+        deepBuffer.position(0);
+        assertThrows(IllegalArgumentException.class, () -> CompactBundleCodec.validate(deepBuffer));
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new CompactBundleCodec().decode(deepBuffer, /*index=*/ 0));
+    }
+
+    @Test
+    public void testLargeBatch_tooDeepUsesBlob() {
+        GenericDocument document = createDocument(0);
+        for (int i = 0; i < CompactBundleCodec.MAX_NESTING_DEPTH; i++) {
+            document =
+                    new GenericDocument.Builder<>("namespace", "id" + i, "Email")
+                            .setPropertyDocument("child", document)
+                            .setPropertyBytes("padding", new byte[1024])
+                            .build();
+        }
+        List<GenericDocument> documents = new ArrayList<>();
+        documents.add(document);
+
+        DocumentsParcel documentsParcel = writeAndRead(new DocumentsParcel(documents));
+
+        assertThat(documentsParcel.getDocuments()).containsExactly(document);
+        documentsParcel.close();
+    }
+
+    @Test
+    public void testSmallBatch() {
+        List<GenericDocument> documents = createDocuments(/*count=*/ 2);
+
+        DocumentsParcel documentsParcel = writeAndRead(new DocumentsParcel(documents));
+
+        assertThat(documentsParcel.getDocuments()).containsExactlyElementsIn(documents).inOrder();
+        documentsParcel.close();
+    }
+
+    @Test
+    public void testLargeBatch_sharedMemory() {
+        List<GenericDocument> documents = createDocuments(/*count=*/ 500);
+
+        DocumentsParcel documentsParcel = writeAndRead(new DocumentsParcel(documents));
+
+        List<GenericDocument> readDocuments = documentsParcel.getDocuments();
+        assertThat(readDocuments).containsExactlyElementsIn(documents).inOrder();
+
+        documentsParcel.close();
+        assertThat(readDocuments).hasSize(500);
+        assertThrows(IllegalStateException.class, () -> readDocuments.get(0));
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer buffer) {
+        ByteBuffer copy = ByteBuffer.allocate(buffer.capacity());
+        copy.put(buffer.array());
+        copy.position(0);
+        return copy;
+    }
+
+    private static DocumentsParcel writeAndRead(DocumentsParcel documentsParcel) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            documentsParcel.writeToParcel(parcel, /*flags=*/ 0);
+            parcel.setDataPosition(0);
+            return DocumentsParcel.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static List<GenericDocument> createDocuments(int count) {
+        List<GenericDocument> documents = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            documents.add(createDocument(i));
+        }
+        return documents;
+    }
+
+    private static GenericDocument createDocument(int index) {
+        return new GenericDocument.Builder<>("namespace", "id" + index, "Email")
+                .setCreationTimestampMillis(1000)
+                .setScore(index)
+                .setPropertyString("subject", "Subject " + index, "été 😀")
+                .setPropertyLong("timestamp", index, -index)
+                .setPropertyDouble("weight", 0.5 * index)
+                .setPropertyBoolean("read", true, false)
+                .setPropertyBytes("attachment", new byte[] {1, 2, (byte) index})
+                .setPropertyDocument(
+                        "sender",
+                        new GenericDocument.Builder<>("namespace", "sender" + index, "Person")
+                                .setCreationTimestampMillis(1000)
+                                .setPropertyString("name", "Sender " + index)
+                                .build())
+                .build();
+    }
+}
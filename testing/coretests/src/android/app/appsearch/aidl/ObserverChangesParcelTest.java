@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch.aidl;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.appsearch.observer.DocumentChangeInfo;
+import android.app.appsearch.observer.SchemaChangeInfo;
+import android.os.Parcel;
+import android.util.ArraySet;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+public class ObserverChangesParcelTest {
+    @Test
+    public void testRoundTrip() {
+        List<SchemaChangeInfo> schemaChanges = ImmutableList.of(
+                new SchemaChangeInfo("package", "database", ImmutableSet.of("Type1", "Type2")));
+        List<DocumentChangeInfo> documentChanges = ImmutableList.of(
+                new DocumentChangeInfo(
+                        "package", "database", "namespace", "Type1", ImmutableSet.of("id1")),
+                new DocumentChangeInfo(
+                        "package", "database", "namespace", "Type2", ImmutableSet.of("id2")));
+
+        ObserverChangesParcel changes =
+                writeAndRead(new ObserverChangesParcel(schemaChanges, documentChanges));
+
+        assertThat(changes.getSchemaChanges()).containsExactlyElementsIn(schemaChanges).inOrder();
+        assertThat(changes.getDocumentChanges())
+                .containsExactlyElementsIn(documentChanges)
+                .inOrder();
+    }
+
+    @Test
+    public void testSplit_smallChangesStayInOneParcel() {
+        List<DocumentChangeInfo> documentChanges = ImmutableList.of(
+                new DocumentChangeInfo(
+                        "package", "database", "namespace", "Type1", ImmutableSet.of("id1")),
+                new DocumentChangeInfo(
+                        "package", "database", "namespace", "Type2", ImmutableSet.of("id2")));
+
+        List<ObserverChangesParcel> parcels = ObserverChangesParcel.split(
+                ImmutableList.of(), documentChanges, ObserverChangesParcel.DEFAULT_MAX_SIZE_BYTES);
+
+        assertThat(parcels).hasSize(1);
+        assertThat(parcels.get(0).getDocumentChanges())
+                .containsExactlyElementsIn(documentChanges)
+                .inOrder();
+    }
+
+    @Test
+    public void testSplit_largeIdSetIsChunked() {
+        Set<String> ids = new ArraySet<>();
+        for (int i = 0; i < 1000; i++) {
+            ids.add("id" + i);
+        }
+        DocumentChangeInfo documentChange =
+                new DocumentChangeInfo("package", "database", "namespace", "Type1", ids);
+
+        List<ObserverChangesParcel> parcels = ObserverChangesParcel.split(
+                ImmutableList.of(), ImmutableList.of(documentChange), /*maxSizeBytes=*/ 2048);
+
+        assertThat(parcels.size()).isGreaterThan(1);
+        Set<String> deliveredIds = new ArraySet<>();
+        for (int i = 0; i < parcels.size(); i++) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcels.get(i).writeToParcel(parcel, /*flags=*/ 0);
+                assertThat(parcel.dataSize()).isAtMost(2048);
+            } finally {
+                parcel.recycle();
+            }
+            for (DocumentChangeInfo change : parcels.get(i).getDocumentChanges()) {
+                assertThat(change.getSchemaName()).isEqualTo("Type1");
+                deliveredIds.addAll(change.getChangedDocumentIds());
+            }
+        }
+        assertThat(deliveredIds).isEqualTo(ids);
+    }
+
+    private static ObserverChangesParcel writeAndRead(ObserverChangesParcel changes) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            changes.writeToParcel(parcel, /*flags=*/ 0);
+            parcel.setDataPosition(0);
+            return ObserverChangesParcel.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
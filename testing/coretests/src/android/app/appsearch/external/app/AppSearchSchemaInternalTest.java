@@ -0,0 +1,67 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+/** Tests for private APIs of {@link AppSearchSchema}. */
+public class AppSearchSchemaInternalTest {
+    @Test
+    public void testHashCode_builderMatchesBundle() {
+        AppSearchSchema schema =
+                new AppSearchSchema.Builder("Email")
+                        .addProperty(
+                                new AppSearchSchema.StringPropertyConfig.Builder("subject")
+                                        .setCardinality(
+                                                AppSearchSchema.PropertyConfig.CARDINALITY_OPTIONAL)
+                                        .setIndexingType(
+                                                AppSearchSchema.StringPropertyConfig
+                                                        .INDEXING_TYPE_PREFIXES)
+                                        .setTokenizerType(
+                                                AppSearchSchema.StringPropertyConfig
+                                                        .TOKENIZER_TYPE_PLAIN)
+                                        .build())
+                        .addProperty(
+                                new AppSearchSchema.LongPropertyConfig.Builder("timestamp")
+                                        .build())
+                        .build();
+
+        // A schema rebuilt from the bundle computes its hash code from its properties.
+        AppSearchSchema rebuiltSchema = new AppSearchSchema(schema.getBundle());
+        assertThat(rebuiltSchema.hashCode()).isEqualTo(schema.hashCode());
+        assertThat(rebuiltSchema).isEqualTo(schema);
+    }
+
+    @Test
+    public void testEquals_differentProperties() {
+        AppSearchSchema.Builder builder =
+                new AppSearchSchema.Builder("Email")
+                        .addProperty(
+                                new AppSearchSchema.LongPropertyConfig.Builder("timestamp")
+                                        .build());
+        AppSearchSchema schema1 = builder.build();
+        AppSearchSchema schema2 =
+                builder.addProperty(
+                                new AppSearchSchema.BooleanPropertyConfig.Builder("read").build())
+                        .build();
+
+        assertThat(schema1).isNotEqualTo(schema2);
+        assertThat(new AppSearchSchema(schema2.getBundle())).isEqualTo(schema2);
+    }
+}
@@ -63,4 +63,128 @@ public class GenericDocumentInternalTest {
         assertThat(outDoc.getPropertyDocument("propDocument").getPropertyBytesArray("propBytes"))
                 .isEqualTo(new byte[][] {{3, 4}});
     }
+
+    @Test
+    public void testGetPropertyByCompiledPath_matchesStringPath() {
+        GenericDocument document = createMessage();
+        String[] paths = {
+            "from", "to", "to[1]", "to[1].email", "to[100].email", "to.email", "to.name[0]",
+            "tags[1]", "attachments", "attachments[0]", "missing", "missing.name", "from.name"
+        };
+
+        for (String path : paths) {
+            Object expected = document.getProperty(path);
+            Object actual = document.getProperty(PropertyPath.compile(path));
+            if (expected instanceof GenericDocument[]) {
+                assertThat((GenericDocument[]) actual)
+                        .asList()
+                        .containsExactlyElementsIn((GenericDocument[]) expected)
+                        .inOrder();
+            } else {
+                assertThat(actual).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void testGetTypedPropertyByCompiledPath() {
+        GenericDocument document = createMessage();
+
+        assertThat(document.getPropertyString(PropertyPath.compile("to.email"), 1))
+                .isEqualTo("curie@example.com");
+        assertThat(document.getPropertyString(PropertyPath.compile("to[1].email"), 0))
+                .isEqualTo("curie@example.com");
+        assertThat(document.getPropertyString(PropertyPath.compile("tags"), 2)).isNull();
+        assertThat(document.getPropertyString(PropertyPath.compile("priority"), 0)).isNull();
+        assertThat(document.getPropertyLong(PropertyPath.compile("priority"), 0)).isEqualTo(3);
+        assertThat(document.getPropertyLong(PropertyPath.compile("tags"), 0)).isEqualTo(0);
+        assertThat(document.getPropertyDouble(PropertyPath.compile("to.score"), 1))
+                .isEqualTo(0.5);
+        assertThat(document.getPropertyBoolean(PropertyPath.compile("read"), 0)).isTrue();
+        assertThat(document.getPropertyBytes(PropertyPath.compile("attachments"), 1))
+                .isEqualTo(new byte[] {3, 4});
+        assertThat(document.getPropertyBytes(PropertyPath.compile("attachments"), 2)).isNull();
+    }
+
+    @Test
+    public void testHashCode_builderMatchesBundle() {
+        GenericDocument document = createMessage();
+
+        // A document rebuilt from the bundle computes its hash code from scratch.
+        GenericDocument rebuiltDocument = new GenericDocument(document.getBundle());
+        assertThat(rebuiltDocument.hashCode()).isEqualTo(document.hashCode());
+        assertThat(rebuiltDocument).isEqualTo(document);
+
+        // Replacing and clearing properties updates the accumulated hash code.
+        GenericDocument modifiedDocument =
+                document.toBuilder()
+                        .setPropertyLong("priority", 4)
+                        .setPropertyString("extra", "value")
+                        .build();
+        GenericDocument restoredDocument =
+                modifiedDocument.toBuilder()
+                        .setPropertyLong("priority", 3)
+                        .clearProperty("extra")
+                        .build();
+        assertThat(modifiedDocument).isNotEqualTo(document);
+        assertThat(restoredDocument.hashCode()).isEqualTo(document.hashCode());
+        assertThat(restoredDocument).isEqualTo(document);
+    }
+
+    @Test
+    public void testHashCode_reusedBuilder() {
+        GenericDocument.Builder<?> builder =
+                new GenericDocument.Builder<>("namespace", "id", "schema")
+                        .setCreationTimestampMillis(1000)
+                        .setPropertyString("propString", "Hello");
+        GenericDocument document1 = builder.build();
+        GenericDocument document2 = builder.setPropertyString("propString", "Goodbye").build();
+
+        assertThat(new GenericDocument(document1.getBundle()).hashCode())
+                .isEqualTo(document1.hashCode());
+        assertThat(new GenericDocument(document2.getBundle()).hashCode())
+                .isEqualTo(document2.hashCode());
+        assertThat(document1).isNotEqualTo(document2);
+    }
+
+    @Test
+    public void testEquals_swappedPropertyValues() {
+        GenericDocument document1 =
+                new GenericDocument.Builder<>("namespace", "id", "schema")
+                        .setCreationTimestampMillis(1000)
+                        .setPropertyString("subject", "Hello")
+                        .setPropertyString("body", "Goodbye")
+                        .build();
+        GenericDocument document2 =
+                new GenericDocument.Builder<>("namespace", "id", "schema")
+                        .setCreationTimestampMillis(1000)
+                        .setPropertyString("subject", "Goodbye")
+                        .setPropertyString("body", "Hello")
+                        .build();
+
+        assertThat(document1).isNotEqualTo(document2);
+    }
+
+    private static GenericDocument createMessage() {
+        return new GenericDocument.Builder<>("namespace", "message", "Message")
+                .setCreationTimestampMillis(1000)
+                .setPropertyString("from", "sender@example.com")
+                .setPropertyDocument(
+                        "to",
+                        new GenericDocument.Builder<>("namespace", "einstein", "Person")
+                                .setPropertyString("name", "Albert Einstein")
+                                .setPropertyString("email", "einstein@example.com")
+                                .setPropertyDouble("score", 1.0)
+                                .build(),
+                        new GenericDocument.Builder<>("namespace", "curie", "Person")
+                                .setPropertyString("name", "Marie Curie")
+                                .setPropertyString("email", "curie@example.com")
+                                .setPropertyDouble("score", 0.5)
+                                .build())
+                .setPropertyString("tags", "important", "inbox")
+                .setPropertyLong("priority", 3)
+                .setPropertyBoolean("read", true)
+                .setPropertyBytes("attachments", new byte[] {1, 2}, new byte[] {3, 4})
+                .build();
+    }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+public class PropertyPathTest {
+    @Test
+    public void testCompile_simpleName() {
+        PropertyPath path = PropertyPath.compile("subject");
+
+        assertThat(path.getSegmentCount()).isEqualTo(1);
+        assertThat(path.getPropertyName(0)).isEqualTo("subject");
+        assertThat(path.getIndex(0)).isEqualTo(PropertyPath.NO_INDEX);
+        assertThat(path.toString()).isEqualTo("subject");
+    }
+
+    @Test
+    public void testCompile_nestedAndIndexed() {
+        PropertyPath path = PropertyPath.compile("to[1].address.lines[0]");
+
+        assertThat(path.getSegmentCount()).isEqualTo(3);
+        assertThat(path.getPropertyName(0)).isEqualTo("to");
+        assertThat(path.getIndex(0)).isEqualTo(1);
+        assertThat(path.getPropertyName(1)).isEqualTo("address");
+        assertThat(path.getIndex(1)).isEqualTo(PropertyPath.NO_INDEX);
+        assertThat(path.getPropertyName(2)).isEqualTo("lines");
+        assertThat(path.getIndex(2)).isEqualTo(0);
+    }
+
+    @Test
+    public void testCompile_malformed() {
+        assertThrows(IllegalArgumentException.class, () -> PropertyPath.compile("to[1"));
+        assertThrows(IllegalArgumentException.class, () -> PropertyPath.compile("to[1]email"));
+        assertThrows(IllegalArgumentException.class, () -> PropertyPath.compile("to[-1]"));
+        assertThrows(IllegalArgumentException.class, () -> PropertyPath.compile("to[a]"));
+    }
+
+    @Test
+    public void testEquals() {
+        assertThat(PropertyPath.compile("to[1].email"))
+                .isEqualTo(PropertyPath.compile("to[1].email"));
+        assertThat(PropertyPath.compile("to[1].email").hashCode())
+                .isEqualTo(PropertyPath.compile("to[1].email").hashCode());
+        assertThat(PropertyPath.compile("to.email"))
+                .isNotEqualTo(PropertyPath.compile("to[1].email"));
+    }
+}
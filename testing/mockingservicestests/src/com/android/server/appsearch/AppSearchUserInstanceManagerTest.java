@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.UserHandle;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.android.server.appsearch.external.localstorage.AppSearchImpl;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AppSearchUserInstanceManagerTest {
+    private static final UserHandle USER_HANDLE = UserHandle.of(10);
+
+    private final Context mContext = ApplicationProvider.getApplicationContext();
+    private final AppSearchConfig mConfig = Mockito.mock(AppSearchConfig.class);
+    private final AppSearchImpl mAppSearchImpl = Mockito.mock(AppSearchImpl.class);
+    private final AppSearchUserInstance mInstance = Mockito.mock(AppSearchUserInstance.class);
+
+    // Released by the test to let the factory return mInstance.
+    private final CountDownLatch mReleaseCreation = new CountDownLatch(1);
+    private final CountDownLatch mCreationStarted = new CountDownLatch(1);
+    private final AtomicInteger mCreationCount = new AtomicInteger();
+
+    private final AppSearchUserInstanceManager mManager =
+            new AppSearchUserInstanceManager((userContext, userHandle, config) -> {
+                mCreationCount.incrementAndGet();
+                mCreationStarted.countDown();
+                try {
+                    mReleaseCreation.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return mInstance;
+            });
+
+    @Test
+    public void testGetOrCreateUserInstance_attachesToWarmUp() throws Exception {
+        when(mInstance.getAppSearchImpl()).thenReturn(mAppSearchImpl);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            assertThat(mManager.getUserInstanceState(USER_HANDLE))
+                    .isEqualTo(AppSearchUserInstanceManager.USER_INSTANCE_STATE_NONE);
+            CompletableFuture<AppSearchUserInstance> warmUp =
+                    mManager.warmUpUserInstanceAsync(mContext, USER_HANDLE, mConfig, executor);
+            assertThat(mCreationStarted.await(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(mManager.getUserInstanceState(USER_HANDLE))
+                    .isEqualTo(AppSearchUserInstanceManager.USER_INSTANCE_STATE_INITIALIZING);
+            assertThat(mManager.getInitializingUserHandles()).containsExactly(USER_HANDLE);
+
+            // A client call arriving mid-warm-up waits for it instead of creating its own.
+            Future<AppSearchUserInstance> clientCall = executor.submit(
+                    () -> mManager.getOrCreateUserInstance(mContext, USER_HANDLE, mConfig));
+            assertThat(mManager.getUserInstanceOrNull(USER_HANDLE)).isNull();
+            mReleaseCreation.countDown();
+
+            assertThat(clientCall.get(10, TimeUnit.SECONDS)).isSameInstanceAs(mInstance);
+            assertThat(warmUp.get(10, TimeUnit.SECONDS)).isSameInstanceAs(mInstance);
+            assertThat(mCreationCount.get()).isEqualTo(1);
+            assertThat(mManager.getUserInstance(USER_HANDLE)).isSameInstanceAs(mInstance);
+            assertThat(mManager.getUserInstanceState(USER_HANDLE))
+                    .isEqualTo(AppSearchUserInstanceManager.USER_INSTANCE_STATE_READY);
+            assertThat(mManager.getInitializingUserHandles()).isEmpty();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCloseAndRemoveUserInstance_duringWarmUp() throws Exception {
+        when(mInstance.getAppSearchImpl()).thenReturn(mAppSearchImpl);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            CompletableFuture<AppSearchUserInstance> warmUp =
+                    mManager.warmUpUserInstanceAsync(mContext, USER_HANDLE, mConfig, executor);
+            assertThat(mCreationStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+            // Closing waits for the instance being created, then closes it.
+            Thread closeThread = new Thread(() -> mManager.closeAndRemoveUserInstance(USER_HANDLE));
+            closeThread.start();
+            while (closeThread.getState() != Thread.State.TIMED_WAITING) {
+                assertThat(closeThread.isAlive()).isTrue();
+                Thread.sleep(10);
+            }
+            mReleaseCreation.countDown();
+            closeThread.join(10_000);
+            assertThat(closeThread.isAlive()).isFalse();
+
+            verify(mAppSearchImpl).close();
+            ExecutionException e =
+                    assertThrows(ExecutionException.class,
+                            () -> warmUp.get(10, TimeUnit.SECONDS));
+            assertThat(e).hasMessageThat().contains("closed while initializing");
+            assertThat(mManager.getUserInstanceOrNull(USER_HANDLE)).isNull();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
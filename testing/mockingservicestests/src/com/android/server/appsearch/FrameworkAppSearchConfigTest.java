@@ -63,6 +63,21 @@ public class FrameworkAppSearchConfigTest {
                 AppSearchConfig.DEFAULT_TIME_OPTIMIZE_THRESHOLD_MILLIS);
         assertThat(appSearchConfig.getCachedDocCountOptimizeThreshold()).isEqualTo(
                 AppSearchConfig.DEFAULT_DOC_COUNT_OPTIMIZE_THRESHOLD);
+        assertThat(appSearchConfig.getCachedInitSnapshotEnabled()).isEqualTo(
+                AppSearchConfig.DEFAULT_INIT_SNAPSHOT_ENABLED);
+        assertThat(appSearchConfig.getCachedUserInstanceWarmUpEnabled()).isEqualTo(
+                AppSearchConfig.DEFAULT_USER_INSTANCE_WARM_UP_ENABLED);
+        assertThat(appSearchConfig.getCachedLimitConfigMaxNextPageTokenCountPerPackage()).isEqualTo(
+                AppSearchConfig.DEFAULT_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE);
+        assertThat(appSearchConfig.getCachedLimitConfigNextPageTokenTtlMillis()).isEqualTo(
+                AppSearchConfig.DEFAULT_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS);
+        assertThat(appSearchConfig.getCachedLimitConfigQueryResultCacheMaxBytes()).isEqualTo(
+                AppSearchConfig.DEFAULT_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES);
+        assertThat(appSearchConfig.getCachedLimitConfigGlobalQueryShardCount()).isEqualTo(
+                AppSearchConfig.DEFAULT_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT);
+        assertThat(appSearchConfig.getCachedLimitConfigMaxPendingObserverDocumentIdCount())
+                .isEqualTo(
+                        AppSearchConfig.DEFAULT_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT);
     }
 
     @Test
@@ -426,6 +441,132 @@ public class FrameworkAppSearchConfigTest {
         assertThat(appSearchConfig.getCachedDocCountOptimizeThreshold()).isEqualTo(963963);
     }
 
+    @Test
+    public void testCustomizedValue_initSnapshotEnabled() {
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_INIT_SNAPSHOT_ENABLED,
+                Boolean.toString(true),
+                false);
+
+        AppSearchConfig appSearchConfig = FrameworkAppSearchConfig.create(DIRECT_EXECUTOR);
+
+        assertThat(appSearchConfig.getCachedInitSnapshotEnabled()).isTrue();
+    }
+
+    @Test
+    public void testCustomizedValue_userInstanceWarmUpEnabled() {
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_USER_INSTANCE_WARM_UP_ENABLED,
+                Boolean.toString(true),
+                false);
+
+        AppSearchConfig appSearchConfig = FrameworkAppSearchConfig.create(DIRECT_EXECUTOR);
+
+        assertThat(appSearchConfig.getCachedUserInstanceWarmUpEnabled()).isTrue();
+    }
+
+    @Test
+    public void testCustomizedValue_limitConfigMaxNextPageTokenCountPerPackage() {
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE,
+                Integer.toString(2003),
+                false);
+
+        AppSearchConfig appSearchConfig = FrameworkAppSearchConfig.create(DIRECT_EXECUTOR);
+
+        assertThat(appSearchConfig.getCachedLimitConfigMaxNextPageTokenCountPerPackage())
+                .isEqualTo(2003);
+    }
+
+    @Test
+    public void testCustomizedValue_limitConfigNextPageTokenTtlMillis() {
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS,
+                Long.toString(2004L),
+                false);
+
+        AppSearchConfig appSearchConfig = FrameworkAppSearchConfig.create(DIRECT_EXECUTOR);
+
+        assertThat(appSearchConfig.getCachedLimitConfigNextPageTokenTtlMillis()).isEqualTo(2004L);
+    }
+
+    @Test
+    public void testCustomizedValue_limitConfigQueryResultCacheMaxBytes() {
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES,
+                Long.toString(2005L),
+                false);
+
+        AppSearchConfig appSearchConfig = FrameworkAppSearchConfig.create(DIRECT_EXECUTOR);
+
+        assertThat(appSearchConfig.getCachedLimitConfigQueryResultCacheMaxBytes())
+                .isEqualTo(2005L);
+    }
+
+    @Test
+    public void testCustomizedValue_limitConfigGlobalQueryShardCount() {
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT,
+                Integer.toString(4),
+                false);
+
+        AppSearchConfig appSearchConfig = FrameworkAppSearchConfig.create(DIRECT_EXECUTOR);
+
+        assertThat(appSearchConfig.getCachedLimitConfigGlobalQueryShardCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void testCustomizedValue_limitConfigMaxPendingObserverDocumentIdCount() {
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT,
+                Integer.toString(500),
+                false);
+
+        AppSearchConfig appSearchConfig = FrameworkAppSearchConfig.create(DIRECT_EXECUTOR);
+
+        assertThat(appSearchConfig.getCachedLimitConfigMaxPendingObserverDocumentIdCount())
+                .isEqualTo(500);
+    }
+
+    @Test
+    public void testInvalidValue_limitConfigFallsBackToDefault() {
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE,
+                Integer.toString(0),
+                false);
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS,
+                Long.toString(-1L),
+                false);
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES,
+                Long.toString(-1L),
+                false);
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT,
+                Integer.toString(-4),
+                false);
+        DeviceConfig.setProperty(DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT,
+                Integer.toString(0),
+                false);
+
+        AppSearchConfig appSearchConfig = FrameworkAppSearchConfig.create(DIRECT_EXECUTOR);
+
+        assertThat(appSearchConfig.getCachedLimitConfigMaxNextPageTokenCountPerPackage())
+                .isEqualTo(
+                        AppSearchConfig.DEFAULT_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE);
+        assertThat(appSearchConfig.getCachedLimitConfigNextPageTokenTtlMillis())
+                .isEqualTo(AppSearchConfig.DEFAULT_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS);
+        assertThat(appSearchConfig.getCachedLimitConfigQueryResultCacheMaxBytes())
+                .isEqualTo(AppSearchConfig.DEFAULT_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES);
+        assertThat(appSearchConfig.getCachedLimitConfigGlobalQueryShardCount())
+                .isEqualTo(AppSearchConfig.DEFAULT_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT);
+        assertThat(appSearchConfig.getCachedLimitConfigMaxPendingObserverDocumentIdCount())
+                .isEqualTo(
+                        AppSearchConfig.DEFAULT_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT);
+    }
+
     @Test
     public void testNotUsable_afterClose() {
         AppSearchConfig appSearchConfig = FrameworkAppSearchConfig.create(DIRECT_EXECUTOR);
@@ -465,5 +606,26 @@ public class FrameworkAppSearchConfigTest {
         Assert.assertThrows("Trying to use a closed AppSearchConfig instance.",
                 IllegalStateException.class,
                 () -> appSearchConfig.getCachedDocCountOptimizeThreshold());
+        Assert.assertThrows("Trying to use a closed AppSearchConfig instance.",
+                IllegalStateException.class,
+                () -> appSearchConfig.getCachedInitSnapshotEnabled());
+        Assert.assertThrows("Trying to use a closed AppSearchConfig instance.",
+                IllegalStateException.class,
+                () -> appSearchConfig.getCachedUserInstanceWarmUpEnabled());
+        Assert.assertThrows("Trying to use a closed AppSearchConfig instance.",
+                IllegalStateException.class,
+                () -> appSearchConfig.getCachedLimitConfigMaxNextPageTokenCountPerPackage());
+        Assert.assertThrows("Trying to use a closed AppSearchConfig instance.",
+                IllegalStateException.class,
+                () -> appSearchConfig.getCachedLimitConfigNextPageTokenTtlMillis());
+        Assert.assertThrows("Trying to use a closed AppSearchConfig instance.",
+                IllegalStateException.class,
+                () -> appSearchConfig.getCachedLimitConfigQueryResultCacheMaxBytes());
+        Assert.assertThrows("Trying to use a closed AppSearchConfig instance.",
+                IllegalStateException.class,
+                () -> appSearchConfig.getCachedLimitConfigGlobalQueryShardCount());
+        Assert.assertThrows("Trying to use a closed AppSearchConfig instance.",
+                IllegalStateException.class,
+                () -> appSearchConfig.getCachedLimitConfigMaxPendingObserverDocumentIdCount());
     }
 }
@@ -46,6 +46,16 @@ public class FrameworkLimitConfigTest {
                 AppSearchConfig.DEFAULT_LIMIT_CONFIG_MAX_DOCUMENT_SIZE_BYTES);
         assertThat(appSearchConfig.getCachedLimitConfigMaxDocumentCount()).isEqualTo(
                 AppSearchConfig.DEFAULT_LIMIT_CONFIG_MAX_DOCUMENT_COUNT);
+        assertThat(config.getMaxNextPageTokenCountPerPackage()).isEqualTo(
+                AppSearchConfig.DEFAULT_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE);
+        assertThat(config.getNextPageTokenTtlMillis()).isEqualTo(
+                AppSearchConfig.DEFAULT_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS);
+        assertThat(config.getQueryResultCacheMaxBytes()).isEqualTo(
+                AppSearchConfig.DEFAULT_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES);
+        assertThat(config.getGlobalQueryShardCount()).isEqualTo(
+                AppSearchConfig.DEFAULT_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT);
+        assertThat(config.getMaxPendingObserverDocumentIdCount()).isEqualTo(
+                AppSearchConfig.DEFAULT_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT);
     }
 
     @Test
@@ -62,8 +72,38 @@ public class FrameworkLimitConfigTest {
                 FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_MAX_DOCUMENT_COUNT,
                 "2002",
                 /*makeDefault=*/ false);
+        DeviceConfig.setProperty(
+                DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE,
+                "2003",
+                /*makeDefault=*/ false);
+        DeviceConfig.setProperty(
+                DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS,
+                "2004",
+                /*makeDefault=*/ false);
+        DeviceConfig.setProperty(
+                DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES,
+                "2005",
+                /*makeDefault=*/ false);
+        DeviceConfig.setProperty(
+                DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT,
+                "6",
+                /*makeDefault=*/ false);
+        DeviceConfig.setProperty(
+                DeviceConfig.NAMESPACE_APPSEARCH,
+                FrameworkAppSearchConfig.KEY_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT,
+                "2007",
+                /*makeDefault=*/ false);
 
         assertThat(config.getMaxDocumentSizeBytes()).isEqualTo(2001);
         assertThat(appSearchConfig.getCachedLimitConfigMaxDocumentCount()).isEqualTo(2002);
+        assertThat(config.getMaxNextPageTokenCountPerPackage()).isEqualTo(2003);
+        assertThat(config.getNextPageTokenTtlMillis()).isEqualTo(2004L);
+        assertThat(config.getQueryResultCacheMaxBytes()).isEqualTo(2005L);
+        assertThat(config.getGlobalQueryShardCount()).isEqualTo(6);
+        assertThat(config.getMaxPendingObserverDocumentIdCount()).isEqualTo(2007);
     }
 }
@@ -59,7 +59,7 @@ public class MockingPlatformLoggerTest {
     }
 
     @Test
-    public void testCreateExtraStatsLocked_samplingIntervalNotSet_returnsDefault() {
+    public void testCreateExtraStats_samplingIntervalNotSet_returnsDefault() {
         PlatformLogger logger = new PlatformLogger(
                 ApplicationProvider.getApplicationContext(),
                 mAppSearchConfig);
@@ -74,23 +74,23 @@ public class MockingPlatformLoggerTest {
                 false);
 
         // Make sure default sampling interval is used if there is no config set.
-        assertThat(logger.createExtraStatsLocked(TEST_PACKAGE_NAME,
+        assertThat(logger.createExtraStats(TEST_PACKAGE_NAME,
                 CallStats.CALL_TYPE_UNKNOWN).mSamplingInterval).isEqualTo(
                 TEST_DEFAULT_SAMPLING_INTERVAL);
-        assertThat(logger.createExtraStatsLocked(TEST_PACKAGE_NAME,
+        assertThat(logger.createExtraStats(TEST_PACKAGE_NAME,
                 CallStats.CALL_TYPE_INITIALIZE).mSamplingInterval).isEqualTo(
                 TEST_DEFAULT_SAMPLING_INTERVAL);
-        assertThat(logger.createExtraStatsLocked(TEST_PACKAGE_NAME,
+        assertThat(logger.createExtraStats(TEST_PACKAGE_NAME,
                 CallStats.CALL_TYPE_SEARCH).mSamplingInterval).isEqualTo(
                 TEST_DEFAULT_SAMPLING_INTERVAL);
-        assertThat(logger.createExtraStatsLocked(TEST_PACKAGE_NAME,
+        assertThat(logger.createExtraStats(TEST_PACKAGE_NAME,
                 CallStats.CALL_TYPE_FLUSH).mSamplingInterval).isEqualTo(
                 TEST_DEFAULT_SAMPLING_INTERVAL);
     }
 
 
     @Test
-    public void testCreateExtraStatsLocked_samplingIntervalSet_returnsConfigured() {
+    public void testCreateExtraStats_samplingIntervalSet_returnsConfigured() {
         int putDocumentSamplingInterval = 1;
         int batchCallSamplingInterval = 2;
         PlatformLogger logger = new PlatformLogger(
@@ -115,28 +115,28 @@ public class MockingPlatformLoggerTest {
 
         // The default sampling interval should be used if no sampling interval is
         // provided for certain call type.
-        assertThat(logger.createExtraStatsLocked(TEST_PACKAGE_NAME,
+        assertThat(logger.createExtraStats(TEST_PACKAGE_NAME,
                 CallStats.CALL_TYPE_INITIALIZE).mSamplingInterval).isEqualTo(
                 TEST_DEFAULT_SAMPLING_INTERVAL);
-        assertThat(logger.createExtraStatsLocked(TEST_PACKAGE_NAME,
+        assertThat(logger.createExtraStats(TEST_PACKAGE_NAME,
                 CallStats.CALL_TYPE_FLUSH).mSamplingInterval).isEqualTo(
                 TEST_DEFAULT_SAMPLING_INTERVAL);
 
         // The configured sampling interval is used if sampling interval is available
         // for certain call type.
-        assertThat(logger.createExtraStatsLocked(TEST_PACKAGE_NAME,
+        assertThat(logger.createExtraStats(TEST_PACKAGE_NAME,
                 CallStats.CALL_TYPE_PUT_DOCUMENT).mSamplingInterval).isEqualTo(
                 putDocumentSamplingInterval);
-        assertThat(logger.createExtraStatsLocked(TEST_PACKAGE_NAME,
+        assertThat(logger.createExtraStats(TEST_PACKAGE_NAME,
                 CallStats.CALL_TYPE_PUT_DOCUMENTS).mSamplingInterval).isEqualTo(
                 batchCallSamplingInterval);
-        assertThat(logger.createExtraStatsLocked(TEST_PACKAGE_NAME,
+        assertThat(logger.createExtraStats(TEST_PACKAGE_NAME,
                 CallStats.CALL_TYPE_REMOVE_DOCUMENTS_BY_SEARCH).mSamplingInterval).isEqualTo(
                 batchCallSamplingInterval);
     }
 
     @Test
-    public void testShouldLogForTypeLocked_trueWhenSampleIntervalIsOne() {
+    public void testShouldLogForType_trueWhenSampleIntervalIsOne() {
         final String testPackageName = "packageName";
         PlatformLogger logger = new PlatformLogger(
                 ApplicationProvider.getApplicationContext(),
@@ -148,13 +148,13 @@ public class MockingPlatformLoggerTest {
                 false);
 
         // Sample should always be logged for the first time if sampling is disabled(value is one).
-        assertThat(logger.shouldLogForTypeLocked(CallStats.CALL_TYPE_PUT_DOCUMENT)).isTrue();
-        assertThat(logger.createExtraStatsLocked(testPackageName,
+        assertThat(logger.shouldLogForType(CallStats.CALL_TYPE_PUT_DOCUMENT)).isTrue();
+        assertThat(logger.createExtraStats(testPackageName,
                 CallStats.CALL_TYPE_PUT_DOCUMENT).mSkippedSampleCount).isEqualTo(0);
     }
 
     @Test
-    public void testShouldLogForTypeLocked_falseWhenSampleIntervalIsNegative() {
+    public void testShouldLogForType_falseWhenSampleIntervalIsNegative() {
         final String testPackageName = "packageName";
         PlatformLogger logger = new PlatformLogger(
                 ApplicationProvider.getApplicationContext(),
@@ -166,14 +166,14 @@ public class MockingPlatformLoggerTest {
                 false);
 
         // Makes sure sample will be excluded due to sampling if sample interval is negative.
-        assertThat(logger.shouldLogForTypeLocked(CallStats.CALL_TYPE_PUT_DOCUMENT)).isFalse();
+        assertThat(logger.shouldLogForType(CallStats.CALL_TYPE_PUT_DOCUMENT)).isFalse();
         // Skipped count should be 0 since it doesn't pass the sampling.
-        assertThat(logger.createExtraStatsLocked(testPackageName,
+        assertThat(logger.createExtraStats(testPackageName,
                 CallStats.CALL_TYPE_PUT_DOCUMENT).mSkippedSampleCount).isEqualTo(0);
     }
 
     @Test
-    public void testShouldLogForTypeLocked_falseWhenWithinCoolOffInterval() {
+    public void testShouldLogForType_falseWhenWithinCoolOffInterval() {
         // Next sample won't be excluded due to sampling.
         final int samplingInterval = 1;
         // Next sample would guaranteed to be too close.
@@ -191,16 +191,16 @@ public class MockingPlatformLoggerTest {
                 FrameworkAppSearchConfig.KEY_MIN_TIME_INTERVAL_BETWEEN_SAMPLES_MILLIS,
                 Long.toString(minTimeIntervalBetweenSamplesMillis),
                 false);
-        logger.setLastPushTimeMillisLocked(SystemClock.elapsedRealtime());
+        logger.setLastPushTimeMillis(SystemClock.elapsedRealtime());
 
         // Makes sure sample will be excluded due to rate limiting if samples are too close.
-        assertThat(logger.shouldLogForTypeLocked(CallStats.CALL_TYPE_PUT_DOCUMENT)).isFalse();
-        assertThat(logger.createExtraStatsLocked(testPackageName,
+        assertThat(logger.shouldLogForType(CallStats.CALL_TYPE_PUT_DOCUMENT)).isFalse();
+        assertThat(logger.createExtraStats(testPackageName,
                 CallStats.CALL_TYPE_PUT_DOCUMENT).mSkippedSampleCount).isEqualTo(1);
     }
 
     @Test
-    public void testShouldLogForTypeLocked_trueWhenOutsideOfCoolOffInterval() {
+    public void testShouldLogForType_trueWhenOutsideOfCoolOffInterval() {
         // Next sample won't be excluded due to sampling.
         final int samplingInterval = 1;
         // Next sample would guaranteed to be included.
@@ -218,11 +218,11 @@ public class MockingPlatformLoggerTest {
                 FrameworkAppSearchConfig.KEY_MIN_TIME_INTERVAL_BETWEEN_SAMPLES_MILLIS,
                 Long.toString(minTimeIntervalBetweenSamplesMillis),
                 false);
-        logger.setLastPushTimeMillisLocked(SystemClock.elapsedRealtime());
+        logger.setLastPushTimeMillis(SystemClock.elapsedRealtime());
 
         // Makes sure sample will be logged if it is not too close to previous sample.
-        assertThat(logger.shouldLogForTypeLocked(CallStats.CALL_TYPE_PUT_DOCUMENT)).isTrue();
-        assertThat(logger.createExtraStatsLocked(testPackageName,
+        assertThat(logger.shouldLogForType(CallStats.CALL_TYPE_PUT_DOCUMENT)).isTrue();
+        assertThat(logger.createExtraStats(testPackageName,
                 CallStats.CALL_TYPE_PUT_DOCUMENT).mSkippedSampleCount).isEqualTo(0);
     }
 }
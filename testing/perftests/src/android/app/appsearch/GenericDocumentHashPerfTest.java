@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app.appsearch;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Benchmarks hashing and comparing {@link GenericDocument}s and {@link AppSearchSchema}s, as done
+ * by the sets and maps of the visibility store and schema migration.
+ *
+ * <p>The {@code fromBundle} cases rebuild the object from its bundle on every iteration, so the
+ * hash code is computed from scratch, which is what every call cost before it was cached.
+ */
+@LargeTest
+public class GenericDocumentHashPerfTest {
+    private static final int DOCUMENT_COUNT = 100;
+
+    @Rule public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final List<GenericDocument> mDocuments = new ArrayList<>(DOCUMENT_COUNT);
+    private final List<AppSearchSchema> mSchemas = new ArrayList<>(DOCUMENT_COUNT);
+
+    public GenericDocumentHashPerfTest() {
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            mDocuments.add(createDocument(i));
+            mSchemas.add(createSchema(i));
+        }
+    }
+
+    @Test
+    public void documentHashCode_cached() {
+        GenericDocument document = mDocuments.get(0);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            document.hashCode();
+        }
+    }
+
+    @Test
+    public void documentHashCode_fromBundle() {
+        GenericDocument document = mDocuments.get(0);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            new GenericDocument(document.getBundle()).hashCode();
+        }
+    }
+
+    @Test
+    public void documentEquals_unequal() {
+        GenericDocument document1 = mDocuments.get(0);
+        GenericDocument document2 = mDocuments.get(1);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            document1.equals(document2);
+        }
+    }
+
+    @Test
+    public void documentSet_addAll() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Set<GenericDocument> documents = new HashSet<>(mDocuments);
+            documents.containsAll(mDocuments);
+        }
+    }
+
+    @Test
+    public void schemaSet_addAll() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Set<AppSearchSchema> schemas = new HashSet<>(mSchemas);
+            schemas.containsAll(mSchemas);
+        }
+    }
+
+    @Test
+    public void schemaSet_addAll_fromBundle() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            Set<AppSearchSchema> schemas = new HashSet<>(mSchemas.size());
+            for (int i = 0; i < mSchemas.size(); i++) {
+                schemas.add(new AppSearchSchema(mSchemas.get(i).getBundle()));
+            }
+        }
+    }
+
+    private static GenericDocument createDocument(int index) {
+        GenericDocument contactPoint =
+                new GenericDocument.Builder<>("namespace", "contactPoint" + index, "ContactPoint")
+                        .setCreationTimestampMillis(1000)
+                        .setPropertyString("label", "home")
+                        .setPropertyString("email", "person" + index + "@example.com")
+                        .build();
+        return new GenericDocument.Builder<>("namespace", "person" + index, "Person")
+                .setCreationTimestampMillis(1000)
+                .setPropertyString("name", "Person " + index)
+                .setPropertyString("additionalNames", "Nickname", "Phonetic name")
+                .setPropertyLong("affinity", 1, 2, 3)
+                .setPropertyBytes("fingerprint", new byte[] {1, 2, 3, 4})
+                .setPropertyDocument("contactPoints", contactPoint)
+                .build();
+    }
+
+    private static AppSearchSchema createSchema(int index) {
+        AppSearchSchema.Builder builder = new AppSearchSchema.Builder("Type" + index);
+        for (int i = 0; i < 10; i++) {
+            builder.addProperty(
+                    new AppSearchSchema.StringPropertyConfig.Builder("property" + i)
+                            .setCardinality(AppSearchSchema.PropertyConfig.CARDINALITY_OPTIONAL)
+                            .setIndexingType(
+                                    AppSearchSchema.StringPropertyConfig.INDEXING_TYPE_PREFIXES)
+                            .setTokenizerType(
+                                    AppSearchSchema.StringPropertyConfig.TOKENIZER_TYPE_PLAIN)
+                            .build());
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import android.app.appsearch.AppSearchSchema;
+import android.app.appsearch.GenericDocument;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.server.appsearch.external.localstorage.visibilitystore.CallerAccess;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks getting documents by ID one at a time against getting them in one batch.
+ *
+ * <p>The documents are read with only their fingerprint projected, the way the contacts indexer
+ * reads Person documents to find the contacts that changed.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class GetDocumentsPerfTest {
+    private static final String PACKAGE_NAME = "package";
+    private static final String DATABASE_NAME = "database";
+    private static final String NAMESPACE = "namespace";
+    private static final String SCHEMA_TYPE = "Person";
+    private static final String FINGERPRINT_PROPERTY = "fingerprint";
+    private static final Map<String, List<String>> FINGERPRINT_PROJECTION =
+            Collections.singletonMap(
+                    SCHEMA_TYPE, Collections.singletonList(FINGERPRINT_PROPERTY));
+
+    @Rule public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final int mDocumentCount;
+    private final List<String> mIds;
+    private AppSearchImpl mAppSearchImpl;
+
+    @Parameterized.Parameters(name = "ids={0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {{50}, {500}, {5000}});
+    }
+
+    public GetDocumentsPerfTest(int documentCount) {
+        mDocumentCount = documentCount;
+        mIds = new ArrayList<>(documentCount);
+        for (int i = 0; i < documentCount; i++) {
+            mIds.add("id" + i);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mTemporaryFolder.newFolder(),
+                        new UnlimitedLimitConfig(),
+                        /*initStatsBuilder=*/ null,
+                        optimizeInfo -> false,
+                        /*visibilityChecker=*/ null);
+        AppSearchSchema schema =
+                new AppSearchSchema.Builder(SCHEMA_TYPE)
+                        .addProperty(
+                                new AppSearchSchema.StringPropertyConfig.Builder("name")
+                                        .setCardinality(
+                                                AppSearchSchema.PropertyConfig.CARDINALITY_OPTIONAL)
+                                        .build())
+                        .addProperty(
+                                new AppSearchSchema.BytesPropertyConfig.Builder(
+                                                FINGERPRINT_PROPERTY)
+                                        .setCardinality(
+                                                AppSearchSchema.PropertyConfig.CARDINALITY_OPTIONAL)
+                                        .build())
+                        .build();
+        mAppSearchImpl.setSchema(
+                PACKAGE_NAME,
+                DATABASE_NAME,
+                Collections.singletonList(schema),
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /*setSchemaStatsBuilder=*/ null);
+        for (int i = 0; i < mDocumentCount; i++) {
+            GenericDocument document =
+                    new GenericDocument.Builder<>(NAMESPACE, mIds.get(i), SCHEMA_TYPE)
+                            .setPropertyString("name", "Person " + i)
+                            .setPropertyBytes(
+                                    FINGERPRINT_PROPERTY, new byte[] {(byte) i, (byte) (i >> 8)})
+                            .build();
+            mAppSearchImpl.putDocument(
+                    PACKAGE_NAME,
+                    DATABASE_NAME,
+                    document,
+                    /*sendChangeNotifications=*/ false,
+                    /*logger=*/ null);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mAppSearchImpl.close();
+    }
+
+    @Test
+    public void getDocument_oneAtATime() throws Exception {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < mIds.size(); i++) {
+                mAppSearchImpl.getDocument(
+                        PACKAGE_NAME,
+                        DATABASE_NAME,
+                        NAMESPACE,
+                        mIds.get(i),
+                        FINGERPRINT_PROJECTION);
+            }
+        }
+    }
+
+    @Test
+    public void getDocuments_batched() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppSearchImpl.getDocuments(
+                    PACKAGE_NAME, DATABASE_NAME, NAMESPACE, mIds, FINGERPRINT_PROJECTION);
+        }
+    }
+
+    @Test
+    public void globalGetDocument_oneAtATime() throws Exception {
+        CallerAccess callerAccess = new CallerAccess(PACKAGE_NAME);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < mIds.size(); i++) {
+                mAppSearchImpl.globalGetDocument(
+                        PACKAGE_NAME,
+                        DATABASE_NAME,
+                        NAMESPACE,
+                        mIds.get(i),
+                        FINGERPRINT_PROJECTION,
+                        callerAccess);
+            }
+        }
+    }
+
+    @Test
+    public void globalGetDocuments_batched() {
+        CallerAccess callerAccess = new CallerAccess(PACKAGE_NAME);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppSearchImpl.globalGetDocuments(
+                    PACKAGE_NAME,
+                    DATABASE_NAME,
+                    NAMESPACE,
+                    mIds,
+                    FINGERPRINT_PROJECTION,
+                    callerAccess);
+        }
+    }
+}
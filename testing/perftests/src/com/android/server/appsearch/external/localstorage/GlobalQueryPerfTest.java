@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import android.app.appsearch.AppSearchSchema;
+import android.app.appsearch.GenericDocument;
+import android.app.appsearch.SearchSpec;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.server.appsearch.external.localstorage.visibilitystore.CallerAccess;
+import com.android.server.appsearch.external.localstorage.visibilitystore.VisibilityStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Benchmarks the first page of a global query over 50 packages of uneven sizes, searched at once
+ * or split into shards searched one after the other.
+ *
+ * <p>Package {@code i} holds {@code 1000 / (i + 1)} documents, so the largest package holds about
+ * a quarter of all documents and most packages only a handful.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class GlobalQueryPerfTest {
+    private static final int PACKAGE_COUNT = 50;
+    private static final int LARGEST_PACKAGE_DOCUMENT_COUNT = 1000;
+    private static final String DATABASE_NAME = "database";
+    private static final String NAMESPACE = "namespace";
+    private static final String SCHEMA_TYPE = "Email";
+    private static final String CALLING_PACKAGE_NAME = "caller";
+
+    @Rule public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+    @Rule public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private final int mShardCount;
+    private AppSearchImpl mAppSearchImpl;
+
+    @Parameterized.Parameters(name = "shards={0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {{1}, {4}, {8}});
+    }
+
+    public GlobalQueryPerfTest(int shardCount) {
+        mShardCount = shardCount;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mTemporaryFolder.newFolder(),
+                        new UnlimitedLimitConfig() {
+                            @Override
+                            public int getGlobalQueryShardCount() {
+                                return mShardCount;
+                            }
+                        },
+                        /*initStatsBuilder=*/ null,
+                        optimizeInfo -> false,
+                        // Let the caller search every package.
+                        (callerAccess, packageName, prefixedSchema, visibilityStore) ->
+                                !packageName.equals(VisibilityStore.VISIBILITY_PACKAGE_NAME));
+        AppSearchSchema schema =
+                new AppSearchSchema.Builder(SCHEMA_TYPE)
+                        .addProperty(
+                                new AppSearchSchema.StringPropertyConfig.Builder("body")
+                                        .setCardinality(
+                                                AppSearchSchema.PropertyConfig.CARDINALITY_OPTIONAL)
+                                        .setIndexingType(
+                                                AppSearchSchema.StringPropertyConfig
+                                                        .INDEXING_TYPE_PREFIXES)
+                                        .setTokenizerType(
+                                                AppSearchSchema.StringPropertyConfig
+                                                        .TOKENIZER_TYPE_PLAIN)
+                                        .build())
+                        .build();
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            String packageName = "package" + i;
+            mAppSearchImpl.setSchema(
+                    packageName,
+                    DATABASE_NAME,
+                    Collections.singletonList(schema),
+                    /*visibilityDocuments=*/ Collections.emptyList(),
+                    /*forceOverride=*/ false,
+                    /*version=*/ 0,
+                    /*setSchemaStatsBuilder=*/ null);
+            int documentCount = LARGEST_PACKAGE_DOCUMENT_COUNT / (i + 1);
+            for (int j = 0; j < documentCount; j++) {
+                GenericDocument document =
+                        new GenericDocument.Builder<>(NAMESPACE, "id" + j, SCHEMA_TYPE)
+                                .setPropertyString(
+                                        "body", "meeting notes " + j + " from " + packageName)
+                                .build();
+                mAppSearchImpl.putDocument(
+                        packageName,
+                        DATABASE_NAME,
+                        document,
+                        /*sendChangeNotifications=*/ false,
+                        /*logger=*/ null);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mAppSearchImpl.close();
+    }
+
+    @Test
+    public void globalQuery_rankedByRelevance() throws Exception {
+        runGlobalQuery(SearchSpec.RANKING_STRATEGY_RELEVANCE_SCORE);
+    }
+
+    @Test
+    public void globalQuery_rankedByCreationTimestamp() throws Exception {
+        runGlobalQuery(SearchSpec.RANKING_STRATEGY_CREATION_TIMESTAMP);
+    }
+
+    private void runGlobalQuery(@SearchSpec.RankingStrategy int rankingStrategy)
+            throws Exception {
+        SearchSpec searchSpec =
+                new SearchSpec.Builder()
+                        .setTermMatch(SearchSpec.TERM_MATCH_PREFIX)
+                        .setRankingStrategy(rankingStrategy)
+                        .setResultCountPerPage(20)
+                        .build();
+        CallerAccess callerAccess = new CallerAccess(CALLING_PACKAGE_NAME);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            long nextPageToken =
+                    mAppSearchImpl
+                            .globalQuery("meet", searchSpec, callerAccess, /*logger=*/ null)
+                            .getNextPageToken();
+            // Release the result states, as a caller reading only the first page would.
+            mAppSearchImpl.invalidateNextPageToken(CALLING_PACKAGE_NAME, nextPageToken);
+        }
+    }
+}
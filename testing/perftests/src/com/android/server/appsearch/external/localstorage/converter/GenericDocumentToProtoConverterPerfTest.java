@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage.converter;
+
+import android.app.appsearch.GenericDocument;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+
+import com.android.server.appsearch.external.localstorage.util.PrefixUtil;
+import com.android.server.appsearch.icing.proto.DocumentProto;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Benchmarks converting {@link GenericDocument}s to and from {@link DocumentProto}s. */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class GenericDocumentToProtoConverterPerfTest {
+    private static final String PREFIX = "package$database/";
+    private static final PropertyConfigIndex PROPERTY_CONFIG_INDEX = new PropertyConfigIndex();
+
+    private static final GenericDocument SMALL_DOCUMENT = createDocument("small", /*size=*/ 1);
+    private static final GenericDocument LARGE_DOCUMENT = createDocument("large", /*size=*/ 50);
+    private static final GenericDocument NESTED_DOCUMENT = createNestedDocument(/*depth=*/ 5);
+
+    @Rule public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Test
+    public void toDocumentProto_small() {
+        runToDocumentProto(SMALL_DOCUMENT);
+    }
+
+    @Test
+    public void toDocumentProto_large() {
+        runToDocumentProto(LARGE_DOCUMENT);
+    }
+
+    @Test
+    public void toDocumentProto_nested() {
+        runToDocumentProto(NESTED_DOCUMENT);
+    }
+
+    @Test
+    public void toDocumentProtoThenAddPrefix_small() {
+        runToDocumentProtoThenAddPrefix(SMALL_DOCUMENT);
+    }
+
+    @Test
+    public void toDocumentProtoThenAddPrefix_large() {
+        runToDocumentProtoThenAddPrefix(LARGE_DOCUMENT);
+    }
+
+    @Test
+    public void toDocumentProtoThenAddPrefix_nested() {
+        runToDocumentProtoThenAddPrefix(NESTED_DOCUMENT);
+    }
+
+    @Test
+    public void toGenericDocument_small() throws Exception {
+        runToGenericDocument(SMALL_DOCUMENT);
+    }
+
+    @Test
+    public void toGenericDocument_large() throws Exception {
+        runToGenericDocument(LARGE_DOCUMENT);
+    }
+
+    @Test
+    public void toGenericDocument_nested() throws Exception {
+        runToGenericDocument(NESTED_DOCUMENT);
+    }
+
+    /** Converts with the prefix added during the conversion, as putDocument does. */
+    private void runToDocumentProto(GenericDocument document) {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            GenericDocumentToProtoConverter.toDocumentProto(document, PREFIX);
+        }
+    }
+
+    /** Converts and then adds the prefix in a second pass, for comparison. */
+    private void runToDocumentProtoThenAddPrefix(GenericDocument document) {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            DocumentProto.Builder documentBuilder =
+                    GenericDocumentToProtoConverter.toDocumentProto(document).toBuilder();
+            PrefixUtil.addPrefixToDocument(documentBuilder, PREFIX);
+            documentBuilder.build();
+        }
+    }
+
+    private void runToGenericDocument(GenericDocument document) throws Exception {
+        DocumentProto documentProto = GenericDocumentToProtoConverter.toDocumentProto(document);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            GenericDocumentToProtoConverter.toGenericDocument(
+                    documentProto, PREFIX, PROPERTY_CONFIG_INDEX);
+        }
+    }
+
+    /** Creates a document with {@code size} properties of each type, each with size values. */
+    private static GenericDocument createDocument(String id, int size) {
+        GenericDocument.Builder<?> builder =
+                new GenericDocument.Builder<>("namespace", id, "Type")
+                        .setCreationTimestampMillis(1000);
+        for (int i = 0; i < size; i++) {
+            String[] strings = new String[size];
+            long[] longs = new long[size];
+            double[] doubles = new double[size];
+            boolean[] booleans = new boolean[size];
+            byte[][] bytes = new byte[size][];
+            for (int j = 0; j < size; j++) {
+                strings[j] = "value " + i + " " + j;
+                longs[j] = j;
+                doubles[j] = j;
+                booleans[j] = j % 2 == 0;
+                bytes[j] = new byte[] {(byte) i, (byte) j};
+            }
+            builder.setPropertyString("string" + i, strings)
+                    .setPropertyLong("long" + i, longs)
+                    .setPropertyDouble("double" + i, doubles)
+                    .setPropertyBoolean("boolean" + i, booleans)
+                    .setPropertyBytes("bytes" + i, bytes);
+        }
+        return builder.build();
+    }
+
+    /** Creates a small document nested {@code depth} levels deep, with siblings at each level. */
+    private static GenericDocument createNestedDocument(int depth) {
+        GenericDocument document = createDocument("nested0", /*size=*/ 2);
+        for (int i = 1; i <= depth; i++) {
+            document =
+                    new GenericDocument.Builder<>("namespace", "nested" + i, "Type")
+                            .setCreationTimestampMillis(1000)
+                            .setPropertyString("name", "level " + i)
+                            .setPropertyDocument("children", document, document)
+                            .build();
+        }
+        return document;
+    }
+}
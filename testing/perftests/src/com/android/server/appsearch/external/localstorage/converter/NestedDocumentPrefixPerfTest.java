@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage.converter;
+
+import android.app.appsearch.GenericDocument;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+
+import com.android.server.appsearch.external.localstorage.util.PrefixUtil;
+import com.android.server.appsearch.icing.proto.DocumentProto;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Benchmarks adding and removing prefixes of nested documents, either during the conversion or
+ * by rewriting the proto in a second pass.
+ *
+ * <p>Every document has a contact point-like child at each level, mimicking schemas such as
+ * Person with ContactPoint.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class NestedDocumentPrefixPerfTest {
+    private static final String PREFIX = "package$database/";
+    private static final PropertyConfigIndex PROPERTY_CONFIG_INDEX = new PropertyConfigIndex();
+
+    @Rule public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final GenericDocument mDocument;
+    private final DocumentProto mPrefixedDocumentProto;
+
+    @Parameterized.Parameters(name = "depth={0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {{1}, {2}, {3}, {4}, {5}});
+    }
+
+    public NestedDocumentPrefixPerfTest(int depth) {
+        mDocument = createNestedDocument(depth);
+        mPrefixedDocumentProto = GenericDocumentToProtoConverter.toDocumentProto(mDocument, PREFIX);
+    }
+
+    @Test
+    public void toDocumentProto_prefixDuringConversion() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            GenericDocumentToProtoConverter.toDocumentProto(mDocument, PREFIX);
+        }
+    }
+
+    @Test
+    public void toDocumentProto_prefixAfterConversion() {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            DocumentProto.Builder documentBuilder =
+                    GenericDocumentToProtoConverter.toDocumentProto(mDocument).toBuilder();
+            PrefixUtil.addPrefixToDocument(documentBuilder, PREFIX);
+            documentBuilder.build();
+        }
+    }
+
+    @Test
+    public void toGenericDocument_removePrefixDuringConversion() throws Exception {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            GenericDocumentToProtoConverter.toUnprefixedGenericDocument(
+                    mPrefixedDocumentProto, PREFIX, PROPERTY_CONFIG_INDEX);
+        }
+    }
+
+    @Test
+    public void toGenericDocument_removePrefixBeforeConversion() throws Exception {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            DocumentProto.Builder documentBuilder = mPrefixedDocumentProto.toBuilder();
+            String prefix = PrefixUtil.removePrefixesFromDocument(documentBuilder);
+            GenericDocumentToProtoConverter.toGenericDocument(
+                    documentBuilder, prefix, PROPERTY_CONFIG_INDEX);
+        }
+    }
+
+    /** Creates a document nested {@code depth} levels deep, with a leaf child at each level. */
+    private static GenericDocument createNestedDocument(int depth) {
+        GenericDocument document = createContactPoint(0);
+        for (int i = 1; i <= depth; i++) {
+            document =
+                    new GenericDocument.Builder<>("namespace", "person" + i, "Person")
+                            .setCreationTimestampMillis(1000)
+                            .setPropertyString("name", "Person " + i)
+                            .setPropertyDocument("contactPoints", createContactPoint(i), document)
+                            .build();
+        }
+        return document;
+    }
+
+    private static GenericDocument createContactPoint(int index) {
+        return new GenericDocument.Builder<>("namespace", "contactPoint" + index, "ContactPoint")
+                .setCreationTimestampMillis(1000)
+                .setPropertyString("label", "home")
+                .setPropertyString("email", "person" + index + "@example.com")
+                .setPropertyString("phone", "555-01" + index)
+                .build();
+    }
+}
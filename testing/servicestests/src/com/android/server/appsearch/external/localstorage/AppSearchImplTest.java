@@ -24,6 +24,7 @@ import static com.google.common.truth.Truth.assertThat;
 
 import static org.junit.Assert.assertThrows;
 
+import android.app.appsearch.AppSearchBatchResult;
 import android.app.appsearch.AppSearchResult;
 import android.app.appsearch.AppSearchSchema;
 import android.app.appsearch.GenericDocument;
@@ -39,8 +40,11 @@ import android.app.appsearch.exceptions.AppSearchException;
 import android.app.appsearch.observer.DocumentChangeInfo;
 import android.app.appsearch.observer.ObserverSpec;
 import android.app.appsearch.observer.SchemaChangeInfo;
+import android.app.appsearch.testutil.SimpleTestLogger;
 import android.app.appsearch.testutil.TestObserverCallback;
 import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 
@@ -633,6 +637,264 @@ public class AppSearchImplTest {
         assertThat(results.getResults().get(0).getGenericDocument()).isEqualTo(validDoc);
     }
 
+    @Test
+    public void testInitSnapshot_restoresDerivedMaps() throws Exception {
+        File initSnapshotFile = new File(mTemporaryFolder.newFolder(), "init_snapshot");
+        mAppSearchImpl.close();
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mAppSearchDir,
+                        new UnlimitedLimitConfig(),
+                        /*initStatsBuilder=*/ null,
+                        ALWAYS_OPTIMIZE,
+                        /*visibilityChecker=*/ null,
+                        initSnapshotFile);
+
+        VisibilityDocument visibilityDocument =
+                new VisibilityDocument.Builder("package$database/Type1")
+                        .setNotDisplayedBySystem(true)
+                        .setCreationTimestampMillis(12345L)
+                        .build();
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                Collections.singletonList(new AppSearchSchema.Builder("Type1").build()),
+                /*visibilityDocuments=*/ ImmutableList.of(
+                        new VisibilityDocument.Builder("Type1")
+                                .setNotDisplayedBySystem(true)
+                                .setCreationTimestampMillis(12345L)
+                                .build()),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        GenericDocument document =
+                new GenericDocument.Builder<>("namespace1", "id1", "Type1").build();
+        mAppSearchImpl.putDocument(
+                "package",
+                "database",
+                document,
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+
+        // The snapshot is only written by a full persist.
+        assertThat(initSnapshotFile.exists()).isFalse();
+        mAppSearchImpl.persistToDisk(PersistType.Code.FULL);
+        assertThat(initSnapshotFile.exists()).isTrue();
+
+        InitializeStats.Builder initStatsBuilder = new InitializeStats.Builder();
+        mAppSearchImpl.close();
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mAppSearchDir,
+                        new UnlimitedLimitConfig(),
+                        initStatsBuilder,
+                        ALWAYS_OPTIMIZE,
+                        /*visibilityChecker=*/ null,
+                        initSnapshotFile);
+        InitializeStats initStats = initStatsBuilder.build();
+        assertThat(initStats.getInitSnapshotStatus())
+                .isEqualTo(InitializeStats.INIT_SNAPSHOT_STATUS_HIT);
+        assertThat(initStats.hasReset()).isFalse();
+
+        // Everything derived from Icing is still there.
+        assertThat(mAppSearchImpl.getPackageToDatabases())
+                .containsEntry("package", ImmutableSet.of("database"));
+        assertThat(
+                        mAppSearchImpl
+                                .getSchema("package", "database", mSelfCallerAccess)
+                                .getSchemas())
+                .containsExactly(new AppSearchSchema.Builder("Type1").build());
+        assertThat(mAppSearchImpl.getStorageInfoForPackage("package").getAliveDocumentsCount())
+                .isEqualTo(1);
+        assertThat(mAppSearchImpl.getStorageInfoForPackage("package").getAliveNamespacesCount())
+                .isEqualTo(1);
+        assertThat(mAppSearchImpl.mVisibilityStoreLocked.getVisibility("package$database/Type1"))
+                .isEqualTo(visibilityDocument);
+        assertThat(
+                        mAppSearchImpl.getDocument(
+                                "package",
+                                "database",
+                                "namespace1",
+                                "id1",
+                                /*typePropertyPaths=*/ Collections.emptyMap()))
+                .isEqualTo(document);
+
+        // The restored schema must still accept an identical setSchema call.
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                Collections.singletonList(new AppSearchSchema.Builder("Type1").build()),
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+    }
+
+    @Test
+    public void testInitSnapshot_invalidatedByMutation() throws Exception {
+        File initSnapshotFile = new File(mTemporaryFolder.newFolder(), "init_snapshot");
+        mAppSearchImpl.close();
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mAppSearchDir,
+                        new UnlimitedLimitConfig(),
+                        /*initStatsBuilder=*/ null,
+                        ALWAYS_OPTIMIZE,
+                        /*visibilityChecker=*/ null,
+                        initSnapshotFile);
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                Collections.singletonList(new AppSearchSchema.Builder("Type1").build()),
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        mAppSearchImpl.persistToDisk(PersistType.Code.FULL);
+        assertThat(initSnapshotFile.exists()).isTrue();
+
+        // A put after the full persist makes the snapshot stale, so it must be deleted.
+        mAppSearchImpl.putDocument(
+                "package",
+                "database",
+                new GenericDocument.Builder<>("namespace1", "id1", "Type1").build(),
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+        assertThat(initSnapshotFile.exists()).isFalse();
+        mAppSearchImpl.persistToDisk(PersistType.Code.LITE);
+        assertThat(initSnapshotFile.exists()).isFalse();
+
+        InitializeStats.Builder initStatsBuilder = new InitializeStats.Builder();
+        mAppSearchImpl.close();
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mAppSearchDir,
+                        new UnlimitedLimitConfig(),
+                        initStatsBuilder,
+                        ALWAYS_OPTIMIZE,
+                        /*visibilityChecker=*/ null,
+                        initSnapshotFile);
+        assertThat(initStatsBuilder.build().getInitSnapshotStatus())
+                .isEqualTo(InitializeStats.INIT_SNAPSHOT_STATUS_NONE);
+        assertThat(mAppSearchImpl.getStorageInfoForPackage("package").getAliveDocumentsCount())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void testInitSnapshot_keptByUnchangedSetSchema() throws Exception {
+        File initSnapshotFile = new File(mTemporaryFolder.newFolder(), "init_snapshot");
+        mAppSearchImpl.close();
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mAppSearchDir,
+                        new UnlimitedLimitConfig(),
+                        /*initStatsBuilder=*/ null,
+                        ALWAYS_OPTIMIZE,
+                        /*visibilityChecker=*/ null,
+                        initSnapshotFile);
+        List<AppSearchSchema> schemas =
+                Collections.singletonList(new AppSearchSchema.Builder("Type1").build());
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                schemas,
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        mAppSearchImpl.persistToDisk(PersistType.Code.FULL);
+        assertThat(initSnapshotFile.exists()).isTrue();
+
+        // Setting the same schema again doesn't reach Icing, so the snapshot stays valid.
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                schemas,
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        assertThat(initSnapshotFile.exists()).isTrue();
+    }
+
+    @Test
+    public void testInitSnapshot_undeletableSnapshotBlocksMutations() throws Exception {
+        File snapshotDir = mTemporaryFolder.newFolder();
+        File initSnapshotFile = new File(snapshotDir, "init_snapshot");
+        mAppSearchImpl.close();
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mAppSearchDir,
+                        new UnlimitedLimitConfig(),
+                        /*initStatsBuilder=*/ null,
+                        ALWAYS_OPTIMIZE,
+                        /*visibilityChecker=*/ null,
+                        initSnapshotFile);
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                Collections.singletonList(new AppSearchSchema.Builder("Type1").build()),
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        mAppSearchImpl.persistToDisk(PersistType.Code.FULL);
+        assertThat(initSnapshotFile.exists()).isTrue();
+
+        // A stale snapshot would be restored on the next start, so the put must not go through
+        // while the snapshot can't be deleted.
+        GenericDocument document =
+                new GenericDocument.Builder<>("namespace1", "id1", "Type1").build();
+        assertThat(snapshotDir.setWritable(false)).isTrue();
+        try {
+            AppSearchException e =
+                    assertThrows(
+                            AppSearchException.class,
+                            () ->
+                                    mAppSearchImpl.putDocument(
+                                            "package",
+                                            "database",
+                                            document,
+                                            /*sendChangeNotifications=*/ false,
+                                            /*logger=*/ null));
+            assertThat(e.getResultCode()).isEqualTo(AppSearchResult.RESULT_IO_ERROR);
+        } finally {
+            snapshotDir.setWritable(true);
+        }
+        assertThat(initSnapshotFile.exists()).isTrue();
+        assertThat(mAppSearchImpl.getStorageInfoForPackage("package").getAliveDocumentsCount())
+                .isEqualTo(0);
+
+        // Once the snapshot can be deleted, mutations go through again.
+        mAppSearchImpl.putDocument(
+                "package",
+                "database",
+                document,
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+        assertThat(initSnapshotFile.exists()).isFalse();
+    }
+
+    @Test
+    public void testInitSnapshot_corruptedSnapshotIsIgnored() throws Exception {
+        File initSnapshotFile = new File(mTemporaryFolder.newFolder(), "init_snapshot");
+        assertThat(initSnapshotFile.createNewFile()).isTrue();
+
+        InitializeStats.Builder initStatsBuilder = new InitializeStats.Builder();
+        mAppSearchImpl.close();
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mAppSearchDir,
+                        new UnlimitedLimitConfig(),
+                        initStatsBuilder,
+                        ALWAYS_OPTIMIZE,
+                        /*visibilityChecker=*/ null,
+                        initSnapshotFile);
+        assertThat(initStatsBuilder.build().getInitSnapshotStatus())
+                .isEqualTo(InitializeStats.INIT_SNAPSHOT_STATUS_MISS_CORRUPTED);
+        assertThat(initSnapshotFile.exists()).isFalse();
+    }
+
     @Test
     public void testQueryEmptyDatabase() throws Exception {
         SearchSpec searchSpec =
@@ -642,6 +904,57 @@ public class AppSearchImplTest {
         assertThat(searchResultPage.getResults()).isEmpty();
     }
 
+    @Test
+    public void testQuery_cachedPlanInvalidatedBySchemaAndNamespaceChanges() throws Exception {
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                ImmutableList.of(new AppSearchSchema.Builder("Type1").build()),
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        GenericDocument document1 =
+                new GenericDocument.Builder<>("namespace1", "id1", "Type1").build();
+        mAppSearchImpl.putDocument(
+                "package",
+                "database",
+                document1,
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+        SearchSpec searchSpec =
+                new SearchSpec.Builder().setTermMatch(TermMatchType.Code.PREFIX_VALUE).build();
+        SearchResultPage searchResultPage =
+                mAppSearchImpl.query("package", "database", "", searchSpec, /*logger=*/ null);
+        assertThat(searchResultPage.getResults()).hasSize(1);
+
+        // A new schema type and a new namespace must be searched by the same spec.
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                ImmutableList.of(
+                        new AppSearchSchema.Builder("Type1").build(),
+                        new AppSearchSchema.Builder("Type2").build()),
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        GenericDocument document2 =
+                new GenericDocument.Builder<>("namespace2", "id2", "Type2").build();
+        mAppSearchImpl.putDocument(
+                "package",
+                "database",
+                document2,
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+
+        searchResultPage =
+                mAppSearchImpl.query("package", "database", "", searchSpec, /*logger=*/ null);
+        assertThat(searchResultPage.getResults()).hasSize(2);
+        assertThat(searchResultPage.getResults().get(0).getGenericDocument()).isEqualTo(document2);
+        assertThat(searchResultPage.getResults().get(1).getGenericDocument()).isEqualTo(document1);
+    }
+
     /**
      * TODO(b/169883602): This should be an integration test at the cts-level. This is a short-term
      * test until we have official support for multiple-apps indexing at once.
@@ -1027,81 +1340,338 @@ public class AppSearchImplTest {
                         AppSearchException.class,
                         () ->
                                 mAppSearchImpl.getNextPage(
-                                        "package2", nextPageToken, /*statsBuilder=*/ null));
-        assertThat(e)
-                .hasMessageThat()
-                .contains("Package \"package2\" cannot use nextPageToken: " + nextPageToken);
+                                        "package2", nextPageToken, /*statsBuilder=*/ null));
+        assertThat(e)
+                .hasMessageThat()
+                .contains("Package \"package2\" cannot use nextPageToken: " + nextPageToken);
+        assertThat(e.getResultCode()).isEqualTo(AppSearchResult.RESULT_SECURITY_ERROR);
+
+        // Can continue getting next page for package1
+        searchResultPage =
+                mAppSearchImpl.getNextPage("package1", nextPageToken, /*statsBuilder=*/ null);
+        assertThat(searchResultPage.getResults()).hasSize(1);
+        assertThat(searchResultPage.getResults().get(0).getGenericDocument()).isEqualTo(document1);
+    }
+
+    @Test
+    public void testInvalidateNextPageToken_query() throws Exception {
+        // Insert package1 schema
+        List<AppSearchSchema> schema1 =
+                ImmutableList.of(new AppSearchSchema.Builder("schema1").build());
+        mAppSearchImpl.setSchema(
+                "package1",
+                "database1",
+                schema1,
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+
+        // Insert two package1 documents
+        GenericDocument document1 =
+                new GenericDocument.Builder<>("namespace", "id1", "schema1").build();
+        GenericDocument document2 =
+                new GenericDocument.Builder<>("namespace", "id2", "schema1").build();
+        mAppSearchImpl.putDocument(
+                "package1",
+                "database1",
+                document1,
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+        mAppSearchImpl.putDocument(
+                "package1",
+                "database1",
+                document2,
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+
+        // Query for only 1 result per page
+        SearchSpec searchSpec =
+                new SearchSpec.Builder()
+                        .setTermMatch(TermMatchType.Code.PREFIX_VALUE)
+                        .setResultCountPerPage(1)
+                        .build();
+        SearchResultPage searchResultPage =
+                mAppSearchImpl.query("package1", "database1", "", searchSpec, /*logger=*/ null);
+
+        // Document2 will come first because it was inserted last and default return order is
+        // most recent.
+        assertThat(searchResultPage.getResults()).hasSize(1);
+        assertThat(searchResultPage.getResults().get(0).getGenericDocument()).isEqualTo(document2);
+
+        long nextPageToken = searchResultPage.getNextPageToken();
+
+        // Invalidate the token
+        mAppSearchImpl.invalidateNextPageToken("package1", nextPageToken);
+
+        // Can't get next page because we invalidated the token.
+        AppSearchException e =
+                assertThrows(
+                        AppSearchException.class,
+                        () ->
+                                mAppSearchImpl.getNextPage(
+                                        "package1", nextPageToken, /*statsBuilder=*/ null));
+        assertThat(e)
+                .hasMessageThat()
+                .contains("Package \"package1\" cannot use nextPageToken: " + nextPageToken);
+        assertThat(e.getResultCode()).isEqualTo(AppSearchResult.RESULT_SECURITY_ERROR);
+    }
+
+    @Test
+    public void testNextPageToken_evictedOverPackageCap() throws Exception {
+        // Create a new mAppSearchImpl that only lets a package hold one token at a time
+        mAppSearchImpl.close();
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mTemporaryFolder.newFolder(),
+                        new UnlimitedLimitConfig() {
+                            @Override
+                            public int getMaxNextPageTokenCountPerPackage() {
+                                return 1;
+                            }
+                        },
+                        /*initStatsBuilder=*/ null,
+                        ALWAYS_OPTIMIZE,
+                        /*visibilityChecker=*/ null);
+        mAppSearchImpl.setSchema(
+                "package1",
+                "database1",
+                ImmutableList.of(new AppSearchSchema.Builder("schema1").build()),
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        for (int i = 0; i < 2; i++) {
+            mAppSearchImpl.putDocument(
+                    "package1",
+                    "database1",
+                    new GenericDocument.Builder<>("namespace", "id" + i, "schema1").build(),
+                    /*sendChangeNotifications=*/ false,
+                    /*logger=*/ null);
+        }
+        SearchSpec searchSpec =
+                new SearchSpec.Builder()
+                        .setTermMatch(TermMatchType.Code.PREFIX_VALUE)
+                        .setResultCountPerPage(1)
+                        .build();
+
+        long firstToken =
+                mAppSearchImpl
+                        .query("package1", "database1", "", searchSpec, /*logger=*/ null)
+                        .getNextPageToken();
+        long secondToken =
+                mAppSearchImpl
+                        .query("package1", "database1", "", searchSpec, /*logger=*/ null)
+                        .getNextPageToken();
+        assertThat(mAppSearchImpl.getNextPageTokenCount()).isEqualTo(1);
+        assertThat(mAppSearchImpl.getEvictedNextPageTokenCount()).isEqualTo(1);
+
+        // The first token was evicted to make room for the second one.
+        AppSearchException e =
+                assertThrows(
+                        AppSearchException.class,
+                        () ->
+                                mAppSearchImpl.getNextPage(
+                                        "package1", firstToken, /*statsBuilder=*/ null));
+        assertThat(e.getResultCode()).isEqualTo(AppSearchResult.RESULT_SECURITY_ERROR);
+        assertThat(
+                        mAppSearchImpl
+                                .getNextPage("package1", secondToken, /*statsBuilder=*/ null)
+                                .getResults())
+                .hasSize(1);
+    }
+
+    @Test
+    public void testGlobalQuery_sharded() throws Exception {
+        // Create a new mAppSearchImpl that splits global queries into two shards, and lets
+        // everyone see every package but the visibility store's.
+        mAppSearchImpl.close();
+        mAppSearchImpl =
+                AppSearchImpl.create(
+                        mTemporaryFolder.newFolder(),
+                        new UnlimitedLimitConfig() {
+                            @Override
+                            public int getGlobalQueryShardCount() {
+                                return 2;
+                            }
+                        },
+                        /*initStatsBuilder=*/ null,
+                        ALWAYS_OPTIMIZE,
+                        (callerAccess, packageName, prefixedSchema, visibilityStore) ->
+                                !packageName.equals(VisibilityStore.VISIBILITY_PACKAGE_NAME));
+        // package1 holds as many documents as the two other packages together, and the scores
+        // interleave across packages.
+        int[][] packageScores = {{9, 6, 3, 1}, {8, 5}, {7, 2}};
+        for (int i = 0; i < packageScores.length; i++) {
+            String packageName = "package" + (i + 1);
+            mAppSearchImpl.setSchema(
+                    packageName,
+                    "database1",
+                    ImmutableList.of(new AppSearchSchema.Builder("schema1").build()),
+                    /*visibilityDocuments=*/ Collections.emptyList(),
+                    /*forceOverride=*/ false,
+                    /*version=*/ 0,
+                    /* setSchemaStatsBuilder= */ null);
+            for (int score : packageScores[i]) {
+                mAppSearchImpl.putDocument(
+                        packageName,
+                        "database1",
+                        new GenericDocument.Builder<>("namespace", "id" + score, "schema1")
+                                .setScore(score)
+                                .build(),
+                        /*sendChangeNotifications=*/ false,
+                        /*logger=*/ null);
+            }
+        }
+        SearchSpec searchSpec =
+                new SearchSpec.Builder()
+                        .setTermMatch(TermMatchType.Code.PREFIX_VALUE)
+                        .setRankingStrategy(SearchSpec.RANKING_STRATEGY_DOCUMENT_SCORE)
+                        .setResultCountPerPage(3)
+                        .build();
+
+        // The pages come out ranked as if all packages were searched at once.
+        List<String> ids = new ArrayList<>();
+        SimpleTestLogger logger = new SimpleTestLogger();
+        SearchResultPage searchResultPage =
+                mAppSearchImpl.globalQuery(
+                        /*queryExpression=*/ "",
+                        searchSpec,
+                        new CallerAccess(/*callingPackageName=*/ "package1"),
+                        logger);
+        assertThat(searchResultPage.getResults()).hasSize(3);
+
+        // The native stats of the shards are merged.
+        assertThat(logger.mSearchStats.getStatusCode()).isEqualTo(AppSearchResult.RESULT_OK);
+        assertThat(logger.mSearchStats.getScoredDocumentCount()).isEqualTo(8);
+        assertThat(logger.mSearchStats.getCurrentPageReturnedResultCount()).isEqualTo(3);
+        while (!searchResultPage.getResults().isEmpty()) {
+            for (SearchResult result : searchResultPage.getResults()) {
+                ids.add(result.getGenericDocument().getId());
+            }
+            searchResultPage =
+                    mAppSearchImpl.getNextPage(
+                            "package1",
+                            searchResultPage.getNextPageToken(),
+                            /*statsBuilder=*/ null);
+        }
+        assertThat(ids)
+                .containsExactly("id9", "id8", "id7", "id6", "id5", "id3", "id2", "id1")
+                .inOrder();
+        assertThat(mAppSearchImpl.getNextPageTokenCount()).isEqualTo(0);
+
+        // The merged next-page token can be invalidated like any other.
+        long nextPageToken =
+                mAppSearchImpl
+                        .globalQuery(
+                                /*queryExpression=*/ "",
+                                searchSpec,
+                                new CallerAccess(/*callingPackageName=*/ "package1"),
+                                /*logger=*/ null)
+                        .getNextPageToken();
+        mAppSearchImpl.invalidateNextPageToken("package1", nextPageToken);
+        AppSearchException e =
+                assertThrows(
+                        AppSearchException.class,
+                        () ->
+                                mAppSearchImpl.getNextPage(
+                                        "package1", nextPageToken, /*statsBuilder=*/ null));
         assertThat(e.getResultCode()).isEqualTo(AppSearchResult.RESULT_SECURITY_ERROR);
-
-        // Can continue getting next page for package1
-        searchResultPage =
-                mAppSearchImpl.getNextPage("package1", nextPageToken, /*statsBuilder=*/ null);
-        assertThat(searchResultPage.getResults()).hasSize(1);
-        assertThat(searchResultPage.getResults().get(0).getGenericDocument()).isEqualTo(document1);
     }
 
     @Test
-    public void testInvalidateNextPageToken_query() throws Exception {
-        // Insert package1 schema
-        List<AppSearchSchema> schema1 =
-                ImmutableList.of(new AppSearchSchema.Builder("schema1").build());
+    public void testQuery_cancelledBeforeSearch() throws Exception {
         mAppSearchImpl.setSchema(
                 "package1",
                 "database1",
-                schema1,
+                ImmutableList.of(new AppSearchSchema.Builder("schema1").build()),
                 /*visibilityDocuments=*/ Collections.emptyList(),
                 /*forceOverride=*/ false,
                 /*version=*/ 0,
                 /* setSchemaStatsBuilder= */ null);
-
-        // Insert two package1 documents
-        GenericDocument document1 =
-                new GenericDocument.Builder<>("namespace", "id1", "schema1").build();
-        GenericDocument document2 =
-                new GenericDocument.Builder<>("namespace", "id2", "schema1").build();
         mAppSearchImpl.putDocument(
                 "package1",
                 "database1",
-                document1,
+                new GenericDocument.Builder<>("namespace", "id1", "schema1").build(),
                 /*sendChangeNotifications=*/ false,
                 /*logger=*/ null);
-        mAppSearchImpl.putDocument(
+        SearchSpec searchSpec =
+                new SearchSpec.Builder().setTermMatch(TermMatchType.Code.PREFIX_VALUE).build();
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+
+        assertThrows(
+                OperationCanceledException.class,
+                () ->
+                        mAppSearchImpl.query(
+                                "package1",
+                                "database1",
+                                /*queryExpression=*/ "",
+                                searchSpec,
+                                cancellationSignal,
+                                /*logger=*/ null));
+        assertThrows(
+                OperationCanceledException.class,
+                () ->
+                        mAppSearchImpl.globalQuery(
+                                /*queryExpression=*/ "",
+                                searchSpec,
+                                new CallerAccess(/*callingPackageName=*/ "package1"),
+                                cancellationSignal,
+                                /*logger=*/ null));
+        assertThat(mAppSearchImpl.getCancelledQueryCount()).isEqualTo(2);
+
+        // A signal that isn't cancelled doesn't get in the way.
+        SearchResultPage searchResultPage =
+                mAppSearchImpl.query(
+                        "package1",
+                        "database1",
+                        /*queryExpression=*/ "",
+                        searchSpec,
+                        new CancellationSignal(),
+                        /*logger=*/ null);
+        assertThat(searchResultPage.getResults()).hasSize(1);
+        assertThat(mAppSearchImpl.getCancelledQueryCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testQuery_cancelledMidPage() throws Exception {
+        mAppSearchImpl.setSchema(
                 "package1",
                 "database1",
-                document2,
-                /*sendChangeNotifications=*/ false,
-                /*logger=*/ null);
-
-        // Query for only 1 result per page
+                ImmutableList.of(new AppSearchSchema.Builder("schema1").build()),
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        for (int i = 0; i < 5; i++) {
+            mAppSearchImpl.putDocument(
+                    "package1",
+                    "database1",
+                    new GenericDocument.Builder<>("namespace", "id" + i, "schema1").build(),
+                    /*sendChangeNotifications=*/ false,
+                    /*logger=*/ null);
+        }
         SearchSpec searchSpec =
                 new SearchSpec.Builder()
                         .setTermMatch(TermMatchType.Code.PREFIX_VALUE)
-                        .setResultCountPerPage(1)
+                        .setResultCountPerPage(3)
                         .build();
-        SearchResultPage searchResultPage =
-                mAppSearchImpl.query("package1", "database1", "", searchSpec, /*logger=*/ null);
-
-        // Document2 will come first because it was inserted last and default return order is
-        // most recent.
-        assertThat(searchResultPage.getResults()).hasSize(1);
-        assertThat(searchResultPage.getResults().get(0).getGenericDocument()).isEqualTo(document2);
-
-        long nextPageToken = searchResultPage.getNextPageToken();
-
-        // Invalidate the token
-        mAppSearchImpl.invalidateNextPageToken("package1", nextPageToken);
 
-        // Can't get next page because we invalidated the token.
-        AppSearchException e =
-                assertThrows(
-                        AppSearchException.class,
-                        () ->
-                                mAppSearchImpl.getNextPage(
-                                        "package1", nextPageToken, /*statsBuilder=*/ null));
-        assertThat(e)
-                .hasMessageThat()
-                .contains("Package \"package1\" cannot use nextPageToken: " + nextPageToken);
-        assertThat(e.getResultCode()).isEqualTo(AppSearchResult.RESULT_SECURITY_ERROR);
+        // The signal lets the query reach Icing and convert one result, then cancels it.
+        assertThrows(
+                OperationCanceledException.class,
+                () ->
+                        mAppSearchImpl.query(
+                                "package1",
+                                "database1",
+                                /*queryExpression=*/ "",
+                                searchSpec,
+                                new CountdownCancellationSignal(/*checksBeforeCancel=*/ 2),
+                                /*logger=*/ null));
+        assertThat(mAppSearchImpl.getCancelledQueryCount()).isEqualTo(1);
+        // The page that would have held the other results was released, not handed out.
+        assertThat(mAppSearchImpl.getNextPageTokenCount()).isEqualTo(0);
     }
 
     @Test
@@ -1453,6 +2023,94 @@ public class AppSearchImplTest {
         assertThat(setSchemaResponse.getIncompatibleTypes()).containsExactly("Email");
     }
 
+    @Test
+    public void testSetSchema_unchangedSchemaIsNotReapplied() throws Exception {
+        List<AppSearchSchema> schemas =
+                Collections.singletonList(new AppSearchSchema.Builder("Email").build());
+        mAppSearchImpl.setSchema(
+                "package",
+                "database1",
+                schemas,
+                /*visibilityDocuments=*/ ImmutableList.of(
+                        new VisibilityDocument.Builder("Email")
+                                .setNotDisplayedBySystem(true)
+                                .build()),
+                /*forceOverride=*/ false,
+                /*version=*/ 1,
+                /* setSchemaStatsBuilder= */ null);
+        SchemaProto schemaBefore = mAppSearchImpl.getSchemaProtoLocked();
+
+        // Set the same schema and visibility again, as apps do on every start.
+        SetSchemaResponse setSchemaResponse =
+                mAppSearchImpl.setSchema(
+                        "package",
+                        "database1",
+                        schemas,
+                        /*visibilityDocuments=*/ ImmutableList.of(
+                                new VisibilityDocument.Builder("Email")
+                                        .setNotDisplayedBySystem(true)
+                                        .build()),
+                        /*forceOverride=*/ false,
+                        /*version=*/ 1,
+                        /* setSchemaStatsBuilder= */ null);
+
+        assertThat(setSchemaResponse.getDeletedTypes()).isEmpty();
+        assertThat(setSchemaResponse.getIncompatibleTypes()).isEmpty();
+        // The cached schema wasn't replaced, so nothing was sent to Icing.
+        assertThat(mAppSearchImpl.getSchemaProtoLocked()).isSameInstanceAs(schemaBefore);
+        GetSchemaResponse getResponse =
+                mAppSearchImpl.getSchema(
+                        "package", "database1", new CallerAccess(/*callingPackageName=*/ "package"));
+        assertThat(getResponse.getSchemas()).containsExactlyElementsIn(schemas);
+        assertThat(getResponse.getVersion()).isEqualTo(1);
+        assertThat(getResponse.getSchemaTypesNotDisplayedBySystem()).containsExactly("Email");
+    }
+
+    @Test
+    public void testSetSchema_changedVersionOrVisibilityIsApplied() throws Exception {
+        List<AppSearchSchema> schemas =
+                Collections.singletonList(new AppSearchSchema.Builder("Email").build());
+        mAppSearchImpl.setSchema(
+                "package",
+                "database1",
+                schemas,
+                /*visibilityDocuments=*/ ImmutableList.of(
+                        new VisibilityDocument.Builder("Email")
+                                .setNotDisplayedBySystem(true)
+                                .build()),
+                /*forceOverride=*/ false,
+                /*version=*/ 1,
+                /* setSchemaStatsBuilder= */ null);
+
+        // Same types, but the visibility reverts to the default.
+        mAppSearchImpl.setSchema(
+                "package",
+                "database1",
+                schemas,
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 1,
+                /* setSchemaStatsBuilder= */ null);
+        GetSchemaResponse getResponse =
+                mAppSearchImpl.getSchema(
+                        "package", "database1", new CallerAccess(/*callingPackageName=*/ "package"));
+        assertThat(getResponse.getSchemaTypesNotDisplayedBySystem()).isEmpty();
+
+        // Same types and visibility, but a new version.
+        mAppSearchImpl.setSchema(
+                "package",
+                "database1",
+                schemas,
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 2,
+                /* setSchemaStatsBuilder= */ null);
+        getResponse =
+                mAppSearchImpl.getSchema(
+                        "package", "database1", new CallerAccess(/*callingPackageName=*/ "package"));
+        assertThat(getResponse.getVersion()).isEqualTo(2);
+    }
+
     @Test
     public void testRemoveSchema() throws Exception {
         List<SchemaTypeConfigProto> existingSchemas =
@@ -2361,6 +3019,157 @@ public class AppSearchImplTest {
                 () -> mAppSearchImpl.persistToDisk(PersistType.Code.FULL));
     }
 
+    @Test
+    public void testGetDocuments() throws Exception {
+        List<AppSearchSchema> schemas =
+                Collections.singletonList(new AppSearchSchema.Builder("type").build());
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                schemas,
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        GenericDocument document1 =
+                new GenericDocument.Builder<>("namespace", "id1", "type").build();
+        GenericDocument document2 =
+                new GenericDocument.Builder<>("namespace", "id2", "type").build();
+        mAppSearchImpl.putDocument(
+                "package",
+                "database",
+                document1,
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+        mAppSearchImpl.putDocument(
+                "package",
+                "database",
+                document2,
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+
+        AppSearchBatchResult<String, GenericDocument> result =
+                mAppSearchImpl.getDocuments(
+                        "package",
+                        "database",
+                        "namespace",
+                        ImmutableList.of("id1", "missing", "id2"),
+                        Collections.emptyMap());
+
+        assertThat(result.getSuccesses()).containsExactly("id1", document1, "id2", document2);
+        assertThat(result.getFailures()).hasSize(1);
+        assertThat(result.getFailures().get("missing").getResultCode())
+                .isEqualTo(AppSearchResult.RESULT_NOT_FOUND);
+    }
+
+    @Test
+    public void testGlobalGetDocuments() throws Exception {
+        List<AppSearchSchema> schemas =
+                Collections.singletonList(new AppSearchSchema.Builder("type").build());
+        mAppSearchImpl.setSchema(
+                "package",
+                "database",
+                schemas,
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /* setSchemaStatsBuilder= */ null);
+        GenericDocument document =
+                new GenericDocument.Builder<>("namespace", "id1", "type").build();
+        mAppSearchImpl.putDocument(
+                "package",
+                "database",
+                document,
+                /*sendChangeNotifications=*/ false,
+                /*logger=*/ null);
+
+        // The owner can read its own documents.
+        AppSearchBatchResult<String, GenericDocument> result =
+                mAppSearchImpl.globalGetDocuments(
+                        "package",
+                        "database",
+                        "namespace",
+                        ImmutableList.of("id1", "missing"),
+                        Collections.emptyMap(),
+                        new CallerAccess(/*callingPackageName=*/ "package"));
+        assertThat(result.getSuccesses()).containsExactly("id1", document);
+        assertThat(result.getFailures().get("missing").getResultCode())
+                .isEqualTo(AppSearchResult.RESULT_NOT_FOUND);
+
+        // Other packages can't tell hidden documents apart from missing ones.
+        result =
+                mAppSearchImpl.globalGetDocuments(
+                        "package",
+                        "database",
+                        "namespace",
+                        ImmutableList.of("id1", "missing"),
+                        Collections.emptyMap(),
+                        new CallerAccess(/*callingPackageName=*/ "otherPackage"));
+        assertThat(result.getSuccesses()).isEmpty();
+        assertThat(result.getFailures().get("id1").getResultCode())
+                .isEqualTo(AppSearchResult.RESULT_NOT_FOUND);
+        assertThat(result.getFailures().get("missing").getResultCode())
+                .isEqualTo(AppSearchResult.RESULT_NOT_FOUND);
+    }
+
+    @Test
+    public void testRemoveDocuments() throws Exception {
+        mAppSearchImpl.setSchema(
+                mContext.getPackageName(),
+                "database1",
+                ImmutableList.of(new AppSearchSchema.Builder("Type1").build()),
+                /*visibilityDocuments=*/ Collections.emptyList(),
+                /*forceOverride=*/ false,
+                /*version=*/ 0,
+                /*setSchemaStatsBuilder=*/ null);
+        for (String id : ImmutableList.of("id1", "id2", "id3")) {
+            mAppSearchImpl.putDocument(
+                    mContext.getPackageName(),
+                    "database1",
+                    new GenericDocument.Builder<>("namespace1", id, "Type1").build(),
+                    /*sendChangeNotifications=*/ false,
+                    /*logger=*/ null);
+        }
+        TestObserverCallback observer = new TestObserverCallback();
+        mAppSearchImpl.registerObserverCallback(
+                /*listeningPackageAccess=*/ mSelfCallerAccess,
+                /*targetPackageName=*/ mContext.getPackageName(),
+                new ObserverSpec.Builder().build(),
+                MoreExecutors.directExecutor(),
+                observer);
+
+        AppSearchBatchResult<String, Void> result =
+                mAppSearchImpl.removeDocuments(
+                        mContext.getPackageName(),
+                        "database1",
+                        "namespace1",
+                        ImmutableList.of("id1", "missing", "id3"));
+
+        assertThat(result.getSuccesses().keySet()).containsExactly("id1", "id3");
+        assertThat(result.getFailures()).hasSize(1);
+        assertThat(result.getFailures().get("missing").getResultCode())
+                .isEqualTo(AppSearchResult.RESULT_NOT_FOUND);
+        AppSearchBatchResult<String, GenericDocument> getResult =
+                mAppSearchImpl.getDocuments(
+                        mContext.getPackageName(),
+                        "database1",
+                        "namespace1",
+                        ImmutableList.of("id1", "id2", "id3"),
+                        Collections.emptyMap());
+        assertThat(getResult.getSuccesses().keySet()).containsExactly("id2");
+
+        // Only the removed documents are reported.
+        mAppSearchImpl.dispatchAndClearChangeNotifications();
+        assertThat(observer.getDocumentChanges())
+                .containsExactly(
+                        new DocumentChangeInfo(
+                                mContext.getPackageName(),
+                                "database1",
+                                "namespace1",
+                                "Type1",
+                                ImmutableSet.of("id1", "id3")));
+    }
+
     @Test
     public void testPutPersistsWithLiteFlush() throws Exception {
         List<AppSearchSchema> schemas =
@@ -5319,4 +6128,18 @@ public class AppSearchImplTest {
                                 ImmutableSet.of("Type1", "Type2")));
         assertThat(observer.getDocumentChanges()).isEmpty();
     }
+
+    /** A signal that reads as cancelled once {@link #isCanceled} was called a number of times. */
+    private static final class CountdownCancellationSignal extends CancellationSignal {
+        private int mChecksBeforeCancel;
+
+        CountdownCancellationSignal(int checksBeforeCancel) {
+            mChecksBeforeCancel = checksBeforeCancel;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mChecksBeforeCancel-- <= 0 || super.isCanceled();
+        }
+    }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import static android.app.appsearch.SearchSpec.RESULT_MODE_DOCUMENTS;
+import static android.app.appsearch.SearchSpec.RESULT_MODE_IDS;
+
+import static com.android.server.appsearch.external.localstorage.NextPageTokenRegistry.TOKEN_NOT_REGISTERED;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class NextPageTokenRegistryTest {
+    @Test
+    public void testAddAndCheck() {
+        NextPageTokenRegistry registry =
+                new NextPageTokenRegistry(/*maxTokensPerPackage=*/ 10, Long.MAX_VALUE);
+
+        assertThat(registry.add("package1", 30L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1))
+                .isEmpty();
+        assertThat(registry.add("package1", 10L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 2))
+                .isEmpty();
+        assertThat(registry.add("package2", 20L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 3))
+                .isEmpty();
+
+        assertThat(registry.checkAndTouch("package1", 10L, /*nowMillis=*/ 4))
+                .isEqualTo(RESULT_MODE_DOCUMENTS);
+        assertThat(registry.checkAndTouch("package1", 30L, /*nowMillis=*/ 4))
+                .isEqualTo(RESULT_MODE_DOCUMENTS);
+        assertThat(registry.checkAndTouch("package1", 20L, /*nowMillis=*/ 4))
+                .isEqualTo(TOKEN_NOT_REGISTERED);
+        assertThat(registry.checkAndTouch("package2", 20L, /*nowMillis=*/ 4))
+                .isEqualTo(RESULT_MODE_DOCUMENTS);
+        assertThat(registry.checkAndTouch("package3", 20L, /*nowMillis=*/ 4))
+                .isEqualTo(TOKEN_NOT_REGISTERED);
+        assertThat(registry.getTokenCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testAddAndCheck_resultMode() {
+        NextPageTokenRegistry registry =
+                new NextPageTokenRegistry(/*maxTokensPerPackage=*/ 10, Long.MAX_VALUE);
+
+        registry.add("package1", 30L, RESULT_MODE_IDS, /*nowMillis=*/ 1);
+        registry.add("package1", 10L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 2);
+        registry.add("package1", 20L, RESULT_MODE_IDS, /*nowMillis=*/ 3);
+        registry.remove("package1", 10L);
+
+        // The mode each token was registered with survives the arrays shifting around it.
+        assertThat(registry.checkAndTouch("package1", 20L, /*nowMillis=*/ 4))
+                .isEqualTo(RESULT_MODE_IDS);
+        assertThat(registry.checkAndTouch("package1", 30L, /*nowMillis=*/ 4))
+                .isEqualTo(RESULT_MODE_IDS);
+    }
+
+    @Test
+    public void testRemove() {
+        NextPageTokenRegistry registry =
+                new NextPageTokenRegistry(/*maxTokensPerPackage=*/ 10, Long.MAX_VALUE);
+        registry.add("package1", 10L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1);
+        registry.add("package1", 20L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1);
+
+        assertThat(registry.remove("package1", 10L)).isTrue();
+        assertThat(registry.remove("package1", 10L)).isFalse();
+        assertThat(registry.remove("package2", 20L)).isFalse();
+        assertThat(registry.checkAndTouch("package1", 10L, /*nowMillis=*/ 2))
+                .isEqualTo(TOKEN_NOT_REGISTERED);
+        assertThat(registry.checkAndTouch("package1", 20L, /*nowMillis=*/ 2))
+                .isEqualTo(RESULT_MODE_DOCUMENTS);
+        assertThat(registry.getTokenCount()).isEqualTo(1);
+        assertThat(registry.getEvictedTokenCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRemovePackage() {
+        NextPageTokenRegistry registry =
+                new NextPageTokenRegistry(/*maxTokensPerPackage=*/ 10, Long.MAX_VALUE);
+        registry.add("package1", 10L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1);
+        registry.add("package1", 20L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1);
+        registry.add("package2", 30L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1);
+
+        assertThat(registry.removePackage("package1")).asList().containsExactly(10L, 20L);
+        assertThat(registry.removePackage("package1")).isEmpty();
+        assertThat(registry.getTokenCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPackageCap_evictsLeastRecentlyUsed() {
+        NextPageTokenRegistry registry =
+                new NextPageTokenRegistry(/*maxTokensPerPackage=*/ 2, Long.MAX_VALUE);
+        registry.add("package1", 10L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1);
+        registry.add("package1", 20L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 2);
+        // Touching token 10 makes token 20 the least recently used one.
+        registry.checkAndTouch("package1", 10L, /*nowMillis=*/ 3);
+
+        assertThat(registry.add("package1", 30L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 4))
+                .asList()
+                .containsExactly(20L);
+        assertThat(registry.checkAndTouch("package1", 20L, /*nowMillis=*/ 5))
+                .isEqualTo(TOKEN_NOT_REGISTERED);
+        assertThat(registry.getTokenCount()).isEqualTo(2);
+        assertThat(registry.getEvictedTokenCount()).isEqualTo(1);
+
+        // Other packages have their own cap.
+        assertThat(registry.add("package2", 40L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 6))
+                .isEmpty();
+        // Re-adding a known token doesn't evict anything.
+        assertThat(registry.add("package1", 30L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 7))
+                .isEmpty();
+    }
+
+    @Test
+    public void testTtl_evictsIdleTokens() {
+        NextPageTokenRegistry registry =
+                new NextPageTokenRegistry(/*maxTokensPerPackage=*/ 10, /*ttlMillis=*/ 100);
+        registry.add("package1", 10L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1000);
+        registry.add("package2", 20L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1050);
+
+        assertThat(registry.evictExpired(/*nowMillis=*/ 1099)).isEmpty();
+        assertThat(registry.evictExpired(/*nowMillis=*/ 1100)).asList().containsExactly(10L);
+        assertThat(registry.checkAndTouch("package1", 10L, /*nowMillis=*/ 1100))
+                .isEqualTo(TOKEN_NOT_REGISTERED);
+
+        // Using a token keeps it alive.
+        assertThat(registry.checkAndTouch("package2", 20L, /*nowMillis=*/ 1140))
+                .isEqualTo(RESULT_MODE_DOCUMENTS);
+        assertThat(registry.evictExpired(/*nowMillis=*/ 1200)).isEmpty();
+        assertThat(registry.getEvictedTokenCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testTtl_sweptWhenAdding() {
+        NextPageTokenRegistry registry =
+                new NextPageTokenRegistry(/*maxTokensPerPackage=*/ 10, /*ttlMillis=*/ 100);
+        registry.add("package1", 10L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1000);
+
+        assertThat(registry.add("package2", 20L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1200))
+                .asList()
+                .containsExactly(10L);
+        assertThat(registry.getTokenCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testClear() {
+        NextPageTokenRegistry registry =
+                new NextPageTokenRegistry(/*maxTokensPerPackage=*/ 10, Long.MAX_VALUE);
+        registry.add("package1", 10L, RESULT_MODE_DOCUMENTS, /*nowMillis=*/ 1);
+
+        registry.clear();
+
+        assertThat(registry.checkAndTouch("package1", 10L, /*nowMillis=*/ 2))
+                .isEqualTo(TOKEN_NOT_REGISTERED);
+        assertThat(registry.getTokenCount()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.appsearch.observer.DocumentChangeInfo;
+import android.app.appsearch.observer.ObserverSpec;
+import android.app.appsearch.observer.SchemaChangeInfo;
+import android.app.appsearch.testutil.TestObserverCallback;
+
+import com.android.server.appsearch.external.localstorage.visibilitystore.CallerAccess;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ObserverManagerTest {
+    private static final String PACKAGE_NAME = "package";
+
+    @Test
+    public void testDocumentChanges_deduplicatedAtDispatch() throws Exception {
+        ObserverManager observerManager = new ObserverManager(/*maxPendingDocumentIds=*/ 3);
+        TestObserverCallback observer = new TestObserverCallback();
+        observerManager.registerObserverCallback(
+                new CallerAccess(PACKAGE_NAME),
+                PACKAGE_NAME,
+                new ObserverSpec.Builder().build(),
+                MoreExecutors.directExecutor(),
+                observer);
+
+        // More changes than the limit, but only 3 distinct IDs.
+        for (int i = 0; i < 10; i++) {
+            onDocumentChange(observerManager, "id" + (i % 3));
+        }
+        observerManager.dispatchAndClearPendingNotifications();
+
+        observer.waitForNotificationCount(1);
+        assertThat(observer.getDocumentChanges())
+                .containsExactly(
+                        new DocumentChangeInfo(
+                                PACKAGE_NAME,
+                                "database",
+                                "namespace",
+                                "Type",
+                                ImmutableSet.of("id0", "id1", "id2")));
+    }
+
+    @Test
+    public void testDocumentChanges_largeGroupSentOutsideBatch() throws Exception {
+        ObserverManager observerManager = new ObserverManager(/*maxPendingDocumentIds=*/ 3);
+        TestBatchObserverCallback observer = new TestBatchObserverCallback();
+        observerManager.registerObserverCallback(
+                new CallerAccess(PACKAGE_NAME),
+                PACKAGE_NAME,
+                new ObserverSpec.Builder().build(),
+                MoreExecutors.directExecutor(),
+                observer);
+
+        ImmutableSet.Builder<String> expectedIds = ImmutableSet.builder();
+        for (int i = 0; i < 10; i++) {
+            onDocumentChange(observerManager, "id" + i);
+            expectedIds.add("id" + i);
+        }
+        observerManager.onDocumentChange(
+                PACKAGE_NAME,
+                "database",
+                "otherNamespace",
+                "Type",
+                "id0",
+                /*visibilityStore=*/ null,
+                /*visibilityChecker=*/ null);
+        observerManager.dispatchAndClearPendingNotifications();
+
+        // Only the small group is batched. The large one follows in chunks of at most 3 IDs,
+        // which together hold every changed ID.
+        observer.waitForNotificationCount(5);
+        DocumentChangeInfo smallChange =
+                new DocumentChangeInfo(
+                        PACKAGE_NAME, "database", "otherNamespace", "Type", ImmutableSet.of("id0"));
+        assertThat(observer.mBatchedDocumentChanges).containsExactly(smallChange);
+        ImmutableSet.Builder<String> actualIds = ImmutableSet.builder();
+        for (DocumentChangeInfo change : observer.getDocumentChanges()) {
+            if (change.equals(smallChange)) {
+                continue;
+            }
+            assertThat(change.getNamespace()).isEqualTo("namespace");
+            assertThat(change.getChangedDocumentIds()).isNotEmpty();
+            assertThat(change.getChangedDocumentIds().size()).isAtMost(3);
+            actualIds.addAll(change.getChangedDocumentIds());
+        }
+        assertThat(actualIds.build()).isEqualTo(expectedIds.build());
+    }
+
+    @Test
+    public void testDocumentChanges_plainObserverGetsWholeGroup() throws Exception {
+        ObserverManager observerManager = new ObserverManager(/*maxPendingDocumentIds=*/ 3);
+        TestObserverCallback observer = new TestObserverCallback();
+        observerManager.registerObserverCallback(
+                new CallerAccess(PACKAGE_NAME),
+                PACKAGE_NAME,
+                new ObserverSpec.Builder().build(),
+                MoreExecutors.directExecutor(),
+                observer);
+
+        ImmutableSet.Builder<String> expectedIds = ImmutableSet.builder();
+        for (int i = 0; i < 2000; i++) {
+            onDocumentChange(observerManager, "id" + i);
+            expectedIds.add("id" + i);
+        }
+        observerManager.dispatchAndClearPendingNotifications();
+
+        // A plain ObserverCallback gets each change on its own anyway, so it isn't split.
+        observer.waitForNotificationCount(1);
+        assertThat(observer.getDocumentChanges())
+                .containsExactly(
+                        new DocumentChangeInfo(
+                                PACKAGE_NAME,
+                                "database",
+                                "namespace",
+                                "Type",
+                                expectedIds.build()));
+    }
+
+    @Test
+    public void testRouting_bySchemaTypeAndWildcard() throws Exception {
+        ObserverManager observerManager = new ObserverManager();
+        TestObserverCallback typeObserver = new TestObserverCallback();
+        TestObserverCallback otherTypeObserver = new TestObserverCallback();
+        TestObserverCallback wildcardObserver = new TestObserverCallback();
+        observerManager.registerObserverCallback(
+                new CallerAccess(PACKAGE_NAME),
+                PACKAGE_NAME,
+                new ObserverSpec.Builder().addFilterSchemas("Type", "Other").build(),
+                MoreExecutors.directExecutor(),
+                typeObserver);
+        observerManager.registerObserverCallback(
+                new CallerAccess(PACKAGE_NAME),
+                PACKAGE_NAME,
+                new ObserverSpec.Builder().addFilterSchemas("Other").build(),
+                MoreExecutors.directExecutor(),
+                otherTypeObserver);
+        observerManager.registerObserverCallback(
+                new CallerAccess(PACKAGE_NAME),
+                PACKAGE_NAME,
+                new ObserverSpec.Builder().build(),
+                MoreExecutors.directExecutor(),
+                wildcardObserver);
+
+        assertThat(observerManager.isSchemaTypeObserved(PACKAGE_NAME, "Type")).isTrue();
+        assertThat(observerManager.isSchemaTypeObserved("otherPackage", "Type")).isFalse();
+        onDocumentChange(observerManager, "id0");
+        observerManager.dispatchAndClearPendingNotifications();
+
+        DocumentChangeInfo expected =
+                new DocumentChangeInfo(
+                        PACKAGE_NAME, "database", "namespace", "Type", ImmutableSet.of("id0"));
+        typeObserver.waitForNotificationCount(1);
+        assertThat(typeObserver.getDocumentChanges()).containsExactly(expected);
+        wildcardObserver.waitForNotificationCount(1);
+        assertThat(wildcardObserver.getDocumentChanges()).containsExactly(expected);
+        assertThat(otherTypeObserver.getDocumentChanges()).isEmpty();
+
+        // Once the wildcard and "Type" observers are gone, "Type" is no longer routed anywhere.
+        observerManager.unregisterObserverCallback(PACKAGE_NAME, typeObserver);
+        observerManager.unregisterObserverCallback(PACKAGE_NAME, wildcardObserver);
+        assertThat(observerManager.isSchemaTypeObserved(PACKAGE_NAME, "Type")).isFalse();
+        assertThat(observerManager.isSchemaTypeObserved(PACKAGE_NAME, "Other")).isTrue();
+
+        observerManager.unregisterObserverCallback(PACKAGE_NAME, otherTypeObserver);
+        assertThat(observerManager.isPackageObserved(PACKAGE_NAME)).isFalse();
+    }
+
+    /** A {@link TestObserverCallback} receiving its changes as a {@link BatchObserverCallback}. */
+    private static final class TestBatchObserverCallback extends TestObserverCallback
+            implements BatchObserverCallback {
+        /** The document changes received through {@link #onChanged}. */
+        final List<DocumentChangeInfo> mBatchedDocumentChanges = new ArrayList<>();
+
+        @Override
+        public void onChanged(
+                List<SchemaChangeInfo> schemaChanges, List<DocumentChangeInfo> documentChanges) {
+            mBatchedDocumentChanges.addAll(documentChanges);
+            for (int i = 0; i < schemaChanges.size(); i++) {
+                onSchemaChanged(schemaChanges.get(i));
+            }
+            for (int i = 0; i < documentChanges.size(); i++) {
+                onDocumentChanged(documentChanges.get(i));
+            }
+        }
+    }
+
+    private static void onDocumentChange(ObserverManager observerManager, String documentId) {
+        observerManager.onDocumentChange(
+                PACKAGE_NAME,
+                "database",
+                "namespace",
+                "Type",
+                documentId,
+                /*visibilityStore=*/ null,
+                /*visibilityChecker=*/ null);
+    }
+}
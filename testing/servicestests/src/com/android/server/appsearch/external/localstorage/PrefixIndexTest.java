@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import static com.android.server.appsearch.external.localstorage.util.PrefixUtil.createPrefix;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+public class PrefixIndexTest {
+    @Test
+    public void testAdd() {
+        PrefixIndex index = new PrefixIndex();
+        assertThat(index.add(createPrefix("package1", "database1"))).isTrue();
+        assertThat(index.add(createPrefix("package1", "database2"))).isTrue();
+        assertThat(index.add(createPrefix("package2", "database1"))).isTrue();
+        assertThat(index.add(createPrefix("package1", "database1"))).isFalse();
+
+        assertThat(index.contains(createPrefix("package1", "database2"))).isTrue();
+        assertThat(index.contains(createPrefix("package2", "database2"))).isFalse();
+        assertThat(index.getPackageNames()).containsExactly("package1", "package2");
+        assertThat(index.getPrefixes("package1"))
+                .containsExactly(
+                        createPrefix("package1", "database1"),
+                        createPrefix("package1", "database2"));
+        assertThat(index.getPrefixes("package3")).isEmpty();
+        assertThat(index.getPackageToDatabases())
+                .containsExactly(
+                        "package1",
+                        ImmutableSet.of("database1", "database2"),
+                        "package2",
+                        ImmutableSet.of("database1"));
+    }
+
+    @Test
+    public void testRemovePackage() {
+        PrefixIndex index = new PrefixIndex();
+        index.add(createPrefix("package1", "database1"));
+        index.add(createPrefix("package2", "database1"));
+
+        index.removePackage("package1");
+        index.removePackage("package3");
+
+        assertThat(index.contains(createPrefix("package1", "database1"))).isFalse();
+        assertThat(index.getPackageNames()).containsExactly("package2");
+        assertThat(index.getPrefixes("package1")).isEmpty();
+
+        // A removed prefix can be added back.
+        assertThat(index.add(createPrefix("package1", "database1"))).isTrue();
+
+        index.clear();
+        assertThat(index.getPackageNames()).isEmpty();
+    }
+
+    @Test
+    public void testGetPackageToDatabases_returnsCopy() {
+        PrefixIndex index = new PrefixIndex();
+        index.add(createPrefix("package1", "database1"));
+
+        Map<String, Set<String>> packageToDatabases = index.getPackageToDatabases();
+        packageToDatabases.get("package1").add("database2");
+        packageToDatabases.remove("package1");
+
+        assertThat(index.getPackageToDatabases())
+                .isEqualTo(ImmutableMap.of("package1", ImmutableSet.of("database1")));
+    }
+}
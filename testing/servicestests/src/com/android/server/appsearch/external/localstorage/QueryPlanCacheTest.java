@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.appsearch.SearchSpec;
+
+import com.android.server.appsearch.external.localstorage.converter.SearchSpecToProtoConverter;
+import com.android.server.appsearch.icing.proto.SchemaTypeConfigProto;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+public class QueryPlanCacheTest {
+    private static final String PREFIX = "package$database/";
+    private static final Map<String, Set<String>> NAMESPACE_MAP =
+            ImmutableMap.of(PREFIX, ImmutableSet.of(PREFIX + "namespace"));
+    private static final Map<String, Map<String, SchemaTypeConfigProto>> SCHEMA_MAP =
+            ImmutableMap.of(
+                    PREFIX,
+                    ImmutableMap.of(
+                            PREFIX + "Type",
+                            SchemaTypeConfigProto.newBuilder()
+                                    .setSchemaType(PREFIX + "Type")
+                                    .build()));
+
+    @Test
+    public void testGet_sameSpecShape() {
+        QueryPlanCache cache = new QueryPlanCache(/*maxEntries=*/ 10);
+        QueryPlanCache.QueryPlan plan = createPlan(newSpecBuilder().build());
+        cache.put(PREFIX, newSpecBuilder().build(), plan);
+
+        // An equal spec built separately finds the plan, a different one or caller doesn't.
+        assertThat(cache.get(PREFIX, newSpecBuilder().build(), Long.MAX_VALUE, /*nowMillis=*/ 0))
+                .isSameInstanceAs(plan);
+        assertThat(
+                        cache.get(
+                                PREFIX,
+                                newSpecBuilder().setResultCountPerPage(2).build(),
+                                Long.MAX_VALUE,
+                                /*nowMillis=*/ 0))
+                .isNull();
+        assertThat(
+                        cache.get(
+                                "other$database/",
+                                newSpecBuilder().build(),
+                                Long.MAX_VALUE,
+                                /*nowMillis=*/ 0))
+                .isNull();
+
+        // The query expression is filled in per query.
+        assertThat(plan.toSearchSpecProto("foo").getQuery()).isEqualTo("foo");
+        assertThat(plan.toSearchSpecProto("foo").getNamespaceFiltersList())
+                .containsExactly(PREFIX + "namespace");
+    }
+
+    @Test
+    public void testGet_expired() {
+        QueryPlanCache cache = new QueryPlanCache(/*maxEntries=*/ 10);
+        SearchSpec searchSpec = newSpecBuilder().build();
+        cache.put(PREFIX, searchSpec, createPlan(searchSpec));
+
+        assertThat(cache.get(PREFIX, searchSpec, /*maxAgeMillis=*/ 10, /*nowMillis=*/ 10))
+                .isNotNull();
+        assertThat(cache.get(PREFIX, searchSpec, /*maxAgeMillis=*/ 10, /*nowMillis=*/ 11))
+                .isNull();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPut_evictsLeastRecentlyUsed() {
+        QueryPlanCache cache = new QueryPlanCache(/*maxEntries=*/ 2);
+        SearchSpec spec1 = newSpecBuilder().setResultCountPerPage(1).build();
+        SearchSpec spec2 = newSpecBuilder().setResultCountPerPage(2).build();
+        SearchSpec spec3 = newSpecBuilder().setResultCountPerPage(3).build();
+        cache.put(PREFIX, spec1, createPlan(spec1));
+        cache.put(PREFIX, spec2, createPlan(spec2));
+        // Use spec1, so that spec2 is the least recently used plan.
+        assertThat(cache.get(PREFIX, spec1, Long.MAX_VALUE, /*nowMillis=*/ 0)).isNotNull();
+        cache.put(PREFIX, spec3, createPlan(spec3));
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get(PREFIX, spec1, Long.MAX_VALUE, /*nowMillis=*/ 0)).isNotNull();
+        assertThat(cache.get(PREFIX, spec2, Long.MAX_VALUE, /*nowMillis=*/ 0)).isNull();
+        assertThat(cache.get(PREFIX, spec3, Long.MAX_VALUE, /*nowMillis=*/ 0)).isNotNull();
+
+        cache.clear();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testNothingToSearch() {
+        SearchSpec searchSpec = newSpecBuilder().addFilterNamespaces("missing").build();
+        assertThat(createPlan(searchSpec).isNothingToSearch()).isTrue();
+        assertThat(createPlan(newSpecBuilder().build()).isNothingToSearch()).isFalse();
+    }
+
+    private static SearchSpec.Builder newSpecBuilder() {
+        return new SearchSpec.Builder().setTermMatch(SearchSpec.TERM_MATCH_PREFIX);
+    }
+
+    private static QueryPlanCache.QueryPlan createPlan(SearchSpec searchSpec) {
+        SearchSpecToProtoConverter converter =
+                new SearchSpecToProtoConverter(
+                        searchSpec, ImmutableSet.of(PREFIX), NAMESPACE_MAP, SCHEMA_MAP);
+        return QueryPlanCache.QueryPlan.create(converter, NAMESPACE_MAP, /*nowMillis=*/ 0);
+    }
+}
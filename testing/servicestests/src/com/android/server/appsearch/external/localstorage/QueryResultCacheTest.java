@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.app.appsearch.SearchResultPage;
+import android.app.appsearch.SearchSpec;
+import android.os.Bundle;
+
+import org.junit.Test;
+
+public class QueryResultCacheTest {
+    private static final String PREFIX = "package$database/";
+    private static final String OTHER_PREFIX = "package$otherDatabase/";
+    private static final SearchSpec SEARCH_SPEC =
+            new SearchSpec.Builder().setTermMatch(SearchSpec.TERM_MATCH_PREFIX).build();
+
+    @Test
+    public void testGet_sameQuery() {
+        QueryResultCache cache =
+                new QueryResultCache(/*maxBytes=*/ 100, /*maxAgeMillis=*/ Long.MAX_VALUE);
+        SearchResultPage page = createPage(/*nextPageToken=*/ 0);
+        cache.put(createKey(cache, PREFIX, "foo"), page, /*sizeBytes=*/ 10, /*nowMillis=*/ 0);
+
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 0))
+                .isSameInstanceAs(page);
+        assertThat(cache.get(createKey(cache, PREFIX, "bar"), /*nowMillis=*/ 0)).isNull();
+        assertThat(cache.get(createKey(cache, OTHER_PREFIX, "foo"), /*nowMillis=*/ 0)).isNull();
+        assertThat(cache.getSizeBytes()).isEqualTo(10);
+
+        cache.clear();
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 0)).isNull();
+        assertThat(cache.getSizeBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPut_pageWithNextPageTokenNotCached() {
+        QueryResultCache cache =
+                new QueryResultCache(/*maxBytes=*/ 100, /*maxAgeMillis=*/ Long.MAX_VALUE);
+        cache.put(
+                createKey(cache, PREFIX, "foo"),
+                createPage(/*nextPageToken=*/ 123),
+                /*sizeBytes=*/ 10,
+                /*nowMillis=*/ 0);
+
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 0)).isNull();
+        assertThat(cache.getSizeBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testOnMutation_invalidatesLocalQueriesOfPrefix() {
+        QueryResultCache cache =
+                new QueryResultCache(/*maxBytes=*/ 100, /*maxAgeMillis=*/ Long.MAX_VALUE);
+        cache.put(
+                createKey(cache, PREFIX, "foo"),
+                createPage(/*nextPageToken=*/ 0),
+                /*sizeBytes=*/ 10,
+                /*nowMillis=*/ 0);
+        cache.put(
+                createKey(cache, OTHER_PREFIX, "foo"),
+                createPage(/*nextPageToken=*/ 0),
+                /*sizeBytes=*/ 10,
+                /*nowMillis=*/ 0);
+
+        cache.onMutation(PREFIX);
+
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 0)).isNull();
+        assertThat(cache.get(createKey(cache, OTHER_PREFIX, "foo"), /*nowMillis=*/ 0))
+                .isNotNull();
+    }
+
+    @Test
+    public void testOnMutation_invalidatesGlobalQueries() {
+        QueryResultCache cache =
+                new QueryResultCache(/*maxBytes=*/ 100, /*maxAgeMillis=*/ Long.MAX_VALUE);
+        cache.put(
+                createKey(cache, /*prefix=*/ null, "foo"),
+                createPage(/*nextPageToken=*/ 0),
+                /*sizeBytes=*/ 10,
+                /*nowMillis=*/ 0);
+        assertThat(cache.get(createKey(cache, /*prefix=*/ null, "foo"), /*nowMillis=*/ 0))
+                .isNotNull();
+
+        cache.onMutation(OTHER_PREFIX);
+
+        assertThat(cache.get(createKey(cache, /*prefix=*/ null, "foo"), /*nowMillis=*/ 0))
+                .isNull();
+    }
+
+    @Test
+    public void testPut_keyCreatedBeforeMutationNotCached() {
+        QueryResultCache cache =
+                new QueryResultCache(/*maxBytes=*/ 100, /*maxAgeMillis=*/ Long.MAX_VALUE);
+        QueryResultCache.Key staleKey = createKey(cache, PREFIX, "foo");
+
+        // The query's results may not reflect a mutation made while it ran.
+        cache.onMutation(PREFIX);
+        cache.put(staleKey, createPage(/*nextPageToken=*/ 0), /*sizeBytes=*/ 10, /*nowMillis=*/ 0);
+
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 0)).isNull();
+    }
+
+    @Test
+    public void testGet_expired() {
+        QueryResultCache cache = new QueryResultCache(/*maxBytes=*/ 100, /*maxAgeMillis=*/ 10);
+        cache.put(
+                createKey(cache, PREFIX, "foo"),
+                createPage(/*nextPageToken=*/ 0),
+                /*sizeBytes=*/ 10,
+                /*nowMillis=*/ 0);
+
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 10)).isNotNull();
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 11)).isNull();
+        assertThat(cache.getSizeBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testPut_evictsLeastRecentlyUsedByBytes() {
+        QueryResultCache cache =
+                new QueryResultCache(/*maxBytes=*/ 25, /*maxAgeMillis=*/ Long.MAX_VALUE);
+        cache.put(
+                createKey(cache, PREFIX, "foo"),
+                createPage(/*nextPageToken=*/ 0),
+                /*sizeBytes=*/ 10,
+                /*nowMillis=*/ 0);
+        cache.put(
+                createKey(cache, PREFIX, "bar"),
+                createPage(/*nextPageToken=*/ 0),
+                /*sizeBytes=*/ 10,
+                /*nowMillis=*/ 0);
+        // Use "foo", so that "bar" is the least recently used page.
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 0)).isNotNull();
+        cache.put(
+                createKey(cache, PREFIX, "baz"),
+                createPage(/*nextPageToken=*/ 0),
+                /*sizeBytes=*/ 10,
+                /*nowMillis=*/ 0);
+
+        assertThat(cache.getSizeBytes()).isEqualTo(20);
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 0)).isNotNull();
+        assertThat(cache.get(createKey(cache, PREFIX, "bar"), /*nowMillis=*/ 0)).isNull();
+        assertThat(cache.get(createKey(cache, PREFIX, "baz"), /*nowMillis=*/ 0)).isNotNull();
+
+        // A page larger than the whole cache is never cached.
+        cache.put(
+                createKey(cache, PREFIX, "big"),
+                createPage(/*nextPageToken=*/ 0),
+                /*sizeBytes=*/ 26,
+                /*nowMillis=*/ 0);
+        assertThat(cache.get(createKey(cache, PREFIX, "big"), /*nowMillis=*/ 0)).isNull();
+        assertThat(cache.getSizeBytes()).isEqualTo(20);
+    }
+
+    @Test
+    public void testDisabled() {
+        QueryResultCache cache =
+                new QueryResultCache(/*maxBytes=*/ 0, /*maxAgeMillis=*/ Long.MAX_VALUE);
+        assertThat(cache.isEnabled()).isFalse();
+        cache.put(
+                createKey(cache, PREFIX, "foo"),
+                createPage(/*nextPageToken=*/ 0),
+                /*sizeBytes=*/ 0,
+                /*nowMillis=*/ 0);
+
+        assertThat(cache.get(createKey(cache, PREFIX, "foo"), /*nowMillis=*/ 0)).isNull();
+    }
+
+    private static QueryResultCache.Key createKey(
+            QueryResultCache cache, String prefix, String queryExpression) {
+        Object callerKey = prefix == null ? "caller" : prefix;
+        return cache.createKey(callerKey, prefix, queryExpression, SEARCH_SPEC);
+    }
+
+    private static SearchResultPage createPage(long nextPageToken) {
+        Bundle bundle = new Bundle();
+        bundle.putLong(SearchResultPage.NEXT_PAGE_TOKEN_FIELD, nextPageToken);
+        return new SearchResultPage(bundle);
+    }
+}
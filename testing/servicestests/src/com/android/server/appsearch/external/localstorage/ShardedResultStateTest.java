@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.server.appsearch.icing.proto.DocumentProto;
+import com.android.server.appsearch.icing.proto.ResultSpecProto;
+import com.android.server.appsearch.icing.proto.ScoringSpecProto;
+import com.android.server.appsearch.icing.proto.SearchResultProto;
+import com.android.server.appsearch.icing.proto.SnippetProto;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class ShardedResultStateTest {
+    private static final ScoringSpecProto SCORE_DESC =
+            ScoringSpecProto.newBuilder()
+                    .setRankBy(ScoringSpecProto.RankingStrategy.Code.DOCUMENT_SCORE)
+                    .setOrderBy(ScoringSpecProto.Order.Code.DESC)
+                    .build();
+
+    @Test
+    public void testNextPage_mergesByScore() throws Exception {
+        Map<Long, SearchResultProto> shardPages =
+                ImmutableMap.of(
+                        11L, createPage(/*nextPageToken=*/ 0, result("b3", 6), result("b4", 2)));
+        ShardedResultState state =
+                new ShardedResultState(
+                        ImmutableList.of(
+                                createPage(
+                                        /*nextPageToken=*/ 0,
+                                        result("a1", 9),
+                                        result("a2", 5),
+                                        result("a3", 1)),
+                                createPage(
+                                        /*nextPageToken=*/ 11, result("b1", 8), result("b2", 7))),
+                        SCORE_DESC,
+                        createResultSpec(/*numPerPage=*/ 3, /*numToSnippet=*/ 0));
+
+        assertThat(getIds(state.nextPage(shardPages::get)))
+                .containsExactly("a1", "b1", "b2")
+                .inOrder();
+        assertThat(state.isExhausted()).isFalse();
+        // The second shard has to be advanced to find what comes after its first page.
+        assertThat(getIds(state.nextPage(shardPages::get)))
+                .containsExactly("b3", "a2", "b4")
+                .inOrder();
+        assertThat(getIds(state.nextPage(shardPages::get))).containsExactly("a3");
+        assertThat(state.isExhausted()).isTrue();
+        assertThat(state.nextPage(shardPages::get).getResultsCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testNextPage_ascending() throws Exception {
+        ShardedResultState state =
+                new ShardedResultState(
+                        ImmutableList.of(
+                                createPage(/*nextPageToken=*/ 0, result("a1", 1), result("a2", 4)),
+                                createPage(/*nextPageToken=*/ 0, result("b1", 2), result("b2", 3))),
+                        SCORE_DESC.toBuilder().setOrderBy(ScoringSpecProto.Order.Code.ASC).build(),
+                        createResultSpec(/*numPerPage=*/ 10, /*numToSnippet=*/ 0));
+
+        assertThat(getIds(state.nextPage(token -> null)))
+                .containsExactly("a1", "b1", "b2", "a2")
+                .inOrder();
+        assertThat(state.isExhausted()).isTrue();
+    }
+
+    @Test
+    public void testNextPage_unrankedTakesShardsInOrder() throws Exception {
+        ShardedResultState state =
+                new ShardedResultState(
+                        ImmutableList.of(
+                                createPage(/*nextPageToken=*/ 0, result("a1", 0)),
+                                createPage(/*nextPageToken=*/ 0, result("b1", 0), result("b2", 0))),
+                        SCORE_DESC.toBuilder()
+                                .setRankBy(ScoringSpecProto.RankingStrategy.Code.NONE)
+                                .build(),
+                        createResultSpec(/*numPerPage=*/ 2, /*numToSnippet=*/ 0));
+
+        assertThat(getIds(state.nextPage(token -> null))).containsExactly("a1", "b1").inOrder();
+        assertThat(getIds(state.nextPage(token -> null))).containsExactly("b2");
+    }
+
+    @Test
+    public void testNextPage_snippetsOnlyFirstMergedResults() throws Exception {
+        // Each shard snippeted its first result.
+        ShardedResultState state =
+                new ShardedResultState(
+                        ImmutableList.of(
+                                createPage(
+                                        /*nextPageToken=*/ 0,
+                                        snippeted(result("a1", 9)),
+                                        result("a2", 5)),
+                                createPage(/*nextPageToken=*/ 0, snippeted(result("b1", 8)))),
+                        SCORE_DESC,
+                        createResultSpec(/*numPerPage=*/ 10, /*numToSnippet=*/ 1));
+
+        SearchResultProto page = state.nextPage(token -> null);
+
+        assertThat(getIds(page)).containsExactly("a1", "b1", "a2").inOrder();
+        assertThat(page.getResults(0).hasSnippet()).isTrue();
+        assertThat(page.getResults(1).hasSnippet()).isFalse();
+    }
+
+    @Test
+    public void testRelease_returnsTokensOfShardsWithMorePages() throws Exception {
+        ShardedResultState state =
+                new ShardedResultState(
+                        ImmutableList.of(
+                                createPage(/*nextPageToken=*/ 11, result("a1", 2)),
+                                createPage(/*nextPageToken=*/ 0, result("b1", 1)),
+                                createPage(/*nextPageToken=*/ 33, result("c1", 3))),
+                        SCORE_DESC,
+                        createResultSpec(/*numPerPage=*/ 1, /*numToSnippet=*/ 0));
+
+        assertThat(state.release()).containsExactly(11L, 33L);
+        assertThat(state.isExhausted()).isTrue();
+        assertThat(state.release()).isEmpty();
+    }
+
+    private static SearchResultProto.ResultProto result(String id, double score) {
+        return SearchResultProto.ResultProto.newBuilder()
+                .setDocument(DocumentProto.newBuilder().setUri(id))
+                .setScore(score)
+                .build();
+    }
+
+    private static SearchResultProto.ResultProto snippeted(SearchResultProto.ResultProto result) {
+        return result.toBuilder()
+                .setSnippet(
+                        SnippetProto.newBuilder()
+                                .addEntries(
+                                        SnippetProto.EntryProto.newBuilder()
+                                                .setPropertyName("subject")))
+                .build();
+    }
+
+    private static SearchResultProto createPage(
+            long nextPageToken, SearchResultProto.ResultProto... results) {
+        return SearchResultProto.newBuilder()
+                .setNextPageToken(nextPageToken)
+                .addAllResults(ImmutableList.copyOf(results))
+                .build();
+    }
+
+    private static ResultSpecProto createResultSpec(int numPerPage, int numToSnippet) {
+        return ResultSpecProto.newBuilder()
+                .setNumPerPage(numPerPage)
+                .setSnippetSpec(
+                        ResultSpecProto.SnippetSpecProto.newBuilder()
+                                .setNumToSnippet(numToSnippet))
+                .build();
+    }
+
+    private static List<String> getIds(SearchResultProto page) {
+        List<String> ids = new ArrayList<>(page.getResultsCount());
+        for (int i = 0; i < page.getResultsCount(); i++) {
+            ids.add(page.getResults(i).getDocument().getUri());
+        }
+        return ids;
+    }
+}
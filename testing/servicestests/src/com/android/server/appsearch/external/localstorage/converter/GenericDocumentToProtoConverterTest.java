@@ -18,23 +18,24 @@ package com.android.server.appsearch.external.localstorage.converter;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.Assert.assertThrows;
+
 import android.app.appsearch.GenericDocument;
+import android.app.appsearch.exceptions.AppSearchException;
 
+import com.android.server.appsearch.external.localstorage.util.PrefixUtil;
 import com.android.server.appsearch.icing.proto.DocumentProto;
 import com.android.server.appsearch.icing.proto.PropertyConfigProto;
 import com.android.server.appsearch.icing.proto.PropertyProto;
 import com.android.server.appsearch.icing.proto.SchemaTypeConfigProto;
 import com.android.server.appsearch.protobuf.ByteString;
 
-import com.google.common.collect.ImmutableMap;
-
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.TreeMap;
 
 public class GenericDocumentToProtoConverterTest {
@@ -52,17 +53,16 @@ public class GenericDocumentToProtoConverterTest {
                             "namespace", "sDocumentProperties2", SCHEMA_TYPE_2)
                     .setCreationTimestampMillis(6789L)
                     .build();
+    private static final String PREFIX = "package$databaseName/";
     private static final SchemaTypeConfigProto SCHEMA_PROTO_1 =
-            SchemaTypeConfigProto.newBuilder().setSchemaType(SCHEMA_TYPE_1).build();
+            SchemaTypeConfigProto.newBuilder().setSchemaType(PREFIX + SCHEMA_TYPE_1).build();
     private static final SchemaTypeConfigProto SCHEMA_PROTO_2 =
-            SchemaTypeConfigProto.newBuilder().setSchemaType(SCHEMA_TYPE_2).build();
-    private static final String PREFIX = "package$databaseName/";
-    private static final Map<String, SchemaTypeConfigProto> SCHEMA_MAP =
-            ImmutableMap.of(
-                    PREFIX + SCHEMA_TYPE_1, SCHEMA_PROTO_1, PREFIX + SCHEMA_TYPE_2, SCHEMA_PROTO_2);
+            SchemaTypeConfigProto.newBuilder().setSchemaType(PREFIX + SCHEMA_TYPE_2).build();
+    private static final PropertyConfigIndex PROPERTY_CONFIG_INDEX =
+            createPropertyConfigIndex(SCHEMA_PROTO_1, SCHEMA_PROTO_2);
 
     @Test
-    public void testDocumentProtoConvert() {
+    public void testDocumentProtoConvert() throws Exception {
         GenericDocument document =
                 new GenericDocument.Builder<GenericDocument.Builder<?>>(
                                 "namespace", "id1", SCHEMA_TYPE_1)
@@ -128,7 +128,7 @@ public class GenericDocumentToProtoConverterTest {
 
         GenericDocument convertedGenericDocument =
                 GenericDocumentToProtoConverter.toGenericDocument(
-                        documentProto, PREFIX, SCHEMA_MAP);
+                        documentProto, PREFIX, PROPERTY_CONFIG_INDEX);
         DocumentProto convertedDocumentProto =
                 GenericDocumentToProtoConverter.toDocumentProto(document);
 
@@ -137,7 +137,105 @@ public class GenericDocumentToProtoConverterTest {
     }
 
     @Test
-    public void testConvertDocument_whenPropertyHasEmptyList() {
+    public void testDocumentProtoConvert_withPrefix() {
+        GenericDocument nestedDocument =
+                new GenericDocument.Builder<GenericDocument.Builder<?>>(
+                                "namespace", "nested", SCHEMA_TYPE_2)
+                        .setCreationTimestampMillis(5L)
+                        .setPropertyDocument("documentKey1", DOCUMENT_PROPERTIES_1)
+                        .build();
+        GenericDocument document =
+                new GenericDocument.Builder<GenericDocument.Builder<?>>(
+                                "namespace", "id1", SCHEMA_TYPE_1)
+                        .setCreationTimestampMillis(5L)
+                        .setPropertyString("stringKey1", "test-value1", "test-value2")
+                        .setPropertyBytes("byteKey1", BYTE_ARRAY_1, BYTE_ARRAY_2)
+                        .setPropertyDocument("documentKey1", nestedDocument)
+                        .build();
+
+        // Prefixing during the conversion matches converting and then prefixing.
+        DocumentProto.Builder expectedBuilder =
+                GenericDocumentToProtoConverter.toDocumentProto(document).toBuilder();
+        PrefixUtil.addPrefixToDocument(expectedBuilder, PREFIX);
+
+        DocumentProto documentProto =
+                GenericDocumentToProtoConverter.toDocumentProto(document, PREFIX);
+
+        assertThat(documentProto).isEqualTo(expectedBuilder.build());
+        assertThat(documentProto.getSchema()).isEqualTo(PREFIX + SCHEMA_TYPE_1);
+        assertThat(documentProto.getProperties(0).getBytesValues(0).toByteArray())
+                .isEqualTo(BYTE_ARRAY_1);
+    }
+
+    @Test
+    public void testToUnprefixedGenericDocument() throws Exception {
+        GenericDocument nestedDocument =
+                new GenericDocument.Builder<GenericDocument.Builder<?>>(
+                                "namespace", "nested", SCHEMA_TYPE_2)
+                        .setCreationTimestampMillis(5L)
+                        .setPropertyDocument("documentKey1", DOCUMENT_PROPERTIES_1)
+                        .build();
+        GenericDocument document =
+                new GenericDocument.Builder<GenericDocument.Builder<?>>(
+                                "namespace", "id1", SCHEMA_TYPE_1)
+                        .setCreationTimestampMillis(5L)
+                        .setPropertyString("stringKey1", "test-value1", "test-value2")
+                        .setPropertyDocument("documentKey1", nestedDocument)
+                        .build();
+        DocumentProto documentProto =
+                GenericDocumentToProtoConverter.toDocumentProto(document, PREFIX);
+
+        // Removing the prefixes during the conversion matches removing them and then converting.
+        DocumentProto.Builder unprefixedBuilder = documentProto.toBuilder();
+        PrefixUtil.removePrefixesFromDocument(unprefixedBuilder);
+        GenericDocument expectedDocument =
+                GenericDocumentToProtoConverter.toGenericDocument(
+                        unprefixedBuilder, PREFIX, PROPERTY_CONFIG_INDEX);
+
+        GenericDocument convertedDocument =
+                GenericDocumentToProtoConverter.toUnprefixedGenericDocument(
+                        documentProto, PREFIX, PROPERTY_CONFIG_INDEX);
+
+        assertThat(convertedDocument).isEqualTo(expectedDocument);
+        assertThat(convertedDocument).isEqualTo(document);
+    }
+
+    @Test
+    public void testToUnprefixedGenericDocument_nestedPrefixMismatch() {
+        GenericDocument nestedDocument =
+                new GenericDocument.Builder<GenericDocument.Builder<?>>(
+                                "namespace", "nested", SCHEMA_TYPE_2)
+                        .setCreationTimestampMillis(5L)
+                        .build();
+        DocumentProto documentProto =
+                GenericDocumentToProtoConverter.toDocumentProto(
+                                new GenericDocument.Builder<GenericDocument.Builder<?>>(
+                                                "namespace", "id1", SCHEMA_TYPE_1)
+                                        .setCreationTimestampMillis(5L)
+                                        .setPropertyDocument("documentKey1", nestedDocument)
+                                        .build(),
+                                PREFIX)
+                        .toBuilder()
+                        .setProperties(
+                                0,
+                                PropertyProto.newBuilder()
+                                        .setName("documentKey1")
+                                        .addDocumentValues(
+                                                GenericDocumentToProtoConverter.toDocumentProto(
+                                                        nestedDocument, "otherPackage$db/")))
+                        .build();
+
+        AppSearchException e =
+                assertThrows(
+                        AppSearchException.class,
+                        () ->
+                                GenericDocumentToProtoConverter.toUnprefixedGenericDocument(
+                                        documentProto, PREFIX, PROPERTY_CONFIG_INDEX));
+        assertThat(e).hasMessageThat().contains("Found unexpected multiple prefix names");
+    }
+
+    @Test
+    public void testConvertDocument_whenPropertyHasEmptyList() throws Exception {
         // Build original GenericDocument
         GenericDocument document =
                 new GenericDocument.Builder<GenericDocument.Builder<?>>(
@@ -225,12 +323,12 @@ public class GenericDocumentToProtoConverterTest {
                         .addProperties(emptyDocumentListProperty)
                         .setSchemaType(PREFIX + SCHEMA_TYPE_1)
                         .build();
-        Map<String, SchemaTypeConfigProto> schemaMap =
-                ImmutableMap.of(PREFIX + SCHEMA_TYPE_1, schemaTypeConfigProto);
+        PropertyConfigIndex propertyConfigIndex = createPropertyConfigIndex(schemaTypeConfigProto);
 
         // Convert to the other type and check if they are matched.
         GenericDocument convertedGenericDocument =
-                GenericDocumentToProtoConverter.toGenericDocument(documentProto, PREFIX, schemaMap);
+                GenericDocumentToProtoConverter.toGenericDocument(
+                        documentProto, PREFIX, propertyConfigIndex);
         DocumentProto convertedDocumentProto =
                 GenericDocumentToProtoConverter.toDocumentProto(document);
         assertThat(convertedDocumentProto).isEqualTo(documentProto);
@@ -238,7 +336,7 @@ public class GenericDocumentToProtoConverterTest {
     }
 
     @Test
-    public void testConvertDocument_whenNestedDocumentPropertyHasEmptyList() {
+    public void testConvertDocument_whenNestedDocumentPropertyHasEmptyList() throws Exception {
         // Build original nested document in type 1 and outer document in type2
         GenericDocument nestedDocument =
                 new GenericDocument.Builder<GenericDocument.Builder<?>>(
@@ -360,20 +458,25 @@ public class GenericDocumentToProtoConverterTest {
                         .addProperties(nestedDocumentProperty)
                         .setSchemaType(PREFIX + SCHEMA_TYPE_2)
                         .build();
-        Map<String, SchemaTypeConfigProto> schemaMap =
-                ImmutableMap.of(
-                        PREFIX + SCHEMA_TYPE_1,
-                        nestedSchemaTypeConfigProto,
-                        PREFIX + SCHEMA_TYPE_2,
-                        outerSchemaTypeConfigProto);
+        PropertyConfigIndex propertyConfigIndex =
+                createPropertyConfigIndex(nestedSchemaTypeConfigProto, outerSchemaTypeConfigProto);
 
         // Convert to the other type and check if they are matched.
         GenericDocument convertedGenericDocument =
                 GenericDocumentToProtoConverter.toGenericDocument(
-                        outerDocumentProto, PREFIX, schemaMap);
+                        outerDocumentProto, PREFIX, propertyConfigIndex);
         DocumentProto convertedDocumentProto =
                 GenericDocumentToProtoConverter.toDocumentProto(outerDocument);
         assertThat(convertedDocumentProto).isEqualTo(outerDocumentProto);
         assertThat(convertedGenericDocument).isEqualTo(outerDocument);
     }
+
+    private static PropertyConfigIndex createPropertyConfigIndex(
+            SchemaTypeConfigProto... schemaTypeConfigProtos) {
+        PropertyConfigIndex propertyConfigIndex = new PropertyConfigIndex();
+        for (SchemaTypeConfigProto schemaTypeConfigProto : schemaTypeConfigProtos) {
+            propertyConfigIndex.put(PREFIX, schemaTypeConfigProto);
+        }
+        return propertyConfigIndex;
+    }
 }
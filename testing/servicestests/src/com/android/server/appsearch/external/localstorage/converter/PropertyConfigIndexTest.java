@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage.converter;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import com.android.server.appsearch.icing.proto.PropertyConfigProto;
+import com.android.server.appsearch.icing.proto.SchemaTypeConfigProto;
+
+import org.junit.Test;
+
+public class PropertyConfigIndexTest {
+    private static final String PREFIX_1 = "package$database1/";
+    private static final String PREFIX_2 = "package$database2/";
+    private static final PropertyConfigProto NAME_PROPERTY =
+            PropertyConfigProto.newBuilder()
+                    .setPropertyName("name")
+                    .setDataType(PropertyConfigProto.DataType.Code.STRING)
+                    .setCardinality(PropertyConfigProto.Cardinality.Code.OPTIONAL)
+                    .build();
+    private static final PropertyConfigProto ADDRESS_PROPERTY =
+            PropertyConfigProto.newBuilder()
+                    .setPropertyName("address")
+                    .setDataType(PropertyConfigProto.DataType.Code.DOCUMENT)
+                    .setCardinality(PropertyConfigProto.Cardinality.Code.REPEATED)
+                    .setSchemaType(PREFIX_1 + "Address")
+                    .build();
+    private static final SchemaTypeConfigProto PERSON_TYPE =
+            SchemaTypeConfigProto.newBuilder()
+                    .setSchemaType(PREFIX_1 + "Person")
+                    .addProperties(NAME_PROPERTY)
+                    .addProperties(ADDRESS_PROPERTY)
+                    .build();
+
+    @Test
+    public void testGetPropertyConfig() {
+        PropertyConfigIndex index = new PropertyConfigIndex();
+        index.put(PREFIX_1, PERSON_TYPE);
+
+        assertThat(index.getPropertyConfig(PREFIX_1, "Person", "name")).isEqualTo(NAME_PROPERTY);
+        assertThat(index.getPropertyConfig(PREFIX_1, "Person", "address"))
+                .isEqualTo(ADDRESS_PROPERTY);
+        assertThat(index.getPropertyConfig(PREFIX_1, "Person", "unknown")).isNull();
+        assertThat(index.getPropertyConfig(PREFIX_1, "Address", "name")).isNull();
+        assertThat(index.getPropertyConfig(PREFIX_2, "Person", "name")).isNull();
+    }
+
+    @Test
+    public void testPut_replacesType() {
+        PropertyConfigIndex index = new PropertyConfigIndex();
+        index.put(PREFIX_1, PERSON_TYPE);
+
+        index.put(
+                PREFIX_1,
+                SchemaTypeConfigProto.newBuilder()
+                        .setSchemaType(PREFIX_1 + "Person")
+                        .addProperties(NAME_PROPERTY)
+                        .build());
+
+        assertThat(index.getPropertyConfig(PREFIX_1, "Person", "name")).isEqualTo(NAME_PROPERTY);
+        assertThat(index.getPropertyConfig(PREFIX_1, "Person", "address")).isNull();
+    }
+
+    @Test
+    public void testPut_wrongPrefix() {
+        PropertyConfigIndex index = new PropertyConfigIndex();
+
+        assertThrows(IllegalArgumentException.class, () -> index.put(PREFIX_2, PERSON_TYPE));
+    }
+
+    @Test
+    public void testRemove() {
+        PropertyConfigIndex index = new PropertyConfigIndex();
+        index.put(PREFIX_1, PERSON_TYPE);
+        index.put(PREFIX_2, PERSON_TYPE.toBuilder().setSchemaType(PREFIX_2 + "Person").build());
+
+        index.remove(PREFIX_1, PREFIX_1 + "Person");
+
+        assertThat(index.getPropertyConfig(PREFIX_1, "Person", "name")).isNull();
+        assertThat(index.getPropertyConfig(PREFIX_2, "Person", "name")).isEqualTo(NAME_PROPERTY);
+    }
+
+    @Test
+    public void testRemovePrefixAndClear() {
+        PropertyConfigIndex index = new PropertyConfigIndex();
+        index.put(PREFIX_1, PERSON_TYPE);
+        index.put(PREFIX_2, PERSON_TYPE.toBuilder().setSchemaType(PREFIX_2 + "Person").build());
+
+        index.removePrefix(PREFIX_1);
+        assertThat(index.getPropertyConfig(PREFIX_1, "Person", "name")).isNull();
+        assertThat(index.getPropertyConfig(PREFIX_2, "Person", "name")).isEqualTo(NAME_PROPERTY);
+
+        index.clear();
+        assertThat(index.getPropertyConfig(PREFIX_2, "Person", "name")).isNull();
+    }
+}
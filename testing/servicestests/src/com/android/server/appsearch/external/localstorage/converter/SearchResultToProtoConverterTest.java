@@ -20,20 +20,24 @@ import static com.android.server.appsearch.external.localstorage.util.PrefixUtil
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.Assert.assertThrows;
+
 import android.app.appsearch.SearchResult;
 import android.app.appsearch.SearchResultPage;
+import android.app.appsearch.SearchResultSummaries;
+import android.app.appsearch.SearchSpec;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 
 import com.android.server.appsearch.external.localstorage.util.PrefixUtil;
 import com.android.server.appsearch.icing.proto.DocumentProto;
 import com.android.server.appsearch.icing.proto.SchemaTypeConfigProto;
 import com.android.server.appsearch.icing.proto.SearchResultProto;
-
-import com.google.common.collect.ImmutableMap;
+import com.android.server.appsearch.icing.proto.SnippetMatchProto;
+import com.android.server.appsearch.icing.proto.SnippetProto;
 
 import org.junit.Test;
 
-import java.util.Map;
-
 public class SearchResultToProtoConverterTest {
     @Test
     public void testToSearchResultProto() throws Exception {
@@ -57,12 +61,12 @@ public class SearchResultToProtoConverterTest {
                         .build();
         SchemaTypeConfigProto schemaTypeConfigProto =
                 SchemaTypeConfigProto.newBuilder().setSchemaType(schemaType).build();
-        Map<String, Map<String, SchemaTypeConfigProto>> schemaMap =
-                ImmutableMap.of(prefix, ImmutableMap.of(schemaType, schemaTypeConfigProto));
+        PropertyConfigIndex propertyConfigIndex = new PropertyConfigIndex();
+        propertyConfigIndex.put(prefix, schemaTypeConfigProto);
 
         removePrefixesFromDocument(documentProtoBuilder);
         SearchResultPage searchResultPage =
-                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, schemaMap);
+                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, propertyConfigIndex);
         assertThat(searchResultPage.getResults()).hasSize(1);
         SearchResult result = searchResultPage.getResults().get(0);
         assertThat(result.getPackageName()).isEqualTo("com.package.foo");
@@ -70,6 +74,146 @@ public class SearchResultToProtoConverterTest {
         assertThat(result.getGenericDocument())
                 .isEqualTo(
                         GenericDocumentToProtoConverter.toGenericDocument(
-                                documentProtoBuilder.build(), prefix, schemaMap.get(prefix)));
+                                documentProtoBuilder.build(), prefix, propertyConfigIndex));
+    }
+
+    @Test
+    public void testToSearchResultPage_idsMode() throws Exception {
+        String prefix = PrefixUtil.createPrefix("com.package.foo", "databaseName");
+        SearchResultProto searchResultProto =
+                SearchResultProto.newBuilder()
+                        .setNextPageToken(42)
+                        .addResults(
+                                SearchResultProto.ResultProto.newBuilder()
+                                        .setDocument(
+                                                DocumentProto.newBuilder()
+                                                        .setUri("id1")
+                                                        .setNamespace(prefix + "namespace")
+                                                        .setSchema(prefix + "schema"))
+                                        .setScore(2.5))
+                        .addResults(
+                                SearchResultProto.ResultProto.newBuilder()
+                                        .setDocument(
+                                                DocumentProto.newBuilder()
+                                                        .setUri("id2")
+                                                        .setNamespace(prefix + "namespace")
+                                                        .setSchema(prefix + "schema"))
+                                        .setScore(1.5))
+                        .build();
+
+        SearchResultPage searchResultPage =
+                SearchResultToProtoConverter.toSearchResultPage(
+                        searchResultProto, new PropertyConfigIndex(), SearchSpec.RESULT_MODE_IDS);
+
+        assertThat(searchResultPage.getNextPageToken()).isEqualTo(42);
+        assertThat(searchResultPage.getResults()).isEmpty();
+        SearchResultSummaries summaries = searchResultPage.getSummaries();
+        assertThat(summaries.size()).isEqualTo(2);
+        assertThat(summaries.getIds()).containsExactly("id1", "id2").inOrder();
+        assertThat(summaries.getPackageName(0)).isEqualTo("com.package.foo");
+        assertThat(summaries.getDatabaseName(0)).isEqualTo("databaseName");
+        assertThat(summaries.getNamespace(1)).isEqualTo("namespace");
+        assertThat(summaries.getRankingSignal(0)).isEqualTo(2.5);
+        assertThat(summaries.getRankingSignal(1)).isEqualTo(1.5);
+        assertThat(summaries.getMatchCount(0)).isEqualTo(0);
+    }
+
+    @Test
+    public void testToSearchResultPage_snippetsMode() throws Exception {
+        String prefix = PrefixUtil.createPrefix("com.package.foo", "databaseName");
+        SnippetProto snippetProto =
+                SnippetProto.newBuilder()
+                        .addEntries(
+                                SnippetProto.EntryProto.newBuilder()
+                                        .setPropertyName("body")
+                                        .addSnippetMatches(
+                                                SnippetMatchProto.newBuilder()
+                                                        .setExactMatchUtf16Position(29)
+                                                        .setExactMatchUtf16Length(3)
+                                                        .setSubmatchUtf16Length(2)
+                                                        .setWindowUtf16Position(26)
+                                                        .setWindowUtf16Length(6)))
+                        .build();
+        SearchResultProto searchResultProto =
+                SearchResultProto.newBuilder()
+                        .addResults(
+                                SearchResultProto.ResultProto.newBuilder()
+                                        .setDocument(
+                                                DocumentProto.newBuilder()
+                                                        .setUri("id1")
+                                                        .setNamespace(prefix + "namespace")
+                                                        .setSchema(prefix + "schema"))
+                                        .setSnippet(snippetProto))
+                        .addResults(
+                                SearchResultProto.ResultProto.newBuilder()
+                                        .setDocument(
+                                                DocumentProto.newBuilder()
+                                                        .setUri("id2")
+                                                        .setNamespace(prefix + "namespace")
+                                                        .setSchema(prefix + "schema")))
+                        .build();
+
+        SearchResultSummaries summaries =
+                SearchResultToProtoConverter.toSearchResultPage(
+                                searchResultProto,
+                                new PropertyConfigIndex(),
+                                SearchSpec.RESULT_MODE_SNIPPETS)
+                        .getSummaries();
+
+        assertThat(summaries.getIds()).containsExactly("id1", "id2").inOrder();
+        assertThat(summaries.getMatchCount(0)).isEqualTo(1);
+        assertThat(summaries.getMatchCount(1)).isEqualTo(0);
+        assertThat(summaries.getMatchPropertyPath(0, 0)).isEqualTo("body");
+        assertThat(summaries.getExactMatchRange(0, 0))
+                .isEqualTo(new SearchResult.MatchRange(29, 32));
+        assertThat(summaries.getSubmatchRange(0, 0))
+                .isEqualTo(new SearchResult.MatchRange(29, 31));
+        assertThat(summaries.getSnippetRange(0, 0))
+                .isEqualTo(new SearchResult.MatchRange(26, 32));
+    }
+
+    @Test
+    public void testToSearchResultPage_cancelled() throws Exception {
+        String prefix = PrefixUtil.createPrefix("com.package.foo", "databaseName");
+        SearchResultProto searchResultProto =
+                SearchResultProto.newBuilder()
+                        .addResults(
+                                SearchResultProto.ResultProto.newBuilder()
+                                        .setDocument(
+                                                DocumentProto.newBuilder()
+                                                        .setUri("id1")
+                                                        .setNamespace(prefix + "namespace")
+                                                        .setSchema(prefix + "schema")))
+                        .build();
+        CancellationSignal cancellationSignal = new CancellationSignal();
+
+        // A signal that isn't cancelled changes nothing.
+        assertThat(
+                        SearchResultToProtoConverter.toSearchResultPage(
+                                        searchResultProto,
+                                        new PropertyConfigIndex(),
+                                        SearchSpec.RESULT_MODE_IDS,
+                                        cancellationSignal)
+                                .getSummaries()
+                                .getIds())
+                .containsExactly("id1");
+
+        cancellationSignal.cancel();
+        assertThrows(
+                OperationCanceledException.class,
+                () ->
+                        SearchResultToProtoConverter.toSearchResultPage(
+                                searchResultProto,
+                                new PropertyConfigIndex(),
+                                SearchSpec.RESULT_MODE_DOCUMENTS,
+                                cancellationSignal));
+        assertThrows(
+                OperationCanceledException.class,
+                () ->
+                        SearchResultToProtoConverter.toSearchResultPage(
+                                searchResultProto,
+                                new PropertyConfigIndex(),
+                                SearchSpec.RESULT_MODE_IDS,
+                                cancellationSignal));
     }
 }
@@ -37,7 +37,9 @@ import com.android.server.appsearch.icing.proto.ResultSpecProto;
 import com.android.server.appsearch.icing.proto.SchemaTypeConfigProto;
 import com.android.server.appsearch.icing.proto.ScoringSpecProto;
 import com.android.server.appsearch.icing.proto.SearchSpecProto;
+import com.android.server.appsearch.icing.proto.TypePropertyMask;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
@@ -144,6 +146,58 @@ public class SearchSpecToProtoConverterTest {
         assertThat(resultSpecProto.getSnippetSpec().getMaxWindowUtf32Length()).isEqualTo(456);
     }
 
+    @Test
+    public void testToResultSpecProto_idsMode() {
+        SearchSpec searchSpec =
+                new SearchSpec.Builder()
+                        .setSnippetCount(234)
+                        .addProjection("type", ImmutableList.of("body"))
+                        .setResultMode(SearchSpec.RESULT_MODE_IDS)
+                        .build();
+
+        SearchSpecToProtoConverter convert =
+                new SearchSpecToProtoConverter(
+                        searchSpec,
+                        /*prefixes=*/ ImmutableSet.of(createPrefix("package", "db")),
+                        /*namespaceMap=*/ ImmutableMap.of(),
+                        /*schemaMap=*/ ImmutableMap.of());
+        ResultSpecProto resultSpecProto =
+                convert.toResultSpecProto(/*namespaceMap=*/ ImmutableMap.of());
+
+        // No snippets, and every property projected out in place of the requested projections.
+        assertThat(resultSpecProto.getSnippetSpec().getNumToSnippet()).isEqualTo(0);
+        assertThat(resultSpecProto.getTypePropertyMasksList())
+                .containsExactly(
+                        TypePropertyMask.newBuilder()
+                                .setSchemaType(SearchSpec.PROJECTION_SCHEMA_TYPE_WILDCARD)
+                                .build());
+    }
+
+    @Test
+    public void testToResultSpecProto_snippetsMode() {
+        SearchSpec searchSpec =
+                new SearchSpec.Builder()
+                        .setSnippetCount(234)
+                        .setResultMode(SearchSpec.RESULT_MODE_SNIPPETS)
+                        .build();
+
+        SearchSpecToProtoConverter convert =
+                new SearchSpecToProtoConverter(
+                        searchSpec,
+                        /*prefixes=*/ ImmutableSet.of(),
+                        /*namespaceMap=*/ ImmutableMap.of(),
+                        /*schemaMap=*/ ImmutableMap.of());
+        ResultSpecProto resultSpecProto =
+                convert.toResultSpecProto(/*namespaceMap=*/ ImmutableMap.of());
+
+        assertThat(resultSpecProto.getSnippetSpec().getNumToSnippet()).isEqualTo(234);
+        assertThat(resultSpecProto.getTypePropertyMasksList())
+                .containsExactly(
+                        TypePropertyMask.newBuilder()
+                                .setSchemaType(SearchSpec.PROJECTION_SCHEMA_TYPE_WILDCARD)
+                                .build());
+    }
+
     @Test
     public void testToResultSpecProto_groupByPackage() {
         SearchSpec searchSpec =
@@ -31,8 +31,6 @@ import com.android.server.appsearch.icing.proto.SnippetProto;
 
 import org.junit.Test;
 
-import java.util.Collections;
-import java.util.Map;
 
 public class SnippetTest {
     private static final String PACKAGE_NAME = "packageName";
@@ -42,10 +40,11 @@ public class SnippetTest {
     private static final String PREFIXED_NAMESPACE = PREFIX + "";
     private static final SchemaTypeConfigProto SCHEMA_TYPE_CONFIG_PROTO =
             SchemaTypeConfigProto.newBuilder().setSchemaType(PREFIXED_SCHEMA_TYPE).build();
-    private static final Map<String, Map<String, SchemaTypeConfigProto>> SCHEMA_MAP =
-            Collections.singletonMap(
-                    PREFIX,
-                    Collections.singletonMap(PREFIXED_SCHEMA_TYPE, SCHEMA_TYPE_CONFIG_PROTO));
+    private static final PropertyConfigIndex PROPERTY_CONFIG_INDEX = new PropertyConfigIndex();
+
+    static {
+        PROPERTY_CONFIG_INDEX.put(PREFIX, SCHEMA_TYPE_CONFIG_PROTO);
+    }
 
     @Test
     public void testSingleStringSnippet() throws Exception {
@@ -97,7 +96,7 @@ public class SnippetTest {
 
         // Making ResultReader and getting Snippet values.
         SearchResultPage searchResultPage =
-                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, SCHEMA_MAP);
+                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, PROPERTY_CONFIG_INDEX);
         assertThat(searchResultPage.getResults()).hasSize(1);
         SearchResult.MatchInfo match = searchResultPage.getResults().get(0).getMatchInfos().get(0);
         assertThat(match.getPropertyPath()).isEqualTo(propertyKeyString);
@@ -142,7 +141,7 @@ public class SnippetTest {
                         .build();
 
         SearchResultPage searchResultPage =
-                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, SCHEMA_MAP);
+                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, PROPERTY_CONFIG_INDEX);
         assertThat(searchResultPage.getResults()).hasSize(1);
         assertThat(searchResultPage.getResults().get(0).getMatchInfos()).isEmpty();
     }
@@ -207,7 +206,7 @@ public class SnippetTest {
 
         // Making ResultReader and getting Snippet values.
         SearchResultPage searchResultPage =
-                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, SCHEMA_MAP);
+                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, PROPERTY_CONFIG_INDEX);
         assertThat(searchResultPage.getResults()).hasSize(1);
         SearchResult.MatchInfo match1 = searchResultPage.getResults().get(0).getMatchInfos().get(0);
         assertThat(match1.getPropertyPath()).isEqualTo("senderName");
@@ -307,7 +306,7 @@ public class SnippetTest {
 
         // Making ResultReader and getting Snippet values.
         SearchResultPage searchResultPage =
-                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, SCHEMA_MAP);
+                SearchResultToProtoConverter.toSearchResultPage(searchResultProto, PROPERTY_CONFIG_INDEX);
         assertThat(searchResultPage.getResults()).hasSize(1);
         SearchResult.MatchInfo match1 = searchResultPage.getResults().get(0).getMatchInfos().get(0);
         assertThat(match1.getPropertyPath()).isEqualTo("sender.name");
@@ -198,6 +198,8 @@ public class AppSearchStatsTest {
         int nativeRankingLatencyMillis = 15;
         int nativeNumResultsSnippeted = 16;
         int nativeDocumentRetrievingLatencyMillis = 17;
+        int resultCacheHitCount = 18;
+        int resultCacheMissCount = 19;
         final SearchStats.Builder sStatsBuilder =
                 new SearchStats.Builder(visibilityScope, TEST_PACKAGE_NAME)
                         .setDatabase(TEST_DATA_BASE)
@@ -219,7 +221,9 @@ public class AppSearchStatsTest {
                         .setScoringLatencyMillis(nativeScoringLatencyMillis)
                         .setRankingLatencyMillis(nativeRankingLatencyMillis)
                         .setResultWithSnippetsCount(nativeNumResultsSnippeted)
-                        .setDocumentRetrievingLatencyMillis(nativeDocumentRetrievingLatencyMillis);
+                        .setDocumentRetrievingLatencyMillis(nativeDocumentRetrievingLatencyMillis)
+                        .setResultCacheHitCount(resultCacheHitCount)
+                        .setResultCacheMissCount(resultCacheMissCount);
         final SearchStats sStats = sStatsBuilder.build();
 
         assertThat(sStats.getPackageName()).isEqualTo(TEST_PACKAGE_NAME);
@@ -248,6 +252,8 @@ public class AppSearchStatsTest {
         assertThat(sStats.getResultWithSnippetsCount()).isEqualTo(nativeNumResultsSnippeted);
         assertThat(sStats.getDocumentRetrievingLatencyMillis())
                 .isEqualTo(nativeDocumentRetrievingLatencyMillis);
+        assertThat(sStats.getResultCacheHitCount()).isEqualTo(resultCacheHitCount);
+        assertThat(sStats.getResultCacheMissCount()).isEqualTo(resultCacheMissCount);
     }
 
     @Test
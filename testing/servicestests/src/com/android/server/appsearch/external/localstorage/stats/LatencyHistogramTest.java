@@ -0,0 +1,98 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.external.localstorage.stats;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.Range;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getMax()).isEqualTo(0);
+        assertThat(histogram.getMean()).isEqualTo(0.0);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(0);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(1);
+        histogram.record(2);
+        histogram.record(3);
+
+        assertThat(histogram.getCount()).isEqualTo(4);
+        assertThat(histogram.getValueAtPercentile(25)).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(1);
+        assertThat(histogram.getValueAtPercentile(75)).isEqualTo(2);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(3);
+    }
+
+    @Test
+    public void testPercentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getMean()).isEqualTo(50.5);
+        assertThat(histogram.getMax()).isEqualTo(100);
+        // Percentiles are upper bounds of their bucket, at most 25% above the true value.
+        assertThat(histogram.getValueAtPercentile(50)).isIn(Range.closed(50L, 63L));
+        assertThat(histogram.getValueAtPercentile(90)).isIn(Range.closed(90L, 113L));
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(100);
+    }
+
+    @Test
+    public void testLargeAndNegativeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(LatencyHistogram.MAX_TRACKABLE_VALUE * 2);
+
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(100))
+                .isEqualTo(LatencyHistogram.MAX_TRACKABLE_VALUE * 2);
+    }
+
+    @Test
+    public void testReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.reset();
+
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getMax()).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(99)).isEqualTo(0);
+    }
+
+    @Test
+    public void testInvalidPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertThrows(IllegalArgumentException.class, () -> histogram.getValueAtPercentile(101));
+        assertThrows(IllegalArgumentException.class, () -> histogram.getValueAtPercentile(-1));
+    }
+}
@@ -117,6 +117,84 @@ public class VisibilityStoreTest {
         assertThat(actualDocument).isEqualTo(visibilityDocument);
     }
 
+    @Test
+    public void testSetVisibility_unchangedDocumentIsNotRewritten() throws Exception {
+        String prefix = PrefixUtil.createPrefix("packageName", "databaseName");
+        VisibilityDocument visibilityDocument =
+                new VisibilityDocument.Builder(prefix + "Email")
+                        .setNotDisplayedBySystem(true)
+                        .addVisibleToPackage(new PackageIdentifier("pkgBar", new byte[32]))
+                        .setCreationTimestampMillis(1000)
+                        .build();
+        mVisibilityStore.setVisibility(ImmutableList.of(visibilityDocument));
+
+        // Same settings, different creation timestamp: the stored document is kept.
+        mVisibilityStore.setVisibility(
+                ImmutableList.of(
+                        new VisibilityDocument.Builder(prefix + "Email")
+                                .setNotDisplayedBySystem(true)
+                                .addVisibleToPackage(
+                                        new PackageIdentifier("pkgBar", new byte[32]))
+                                .setCreationTimestampMillis(2000)
+                                .build()));
+        assertThat(mVisibilityStore.getVisibility(prefix + "Email"))
+                .isSameInstanceAs(visibilityDocument);
+
+        // Changed settings are written.
+        VisibilityDocument changedDocument =
+                new VisibilityDocument.Builder(prefix + "Email")
+                        .setNotDisplayedBySystem(false)
+                        .addVisibleToPackage(new PackageIdentifier("pkgBar", new byte[32]))
+                        .build();
+        mVisibilityStore.setVisibility(ImmutableList.of(changedDocument));
+        assertThat(mVisibilityStore.getVisibility(prefix + "Email")).isEqualTo(changedDocument);
+        VisibilityDocument actualDocument =
+                new VisibilityDocument(
+                        mAppSearchImpl.getDocument(
+                                VisibilityStore.VISIBILITY_PACKAGE_NAME,
+                                VisibilityStore.VISIBILITY_DATABASE_NAME,
+                                VisibilityDocument.NAMESPACE,
+                                /*id=*/ prefix + "Email",
+                                /*typePropertyPaths=*/ Collections.emptyMap()));
+        assertThat(actualDocument).isEqualTo(changedDocument);
+    }
+
+    @Test
+    public void testIsSameVisibility() {
+        VisibilityDocument visibilityDocument =
+                new VisibilityDocument.Builder("Email")
+                        .addVisibleToPackage(new PackageIdentifier("pkgBar", new byte[32]))
+                        .setCreationTimestampMillis(1000)
+                        .build();
+
+        assertThat(
+                        VisibilityStore.isSameVisibility(
+                                visibilityDocument,
+                                new VisibilityDocument.Builder("Email")
+                                        .addVisibleToPackage(
+                                                new PackageIdentifier("pkgBar", new byte[32]))
+                                        .setCreationTimestampMillis(2000)
+                                        .build()))
+                .isTrue();
+        assertThat(
+                        VisibilityStore.isSameVisibility(
+                                visibilityDocument,
+                                new VisibilityDocument.Builder("Email")
+                                        .addVisibleToPackage(
+                                                new PackageIdentifier("pkgFoo", new byte[32]))
+                                        .build()))
+                .isFalse();
+        assertThat(
+                        VisibilityStore.isSameVisibility(
+                                visibilityDocument,
+                                new VisibilityDocument.Builder("Email")
+                                        .addVisibleToPackage(
+                                                new PackageIdentifier("pkgBar", new byte[32]))
+                                        .setNotDisplayedBySystem(true)
+                                        .build()))
+                .isFalse();
+    }
+
     @Test
     public void testRemoveVisibility() throws Exception {
         VisibilityDocument visibilityDocument =
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appsearch.stats;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.android.server.appsearch.external.localstorage.stats.CallStats;
+import com.android.server.appsearch.external.localstorage.stats.InitializeStats;
+import com.android.server.appsearch.external.localstorage.stats.SearchStats;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class LatencyTrackerTest {
+    private static final String PACKAGE_NAME = "com.android.test";
+
+    @Test
+    public void testDump_callTotalsPerPackage() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record(new CallStats.Builder()
+                .setPackageName(PACKAGE_NAME)
+                .setCallType(CallStats.CALL_TYPE_PUT_DOCUMENTS)
+                .setTotalLatencyMillis(7)
+                .build());
+
+        String dump = dump(tracker);
+
+        assertThat(dump).contains("Latency of " + PACKAGE_NAME + " (ms):");
+        assertThat(dump).contains("call.put_documents: count=1 mean=7.0 p50=7");
+    }
+
+    @Test
+    public void testDump_globalSearchSeparateFromLocal() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record(new SearchStats.Builder(SearchStats.VISIBILITY_SCOPE_GLOBAL, PACKAGE_NAME)
+                .setTotalLatencyMillis(3)
+                .setNativeLatencyMillis(2)
+                .build());
+
+        String dump = dump(tracker);
+
+        assertThat(dump).contains("global_search.total: count=1");
+        assertThat(dump).contains("global_search.native: count=1");
+        assertThat(dump).doesNotContain(" search.");
+    }
+
+    @Test
+    public void testDump_statsDoNotDoubleCountCalls() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record(new CallStats.Builder()
+                .setPackageName(PACKAGE_NAME)
+                .setCallType(CallStats.CALL_TYPE_SEARCH)
+                .setTotalLatencyMillis(5)
+                .build());
+        tracker.record(new SearchStats.Builder(SearchStats.VISIBILITY_SCOPE_LOCAL, PACKAGE_NAME)
+                .setTotalLatencyMillis(4)
+                .build());
+        tracker.record(new InitializeStats.Builder().setTotalLatencyMillis(6).build());
+
+        String dump = dump(tracker);
+
+        assertThat(dump).contains("call.search: count=1 mean=5.0");
+        assertThat(dump).contains("search.total: count=1 mean=4.0");
+        assertThat(dump).contains("initialize.total: count=1 mean=6.0");
+        assertThat(dump).doesNotContain("call.initialize:");
+    }
+
+    @Test
+    public void testReset() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record("metric", 5);
+
+        tracker.reset();
+
+        assertThat(dump(tracker)).doesNotContain("metric");
+    }
+
+    private static String dump(LatencyTracker tracker) {
+        StringWriter writer = new StringWriter();
+        PrintWriter pw = new PrintWriter(writer);
+        tracker.dump(pw, /*prefix=*/ "");
+        pw.flush();
+        return writer.toString();
+    }
+}
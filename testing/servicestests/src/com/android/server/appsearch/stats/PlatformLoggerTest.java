@@ -142,6 +142,20 @@ public class PlatformLoggerTest {
         assertThat(PlatformLogger.calculateHashCodeMd5(/*str=*/ null)).isEqualTo(-1);
     }
 
+    @Test
+    public void testGetDatabaseHashCode_matchesMd5() throws Exception {
+        PlatformLogger logger = new PlatformLogger(mContext, new FakeAppSearchConfig());
+
+        // The second lookup is served from the cache and must agree with the first.
+        assertThat(logger.getDatabaseHashCode("database1"))
+                .isEqualTo(PlatformLogger.calculateHashCodeMd5("database1"));
+        assertThat(logger.getDatabaseHashCode("database1"))
+                .isEqualTo(PlatformLogger.calculateHashCodeMd5("database1"));
+        assertThat(logger.getDatabaseHashCode("database2"))
+                .isEqualTo(PlatformLogger.calculateHashCodeMd5("database2"));
+        assertThat(logger.getDatabaseHashCode(/*database=*/ null)).isEqualTo(-1);
+    }
+
     /** Makes sure the caching works while getting the UID for calling package. */
     @Test
     public void testGetPackageUidAsUser() throws Exception {
@@ -152,14 +166,14 @@ public class PlatformLoggerTest {
         when(mockPackageManager.getPackageUid(testPackageName, /*flags=*/0)).thenReturn(testUid);
 
         // First time, no cache
-        PlatformLogger.ExtraStats extraStats = logger.createExtraStatsLocked(testPackageName,
+        PlatformLogger.ExtraStats extraStats = logger.createExtraStats(testPackageName,
                 CallStats.CALL_TYPE_PUT_DOCUMENT);
         verify(mockPackageManager, times(1))
                 .getPackageUid(eq(testPackageName), /*flags=*/ anyInt());
         assertThat(extraStats.mPackageUid).isEqualTo(testUid);
 
         // Second time, we have cache
-        extraStats = logger.createExtraStatsLocked(testPackageName,
+        extraStats = logger.createExtraStats(testPackageName,
                 CallStats.CALL_TYPE_PUT_DOCUMENT);
 
         // Count is still one since we will use the cache
@@ -169,7 +183,7 @@ public class PlatformLoggerTest {
 
         // Remove the cache and try again
         assertThat(logger.removeCachedUidForPackage(testPackageName)).isEqualTo(testUid);
-        extraStats = logger.createExtraStatsLocked(testPackageName,
+        extraStats = logger.createExtraStats(testPackageName,
                 CallStats.CALL_TYPE_PUT_DOCUMENT);
 
         // count increased by 1 since cache is cleared
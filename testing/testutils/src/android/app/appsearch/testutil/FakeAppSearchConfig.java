@@ -114,6 +114,48 @@ public final class FakeAppSearchConfig implements AppSearchConfig {
         return DEFAULT_DOC_COUNT_OPTIMIZE_THRESHOLD;
     }
 
+    @Override
+    public boolean getCachedInitSnapshotEnabled() {
+        throwIfClosed();
+        return DEFAULT_INIT_SNAPSHOT_ENABLED;
+    }
+
+    @Override
+    public boolean getCachedUserInstanceWarmUpEnabled() {
+        throwIfClosed();
+        return DEFAULT_USER_INSTANCE_WARM_UP_ENABLED;
+    }
+
+    @Override
+    public int getCachedLimitConfigMaxNextPageTokenCountPerPackage() {
+        throwIfClosed();
+        return DEFAULT_LIMIT_CONFIG_MAX_NEXT_PAGE_TOKEN_COUNT_PER_PACKAGE;
+    }
+
+    @Override
+    public long getCachedLimitConfigNextPageTokenTtlMillis() {
+        throwIfClosed();
+        return DEFAULT_LIMIT_CONFIG_NEXT_PAGE_TOKEN_TTL_MILLIS;
+    }
+
+    @Override
+    public long getCachedLimitConfigQueryResultCacheMaxBytes() {
+        throwIfClosed();
+        return DEFAULT_LIMIT_CONFIG_QUERY_RESULT_CACHE_MAX_BYTES;
+    }
+
+    @Override
+    public int getCachedLimitConfigGlobalQueryShardCount() {
+        throwIfClosed();
+        return DEFAULT_LIMIT_CONFIG_GLOBAL_QUERY_SHARD_COUNT;
+    }
+
+    @Override
+    public int getCachedLimitConfigMaxPendingObserverDocumentIdCount() {
+        throwIfClosed();
+        return DEFAULT_LIMIT_CONFIG_MAX_PENDING_OBSERVER_DOCUMENT_ID_COUNT;
+    }
+
     private void throwIfClosed() {
         if (mIsClosed.get()) {
             throw new IllegalStateException("Trying to use a closed AppSearchConfig instance.");